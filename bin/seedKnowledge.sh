@@ -0,0 +1,8 @@
+# Seed the grammar knowledge base (KnowledgeBase in Config.txt) by running
+# Casper over the original benchmarks. Every verified solution is recorded.
+# Set GrammarPredictions in Config.txt to search the recorded grammars first.
+BASEDIR=$(dirname "$0")
+cd $BASEDIR
+for f in $(find benchmarks/original -name "*.java"); do
+	./casperc -nooutput $f
+done
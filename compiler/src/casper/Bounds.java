@@ -0,0 +1,101 @@
+/*
+ * Sketch bounds of one code fragment. The search starts from the bounds in
+ * Config.txt. A summary that is only correct on small inputs gets past sketch
+ * and is then rejected by the falsifier or by dafny. When that happens, the
+ * bound that let it through is raised for this fragment only, so its later
+ * sketch runs rule such summaries out. Other fragments keep their small,
+ * fast bounds.
+ *
+ * The array size bound shapes the scaffold itself (array types, harness
+ * loops), so it is the same for all fragments.
+ */
+
+package casper;
+
+import java.io.Serializable;
+import java.util.Set;
+
+import casper.extension.MyWhileExt;
+import casper.types.Variable;
+import casper.visit.GenerateScaffold.SearchConfiguration;
+
+public class Bounds implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public int intRange;
+	public int inbits;
+	public int loopUnrollBound;
+
+	public Bounds(int intRange, int inbits, int loopUnrollBound) {
+		this.intRange = intRange;
+		this.inbits = inbits;
+		this.loopUnrollBound = loopUnrollBound;
+	}
+
+	public Bounds(Bounds other) {
+		this(other.intRange, other.inbits, other.loopUnrollBound);
+	}
+
+	// Bounds a fragment starts with
+	public static Bounds initial() {
+		return new Bounds(Configuration.intRange, Configuration.inbits, Configuration.loopUnrollBound);
+	}
+
+	// Largest input value sketch considers
+	public long maxInput() {
+		return (1L << inbits) - 1;
+	}
+
+	// Longest input collection sketch considers
+	public int maxLength() {
+		return Math.min(loopUnrollBound, Configuration.arraySizeBound);
+	}
+
+	public boolean raiseInbits() {
+		if(inbits >= Configuration.maxInbits)
+			return false;
+		inbits++;
+		return true;
+	}
+
+	public boolean raiseIntRange() {
+		if(intRange >= Configuration.maxIntRange)
+			return false;
+		intRange = Math.min(2*intRange, Configuration.maxIntRange);
+		return true;
+	}
+
+	// Longer loops only matter while they stay within the array size bound
+	public boolean raiseLoopUnrollBound() {
+		if(loopUnrollBound >= Math.min(Configuration.maxLoopUnrollBound, Configuration.arraySizeBound))
+			return false;
+		loopUnrollBound++;
+		return true;
+	}
+
+	// Raise the bound that let a summary through sketch which fails on the counterexample.
+	// The summary last parsed into ext is tested again on inputs within the bounds to tell
+	// which bound hid the failure. False if that bound is already at its limit.
+	public boolean raiseFor(Falsifier.Counterexample counterexample, MyWhileExt ext, Set<Variable> outputVars, String reduceType, SearchConfiguration conf) {
+		if(Falsifier.findCounterexample(ext, outputVars, reduceType, conf, maxInput(), maxLength()) != null){
+			// Wrong on inputs sketch considers: intermediate values went out of the int range
+			return raiseIntRange();
+		}
+		else if(counterexample.length > maxLength() && maxLength() < Configuration.arraySizeBound
+				&& Falsifier.findCounterexample(ext, outputVars, reduceType, conf, maxInput(), Configuration.arraySizeBound) != null){
+			// Only wrong on longer inputs than sketch unrolls the loop for
+			return raiseLoopUnrollBound();
+		}
+		// Only wrong on larger input values
+		return raiseInbits();
+	}
+
+	public String sketchOptions() {
+		return "--bnd-int-range "+intRange+" --bnd-inbits "+inbits+" --bnd-unroll-amnt "+loopUnrollBound+" --bnd-arr-size "+Configuration.arraySizeBound;
+	}
+
+	public String toString() {
+		return "int range "+intRange+", inbits "+inbits+", unroll "+loopUnrollBound;
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Time and core budget of a casperc run.
+ *
+ * Deadlines: a run may be given a total wall clock budget, a budget on the CPU
+ * time spent in sketch and dafny, and a wall clock budget per fragment. Tool
+ * runs are given a timeout that ends at the deadline, and a search that runs
+ * out of budget stops after its current round, keeping the best solution
+ * verified so far (see GenerateScaffold).
+ *
+ * Cores: sketch and dafny processes take cores from a shared pool before they
+ * start and return them when they exit, so concurrent fragments never
+ * oversubscribe the machine. When cores are scarce, requests are served by
+ * priority: dafny jobs first (their candidate is one step away from a
+ * solution), then sketch jobs of the fragments that found the most candidates.
+ */
+
+package casper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Budget {
+
+	// Priority of dafny jobs, above any sketch job
+	public static final int VERIFIER_PRIORITY = Integer.MAX_VALUE;
+
+	private static long runStart = System.currentTimeMillis();
+	private static final AtomicLong cpuMillis = new AtomicLong();
+
+	// Cores not handed out, initialized from Configuration.cores on first use
+	private static int freeCores = -1;
+	private static final List<Request> waiting = new ArrayList<Request>();
+
+	private static class Request {
+		int cores;
+		int priority;
+
+		Request(int cores, int priority) {
+			this.cores = cores;
+			this.priority = priority;
+		}
+	}
+
+	// Start the budget of a new run
+	public static synchronized void start() {
+		runStart = System.currentTimeMillis();
+		cpuMillis.set(0);
+		freeCores = -1;
+		waiting.clear();
+	}
+
+	// Deadline of a fragment whose search started at the given time (Long.MAX_VALUE if none)
+	public static long deadline(long fragmentStart) {
+		long deadline = Long.MAX_VALUE;
+		if(Configuration.timeBudget > 0)
+			deadline = runStart + 1000L * Configuration.timeBudget;
+		if(Configuration.fragmentTimeBudget > 0)
+			deadline = Math.min(deadline, fragmentStart + 1000L * Configuration.fragmentTimeBudget);
+		return deadline;
+	}
+
+	public static boolean expired(long deadline) {
+		if(System.currentTimeMillis() >= deadline)
+			return true;
+		return Configuration.cpuBudget > 0 && cpuMillis.get() >= 1000L * Configuration.cpuBudget;
+	}
+
+	// Timeout for a tool run that must end by the deadline. A cap of zero or less means
+	// no timeout of its own. Returns zero (wait indefinitely) if there is no limit at all.
+	public static long timeout(long deadline, long cap) {
+		if(deadline == Long.MAX_VALUE)
+			return Math.max(cap, 0);
+		long remaining = Math.max(deadline - System.currentTimeMillis(), 1);
+		return cap > 0 ? Math.min(cap, remaining) : remaining;
+	}
+
+	public static void chargeCpu(long millis) {
+		cpuMillis.addAndGet(millis);
+	}
+
+	public static int cores() {
+		return totalCores();
+	}
+
+	// Take cores from the pool, blocking until they are available and no request of
+	// higher priority is waiting. Returns the number of cores granted.
+	public static synchronized int acquire(int cores, int priority) throws InterruptedException {
+		if(freeCores == -1)
+			freeCores = totalCores();
+
+		Request request = new Request(Math.max(1, Math.min(cores, totalCores())), priority);
+		int pos = 0;
+		while(pos < waiting.size() && waiting.get(pos).priority >= priority)
+			pos++;
+		waiting.add(pos, request);
+
+		try {
+			while(waiting.get(0) != request || freeCores < request.cores)
+				Budget.class.wait();
+		} finally {
+			waiting.remove(request);
+			Budget.class.notifyAll();
+		}
+
+		freeCores -= request.cores;
+		return request.cores;
+	}
+
+	public static synchronized void release(int cores) {
+		freeCores += cores;
+		Budget.class.notifyAll();
+	}
+
+	private static int totalCores() {
+		return Configuration.cores > 0 ? Configuration.cores : Runtime.getRuntime().availableProcessors();
+	}
+}
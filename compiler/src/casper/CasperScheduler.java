@@ -27,6 +27,7 @@ import casper.visit.ExtractLoopTerminateConditions;
 import casper.visit.ExtractOperators;
 import casper.visit.ExtractOutputVariables;
 import casper.visit.ExtractUserDefinedDataTypes;
+import casper.visit.FuseSiblingLoops;
 import casper.visit.GenerateScaffold;
 import casper.visit.GenerateSparkCode;
 import casper.visit.GenerateVerification;
@@ -38,6 +39,7 @@ import polyglot.ast.NodeFactory;
 import polyglot.ext.jl7.JL7Scheduler;
 import polyglot.frontend.CyclicDependencyException;
 import polyglot.frontend.Job;
+import polyglot.frontend.Pass;
 import polyglot.frontend.Scheduler;
 import polyglot.frontend.goals.EmptyGoal;
 import polyglot.frontend.goals.Goal;
@@ -53,6 +55,16 @@ public class CasperScheduler extends JL7Scheduler {
         super(extInfo);
     }
 	
+	// Time every pass for the telemetry
+	@Override
+	protected boolean runPass(Pass pass) {
+		long start = System.currentTimeMillis();
+		boolean result = super.runPass(pass);
+		Job job = pass.goal().job();
+		Telemetry.pass(pass.name(), job == null ? "" : job.source().path(), System.currentTimeMillis()-start, result);
+		return result;
+	}
+	
 	// Read user configurations from file
 	public Goal ConfigurationUpdated(Job job){
 		Goal g = null;
@@ -281,7 +293,7 @@ public class CasperScheduler extends JL7Scheduler {
      */
     public Goal ScaffoldGenerated (Job job) throws IOException
     {
-		Goal g = internGoal(new VisitorGoal(job, new GenerateScaffold(extInfo.nodeFactory())));
+		Goal g = internGoal(new VisitorGoal(job, new GenerateScaffold(job, extInfo.nodeFactory())));
 		
     	try {
 			g.addPrerequisiteGoal(VerificationCodeGenerated(job), this);
@@ -310,6 +322,23 @@ public class CasperScheduler extends JL7Scheduler {
     	return internGoal(g);
     }
     
+    /*
+     * Fuse sibling loops over the same data set
+     */
+    public Goal LoopsFused (Job job) throws IOException
+    {
+		Goal g = internGoal(new VisitorGoal(job, new FuseSiblingLoops()));
+		
+    	try {
+			g.addPrerequisiteGoal(OptimalSolutionSelected(job), this);
+		}
+    	catch (CyclicDependencyException e) {
+    		throw new InternalCompilerError(e);
+		}
+
+    	return internGoal(g);
+    }
+    
     /*
      * Generate the output code
      */
@@ -318,7 +347,7 @@ public class CasperScheduler extends JL7Scheduler {
 		Goal g = internGoal(new VisitorGoal(job, new GenerateSparkCode(extInfo.nodeFactory())));
 		
     	try {
-			g.addPrerequisiteGoal(OptimalSolutionSelected(job), this);
+			g.addPrerequisiteGoal(LoopsFused(job), this);
 		}
     	catch (CyclicDependencyException e) {
     		throw new InternalCompilerError(e);
@@ -0,0 +1,144 @@
+/*
+ * Journal of the synthesis search of one code fragment. After every
+ * sketch / dafny round the search state of the fragment (grammar position,
+ * blocked solutions and the candidate still under verification) is written
+ * to disk. When casperc is run again on the same file, the search continues
+ * from the last saved round instead of starting over at the first grammar.
+ * Output types whose search had already finished are not searched again:
+ * their solution is parsed back from the saved sketch output.
+ *
+ * A checkpoint belongs to the path and contents of the source file, to the
+ * synthesizer bounds and grammar limits it was made with, and to the compiler
+ * version. If any of them changes, it is ignored and overwritten.
+ */
+
+package casper;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import casper.visit.GenerateScaffold.SearchConfiguration;
+
+public class Checkpoint implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// Search state of one output type
+	public static class TypeState implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		// Search over (a solution was found or the search space is exhausted)
+		public boolean finished = false;
+
+		public SearchConfiguration conf;
+		public int keyIndex;
+		public Bounds bounds;
+		public List<SearchConfiguration> predictions;
+		public int predictionIndex;
+		public SearchConfiguration ladderStart;
+		public List<Map<String,String>> blockExprs;
+		public List<List<String>> blocks;
+
+		// Sketch output of the verified solution if finished, otherwise of the
+		// candidate that was still under verification (null if none)
+		public String solution = null;
+		public SearchConfiguration solutionConf = null;
+	}
+
+	public String fingerprint;
+	public Map<String,TypeState> types = new HashMap<String,TypeState>();
+
+	// Checkpoint file of a fragment. Files with the same name in different directories
+	// get different checkpoints.
+	public static String file(String sourcePath, int id) {
+		return Paths.get(Configuration.checkpointDir, WorkDirectory.sourceKey(sourcePath) + "_" + id + ".ckpt").toString();
+	}
+
+	// Identifies the fragment: the source file and its contents, the bounds and limits
+	// that shape the grammar (and hence the blocked solutions), and the compiler version
+	public static String fingerprint(String sourcePath, int id) {
+		String text;
+		try {
+			text = new String(Files.readAllBytes(Paths.get(sourcePath)), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			text = "";
+		}
+		return SynthesisCache.hash(Paths.get(sourcePath).toAbsolutePath().normalize() + "\n" + id + "\n" + new Version() + "\n"
+									+ Configuration.intRange + "," + Configuration.inbits + "," + Configuration.loopUnrollBound + "," + Configuration.arraySizeBound + "\n"
+									+ Configuration.maxIntRange + "," + Configuration.maxInbits + "," + Configuration.maxLoopUnrollBound + "," + Configuration.maxNumMROps + ","
+									+ Configuration.maxNumEmits + "," + Configuration.maxTupleSize + "," + Configuration.maxRecursionDepth + "\n" + text);
+	}
+
+	// Load the checkpoint of a fragment. Returns an empty checkpoint if there is none,
+	// or if it was made for a different version of the fragment.
+	public static Checkpoint load(String file, String fingerprint) {
+		Checkpoint checkpoint = null;
+		if(Configuration.checkpoints && Files.exists(Paths.get(file))){
+			try {
+				ObjectInputStream in = new ObjectInputStream(Files.newInputStream(Paths.get(file)));
+				try {
+					checkpoint = (Checkpoint) in.readObject();
+				} finally {
+					in.close();
+				}
+			} catch (IOException | ClassNotFoundException | ClassCastException e) {
+				System.err.println("Ignoring unreadable checkpoint " + file + ": " + e.getMessage());
+			}
+		}
+
+		if(checkpoint == null || !fingerprint.equals(checkpoint.fingerprint)){
+			checkpoint = new Checkpoint();
+			checkpoint.fingerprint = fingerprint;
+		}
+		return checkpoint;
+	}
+
+	// Record the state of an output type and write the checkpoint. The file is replaced
+	// atomically so an interrupted run never leaves a partial checkpoint behind.
+	public void save(String file, String reduceType, TypeState state) {
+		if(!Configuration.checkpoints)
+			return;
+
+		types.put(reduceType, state);
+
+		try {
+			Path dir = Paths.get(file).getParent();
+			Files.createDirectories(dir);
+			Path temp = Files.createTempFile(dir, Paths.get(file).getFileName().toString(), ".tmp");
+			ObjectOutputStream out = new ObjectOutputStream(Files.newOutputStream(temp));
+			try {
+				out.writeObject(this);
+			} finally {
+				out.close();
+			}
+			Files.move(temp, Paths.get(file), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("Failed to write checkpoint: " + e.getMessage());
+		}
+	}
+
+	public static List<Map<String,String>> copyBlockExprs(List<Map<String,String>> blockExprs) {
+		List<Map<String,String>> copy = new ArrayList<Map<String,String>>();
+		for(Map<String,String> block : blockExprs)
+			copy.add(new HashMap<String,String>(block));
+		return copy;
+	}
+
+	public static List<List<String>> copyBlocks(List<List<String>> blocks) {
+		List<List<String>> copy = new ArrayList<List<String>>();
+		for(List<String> block : blocks)
+			copy.add(new ArrayList<String>(block));
+		return copy;
+	}
+}
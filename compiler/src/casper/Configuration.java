@@ -13,12 +13,64 @@ public class Configuration {
 	static public int intRange = 4;
 	static public int loopUnrollBound = 4;
 	
+	// Fragments whose candidates fail on larger inputs get their bounds raised up to these
+	static public int maxInbits = 5;
+	static public int maxIntRange = 64;
+	static public int maxLoopUnrollBound = 8;
+	
 	// Grammar bounds
 	static public int maxNumMROps = 5;
 	static public int maxNumEmits = 5;
 	static public int maxTupleSize = 5;
 	static public int maxRecursionDepth = 5;
 	
+	// Number of grammar configurations searched concurrently (1 = sequential search)
+	static public int portfolioSize = 1;
+	
+	// Number of grammar configurations packed into one scaffold, so sketch starts once
+	// for all of them (1 = one grammar per sketch run)
+	static public int grammarBatchSize = 1;
+	
+	// Number of code fragments (loops) of a file synthesized concurrently
+	static public int fragmentThreads = 1;
+	
+	// Cores shared by the sketch and dafny processes (0 = all available)
+	static public int cores = 0;
+	
+	// Budgets in seconds (0 = unlimited): wall clock time of the run, CPU time spent
+	// in sketch and dafny, and wall clock time of each fragment
+	static public int timeBudget = 0;
+	static public int cpuBudget = 0;
+	static public int fragmentTimeBudget = 0;
+	
+	// Verify candidates with dafny while sketch searches for the next one
+	static public boolean pipelineVerification = false;
+	
+	// Number of random inputs each candidate is tested on before dafny (0 = off)
+	static public int falsifierTrials = 0;
+	
+	// Persistent cache of sketch / dafny results, with the age in days after which an
+	// entry is dropped and the number of entries kept (0 = no limit)
+	static public boolean synthesisCache = false;
+	static public String cacheDir = "cache";
+	static public int cacheMaxAgeDays = 30;
+	static public int cacheMaxEntries = 10000;
+	
+	// Journal the search state of every fragment so an interrupted run can resume
+	static public boolean checkpoints = false;
+	static public String checkpointDir = "checkpoints";
+	
+	// Grammars that solved similar fragments, searched before the grammar ladder (0 = off)
+	static public int grammarPredictions = 0;
+	static public String knowledgeBase = "knowledge.txt";
+	
+	// Compute sibling loops over the same data set in one Spark pass (see FuseSiblingLoops)
+	static public boolean fuseLoops = false;
+	
+	// Record timings of passes, scaffolds and tool runs (see Telemetry)
+	static public boolean telemetry = false;
+	static public String telemetryDir = "telemetry";
+	
 	// Run in debug mode
 	static public boolean slow = true;
 }
\ No newline at end of file
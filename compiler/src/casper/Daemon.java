@@ -0,0 +1,277 @@
+/*
+ * Daemon mode. A long running casperc process listens on a local port and
+ * compiles the files it is sent, so JVM start up, class loading and JIT warm
+ * up are paid once instead of on every run. The synthesis cache and the run
+ * directory stay the same across requests. Polyglot's ExtensionInfo and type
+ * system belong to a single compiler run, so they are not kept warm: every
+ * compile gets a fresh ExtensionInfo.
+ *
+ * The output of every compile is remembered. The source files of a request
+ * that have not changed since they last compiled successfully are not compiled
+ * again: the output of that compile is sent back. A file is only unchanged if
+ * the files it was compiled with, the compiler flags, Config.txt and the
+ * templates are unchanged too. All other files are compiled together, in one
+ * compiler run.
+ *
+ * Requests are handled one at a time, since the configuration and the
+ * standard streams are shared by the whole process.
+ *
+ * Protocol: the client sends the number of arguments followed by the arguments.
+ * The daemon answers with the compiler's stdout, its stderr and the exit code.
+ */
+
+package casper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class Daemon {
+
+	// Output of a compiler run, shared by the source files compiled in it
+	static class Result {
+		String environment;
+		Map<String,String> sourceHashes = new HashMap<String,String>();
+		String stdout = "";
+		String stderr = "";
+		int exitCode = 0;
+	}
+
+	// Last successful run of every source file
+	private static Map<String,Result> results = new HashMap<String,Result>();
+
+	// Held while the standard streams are redirected to a compile
+	private static final Object compileLock = new Object();
+
+	// Serve compile requests until the process is killed
+	public static void serve(int port) throws IOException {
+		ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		System.err.println("Casper daemon listening on port " + port);
+
+		while(true){
+			Socket socket = server.accept();
+			try {
+				handle(socket);
+			} catch (IOException e) {
+				System.err.println("Failed to handle request: " + e.getMessage());
+			} finally {
+				socket.close();
+			}
+		}
+	}
+
+	// Send a compile request to the daemon, print its output and return its exit code
+	public static int send(int port, String[] args) throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		try {
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			out.writeInt(args.length);
+			for(String arg : args){
+				// The daemon may run in a different directory
+				File file = new File(arg);
+				out.writeUTF(file.exists() ? file.getAbsolutePath() : arg);
+			}
+			out.flush();
+
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			System.out.print(readString(in));
+			System.out.flush();
+			System.err.print(readString(in));
+			System.err.flush();
+			return in.readInt();
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static void handle(Socket socket) throws IOException {
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		int count = in.readInt();
+		List<String> flags = new ArrayList<String>();
+		List<String> sources = new ArrayList<String>();
+		for(int i=0; i<count; i++){
+			String arg = in.readUTF();
+			if(arg.endsWith(".java") && new File(arg).isFile())
+				sources.add(arg);
+			else
+				flags.add(arg);
+		}
+
+		StringBuilder stdout = new StringBuilder();
+		StringBuilder stderr = new StringBuilder();
+		int exitCode = 0;
+
+		List<Result> outputs = new ArrayList<Result>();
+		if(sources.isEmpty()){
+			outputs.add(compile(flags));
+		}
+		else{
+			String environment = environment(flags, Paths.get("../Config.txt"), Paths.get("templates"));
+			List<String> stale = stale(sources, environment);
+			for(String source : sources){
+				Result result = results.get(source);
+				if(!stale.contains(source)){
+					System.err.println("Unchanged, reusing previous output: " + source);
+					if(!outputs.contains(result))
+						outputs.add(result);
+				}
+			}
+
+			if(!stale.isEmpty()){
+				System.err.println("Compiling: " + stale);
+				// Hashed before compiling, so that edits made meanwhile are seen next time
+				Map<String,String> hashes = new HashMap<String,String>();
+				for(String source : stale){
+					hashes.put(source, sourceHash(source));
+				}
+
+				List<String> args = new ArrayList<String>(flags);
+				args.addAll(stale);
+				Result result = compile(args);
+				remember(stale, hashes, environment, result);
+				outputs.add(result);
+			}
+		}
+
+		for(Result result : outputs){
+			stdout.append(result.stdout);
+			stderr.append(result.stderr);
+			exitCode = Math.max(exitCode, result.exitCode);
+		}
+
+		DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+		writeString(out, stdout.toString());
+		writeString(out, stderr.toString());
+		out.writeInt(exitCode);
+		out.flush();
+	}
+
+	// Sources of a request that have to be compiled: those whose last successful run
+	// is missing or no longer matches the files and environment it was compiled with
+	static List<String> stale(List<String> sources, String environment) {
+		List<String> stale = new ArrayList<String>();
+		for(String source : sources){
+			Result result = results.get(source);
+			if(result == null || !result.environment.equals(environment)){
+				stale.add(source);
+				continue;
+			}
+			for(Map.Entry<String,String> entry : result.sourceHashes.entrySet()){
+				if(!entry.getValue().equals(sourceHash(entry.getKey()))){
+					stale.add(source);
+					break;
+				}
+			}
+		}
+		return stale;
+	}
+
+	// Remember the run of the given sources. Failures are not remembered, the files
+	// are compiled again next time.
+	static void remember(List<String> sources, Map<String,String> hashes, String environment, Result result) {
+		result.environment = environment;
+		result.sourceHashes.putAll(hashes);
+		for(String source : sources){
+			if(result.exitCode == 0)
+				results.put(source, result);
+			else
+				results.remove(source);
+		}
+	}
+
+	// Hash of what the output depends on besides the sources: the compiler flags,
+	// the configuration file and the templates
+	static String environment(List<String> flags, Path config, Path templates) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append(flags).append("\n");
+		if(Files.isRegularFile(config))
+			sb.append(new String(Files.readAllBytes(config), StandardCharsets.UTF_8));
+		if(Files.isDirectory(templates)){
+			List<Path> files = new ArrayList<Path>();
+			try(DirectoryStream<Path> stream = Files.newDirectoryStream(templates)){
+				for(Path file : stream){
+					files.add(file);
+				}
+			}
+			Collections.sort(files);
+			for(Path file : files){
+				sb.append("\n").append(file.getFileName()).append("\n");
+				sb.append(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+			}
+		}
+		return SynthesisCache.hash(sb.toString());
+	}
+
+	// Hash of the contents of a source file, empty if it can not be read
+	private static String sourceHash(String source) {
+		try {
+			return SynthesisCache.hash(new String(Files.readAllBytes(Paths.get(source)), StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			return "";
+		}
+	}
+
+	// Run the compiler, capturing everything it prints. The standard streams are
+	// process wide, so only one compile may redirect them at a time.
+	private static Result compile(List<String> args) throws IOException {
+		synchronized(compileLock){
+			ByteArrayOutputStream stdoutBuffer = new ByteArrayOutputStream();
+			ByteArrayOutputStream stderrBuffer = new ByteArrayOutputStream();
+			PrintStream stdout = new PrintStream(stdoutBuffer, true, "UTF-8");
+			PrintStream stderr = new PrintStream(stderrBuffer, true, "UTF-8");
+
+			PrintStream origOut = System.out;
+			PrintStream origErr = System.err;
+			System.setOut(stdout);
+			System.setErr(stderr);
+
+			Result result = new Result();
+			try {
+				Main.compile(args.toArray(new String[args.size()]));
+			} catch (polyglot.main.Main.TerminationException e) {
+				System.err.println(e.getMessage());
+				result.exitCode = 1;
+			} catch (RuntimeException e) {
+				// A crash in one compile must not bring the daemon down
+				e.printStackTrace();
+				result.exitCode = 1;
+			} finally {
+				System.setOut(origOut);
+				System.setErr(origErr);
+			}
+
+			result.stdout = new String(stdoutBuffer.toByteArray(), StandardCharsets.UTF_8);
+			result.stderr = new String(stderrBuffer.toByteArray(), StandardCharsets.UTF_8);
+			return result;
+		}
+	}
+
+	// Strings are sent as a length and UTF-8 bytes (writeUTF is limited to 64KB)
+	private static void writeString(DataOutputStream out, String text) throws IOException {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
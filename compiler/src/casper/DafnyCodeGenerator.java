@@ -2,9 +2,6 @@ package casper;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -27,13 +24,13 @@ import polyglot.ast.Node;
 
 public class DafnyCodeGenerator {
 	
-	public static void generateSummary(int id, Node n, Set<Variable> outputVars, String reducerType, String sketchReduceType, SearchConfiguration conf) throws IOException {
+	// Generate the summary, and the utils file it includes, into the given work directory
+	public static void generateSummary(String dir, int id, Node n, Set<Variable> outputVars, String reducerType, String sketchReduceType, SearchConfiguration conf) throws IOException {
 		// Get node extension
 		MyWhileExt ext = (MyWhileExt) JavaExt.ext(n);
 		
 		/************** Generate Utils File ****************/
-		PrintWriter writer = new PrintWriter("output/utils.dfy", "UTF-8");
-		String text = new String(Files.readAllBytes(Paths.get("templates/utils.dfy")), StandardCharsets.UTF_8);
+		Map<String,String> slots = new HashMap<String,String>();
 		
 		// Generate setter functions
 		String setterFuncs = generateSetterFunctions(outputVars);
@@ -44,18 +41,18 @@ public class DafnyCodeGenerator {
 		// Generate ite functions
 		String iteFuncs = generateITEFunctions(outputVars, ext.inputVars);
 		
-		text = text.replace("<setter-functions>", setterFuncs);
-		text = text.replace("<getter-functions>", getterFuncs);
-		text = text.replace("<ite-functions>",iteFuncs);
+		slots.put("setter-functions", setterFuncs);
+		slots.put("getter-functions", getterFuncs);
+		slots.put("ite-functions", iteFuncs);
 		
-		writer.print(text);
+		PrintWriter writer = new PrintWriter(dir+"/utils.dfy", "UTF-8");
+		Template.get("templates/utils.dfy").render(slots, writer);
 		writer.close();
 		
 		/************** Create summary verification file ****************/
 		
-		// Load  template
-		String template = new String(Files.readAllBytes(Paths.get("templates/dafny_skeleton.dfy")), StandardCharsets.UTF_8);
-		writer = new PrintWriter("output/main_"+reducerType+"_"+id+".dfy", "UTF-8");
+		slots = new HashMap<String,String>();
+		writer = new PrintWriter(dir+"/main_"+reducerType+"_"+id+".dfy", "UTF-8");
 		
 		// Generate main harness args
 		String harnessArgs = generateDafnyHarnessArgs(ext,ext.inputVars,outputVars,ext.loopCounters);
@@ -153,54 +150,54 @@ public class DafnyCodeGenerator {
 		String UDTs = generateUDTs(ext);
 		
 		// Plug in generated code into template
-		template = template.replace("<harness-args>", harnessArgs);
-		template = template.replace("<main-requires>", mainReqStmts);
-		template = template.replace("<init-vars>", initVars);
-		template = template.replace("<verif-code>", verifCode);
-		template = template.replace("<inv-pc-args>", invPcArgs);
-		template = template.replace("<loop-inv>", loopInv);
-		template = template.replace("<post-cond>", postCond);
-		template = template.replace("<mapper-functions>", mapperFuncs);
-		template = template.replace("<do-map-functions>", doMapFuncs);
-		template = template.replace("<domap-emits>", domapEmits);
-		template = template.replace("<emit-funcs>", emitFuncs);
-		template = template.replace("<mapper-args-decl>", mapperArgsDecl);
-		template = template.replace("<mapper-args-call>", mapperArgsCall);
-		template = template.replace("<mapper-args-call-inductive>", mapperArgsCallInd);	
-		//template = template.replace("<terminate-condition>", tCond);
-		template = template.replace("<do-reduce-functions>", doReduceFunctions);
-		template = template.replace("<reduce-functions>",reduceFunctions);
-		//template = template.replace("<reducer-args-decl>", reducerArgsDecl);
-		//template = template.replace("<reducer-args-call>", reducerArgsCall);
-		//template = template.replace("<doreduce-key-type>", doreduceKeyType);
-		template = template.replace("<output-type>", casper.Util.getDafnyTypeFromRaw(reducerType));
-		template = template.replace("<inv-requires>", invRequires);
-		//template = template.replace("<emit-requires>", emitRequires);
-		//template = template.replace("<mapper-requires>", mapperRequires);
-		template = template.replace("<udts>", UDTs);
-		//template = template.replace("<key-requires>",keyRequires);
-		
-		writer.print(template);
+		slots.put("harness-args", harnessArgs);
+		slots.put("main-requires", mainReqStmts);
+		slots.put("init-vars", initVars);
+		slots.put("verif-code", verifCode);
+		slots.put("inv-pc-args", invPcArgs);
+		slots.put("loop-inv", loopInv);
+		slots.put("post-cond", postCond);
+		slots.put("mapper-functions", mapperFuncs);
+		slots.put("do-map-functions", doMapFuncs);
+		slots.put("domap-emits", domapEmits);
+		slots.put("emit-funcs", emitFuncs);
+		slots.put("mapper-args-decl", mapperArgsDecl);
+		slots.put("mapper-args-call", mapperArgsCall);
+		slots.put("mapper-args-call-inductive", mapperArgsCallInd);	
+		//slots.put("terminate-condition", tCond);
+		slots.put("do-reduce-functions", doReduceFunctions);
+		slots.put("reduce-functions", reduceFunctions);
+		//slots.put("reducer-args-decl", reducerArgsDecl);
+		//slots.put("reducer-args-call", reducerArgsCall);
+		//slots.put("doreduce-key-type", doreduceKeyType);
+		slots.put("output-type", casper.Util.getDafnyTypeFromRaw(reducerType));
+		slots.put("inv-requires", invRequires);
+		//slots.put("emit-requires", emitRequires);
+		//slots.put("mapper-requires", mapperRequires);
+		slots.put("udts", UDTs);
+		//slots.put("key-requires", keyRequires);
+		
+		Template.get("templates/dafny_skeleton.dfy").render(slots, writer);
 		writer.close();
 		
 /*		// Generate CFG Proof
-		template = new String(Files.readAllBytes(Paths.get("templates/dafny_skeleton2.dfy")), StandardCharsets.UTF_8);
-		writer = new PrintWriter("output/main_"+reducerType+"_"+id+"_CSG.dfy", "UTF-8");
+		slots = new HashMap<String,String>();
+		writer = new PrintWriter(dir+"/main_"+reducerType+"_"+id+"_CSG.dfy", "UTF-8");
 		
 		// Plug in generated code into template
-		template = template.replace("<reduce-exp-lemma>", csgLemmas);
-		template = template.replace("<domap-emit-type>", domapEmitType);
-		template = template.replace("<reduce-exp>",reduceExp);
-		template = template.replace("<reduce-functions>",reduceFunctions);
-		template = template.replace("<reducer-args-decl>", reducerArgsDecl);
-		template = template.replace("<reducer-args-call>", reducerArgsCall);
-		template = template.replace("<doreduce-key-type>", doreduceKeyType);
-		template = template.replace("<output-type>", casper.Util.getDafnyTypeFromRaw(reducerType));
-		template = template.replace("<reduce-init-value>", reduceInitValues);
-		template = template.replace("<udts>", UDTs);
-		template = template.replace("<key-requires>",keyRequires);
-		
-		writer.print(template);
+		slots.put("reduce-exp-lemma", csgLemmas);
+		slots.put("domap-emit-type", domapEmitType);
+		slots.put("reduce-exp", reduceExp);
+		slots.put("reduce-functions", reduceFunctions);
+		slots.put("reducer-args-decl", reducerArgsDecl);
+		slots.put("reducer-args-call", reducerArgsCall);
+		slots.put("doreduce-key-type", doreduceKeyType);
+		slots.put("output-type", casper.Util.getDafnyTypeFromRaw(reducerType));
+		slots.put("reduce-init-value", reduceInitValues);
+		slots.put("udts", UDTs);
+		slots.put("key-requires", keyRequires);
+		
+		Template.get("templates/dafny_skeleton2.dfy").render(slots, writer);
 		writer.close();*/
 	}
 
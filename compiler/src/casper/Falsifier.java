@@ -0,0 +1,751 @@
+/*
+ * Randomized testing of candidate summaries. Before a summary is handed to
+ * dafny, the conditions dafny is about to prove are evaluated in the JVM on
+ * random inputs: the loop invariant must hold before the loop, and must still
+ * hold after every iteration of the loop body. A summary that fails on some
+ * input is rejected without running dafny: it is blocked like a summary dafny
+ * refutes, and the sketch bound that hid the failure is raised (see Bounds).
+ * The failing input itself is only reported, not added to the scaffold.
+ *
+ * The conditions are parsed from the same text DafnyCodeGenerator emits and
+ * evaluated with dafny semantics (unbounded integers, euclidean division).
+ * Only summaries made of a single reduce stage over primitive values are
+ * tested. Anything the evaluator does not understand, or can not compute
+ * exactly, makes the test inconclusive and the summary is left to dafny.
+ */
+
+package casper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import casper.extension.MyWhileExt;
+import casper.types.ConstantNode;
+import casper.types.CustomASTNode;
+import casper.types.MRStage;
+import casper.types.Variable;
+import casper.visit.GenerateScaffold.SearchConfiguration;
+
+public class Falsifier {
+
+	static boolean debug = false;
+
+	// Bounds on the random inputs. Most values are drawn from a small range, so
+	// that equal values (and hence collisions in the summary) are common.
+	static final int MAX_DATA_LENGTH = 16;
+	static final int SMALL_VALUE = 8;
+	static final int LARGE_VALUE = 1000;
+
+	// An input on which a summary is wrong
+	public static class Counterexample {
+		public String description;
+		// Largest absolute int value in the input, and length of the input data
+		public long maxValue;
+		public int length;
+
+		public String toString() {
+			return description;
+		}
+	}
+
+	// Returns an input on which the summary last parsed into ext is wrong, or null if
+	// none was found
+	public static Counterexample findCounterexample(MyWhileExt ext, Set<Variable> outputVars, String reduceType, SearchConfiguration conf) {
+		return findCounterexample(ext, outputVars, reduceType, conf, -1, MAX_DATA_LENGTH);
+	}
+
+	// Same, but only trying inputs sketch considers under the given bounds: values in
+	// [0, maxValue] and data of at most maxLength elements. maxValue -1 is unbounded.
+	public static Counterexample findCounterexample(MyWhileExt ext, Set<Variable> outputVars, String reduceType, SearchConfiguration conf, long maxValue, int maxLength) {
+		if(Configuration.falsifierTrials <= 0)
+			return null;
+
+		try {
+			Harness harness = new Harness(ext, outputVars, reduceType, conf);
+
+			// Fixed seed: the same candidate is always tested on the same inputs
+			Random random = new Random(0);
+			for(int trial=0; trial<Configuration.falsifierTrials; trial++){
+				Counterexample counterexample = harness.run(random, maxValue, maxLength);
+				if(counterexample != null)
+					return counterexample;
+			}
+		} catch (Inconclusive e) {
+			if(debug)
+				System.err.println("Random testing inconclusive: " + e.getMessage());
+		}
+		return null;
+	}
+
+	// Thrown when a condition can not be evaluated
+	private static class Inconclusive extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		Inconclusive(String reason) {
+			super(reason);
+		}
+	}
+
+	/* The dafny harness of a summary */
+
+	private static class Harness {
+		MyWhileExt ext;
+		Set<Variable> outputVars;
+		Map<String,Function> functions = new HashMap<String,Function>();
+		String dataName;
+		String dataType;
+		List<String> invParams = new ArrayList<String>();
+		Expr invariant;
+		List<Expr> preCondition;
+		List<Expr> wpc;
+
+		Harness(MyWhileExt ext, Set<Variable> outputVars, String reduceType, SearchConfiguration conf) {
+			this.ext = ext;
+			this.outputVars = outputVars;
+
+			if(ext.solution == null || ext.solution.size() != 1 || ext.solution.get(0).stageType != 1)
+				throw new Inconclusive("only single reduce stage summaries are tested");
+			if(outputVars.size() != 1)
+				throw new Inconclusive("only summaries of a single output are tested");
+			if(ext.mainLoopCounter == null || ext.inputDataSet == null || ext.loopCounters.isEmpty())
+				throw new Inconclusive("loop has no input data");
+			if(!ext.preConditions.containsKey(reduceType) || !ext.invariants.containsKey(reduceType) || !ext.wpcs.containsKey(reduceType))
+				throw new Inconclusive("no verification conditions for " + reduceType);
+
+			Variable out = outputVars.iterator().next();
+			MRStage stage = ext.solution.get(0);
+			if(stage.reduceExps == null || stage.initExps == null || !stage.reduceExps.containsKey(out.varName) || !stage.initExps.containsKey(out.varName))
+				throw new Inconclusive("incomplete reduce stage");
+
+			this.dataName = ext.inputDataSet.varName;
+			this.dataType = elementType(ext.inputDataSet.getDafnyType());
+
+			checkPrimitive(out);
+			for(Variable var : ext.loopCounters)
+				checkPrimitive(var);
+			for(Variable var : extraArgs())
+				checkPrimitive(var);
+
+			// Names of the extra args passed to every function (see DafnyCodeGenerator.getArgsDecl)
+			List<String> argNames = new ArrayList<String>();
+			for(Variable var : extraArgs())
+				argNames.add(var.varName);
+			argNames.add(out.varName+"0");
+			for(int i=0; i<ext.constCount; i++)
+				argNames.add("casperConst"+i);
+
+			// reduce_0_<out>
+			List<String> reduceParams = new ArrayList<String>();
+			reduceParams.add("val1");
+			reduceParams.add("val2");
+			for(int i=3; i<conf.valuesTupleSize+3 && conf.tuplesAdded; i++)
+				reduceParams.add("val"+i);
+			reduceParams.addAll(argNames);
+			final String reduceName = "reduce_0_"+out.varName;
+			functions.put(reduceName, new UserFunction(reduceParams, parse(stage.reduceExps.get(out.varName))));
+
+			// doreduce_0(data, lc, args): folds reduce_0_<out> over the first lc elements
+			final List<String> initParams = argNames;
+			final Expr init = parse(stage.initExps.get(out.varName));
+			final int dataArgs = (conf.valuesTupleSize == 1 || !conf.tuplesAdded) ? 1 : conf.valuesTupleSize*2-1;
+			functions.put("doreduce_0", new Function(){
+				public Object apply(List<Object> args) {
+					if(args.size() != initParams.size()+2)
+						throw new Inconclusive("doreduce_0 called with " + args.size() + " args");
+					List<Object> data = asSeq(args.get(0));
+					long lc = asInt(args.get(1));
+					if(lc < 0 || lc > data.size())
+						throw new Inconclusive("doreduce_0 precondition violated");
+					List<Object> rest = args.subList(2, args.size());
+
+					Object acc = init.eval(bind(initParams, rest, new HashMap<String,Object>()));
+					for(int k=0; k<lc; k++){
+						List<Object> reduceArgs = new ArrayList<Object>();
+						reduceArgs.add(acc);
+						for(int j=0; j<dataArgs; j++)
+							reduceArgs.add(data.get(k));
+						reduceArgs.addAll(rest);
+						acc = functions.get(reduceName).apply(reduceArgs);
+					}
+					return acc;
+				}
+			});
+
+			// Params of loopInvariant (see DafnyCodeGenerator.generateInvPcAargs)
+			invParams.add(dataName);
+			for(String name : ext.postConditionArgsOrder.get(reduceType)){
+				for(Variable var : outputVars){
+					if(name.equals(var.varName)){
+						invParams.add(var.varName);
+						invParams.add(var.varName+"0");
+					}
+				}
+				for(Variable var : ext.loopCounters){
+					if(name.equals(var.varName)){
+						invParams.add(var.varName);
+						invParams.add(var.varName+"0");
+					}
+				}
+			}
+			for(Variable var : extraArgs())
+				invParams.add(var.varName);
+			for(int i=0; i<ext.constCount; i++)
+				invParams.add("casperConst"+i);
+
+			this.invariant = parse(DafnyCodeGenerator.generateLoopInv(ext, reduceType, outputVars, ext.loopCounters, ext.inputVars));
+			this.preCondition = invariantArgs(DafnyCodeGenerator.generatePreCondition(ext, reduceType, ext.inputVars, outputVars, ext.loopCounters));
+			this.wpc = invariantArgs(DafnyCodeGenerator.generateWPC(ext, reduceType, ext.inputVars, outputVars, ext.loopCounters));
+		}
+
+		// Run the harness on one random input. Instead of checking the inductive step on
+		// arbitrary states, the loop is executed (through its weakest precondition) from
+		// the initial state, so only reachable states are tested.
+		Counterexample run(Random random, long maxValue, int maxLength) {
+			Map<String,Object> env = initialState(random, maxValue, maxLength);
+
+			Map<String,Object> state = bind(invParams, evalAll(preCondition, env), new HashMap<String,Object>(env));
+			if(!asBool(invariant.eval(state)))
+				return counterexample(env, "loop invariant does not hold before the loop");
+
+			List<Object> data = asSeq(env.get(dataName));
+			for(int iteration=1; iteration<=data.size(); iteration++){
+				Object lc = state.get(ext.mainLoopCounter.varName);
+				if(lc == null || asInt(lc) >= data.size())
+					break;
+
+				state = bind(invParams, evalAll(wpc, state), new HashMap<String,Object>(env));
+				if(!asBool(invariant.eval(state)))
+					return counterexample(env, "loop invariant does not hold after iteration " + iteration);
+			}
+			return null;
+		}
+
+		// Values of the harness variables (see DafnyCodeGenerator.generateDafnyHarnessArgs
+		// and generateVarInit). Variables without an initial value are free.
+		private Map<String,Object> initialState(Random random, long maxValue, int maxLength) {
+			Map<String,Object> env = new HashMap<String,Object>();
+
+			List<Object> data = new ArrayList<Object>();
+			int length = random.nextInt(maxLength+1);
+			for(int i=0; i<length; i++)
+				data.add(randomValue(dataType, random, maxValue));
+			env.put(dataName, data);
+			if(!ext.initInpCollection)
+				env.put(ext.inputDataCollections.get(0).varName, data);
+
+			for(Variable var : outputVars){
+				env.put(var.varName, randomValue(var.getDafnyType(), random, maxValue));
+				CustomASTNode init = ext.initVals.get(var.varName);
+				if(init != null && !(init instanceof ConstantNode && ((ConstantNode)init).type_code == ConstantNode.ARRAYLIT))
+					env.put(var.varName+"0", parse(init.toString()).eval(env));
+				else
+					env.put(var.varName+"0", randomValue(var.getDafnyType(), random, maxValue));
+			}
+			for(Variable var : extraArgs()){
+				CustomASTNode init = ext.initVals.get(var.varName);
+				if(init != null && !(init instanceof ConstantNode && ((ConstantNode)init).type_code == ConstantNode.STRINGLIT))
+					env.put(var.varName, parse(init.toString()).eval(env));
+				else
+					env.put(var.varName, randomValue(var.getDafnyType(), random, maxValue));
+			}
+			for(Variable var : ext.loopCounters){
+				env.put(var.varName, randomValue(var.getDafnyType(), random, maxValue));
+				CustomASTNode init = ext.initVals.get(var.varName);
+				if(init != null)
+					env.put(var.varName+"0", parse(init.toString()).eval(env));
+				else
+					env.put(var.varName+"0", randomValue(var.getDafnyType(), random, maxValue));
+			}
+			for(int i=0; i<ext.constCount; i++)
+				env.put("casperConst"+i, randomValue("int", random, maxValue));
+
+			return env;
+		}
+
+		// Input variables passed to the summary functions as extra args
+		private List<Variable> extraArgs() {
+			List<Variable> vars = new ArrayList<Variable>();
+			for(Variable var : ext.inputVars){
+				if(!outputVars.contains(var) && !ext.loopCounters.contains(var) && !ext.inputDataCollections.contains(var) && !ext.inputDataSet.equals(var))
+					vars.add(var);
+			}
+			return vars;
+		}
+
+		// Args of a loopInvariant(...) call
+		private List<Expr> invariantArgs(String text) {
+			Expr call = parse(text);
+			if(!(call instanceof Call) || !((Call)call).name.equals("loopInvariant") || ((Call)call).args.size() != invParams.size())
+				throw new Inconclusive("unexpected verification condition " + text);
+			return ((Call)call).args;
+		}
+
+		private Counterexample counterexample(Map<String,Object> env, String failure) {
+			Counterexample counterexample = new Counterexample();
+			counterexample.description = new TreeMap<String,Object>(env).toString() + ": " + failure;
+			counterexample.length = asSeq(env.get(dataName)).size();
+			for(Object value : env.values()){
+				List<Object> values = (value instanceof List ? asSeq(value) : Collections.singletonList(value));
+				for(Object v : values){
+					if(v instanceof Long)
+						counterexample.maxValue = Math.max(counterexample.maxValue, Math.abs((Long) v));
+				}
+			}
+			return counterexample;
+		}
+
+		private Expr parse(String text) {
+			return new Parser(text, functions).parse();
+		}
+	}
+
+	private static void checkPrimitive(Variable var) {
+		String type = var.getDafnyType();
+		if(!type.equals("int") && !type.equals("bool"))
+			throw new Inconclusive(var.varName + " has unsupported type " + type);
+	}
+
+	private static String elementType(String seqType) {
+		if(seqType.equals("seq<int>") || seqType.equals("seq<bool>"))
+			return seqType.substring(4, seqType.length()-1);
+		throw new Inconclusive("input data has unsupported type " + seqType);
+	}
+
+	private static Object randomValue(String type, Random random, long maxValue) {
+		if(type.equals("bool"))
+			return random.nextBoolean();
+		if(maxValue >= 0)
+			return (long) random.nextInt((int) Math.min(maxValue, LARGE_VALUE)+1);
+		int range = random.nextInt(4) == 0 ? LARGE_VALUE : SMALL_VALUE;
+		return (long) (random.nextInt(2*range+1) - range);
+	}
+
+	private static Map<String,Object> bind(List<String> names, List<Object> values, Map<String,Object> env) {
+		if(names.size() != values.size())
+			throw new Inconclusive("expected " + names.size() + " args, got " + values.size());
+		for(int i=0; i<names.size(); i++)
+			env.put(names.get(i), values.get(i));
+		return env;
+	}
+
+	private static List<Object> evalAll(List<Expr> exprs, Map<String,Object> env) {
+		List<Object> values = new ArrayList<Object>();
+		for(Expr e : exprs)
+			values.add(e.eval(env));
+		return values;
+	}
+
+	/* Values: Long (int), Boolean (bool) and List (seq) */
+
+	private static long asInt(Object value) {
+		if(!(value instanceof Long))
+			throw new Inconclusive("expected an int, got " + value);
+		return (Long) value;
+	}
+
+	private static boolean asBool(Object value) {
+		if(!(value instanceof Boolean))
+			throw new Inconclusive("expected a bool, got " + value);
+		return (Boolean) value;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Object> asSeq(Object value) {
+		if(!(value instanceof List))
+			throw new Inconclusive("expected a seq, got " + value);
+		return (List<Object>) value;
+	}
+
+	private static Object index(List<Object> seq, long i) {
+		if(i < 0 || i >= seq.size())
+			throw new Inconclusive("index " + i + " out of range");
+		return seq.get((int) i);
+	}
+
+	/* Expressions */
+
+	private interface Function {
+		Object apply(List<Object> args);
+	}
+
+	private static class UserFunction implements Function {
+		List<String> params;
+		Expr body;
+
+		UserFunction(List<String> params, Expr body) {
+			this.params = params;
+			this.body = body;
+		}
+
+		public Object apply(List<Object> args) {
+			return body.eval(bind(params, args, new HashMap<String,Object>()));
+		}
+	}
+
+	private interface Expr {
+		Object eval(Map<String,Object> env);
+	}
+
+	private static class Literal implements Expr {
+		Object value;
+
+		Literal(Object value) {
+			this.value = value;
+		}
+
+		public Object eval(Map<String,Object> env) {
+			return value;
+		}
+	}
+
+	private static class Identifier implements Expr {
+		String name;
+
+		Identifier(String name) {
+			this.name = name;
+		}
+
+		public Object eval(Map<String,Object> env) {
+			if(!env.containsKey(name))
+				throw new Inconclusive("unknown identifier " + name);
+			return env.get(name);
+		}
+	}
+
+	private static class Unary implements Expr {
+		String op;
+		Expr operand;
+
+		Unary(String op, Expr operand) {
+			this.op = op;
+			this.operand = operand;
+		}
+
+		public Object eval(Map<String,Object> env) {
+			Object value = operand.eval(env);
+			switch(op){
+				case "!":
+					return !asBool(value);
+				case "-":
+					return exact(() -> Math.negateExact(asInt(value)));
+				case "|.|":
+					return (long) asSeq(value).size();
+				default:
+					throw new Inconclusive("unknown operator " + op);
+			}
+		}
+	}
+
+	private static class Binary implements Expr {
+		String op;
+		Expr left;
+		Expr right;
+
+		Binary(String op, Expr left, Expr right) {
+			this.op = op;
+			this.left = left;
+			this.right = right;
+		}
+
+		public Object eval(Map<String,Object> env) {
+			Object l = left.eval(env);
+			switch(op){
+				case "&&":
+					return asBool(l) && asBool(right.eval(env));
+				case "||":
+					return asBool(l) || asBool(right.eval(env));
+			}
+
+			Object r = right.eval(env);
+			switch(op){
+				case "==":
+					return l.equals(r);
+				case "!=":
+					return !l.equals(r);
+				case "<":
+					return asInt(l) < asInt(r);
+				case "<=":
+					return asInt(l) <= asInt(r);
+				case ">":
+					return asInt(l) > asInt(r);
+				case ">=":
+					return asInt(l) >= asInt(r);
+				case "+":
+					return exact(() -> Math.addExact(asInt(l), asInt(r)));
+				case "-":
+					return exact(() -> Math.subtractExact(asInt(l), asInt(r)));
+				case "*":
+					return exact(() -> Math.multiplyExact(asInt(l), asInt(r)));
+				case "/":
+					return divide(asInt(l), asInt(r));
+				case "%":
+					return modulo(asInt(l), asInt(r));
+				case "[]":
+					return index(asSeq(l), asInt(r));
+				default:
+					throw new Inconclusive("unknown operator " + op);
+			}
+		}
+	}
+
+	// Dafny chains comparisons: a <= b < c means a <= b && b < c
+	private static class Chain implements Expr {
+		List<String> ops;
+		List<Expr> operands;
+
+		Chain(List<String> ops, List<Expr> operands) {
+			this.ops = ops;
+			this.operands = operands;
+		}
+
+		public Object eval(Map<String,Object> env) {
+			Expr prev = new Literal(operands.get(0).eval(env));
+			for(int i=0; i<ops.size(); i++){
+				Expr next = new Literal(operands.get(i+1).eval(env));
+				if(!asBool(new Binary(ops.get(i), prev, next).eval(env)))
+					return false;
+				prev = next;
+			}
+			return true;
+		}
+	}
+
+	private static class Call implements Expr {
+		String name;
+		List<Expr> args;
+		Map<String,Function> functions;
+
+		Call(String name, List<Expr> args, Map<String,Function> functions) {
+			this.name = name;
+			this.args = args;
+			this.functions = functions;
+		}
+
+		public Object eval(Map<String,Object> env) {
+			List<Object> values = evalAll(args, env);
+			if(functions.containsKey(name))
+				return functions.get(name).apply(values);
+
+			// Functions of utils.dfy
+			if(name.endsWith("_getter") && values.size() == 2)
+				return index(asSeq(values.get(0)), asInt(values.get(1)));
+			if(name.endsWith("_setter") && values.size() == 3){
+				List<Object> seq = new ArrayList<Object>(asSeq(values.get(0)));
+				index(seq, asInt(values.get(1)));
+				seq.set((int) asInt(values.get(1)), values.get(2));
+				return seq;
+			}
+			if(name.endsWith("_ite") && values.size() == 3)
+				return asBool(values.get(0)) ? values.get(1) : values.get(2);
+
+			if(values.size() != (name.equals("casper_math_abs") ? 1 : 2))
+				throw new Inconclusive("unknown function " + name);
+			switch(name){
+				case "casper_str_equal":
+					return asInt(values.get(0)) == asInt(values.get(1));
+				case "casper_math_abs":
+					long value = asInt(values.get(0));
+					return value < 0 ? exact(() -> Math.negateExact(value)) : value;
+				case "casper_math_min":
+					return Math.min(asInt(values.get(0)), asInt(values.get(1)));
+				case "casper_math_max":
+					return Math.max(asInt(values.get(0)), asInt(values.get(1)));
+				case "casper_math_pow":
+					long base = asInt(values.get(0));
+					long exponent = asInt(values.get(1));
+					if(exponent < 0)
+						throw new Inconclusive("casper_math_pow precondition violated");
+					return exact(() -> {
+						long result = 1;
+						for(long i=0; i<exponent; i++)
+							result = Math.multiplyExact(result, base);
+						return result;
+					});
+				default:
+					throw new Inconclusive("unknown function " + name);
+			}
+		}
+	}
+
+	// Dafny integers are unbounded, so overflow makes the result unknown
+	private static Object exact(LongSupplier op) {
+		try {
+			return op.getAsLong();
+		} catch (ArithmeticException e) {
+			throw new Inconclusive("overflow");
+		}
+	}
+
+	// Dafny division is euclidean: the remainder is never negative
+	private static long divide(long a, long b) {
+		if(b == 0 || b == Long.MIN_VALUE || a == Long.MIN_VALUE)
+			throw new Inconclusive("division by " + b);
+		return (a - modulo(a, b)) / b;
+	}
+
+	private static long modulo(long a, long b) {
+		if(b == 0 || b == Long.MIN_VALUE)
+			throw new Inconclusive("division by " + b);
+		return Math.floorMod(a, Math.abs(b));
+	}
+
+	/* Recursive descent parser for the dafny expressions Casper generates */
+
+	private static class Parser {
+		static final Pattern TOKEN = Pattern.compile("\\s*(\\d+|[A-Za-z_$][A-Za-z0-9_$.]*|&&|\\|\\||==|!=|<=|>=|[-+*/%<>!()\\[\\],|])");
+
+		List<String> tokens = new ArrayList<String>();
+		int pos = 0;
+		Map<String,Function> functions;
+
+		Parser(String text, Map<String,Function> functions) {
+			this.functions = functions;
+			Matcher m = TOKEN.matcher(text);
+			int end = 0;
+			while(m.find() && m.start() == end){
+				tokens.add(m.group(1));
+				end = m.end();
+			}
+			if(!text.substring(end).trim().isEmpty())
+				throw new Inconclusive("can not parse " + text.substring(end).trim());
+		}
+
+		Expr parse() {
+			Expr e = or();
+			if(pos != tokens.size())
+				throw new Inconclusive("unexpected " + tokens.get(pos));
+			return e;
+		}
+
+		private Expr or() {
+			Expr e = and();
+			while(accept("||"))
+				e = new Binary("||", e, and());
+			return e;
+		}
+
+		private Expr and() {
+			Expr e = comparison();
+			while(accept("&&"))
+				e = new Binary("&&", e, comparison());
+			return e;
+		}
+
+		private Expr comparison() {
+			List<String> ops = new ArrayList<String>();
+			List<Expr> operands = new ArrayList<Expr>();
+			operands.add(additive());
+			while(peek("==") || peek("!=") || peek("<") || peek("<=") || peek(">") || peek(">=")){
+				ops.add(tokens.get(pos++));
+				operands.add(additive());
+			}
+			if(ops.isEmpty())
+				return operands.get(0);
+			if(ops.size() == 1)
+				return new Binary(ops.get(0), operands.get(0), operands.get(1));
+			return new Chain(ops, operands);
+		}
+
+		private Expr additive() {
+			Expr e = multiplicative();
+			while(peek("+") || peek("-")){
+				String op = tokens.get(pos++);
+				e = new Binary(op, e, multiplicative());
+			}
+			return e;
+		}
+
+		private Expr multiplicative() {
+			Expr e = unary();
+			while(peek("*") || peek("/") || peek("%")){
+				String op = tokens.get(pos++);
+				e = new Binary(op, e, unary());
+			}
+			return e;
+		}
+
+		private Expr unary() {
+			if(accept("!"))
+				return new Unary("!", unary());
+			if(accept("-"))
+				return new Unary("-", unary());
+			return postfix();
+		}
+
+		private Expr postfix() {
+			Expr e = primary();
+			while(accept("[")){
+				e = new Binary("[]", e, or());
+				expect("]");
+			}
+			return e;
+		}
+
+		private Expr primary() {
+			if(pos >= tokens.size())
+				throw new Inconclusive("unexpected end of expression");
+			String token = tokens.get(pos++);
+
+			if(token.equals("(")){
+				Expr e = or();
+				expect(")");
+				return e;
+			}
+			if(token.equals("|")){
+				Expr e = additive();
+				expect("|");
+				return new Unary("|.|", e);
+			}
+			if(Character.isDigit(token.charAt(0))){
+				try {
+					return new Literal(Long.parseLong(token));
+				} catch (NumberFormatException e) {
+					throw new Inconclusive("literal " + token + " out of range");
+				}
+			}
+			if(token.equals("true") || token.equals("CASPER_TRUE"))
+				return new Literal(true);
+			if(token.equals("false") || token.equals("CASPER_FALSE"))
+				return new Literal(false);
+			if(Character.isLetter(token.charAt(0)) || token.charAt(0) == '_' || token.charAt(0) == '$'){
+				if(!accept("("))
+					return new Identifier(token);
+				List<Expr> args = new ArrayList<Expr>();
+				if(!accept(")")){
+					do {
+						args.add(or());
+					} while(accept(","));
+					expect(")");
+				}
+				return new Call(token, args, functions);
+			}
+			throw new Inconclusive("unexpected " + token);
+		}
+
+		private boolean peek(String token) {
+			return pos < tokens.size() && tokens.get(pos).equals(token);
+		}
+
+		private boolean accept(String token) {
+			if(peek(token)){
+				pos++;
+				return true;
+			}
+			return false;
+		}
+
+		private void expect(String token) {
+			if(!accept(token))
+				throw new Inconclusive("expected " + token);
+		}
+	}
+}
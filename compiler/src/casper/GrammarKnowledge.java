@@ -0,0 +1,276 @@
+/*
+ * Knowledge base of the grammars that solved earlier code fragments. For
+ * every verified solution the features of the fragment (output type,
+ * operators, conditionals, shape of the input data) are recorded together
+ * with the grammar configuration the solution was found in. The search of a
+ * new fragment first tries the grammars that solved the most similar
+ * fragments, and then walks the grammar ladder as usual.
+ *
+ * The knowledge base is a text file of entries keyed on the source file,
+ * fragment and output type. Entries are appended, and the last entry of a
+ * fragment wins when the file is read, so solving a fragment again replaces
+ * its entry. Writers hold a lock on a file next to the knowledge base, so
+ * concurrent casperc processes do not lose each other's entries. It is
+ * seeded by running Casper over benchmarks/original (see
+ * bin/seedKnowledge.sh).
+ */
+
+package casper;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import casper.JavaLibModel.SketchCall;
+import casper.extension.MyWhileExt;
+import casper.types.Variable;
+import casper.visit.GenerateScaffold.SearchConfiguration;
+
+public class GrammarKnowledge {
+
+	static boolean debug = false;
+
+	// Entries less similar than this do not make predictions
+	private static final double MIN_SIMILARITY = 0.5;
+
+	// Features holding a space separated set of names, compared by overlap
+	private static final Set<String> SET_FEATURES = new HashSet<String>(Arrays.asList("binary", "unary", "methods"));
+
+	// A solved fragment
+	static class Entry {
+		String fragment;
+		SearchConfiguration conf;
+		Map<String,String> features;
+	}
+
+	// A grammar that solved similar fragments
+	static class Prediction {
+		SearchConfiguration conf;
+		double similarity;
+		int support;
+	}
+
+	// Features of a fragment for one output type
+	public static Map<String,String> features(MyWhileExt ext, Set<Variable> outputVars, String reduceType) {
+		Map<String,String> features = new LinkedHashMap<String,String>();
+		features.put("output", reduceType);
+		features.put("outputs", Integer.toString(outputVars.size()));
+		features.put("data", ext.inputDataSet == null ? "none" : Integer.toString(Util.getTypeClass(ext.inputDataSet.getSketchType())));
+		features.put("conditionals", Boolean.toString(ext.foundConditionals));
+		features.put("binary", String.join(" ", new TreeSet<String>(ext.binaryOperators)));
+		features.put("unary", String.join(" ", new TreeSet<String>(ext.unaryOperators)));
+		Set<String> methods = new TreeSet<String>();
+		for(SketchCall call : ext.methodOperators){
+			methods.add(call.name);
+		}
+		features.put("methods", String.join(" ", methods));
+		return features;
+	}
+
+	// Grammars that solved fragments similar to the given one, most promising first.
+	// Grammars with fewer keys than the outputs need are left out.
+	public static List<SearchConfiguration> predict(Map<String,String> features, int minKeyTupleSize) {
+		List<SearchConfiguration> predicted = new ArrayList<SearchConfiguration>();
+		if(Configuration.grammarPredictions == 0)
+			return predicted;
+
+		List<Prediction> predictions = new ArrayList<Prediction>();
+		for(Entry entry : load()){
+			double similarity = similarity(features, entry.features);
+			if(similarity < MIN_SIMILARITY || !reachable(entry.conf, minKeyTupleSize))
+				continue;
+
+			Prediction prediction = null;
+			for(Prediction p : predictions){
+				if(sameGrammar(p.conf, entry.conf))
+					prediction = p;
+			}
+			if(prediction == null){
+				prediction = new Prediction();
+				prediction.conf = entry.conf;
+				predictions.add(prediction);
+			}
+			prediction.similarity = Math.max(prediction.similarity, similarity);
+			prediction.support++;
+		}
+
+		// Most similar fragment first, then the grammar that solved most fragments,
+		// then the smaller grammar
+		Collections.sort(predictions, new Comparator<Prediction>(){
+			public int compare(Prediction a, Prediction b) {
+				if(a.similarity != b.similarity)
+					return Double.compare(b.similarity, a.similarity);
+				if(a.support != b.support)
+					return Integer.compare(b.support, a.support);
+				return Integer.compare(size(a.conf), size(b.conf));
+			}
+		});
+
+		for(Prediction p : predictions){
+			if(predicted.size() == Configuration.grammarPredictions)
+				break;
+			predicted.add(p.conf);
+			if(debug)
+				System.err.println("Predicted grammar: " + describe(p.conf) + " (similarity " + p.similarity + ", " + p.support + " fragments)");
+		}
+		return predicted;
+	}
+
+	// Record the grammar a fragment was solved in
+	public static synchronized void record(String fragment, Map<String,String> features, SearchConfiguration conf) {
+		if(Configuration.knowledgeBase.isEmpty())
+			return;
+
+		Path file = Paths.get(Configuration.knowledgeBase).toAbsolutePath();
+		try {
+			Files.createDirectories(file.getParent());
+			try (FileChannel channel = FileChannel.open(Paths.get(file + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				// Released when the channel is closed
+				channel.lock();
+				Files.write(file, format(fragment, features, conf).getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+				compact(file);
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to update grammar knowledge base: " + e.getMessage());
+		}
+	}
+
+	// Drop replaced entries once they make up most of the file. The file is written to a
+	// temp file first and moved into place, so that readers never see a partial file.
+	private static void compact(Path file) throws IOException {
+		List<Entry> entries = load();
+		if(Files.readAllLines(file, StandardCharsets.UTF_8).size() <= 2 * entries.size())
+			return;
+
+		StringBuilder sb = new StringBuilder();
+		for(Entry entry : entries){
+			sb.append(format(entry.fragment, entry.features, entry.conf));
+		}
+		Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+		Files.write(temp, sb.toString().getBytes(StandardCharsets.UTF_8));
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// Same grammar, whatever the key type
+	public static boolean sameGrammar(SearchConfiguration a, SearchConfiguration b) {
+		return a.stageCount == b.stageCount && a.emitCount == b.emitCount && a.keyTupleSize == b.keyTupleSize && a.valuesTupleSize == b.valuesTupleSize
+				&& a.recursionDepth == b.recursionDepth && a.tuplesAdded == b.tuplesAdded && a.simpleEmits == b.simpleEmits && a.opsAdded == b.opsAdded;
+	}
+
+	public static String describe(SearchConfiguration conf) {
+		return "stages=" + conf.stageCount + ", emits=" + conf.emitCount + ", keys=" + conf.keyTupleSize + ", values=" + conf.valuesTupleSize
+				+ ", depth=" + conf.recursionDepth + ", tuples=" + conf.tuplesAdded + ", simpleEmits=" + conf.simpleEmits;
+	}
+
+	// Share of the features two fragments agree on. Operator sets count by their overlap.
+	private static double similarity(Map<String,String> a, Map<String,String> b) {
+		double score = 0;
+		for(String feature : a.keySet()){
+			String va = a.get(feature);
+			String vb = b.get(feature);
+			if(vb == null)
+				continue;
+			if(SET_FEATURES.contains(feature)){
+				Set<String> sa = new HashSet<String>(Arrays.asList(va.split(" ")));
+				Set<String> sb = new HashSet<String>(Arrays.asList(vb.split(" ")));
+				Set<String> union = new HashSet<String>(sa);
+				union.addAll(sb);
+				sa.retainAll(sb);
+				score += (double) sa.size() / union.size();
+			}
+			else if(va.equals(vb)){
+				score += 1;
+			}
+		}
+		return a.isEmpty() ? 0 : score / a.size();
+	}
+
+	// Whether the grammar is within the bounds of this run and has enough keys
+	private static boolean reachable(SearchConfiguration conf, int minKeyTupleSize) {
+		return conf.keyTupleSize >= minKeyTupleSize && conf.keyTupleSize <= Configuration.maxTupleSize && conf.valuesTupleSize <= Configuration.maxTupleSize
+				&& conf.recursionDepth <= Configuration.maxRecursionDepth && conf.emitCount <= Configuration.maxNumEmits && conf.stageCount <= Configuration.maxNumMROps;
+	}
+
+	// Rough size of the search space of a grammar
+	private static int size(SearchConfiguration conf) {
+		return conf.stageCount * conf.emitCount * (conf.keyTupleSize + conf.valuesTupleSize) * conf.recursionDepth;
+	}
+
+	private static String format(String fragment, Map<String,String> features, SearchConfiguration conf) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(fragment).append('\t');
+		sb.append(conf.stageCount + "," + conf.emitCount + "," + conf.keyTupleSize + "," + conf.valuesTupleSize + "," + conf.recursionDepth + ","
+				+ conf.tuplesAdded + "," + conf.simpleEmits + "," + conf.opsAdded);
+		for(String feature : features.keySet()){
+			sb.append('\t').append(feature).append(':').append(features.get(feature));
+		}
+		sb.append('\n');
+		return sb.toString();
+	}
+
+	// Entries of the knowledge base, the last one of every fragment
+	static List<Entry> load() {
+		Map<String,Entry> entries = new LinkedHashMap<String,Entry>();
+		if(Configuration.knowledgeBase.isEmpty() || !Files.exists(Paths.get(Configuration.knowledgeBase)))
+			return new ArrayList<Entry>();
+
+		List<String> lines;
+		try {
+			lines = Files.readAllLines(Paths.get(Configuration.knowledgeBase), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			// An unreadable knowledge base predicts nothing
+			System.err.println("Failed to read grammar knowledge base: " + e.getMessage());
+			return new ArrayList<Entry>();
+		}
+
+		for(String line : lines){
+			String[] fields = line.split("\t");
+			if(fields.length < 2)
+				continue;
+			String[] c = fields[1].split(",");
+			if(c.length != 8)
+				continue;
+
+			Entry entry = new Entry();
+			entry.fragment = fields[0];
+			entry.conf = new SearchConfiguration();
+			try {
+				entry.conf.stageCount = Integer.parseInt(c[0]);
+				entry.conf.emitCount = Integer.parseInt(c[1]);
+				entry.conf.keyTupleSize = Integer.parseInt(c[2]);
+				entry.conf.valuesTupleSize = Integer.parseInt(c[3]);
+				entry.conf.recursionDepth = Integer.parseInt(c[4]);
+			} catch (NumberFormatException e) {
+				// A line being appended while the file is read
+				continue;
+			}
+			entry.conf.tuplesAdded = Boolean.parseBoolean(c[5]);
+			entry.conf.simpleEmits = Boolean.parseBoolean(c[6]);
+			entry.conf.opsAdded = Boolean.parseBoolean(c[7]);
+			entry.features = new LinkedHashMap<String,String>();
+			for(int i=2; i<fields.length; i++){
+				int split = fields[i].indexOf(':');
+				if(split != -1)
+					entry.features.put(fields[i].substring(0, split), fields[i].substring(split+1));
+			}
+			entries.remove(entry.fragment);
+			entries.put(entry.fragment, entry);
+		}
+		return new ArrayList<Entry>(entries.values());
+	}
+}
@@ -10,6 +10,7 @@ package casper;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 
 import casper.extension.MyWhileExt;
 import casper.types.ArrayAccessNode;
@@ -315,7 +316,7 @@ public class JavaLibModel {
 		public List<String> args = new ArrayList<String>();
 		public String toString(){ return "["+returnType+", "+name+", "+args+"]"; }
 		public boolean equals(Object o){ return name.equals(((SketchCall)o).name) && returnType.equals(((SketchCall)o).returnType) && args.equals(((SketchCall)o).args); }
-		public int hashCode(){ return 0; }
+		public int hashCode(){ return Objects.hash(name, returnType, args); }
 		public String resolve(String exp, List<String> argsR) {
 			if(argsR.indexOf(exp) >= args.size()){
 				return name+"("+casper.Util.join(argsR.subList(0, argsR.size()-1),",")+")";
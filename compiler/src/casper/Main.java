@@ -1,29 +1,52 @@
 package casper;
 
+import java.io.IOException;
 import java.util.Arrays;
 
 /**
  * Main is the main program of the compiler extension.
  * It simply invokes Polyglot's main, passing in the extension's
  * ExtensionInfo.
+ *
+ * casperc -daemon <port> starts a long running compiler instead, and
+ * casperc -connect <port> <args> compiles through it (see Daemon).
  */
 public class Main
 {
   public static void main(String[] args) {
-      polyglot.main.Main polyglotMain = new polyglot.main.Main();
-
       try {
-    	  if(args.length > 5 && args[5].equals("slow")){
-    		  Configuration.slow = true;
-    		  polyglotMain.start(Arrays.copyOfRange(args, 0, 5), new casper.ExtensionInfo());
+    	  if(args.length > 1 && args[0].equals("-daemon")){
+    		  Daemon.serve(Integer.parseInt(args[1]));
+    		  return;
     	  }
-    	  else{
-    		  polyglotMain.start(args, new casper.ExtensionInfo());
+    	  else if(args.length > 1 && args[0].equals("-connect")){
+    		  System.exit(Daemon.send(Integer.parseInt(args[1]), Arrays.copyOfRange(args, 2, args.length)));
     	  }
       }
+      catch (IOException e) {
+          System.err.println(e.getMessage());
+          System.exit(1);
+      }
+
+      try {
+    	  compile(args);
+      }
       catch (polyglot.main.Main.TerminationException e) {
           System.err.println(e.getMessage());
           System.exit(1);
       }
   }
+
+  static void compile(String[] args) {
+      polyglot.main.Main polyglotMain = new polyglot.main.Main();
+      Budget.start();
+
+      if(args.length > 5 && args[5].equals("slow")){
+    	  Configuration.slow = true;
+    	  polyglotMain.start(Arrays.copyOfRange(args, 0, 5), new casper.ExtensionInfo());
+      }
+      else{
+    	  polyglotMain.start(args, new casper.ExtensionInfo());
+      }
+  }
 }
@@ -0,0 +1,264 @@
+/*
+ * Runs the external tools used during synthesis (sketch and dafny). Tool
+ * output is redirected straight to a file (or discarded) so a chatty process
+ * can never block on a full pipe. If the timeout fires or the calling thread is
+ * interrupted, the process is killed together with every process it
+ * spawned (e.g. the mono / z3 processes started by dafny).
+ *
+ * Wall and CPU time are reported for every invocation. CPU time is summed
+ * over the process tree and sampled while the processes are alive, so it
+ * is accurate to within the sampling interval. The process tree is read from
+ * /proc where it exists and from ps otherwise; if neither is available, CPU
+ * time is reported as zero and only the tool itself is killed.
+ */
+
+package casper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
+
+public class ProcessSupervisor {
+
+	static boolean debug = false;
+
+	// How often CPU time is sampled while waiting for the process
+	static final long SAMPLE_INTERVAL_MILLIS = 1000;
+
+	// Clock ticks per second of the times in /proc/<pid>/stat (USER_HZ, 100 on Linux)
+	static final long CLOCK_TICKS = 100;
+
+	static final File NULL_FILE = new File(System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null");
+
+	public static class Result {
+		public int exitCode = -1;
+		public boolean timedOut = false;
+		public long wallTimeMillis = 0;
+		public long cpuTimeMillis = 0;
+
+		@Override
+		public String toString(){
+			return "exit code: " + exitCode + (timedOut ? " (timed out)" : "") + ", wall time: " + wallTimeMillis + "ms, cpu time: " + cpuTimeMillis + "ms";
+		}
+	}
+
+	// Run the command, writing its stdout to outputFile (or discarding it if outputFile
+	// is null). Stderr is discarded. A timeout of zero or less means wait indefinitely.
+	public static Result run(String command, String outputFile, long timeoutMillis) throws IOException, InterruptedException {
+		List<String> args = new ArrayList<String>();
+		StringTokenizer st = new StringTokenizer(command);
+		while(st.hasMoreTokens()){
+			args.add(st.nextToken());
+		}
+
+		ProcessBuilder pb = new ProcessBuilder(args);
+		pb.redirectError(NULL_FILE);
+		pb.redirectOutput(outputFile != null ? new File(outputFile) : NULL_FILE);
+
+		Result result = new Result();
+		Map<Long,Long> cpuTimes = new HashMap<Long,Long>();
+
+		long start = System.currentTimeMillis();
+		Process pr = pb.start();
+		long pid = pid(pr);
+
+		try {
+			long deadline = timeoutMillis > 0 ? start + timeoutMillis : Long.MAX_VALUE;
+			while(true){
+				sampleCpuTime(pid, cpuTimes);
+
+				long remaining = deadline - System.currentTimeMillis();
+				if(remaining <= 0){
+					result.timedOut = true;
+					destroyTree(pr, pid);
+					pr.waitFor();
+					break;
+				}
+				if(pr.waitFor(Math.min(remaining, SAMPLE_INTERVAL_MILLIS), TimeUnit.MILLISECONDS)){
+					result.exitCode = pr.exitValue();
+					break;
+				}
+			}
+		}
+		finally {
+			// Interrupted (e.g. job cancelled): do not leave the tool running
+			if(pr.isAlive())
+				destroyTree(pr, pid);
+		}
+
+		result.wallTimeMillis = System.currentTimeMillis() - start;
+		for(Long cpu : cpuTimes.values()){
+			result.cpuTimeMillis += cpu;
+		}
+		Budget.chargeCpu(result.cpuTimeMillis);
+
+		if(debug)
+			System.err.println("[" + args.get(0) + "] " + result);
+
+		return result;
+	}
+
+	// Id of the process, -1 if it cannot be found. Process.pid() exists from Java 9 on;
+	// on Java 8 the id is a field of the UNIXProcess implementation.
+	static long pid(Process pr) {
+		try {
+			return (Long) Process.class.getMethod("pid").invoke(pr);
+		}
+		catch (NoSuchMethodException e) {
+			try {
+				java.lang.reflect.Field field = pr.getClass().getDeclaredField("pid");
+				field.setAccessible(true);
+				return field.getLong(pr);
+			}
+			catch (Exception e2) {
+				return -1;
+			}
+		}
+		catch (Exception e) {
+			return -1;
+		}
+	}
+
+	private static void sampleCpuTime(long pid, Map<Long,Long> cpuTimes) {
+		if(pid < 0)
+			return;
+
+		Map<Long,long[]> table = processTable();
+		for(Long p : tree(pid, table)){
+			long cpu = table.get(p)[1];
+			Long prev = cpuTimes.get(p);
+			if(prev == null || prev < cpu)
+				cpuTimes.put(p, cpu);
+		}
+	}
+
+	// Kill the process and all of its descendants. Descendants are collected first,
+	// since they are re-parented (and no longer reachable) once the root is gone.
+	private static void destroyTree(Process pr, long pid) {
+		List<Long> descendants = new ArrayList<Long>();
+		if(pid >= 0){
+			descendants = tree(pid, processTable());
+			descendants.remove(pid);
+		}
+
+		pr.destroyForcibly();
+
+		if(descendants.isEmpty())
+			return;
+		List<String> kill = new ArrayList<String>();
+		kill.add("kill");
+		kill.add("-9");
+		for(Long p : descendants){
+			kill.add(p.toString());
+		}
+		try {
+			new ProcessBuilder(kill).redirectErrorStream(true).redirectOutput(NULL_FILE).start().waitFor();
+		}
+		catch (IOException | InterruptedException e) {
+			System.err.println("Failed to kill the processes started by " + pid + ": " + e.getMessage());
+		}
+	}
+
+	// The process and all of its descendants that are in the table
+	static List<Long> tree(long pid, Map<Long,long[]> table) {
+		List<Long> tree = new ArrayList<Long>();
+		if(!table.containsKey(pid))
+			return tree;
+
+		tree.add(pid);
+		for(int i=0; i<tree.size(); i++){
+			for(Map.Entry<Long,long[]> entry : table.entrySet()){
+				if(entry.getValue()[0] == tree.get(i) && !tree.contains(entry.getKey()))
+					tree.add(entry.getKey());
+			}
+		}
+		return tree;
+	}
+
+	// Running processes: pid -> {parent pid, cpu time in ms}
+	static Map<Long,long[]> processTable() {
+		File proc = new File("/proc");
+		if(new File(proc, "self/stat").exists())
+			return procTable(proc);
+		return psTable();
+	}
+
+	private static Map<Long,long[]> procTable(File proc) {
+		Map<Long,long[]> table = new HashMap<Long,long[]>();
+		String[] names = proc.list();
+		if(names == null)
+			return table;
+
+		for(String name : names){
+			if(name.isEmpty() || !Character.isDigit(name.charAt(0)))
+				continue;
+			try {
+				String stat = new String(Files.readAllBytes(Paths.get("/proc", name, "stat")), StandardCharsets.US_ASCII);
+				// The command name is in parentheses and may contain spaces; the
+				// fields after it are state, ppid, ..., utime (12th), stime (13th)
+				String[] fields = stat.substring(stat.lastIndexOf(')') + 2).trim().split(" ");
+				long ticks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+				table.put(Long.parseLong(name), new long[]{ Long.parseLong(fields[1]), ticks * 1000 / CLOCK_TICKS });
+			}
+			catch (IOException | RuntimeException e) {
+				// The process exited while the table was read
+			}
+		}
+		return table;
+	}
+
+	private static Map<Long,long[]> psTable() {
+		Map<Long,long[]> table = new HashMap<Long,long[]>();
+		try {
+			Process ps = new ProcessBuilder("ps", "-A", "-o", "pid=", "-o", "ppid=", "-o", "time=").redirectError(NULL_FILE).start();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(ps.getInputStream(), StandardCharsets.US_ASCII));
+			String line;
+			while((line = reader.readLine()) != null){
+				String[] fields = line.trim().split("\\s+");
+				if(fields.length < 3)
+					continue;
+				try {
+					table.put(Long.parseLong(fields[0]), new long[]{ Long.parseLong(fields[1]), cpuTime(fields[2]) });
+				}
+				catch (NumberFormatException e) {
+					// Not a process line
+				}
+			}
+			reader.close();
+			ps.waitFor();
+		}
+		catch (IOException e) {
+			// No ps: CPU time is not reported
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return table;
+	}
+
+	// Milliseconds of a ps time: [[dd-]hh:]mm:ss[.cc]
+	static long cpuTime(String time) {
+		long days = 0;
+		int dash = time.indexOf('-');
+		if(dash >= 0){
+			days = Long.parseLong(time.substring(0, dash));
+			time = time.substring(dash + 1);
+		}
+
+		double seconds = 0;
+		for(String part : time.split(":")){
+			seconds = seconds * 60 + Double.parseDouble(part);
+		}
+		return (long) ((days * 86400 + seconds) * 1000);
+	}
+}
@@ -2,15 +2,17 @@ package casper;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import casper.JavaLibModel.SketchCall;
 import casper.ast.JavaExt;
@@ -19,43 +21,262 @@ import casper.types.ConstantNode;
 import casper.types.CustomASTNode;
 import casper.types.IdentifierNode;
 import casper.types.Variable;
+import casper.types.VariableSet;
 import casper.visit.GenerateScaffold.SearchConfiguration;
 import polyglot.ast.Node;
 
 public class SketchCodeGenerator {
 	
-	public static void generateScaffold(int id, Node n, Set<Variable> sketchFilteredOutputVars, String sketchReducerType, String reducerType, SearchConfiguration conf) throws Exception{
-		// Get node extension
-		MyWhileExt ext = (MyWhileExt) JavaExt.ext(n);
+	// Generate the scaffold, and the files it includes, into the given work directory
+	public static void generateScaffold(String dir, int id, Node n, Set<Variable> sketchFilteredOutputVars, String sketchReducerType, String reducerType, SearchConfiguration conf) throws Exception{
+		generateScaffold(dir, id, (MyWhileExt) JavaExt.ext(n), sketchFilteredOutputVars, sketchReducerType, reducerType, conf);
+	}
+	
+	static void generateScaffold(String dir, int id, MyWhileExt ext, Set<Variable> sketchFilteredOutputVars, String sketchReducerType, String reducerType, SearchConfiguration conf) throws Exception{
+		Map<String,String> fixedSlots = getFixedSlots(ext, id, sketchFilteredOutputVars, sketchReducerType, reducerType);
 		
 		/************** Generate Utils File ****************/
-		PrintWriter writer = new PrintWriter("output/utils.sk", "UTF-8");
-		String text = new String(Files.readAllBytes(Paths.get("templates/utils.sk")), StandardCharsets.UTF_8);
+		PrintWriter writer = new PrintWriter(dir+"/utils.sk", "UTF-8");
+		Template.get("templates/utils.sk").render(fixedSlots, writer);
+		writer.close();
 		
-		// Generate setter functions
-		String setterFuncs = generateSetterFunctions(sketchFilteredOutputVars);
+		/************** Create scaffold file ****************/
+		writer = new PrintWriter(dir+"/main_"+reducerType+"_"+id+".sk", "UTF-8");
 		
-		// Generate getter functions
-		String getterFuncs = generateGetterFunctions(sketchFilteredOutputVars, ext.inputVars);
+		Map<String,String> slots = new HashMap<String,String>(fixedSlots);
+		slots.putAll(generateGrammarSlots(ext, sketchFilteredOutputVars, sketchReducerType, reducerType, conf));
 		
-		// Generate ite functions
-		String iteFuncs = generateITEFunctions(sketchFilteredOutputVars, ext.inputVars);
+		// Save
+		Template.get("templates/main_skeleton.sk").render(slots, writer);
+		writer.close();
 		
-		text = text.replace("<setter-functions>", setterFuncs);
-		text = text.replace("<getter-functions>", getterFuncs);
-		text = text.replace("<ite-functions>",iteFuncs);
+		writeDataTypes(dir, ext);
+	}
+	
+	// Generate one scaffold holding the grammars of several search configurations. Every
+	// grammar gets its own copy of the map-reduce functions and flag arrays, named with
+	// grammarSuffix(k), and a hole selects the grammar the verification conditions use.
+	// The hole is minimized, so sketch picks the first grammar of the batch that has a
+	// solution, as the one-at-a-time search would. The chosen grammar is recorded in the
+	// grammarTypes flag array.
+	public static void generateBatchedScaffold(String dir, int id, Node n, Set<Variable> sketchFilteredOutputVars, String sketchReducerType, String reducerType, List<SearchConfiguration> confs) throws Exception{
+		generateBatchedScaffold(dir, id, (MyWhileExt) JavaExt.ext(n), sketchFilteredOutputVars, sketchReducerType, reducerType, confs);
+	}
+	
+	static void generateBatchedScaffold(String dir, int id, MyWhileExt ext, Set<Variable> sketchFilteredOutputVars, String sketchReducerType, String reducerType, List<SearchConfiguration> confs) throws Exception{
+		Map<String,String> fixedSlots = getFixedSlots(ext, id, sketchFilteredOutputVars, sketchReducerType, reducerType);
 		
-		writer.print(text);
+		/************** Generate Utils File ****************/
+		PrintWriter writer = new PrintWriter(dir+"/utils.sk", "UTF-8");
+		Template.get("templates/utils.sk").render(fixedSlots, writer);
 		writer.close();
 		
 		/************** Create scaffold file ****************/
-		writer = new PrintWriter("output/main_"+reducerType+"_"+id+".sk", "UTF-8");
+		writer = new PrintWriter(dir+"/main_"+reducerType+"_"+id+".sk", "UTF-8");
+		
+		String postConditionArgs = argNames(fixedSlots.get("post-cond-args-decl"));
+		String loopInvariantArgs = argNames(fixedSlots.get("loop-inv-args-decl"));
+		
+		String grammars = "";
+		String grammarSelector = "int casperGrammar(){\n\tint g = ??("+Math.max(32-Integer.numberOfLeadingZeros(confs.size()-1), 1)+");\n\tassert g < "+confs.size()+";\n\tminimize(g);\n\t";
+		String postConditionDispatch = "int g = casperGrammar();\n\t";
+		String loopInvariantDispatch = "int g = casperGrammar();\n\t";
+		String blockGenerated = "";
+		for(int k=0; k<confs.size(); k++){
+			Map<String,String> slots = new HashMap<String,String>(fixedSlots);
+			slots.putAll(generateGrammarSlots(ext, sketchFilteredOutputVars, sketchReducerType, reducerType, confs.get(k)));
+			
+			String grammar = Template.get("templates/grammar_skeleton.sk").render(slots);
+			Map<String,String> names = grammarNames(grammar, grammarSuffix(k));
+			grammars += rename(grammar, names) + "\n";
+			
+			grammarSelector += "if(g=="+k+") grammarTypes[0] = "+k+";\n\t";
+			String condition = (k < confs.size()-1 ? "if(g=="+k+") " : "");
+			postConditionDispatch += condition + "return postCondition"+grammarSuffix(k)+"("+postConditionArgs+");\n\t";
+			loopInvariantDispatch += condition + "return loopInvariant"+grammarSuffix(k)+"("+loopInvariantArgs+");\n\t";
+			if(!slots.get("block-solutions").isEmpty())
+				blockGenerated += "if(casperGrammar()=="+k+"){\n\t\t\t"+rename(slots.get("block-solutions"), names)+"\n\t\t}\n\t\t";
+		}
+		grammarSelector += "return g;\n}";
+		
+		Map<String,String> slots = new HashMap<String,String>(fixedSlots);
+		slots.put("grammar-selector", grammarSelector);
+		slots.put("post-cond-dispatch", postConditionDispatch);
+		slots.put("loop-inv-dispatch", loopInvariantDispatch);
+		slots.put("block-solutions", blockGenerated);
+		slots.put("grammars", grammars);
 		
-		// Read template
-		text = new String(Files.readAllBytes(Paths.get("templates/main_skeleton.sk")), StandardCharsets.UTF_8);
+		// Save
+		Template.get("templates/batch_skeleton.sk").render(slots, writer);
+		writer.close();
 		
-		// Generate include list
-		String includeList = generateIncludeList(ext, id);
+		writeDataTypes(dir, ext);
+	}
+	
+	// Suffix of the functions and flag arrays of the k-th grammar of a batched scaffold
+	public static String grammarSuffix(int k) {
+		return "_grammar"+k;
+	}
+	
+	// Functions and globals declared at the top level of a rendered grammar, mapped to their
+	// names within a batched scaffold
+	private static Map<String,String> grammarNames(String grammar, String suffix) {
+		Map<String,String> names = new HashMap<String,String>();
+		Matcher m = DECLARATION.matcher(grammar);
+		while(m.find()){
+			if(!KEYWORDS.contains(m.group(1)))
+				names.put(m.group(2), m.group(2)+suffix);
+		}
+		return names;
+	}
+	
+	private static final Pattern DECLARATION = Pattern.compile("^(?:generator\\s+)?([A-Za-z_]\\w*)\\s*(?:\\[[^\\]\\n]*\\]\\s*)?([A-Za-z_]\\w*)\\s*[(=;]", Pattern.MULTILINE);
+	private static final Pattern IDENTIFIER = Pattern.compile("(?<![\\w])[A-Za-z_]\\w*");
+	private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList("return", "else", "assert", "if", "for", "while"));
+	
+	// Rename identifiers in one pass
+	private static String rename(String code, Map<String,String> names) {
+		StringBuffer sb = new StringBuffer(code.length() + code.length()/8);
+		Matcher m = IDENTIFIER.matcher(code);
+		while(m.find()){
+			String name = names.get(m.group());
+			m.appendReplacement(sb, Matcher.quoteReplacement(name == null ? m.group() : name));
+		}
+		m.appendTail(sb);
+		return sb.toString();
+	}
+	
+	// Argument names of an argument list declaration
+	private static String argNames(String argsDecl) {
+		List<String> names = new ArrayList<String>();
+		for(String arg : argsDecl.split(",")){
+			String[] tokens = arg.trim().split("\\s+");
+			names.add(tokens[tokens.length-1]);
+		}
+		return casper.Util.join(names, ",");
+	}
+	
+	private static void writeDataTypes(String dir, MyWhileExt ext) throws IOException {
+		// Sketch is pointed at the work directory only, so it needs its own copy of the data type models.
+		// CasperDataRecord differs between fragments and is generated here rather than shared.
+		for(String dataType : ext.globalDataTypes){
+			if(dataType.equals("CasperDataRecord")){
+				PrintWriter writer = new PrintWriter(dir+"/CasperDataRecord.sk", "UTF-8");
+				writer.print(generateDataRecordStruct(ext));
+				writer.close();
+			}
+			else if(Files.exists(Paths.get(WorkDirectory.root(), dataType+".sk"))){
+				WorkDirectory.copyInto(WorkDirectory.root()+"/"+dataType+".sk", dir);
+			}
+		}
+	}
+	
+	// Scaffold slots that do not depend on the search configuration. They are generated
+	// for the first grammar of a reduce type and reused for the rest.
+	private static Map<String,String> getFixedSlots(MyWhileExt ext, int id, Set<Variable> sketchFilteredOutputVars, String sketchReducerType, String reducerType) throws IOException {
+		String key = sketchReducerType + " " + reducerType + " " + sketchFilteredOutputVars;
+		Map<String,String> fixedSlots = ext.scaffoldSlots.get(key);
+		if(fixedSlots == null){
+			fixedSlots = generateFixedSlots(ext, id, sketchFilteredOutputVars, sketchReducerType, reducerType);
+			ext.scaffoldSlots.put(key, fixedSlots);
+		}
+		return fixedSlots;
+	}
+	
+	// Scaffold slots of the grammar of one search configuration
+	private static Map<String,String> generateGrammarSlots(MyWhileExt ext, Set<Variable> sketchFilteredOutputVars, String sketchReducerType, String reducerType, SearchConfiguration conf) {
+		// Clear block arrays
+		for(int i=0; i<ext.blocks.size(); i++)
+			ext.blocks.get(i).clear();
+		
+		// Generate map-reduce expression
+		String stagesGenerator = generateStagesGenerator(ext.inputDataSet, ext.loopCounters, sketchFilteredOutputVars, conf);
+		
+		// Generate map-reduce stages
+		String mrStages = generateMapReduceStages(ext.inputDataSet, ext.loopCounters, sketchFilteredOutputVars, conf);
+		
+		// Generate do-map functions
+		String domaps = generateDoMaps(conf);
+		
+		// Generate post condition body
+		String postCondition = generatePostCondition(ext.inputDataSet, sketchFilteredOutputVars, ext.loopCounters, conf);
+		
+		// Generate loop invariant body
+		String loopInvariant = generateLoopInvariant(ext.inputDataSet, sketchFilteredOutputVars, ext.loopCounters, conf);
+		
+		// Generate int expression generator for map
+		Map<String, String> blockArrays = new HashMap<String,String>();
+		String mapGenerators = generateMapGenerators(sketchReducerType, blockArrays, sketchFilteredOutputVars, ext, conf);
+		
+		// Generate map function args declaration
+		String mapArgsDecl = generateMapArgsDecl(ext.inputDataSet, ext.loopCounters, ext.postConditionArgsOrder.get(reducerType), conf, sketchReducerType);
+		
+		// Generate map function emit code
+		String mapEmits = generateDomapEmits(sketchReducerType, ext, conf);
+		
+		// Generate reduce/fold expression generator
+		String reduceGenerator = generateReduceGenerators(sketchReducerType, blockArrays, sketchFilteredOutputVars, ext, conf);
+		
+		// Declare key-value arrays in reduce
+		String declKeysVals = generateDeclKeysVals(sketchReducerType,conf);
+		
+		// Generate map function call args
+		String mapArgsCall = generateMapArgsCall(ext.inputDataSet, conf);
+		
+		// Initialize key variables
+		String initKeys = generateInitKeys(conf);
+		
+		// Generate code to fold values by key
+		String reduceByKey = generateReduceByKey(sketchFilteredOutputVars, conf);
+		
+		// Generate reduce functions
+		String reduceFunctions = generateReduceFunctions(sketchReducerType, sketchFilteredOutputVars, conf);
+		
+		// Generate block bit arrays declaration
+		String declBlockArrays = generateDeclBlockArrays(blockArrays, conf);
+		
+		// Generate code to block generated solutions
+		String blockGenerated = generateBlockGenerated(ext);
+		
+		// Generate csg test code
+		String csgTest = "";
+		if(conf.valuesTupleSize == 1 && casper.Util.getTypeClass(sketchReducerType) != casper.Util.OBJECT)
+			csgTest = "";//generateCSGTestCode(sketchFilteredOutputVars);
+		
+		Map<String,String> slots = new HashMap<String,String>();
+		slots.put("stages-generator", stagesGenerator);
+		slots.put("mr-stages", mrStages);
+		slots.put("domaps", domaps);
+		slots.put("decl-block-arrays", declBlockArrays);
+		slots.put("post-cond-body", postCondition);
+		slots.put("loop-inv-body", loopInvariant);
+		slots.put("map-generators", mapGenerators);
+		slots.put("map-args-decl", mapArgsDecl);
+		slots.put("map-emits", mapEmits);
+		slots.put("reduce-generator", reduceGenerator);
+		slots.put("init-keys-vals", declKeysVals);
+		slots.put("map-args-call", mapArgsCall);
+		slots.put("init-keys", initKeys);
+		slots.put("reduce-by-key", reduceByKey);
+		slots.put("reduce-functions", reduceFunctions);
+		slots.put("block-solutions", blockGenerated);
+		slots.put("reduce-csg-test", csgTest);
+		
+		return slots;
+	}
+	
+	// Template slots of the utils file and the scaffold that do not depend on the search configuration
+	private static Map<String,String> generateFixedSlots(MyWhileExt ext, int id, Set<Variable> sketchFilteredOutputVars, String sketchReducerType, String reducerType) throws IOException {
+		Map<String,String> slots = new HashMap<String,String>();
+		
+		// Generate setter functions
+		String setterFuncs = generateSetterFunctions(sketchFilteredOutputVars);
+		
+		// Generate getter functions
+		String getterFuncs = generateGetterFunctions(sketchFilteredOutputVars, ext.inputVars);
+		
+		// Generate ite functions
+		String iteFuncs = generateITEFunctions(sketchFilteredOutputVars, ext.inputVars);
 		
 		// Number of output variables
 		String numOutVars = Integer.toString(sketchFilteredOutputVars.size());
@@ -73,10 +294,6 @@ public class SketchCodeGenerator {
 		}
 		String r_size_str = Integer.toString(r_size);
 		
-		// Clear block arrays
-		for(int i=0; i<ext.blocks.size(); i++)
-			ext.blocks.get(i).clear();
-		
 		// Declare input / broadcast variables
 		String broadcastVarsDecl = declBroadcastVars(ext.constCount, ext.inputVars);
 		
@@ -96,6 +313,9 @@ public class SketchCodeGenerator {
 		// Use main function args to initialize loop counters
 		String loopCountersInit = initLoopCounters(ext, argsList, ext.loopCounters);
 		
+		// Generate include list. Initializing the input data may add the CasperDataRecord type.
+		String includeList = generateIncludeList(ext, id);
+		
 		// Generate verification code
 		String invariant = ext.invariants.get(reducerType).replaceAll("casper_data_set", new IdentifierNode(ext.inputDataSet.varName,ext.inputDataSet.getSketchType())).toString();
 		
@@ -125,118 +345,56 @@ public class SketchCodeGenerator {
 		
 		// 2. Assert loop invariant implies the post condition if the loop terminates: I && loop condition is false --> POST
 		verifCode += "if(" + invariant + " && " + loopCondFalse + ") {\n\t\tassert " + postC + ";\n\t}";
-	
-		// Generate map-reduce expression
-		String stagesGenerator = generateStagesGenerator(ext.inputDataSet, ext.loopCounters, sketchFilteredOutputVars, conf);
-		
-		// Generate map-reduce stages
-		String mrStages = generateMapReduceStages(ext.inputDataSet, ext.loopCounters, sketchFilteredOutputVars, conf);
-		
-		// Generate do-map functions
-		String domaps = generateDoMaps(conf);
 		
 		// Generate post condition args
 		String postConditionArgsDecl = generatePostConditionArgsDecl(ext.inputDataSet, sketchFilteredOutputVars, ext.loopCounters, ext.postConditionArgsOrder.get(reducerType));
 		
 		// Generate loop invariant args
 		String loopInvariantArgsDecl = generateLoopInvariantArgsDecl(ext.inputDataSet, sketchFilteredOutputVars, ext.loopCounters, ext.postConditionArgsOrder.get(reducerType));
-		
-		// Generate post condition body
-		String postCondition = generatePostCondition(ext.inputDataSet, sketchFilteredOutputVars, ext.loopCounters, conf);
-		
-		// Generate loop invariant body
-		String loopInvariant = generateLoopInvariant(ext.inputDataSet, sketchFilteredOutputVars, ext.loopCounters, conf);
-		
-		// Generate int expression generator for map
-		Map<String, String> blockArrays = new HashMap<String,String>();
-		String mapGenerators = generateMapGenerators(sketchReducerType, blockArrays, sketchFilteredOutputVars, ext, conf);
-		
-		// Generate map function args declaration
-		String mapArgsDecl = generateMapArgsDecl(ext.inputDataSet, ext.loopCounters, ext.postConditionArgsOrder.get(reducerType), conf, sketchReducerType);
-		
-		// Generate map function emit code
-		String mapEmits = generateDomapEmits(sketchReducerType, ext, conf);
-		
-		// Generate reduce/fold expression generator
-		String reduceGenerator = generateReduceGenerators(sketchReducerType, blockArrays, sketchFilteredOutputVars, ext, conf);
 			
 		// Generate functions to init values in reducer
 		String initFunctions = generateInitFunctions(sketchReducerType, sketchFilteredOutputVars);
 		
 		String casperRInit = generateCasperRInit(sketchFilteredOutputVars);
 		
-		// Declare key-value arrays in reduce
-		String declKeysVals = generateDeclKeysVals(sketchReducerType,conf);
-		
-		// Generate map function call args
-		String mapArgsCall = generateMapArgsCall(ext.inputDataSet, conf);
-		
-		// Initialize key variables
-		String initKeys = generateInitKeys(conf);
-		
-		// Generate code to fold values by key
-		String reduceByKey = generateReduceByKey(sketchFilteredOutputVars, conf);
-		
-		// Generate reduce functions
-		String reduceFunctions = generateReduceFunctions(sketchReducerType, sketchFilteredOutputVars, conf);
-		
 		// Generate merge functions
 		String mergeFunctions = generateMergeFunctions(sketchReducerType, sketchFilteredOutputVars, ext.methodOperators);
 		
 		// Generate code to merge output with initial values
 		String mergeOutput = generateMergeOutput(sketchFilteredOutputVars);
 		
-		// Generate block bit arrays declaration
-		String declBlockArrays = generateDeclBlockArrays(blockArrays, conf);
-		
-		// Generate code to block generated solutions
-		String blockGenerated = generateBlockGenerated(ext);
-		
-		// Generate csg test code
-		String csgTest = "";
-		if(conf.valuesTupleSize == 1 && casper.Util.getTypeClass(sketchReducerType) != casper.Util.OBJECT)
-			csgTest = "";//generateCSGTestCode(sketchFilteredOutputVars);
-		
-		// Modify template
-		text = text.replace("<stages-generator>", stagesGenerator);
-		text = text.replace("<mr-stages>", mrStages);
-		text = text.replace("<domaps>", domaps);
-		text = text.replace("<decl-block-arrays>", declBlockArrays);
-		text = text.replace("<output-type>", sketchReducerType);
-		text = text.replace("<include-libs>",includeList);
-		text = text.replace("<num-out-vars>",numOutVars);
-		text = text.replace("<r-size>",r_size_str);
-		text = text.replace("<decl-broadcast-vars>",broadcastVarsDecl);
-		text = text.replace("<main-args-decl>",mainFuncArgsDecl);
-		text = text.replace("<output-vars-initialize>",outputVarsInit);
-		text = text.replace("<input-data-initialize>",inputDataInit);
-		text = text.replace("<input-vars-initialize>",inputVarsInit);
-		text = text.replace("<loop-counters-initialize>",loopCountersInit);
-		text = text.replace("<verif-conditions>",verifCode);
-		text = text.replace("<post-cond-args-decl>",postConditionArgsDecl);
-		text = text.replace("<loop-inv-args-decl>",loopInvariantArgsDecl);
-		text = text.replace("<post-cond-body>",postCondition);
-		text = text.replace("<loop-inv-body>",loopInvariant);
-		text = text.replace("<map-generators>",mapGenerators);
-		text = text.replace("<map-args-decl>",mapArgsDecl);
-		text = text.replace("<map-emits>",mapEmits);
-		text = text.replace("<reduce-generator>", reduceGenerator);
-		text = text.replace("<lc>", loopCounter);
-		text = text.replace("<init-functions>", initFunctions);
-		text = text.replace("<casper-r-init>", casperRInit);
-		text = text.replace("<init-keys-vals>", declKeysVals);
-		text = text.replace("<map-args-call>",mapArgsCall);
-		text = text.replace("<init-keys>",initKeys);
-		text = text.replace("<reduce-by-key>", reduceByKey);
-		text = text.replace("<reduce-functions>", reduceFunctions);
-		text = text.replace("<merge-functions>", mergeFunctions);
-		text = text.replace("<merge-r>", mergeOutput);
-		text = text.replace("<block-solutions>", blockGenerated);
-		text = text.replace("<reduce-csg-test>", csgTest);
-		
-		// Save
-		writer.print(text);
-		writer.close();
+		slots.put("setter-functions", setterFuncs);
+		slots.put("getter-functions", getterFuncs);
+		slots.put("ite-functions", iteFuncs);
+		slots.put("output-type", sketchReducerType);
+		slots.put("include-libs", includeList);
+		slots.put("num-out-vars", numOutVars);
+		slots.put("r-size", r_size_str);
+		slots.put("decl-broadcast-vars", broadcastVarsDecl);
+		slots.put("main-args-decl", mainFuncArgsDecl);
+		slots.put("output-vars-initialize", outputVarsInit);
+		slots.put("input-data-initialize", inputDataInit);
+		slots.put("input-vars-initialize", inputVarsInit);
+		slots.put("loop-counters-initialize", loopCountersInit);
+		slots.put("verif-conditions", verifCode);
+		slots.put("post-cond-args-decl", postConditionArgsDecl);
+		slots.put("loop-inv-args-decl", loopInvariantArgsDecl);
+		slots.put("lc", loopCounter);
+		slots.put("init-functions", initFunctions);
+		slots.put("casper-r-init", casperRInit);
+		slots.put("merge-functions", mergeFunctions);
+		slots.put("merge-r", mergeOutput);
+		
+		return slots;
+	}
+	
+	// Model of a record holding one element of every input data collection
+	private static String generateDataRecordStruct(MyWhileExt ext) {
+		String fields = "";
+		for(Variable var : ext.inputDataCollections){
+			fields += casper.Util.reducerType(var.getSketchType()) + " " + var.varName + ";";
+		}
+		return "struct CasperDataRecord{ "+fields+" }";
 	}
 
 	private static String generateDoMaps(SearchConfiguration conf) {
@@ -549,10 +707,10 @@ public class SketchCodeGenerator {
 		String includeList = "";
 		
 		for(String dataType : ext.globalDataTypes){
-			includeList += "include \"output/" + dataType + ".sk\";\n";
+			includeList += "include \"" + dataType + ".sk\";\n";
 		}
 		if(ext.inputDataCollections.size()>1){
-			includeList += "include \"output/CasperDataRecord.sk\";\n";
+			includeList += "include \"CasperDataRecord.sk\";\n";
 		}
 		
 		return includeList;
@@ -868,18 +1026,11 @@ public class SketchCodeGenerator {
 					ext.inputDataSet = new Variable("casper_data_set","java.util.List<CasperDataRecord>","",Variable.ARRAY_ACCESS);
 					if(!ext.globalDataTypes.contains("CasperDataRecord")){
 						ext.globalDataTypes.add("CasperDataRecord");
-						ext.globalDataTypesFields.put("CasperDataRecord", new HashSet<Variable>());
+						ext.globalDataTypesFields.put("CasperDataRecord", new VariableSet());
 					
-						String fields = "";
 						for(Variable var : ext.inputDataCollections){
 							ext.globalDataTypesFields.get("CasperDataRecord").add(new Variable(var.varName,casper.Util.reducerType(var.getSketchType()),"",Variable.VAR));
-							fields += casper.Util.reducerType(var.getSketchType()) + " " + var.varName + ";";
 						}
-						
-						PrintWriter writer = new PrintWriter("output/CasperDataRecord.sk", "UTF-8");
-						String text = "struct CasperDataRecord{ "+fields+" }";
-						writer.print(text);
-						writer.close();
 					}
 				}
 			}
@@ -901,18 +1052,11 @@ public class SketchCodeGenerator {
 				ext.inputDataSet = new Variable("casper_data_set","java.util.List<CasperDataRecord>","",Variable.ARRAY_ACCESS);
 				if(!ext.globalDataTypes.contains("CasperDataRecord")){
 					ext.globalDataTypes.add("CasperDataRecord");
-					ext.globalDataTypesFields.put("CasperDataRecord", new HashSet<Variable>());
+					ext.globalDataTypesFields.put("CasperDataRecord", new VariableSet());
 				
-					String fields = "";
 					for(Variable var : ext.inputDataCollections){
 						ext.globalDataTypesFields.get("CasperDataRecord").add(new Variable(var.varName,casper.Util.reducerType(var.getSketchType()),"",Variable.VAR));
-						fields += casper.Util.reducerType(var.getSketchType()) + " " + var.varName + ";";
 					}
-					
-					PrintWriter writer = new PrintWriter("output/CasperDataRecord.sk", "UTF-8");
-					String text = "struct CasperDataRecord{ "+fields+" }";
-					writer.print(text);
-					writer.close();
 				}
 				
 				inputInit = ext.inputDataSet.getSketchType().replace("["+Configuration.arraySizeBound+"]", "["+(Configuration.arraySizeBound-1)+"]") + " " + ext.inputDataSet.varName + ";\n\t";
@@ -0,0 +1,758 @@
+/*
+ * Reader for the code Sketch prints once it has solved a sketch. The output
+ * is tokenized once. Functions are parsed on demand into a flat list of
+ * statements holding expression trees.
+ *
+ * Sketch lowers the synthesized expressions into chains of temporaries
+ * (_out_s12, _pac_sc_s3, ...). An expression is read back in terms of the
+ * original variables by a def-use walk. Each use of a temporary is replaced
+ * by the definition that reaches it, found by a binary search over the
+ * definitions of that name. Each definition is resolved only once.
+ */
+
+package casper;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import casper.JavaLibModel.SketchCall;
+
+public class SketchOutput {
+
+	// Multi-character operators, longest first
+	private static final String[] OPERATORS = {">>>", "<<=", ">>=", "==", "!=", "<=", ">=", "&&", "||", "<<", ">>",
+												"++", "--", "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=", "??"};
+
+	// Binary operators by increasing precedence
+	private static final List<List<String>> BINARY = Arrays.asList(
+		Arrays.asList("||"), Arrays.asList("&&"), Arrays.asList("|"), Arrays.asList("^"), Arrays.asList("&"),
+		Arrays.asList("==", "!="), Arrays.asList("<", ">", "<=", ">="), Arrays.asList("<<", ">>", ">>>"),
+		Arrays.asList("+", "-"), Arrays.asList("*", "/", "%")
+	);
+
+	private static final Set<String> COMPOUND = new HashSet<String>(Arrays.asList("+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=", "<<=", ">>="));
+
+	private static final Set<String> TYPES = new HashSet<String>(Arrays.asList("int", "bit", "char", "double", "float", "boolean"));
+
+	private final List<String> tokens;
+	private final Map<String,SketchCall> operators = new HashMap<String,SketchCall>();
+
+	// Function name -> first and one past the last token of its body
+	private final Map<String,int[]> bodies = new HashMap<String,int[]>();
+	private final Map<String,Function> functions = new HashMap<String,Function>();
+
+	public SketchOutput(String text, Set<SketchCall> methodOperators) {
+		tokens = tokenize(text);
+		for(SketchCall op : methodOperators){
+			if(!operators.containsKey(op.name))
+				operators.put(op.name, op);
+		}
+		findFunctions();
+	}
+
+	public static SketchOutput read(String filename, Set<SketchCall> methodOperators) throws IOException {
+		return new SketchOutput(new String(Files.readAllBytes(Paths.get(filename)), StandardCharsets.UTF_8), methodOperators);
+	}
+
+	public Set<String> functionNames() {
+		return bodies.keySet();
+	}
+
+	// The parsed function, null if the output has no function of that name
+	public Function function(String name) {
+		Function f = functions.get(name);
+		if(f == null && bodies.containsKey(name)){
+			int[] body = bodies.get(name);
+			f = new Function(body[0], body[1]);
+			functions.put(name, f);
+		}
+		return f;
+	}
+
+	/*
+	 * Tokens
+	 */
+
+	private static List<String> tokenize(String text) {
+		List<String> tokens = new ArrayList<String>();
+		int n = text.length();
+		int i = 0;
+		while(i < n){
+			char c = text.charAt(i);
+			int start = i;
+			if(Character.isWhitespace(c)){
+				i++;
+			}
+			else if(text.startsWith("/*", i)){
+				int end = text.indexOf("*/", i+2);
+				i = (end == -1 ? n : end+2);
+			}
+			else if(text.startsWith("//", i)){
+				int end = text.indexOf('\n', i);
+				i = (end == -1 ? n : end+1);
+			}
+			else if(Character.isJavaIdentifierStart(c)){
+				while(i < n && Character.isJavaIdentifierPart(text.charAt(i)))
+					i++;
+				tokens.add(text.substring(start, i));
+			}
+			else if(Character.isDigit(c)){
+				while(i < n && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '.'))
+					i++;
+				tokens.add(text.substring(start, i));
+			}
+			else if(c == '"'){
+				i++;
+				while(i < n && text.charAt(i) != '"' && text.charAt(i) != '\n')
+					i += (text.charAt(i) == '\\' ? 2 : 1);
+				i = Math.min(i+1, n);
+				tokens.add(text.substring(start, i));
+			}
+			else{
+				String op = String.valueOf(c);
+				for(String o : OPERATORS){
+					if(text.startsWith(o, i)){
+						op = o;
+						break;
+					}
+				}
+				tokens.add(op);
+				i += op.length();
+			}
+		}
+		return tokens;
+	}
+
+	private static String join(List<?> items, String separator) {
+		StringBuilder sb = new StringBuilder();
+		for(int i=0; i<items.size(); i++){
+			if(i > 0)
+				sb.append(separator);
+			sb.append(items.get(i));
+		}
+		return sb.toString();
+	}
+
+	private static boolean isIdentifier(String token) {
+		return !token.isEmpty() && Character.isJavaIdentifierStart(token.charAt(0));
+	}
+
+	private String token(int i) {
+		return i < tokens.size() ? tokens.get(i) : "";
+	}
+
+	// Index of the bracket closing the one at the given index, -1 if there is none
+	private int matching(int open) {
+		String o = tokens.get(open);
+		String c = o.equals("(") ? ")" : o.equals("[") ? "]" : "}";
+		int depth = 0;
+		for(int i=open; i<tokens.size(); i++){
+			if(tokens.get(i).equals(o)){
+				depth++;
+			}
+			else if(tokens.get(i).equals(c)){
+				depth--;
+				if(depth == 0)
+					return i;
+			}
+		}
+		return -1;
+	}
+
+	// Function definitions: void name (...) [implements spec] { ... }. The log
+	// lines Sketch prints before the code are skipped over.
+	private void findFunctions() {
+		int i = 0;
+		while(i < tokens.size()){
+			if(token(i).equals("void") && isIdentifier(token(i+1)) && token(i+2).equals("(")){
+				int close = matching(i+2);
+				int open = close+1;
+				if(close != -1 && token(open).equals("implements"))
+					open += 2;
+				if(close != -1 && token(open).equals("{")){
+					int end = matching(open);
+					if(end != -1){
+						if(!bodies.containsKey(token(i+1)))
+							bodies.put(token(i+1), new int[]{open+1, end});
+						i = end+1;
+						continue;
+					}
+				}
+			}
+			i++;
+		}
+	}
+
+	/*
+	 * Expressions
+	 */
+
+	public static abstract class Expr {
+		// The expression as printed by Sketch, with spaces around operators dropped
+		abstract public String toString();
+	}
+
+	static class Name extends Expr {
+		final String name;
+		Name(String name) { this.name = name; }
+		public String toString() { return name; }
+	}
+
+	static class Literal extends Expr {
+		final String text;
+		Literal(String text) { this.text = text; }
+		public String toString() { return text; }
+	}
+
+	static class Paren extends Expr {
+		final Expr expr;
+		Paren(Expr expr) { this.expr = expr; }
+		public String toString() { return "(" + expr + ")"; }
+	}
+
+	static class Unary extends Expr {
+		final String op;
+		final Expr operand;
+		Unary(String op, Expr operand) { this.op = op; this.operand = operand; }
+		public String toString() { return op + operand; }
+	}
+
+	static class Binary extends Expr {
+		final String op;
+		final Expr left;
+		final Expr right;
+		Binary(String op, Expr left, Expr right) { this.op = op; this.left = left; this.right = right; }
+		public String toString() { return left + op + right; }
+	}
+
+	static class Cond extends Expr {
+		final Expr cond;
+		final Expr cons;
+		final Expr alt;
+		Cond(Expr cond, Expr cons, Expr alt) { this.cond = cond; this.cons = cons; this.alt = alt; }
+		public String toString() { return cond + " ? " + cons + " : " + alt; }
+	}
+
+	static class Cast extends Expr {
+		final String type;
+		final Expr expr;
+		Cast(String type, Expr expr) { this.type = type; this.expr = expr; }
+		public String toString() { return "(" + type + ")" + expr; }
+	}
+
+	static class Index extends Expr {
+		final Expr array;
+		final Expr index;
+		Index(Expr array, Expr index) { this.array = array; this.index = index; }
+		public String toString() { return array + "[" + index + "]"; }
+	}
+
+	static class Field extends Expr {
+		final Expr container;
+		final String field;
+		Field(Expr container, String field) { this.container = container; this.field = field; }
+		public String toString() { return container + "." + field; }
+	}
+
+	static class Call extends Expr {
+		final String name;
+		final List<Expr> args;
+		Call(String name, List<Expr> args) { this.name = name; this.args = args; }
+		public String toString() { return name + "(" + join(args, ", ") + ")"; }
+	}
+
+	static class ArrayLit extends Expr {
+		final List<Expr> items;
+		ArrayLit(List<Expr> items) { this.items = items; }
+		public String toString() { return "{" + join(items, ",") + "}"; }
+	}
+
+	/*
+	 * Statements
+	 */
+
+	public static class Stmt {
+		static final int OTHER = 0;
+		static final int ASSIGN = 1;
+		static final int DECL = 2;
+		static final int CALL = 3;
+		static final int IF = 4;
+
+		int kind;
+		Expr lhs;	// ASSIGN and DECL
+		Expr rhs;	// ASSIGN and DECL value (null if none), IF condition, CALL call
+		int depth;	// Number of enclosing blocks
+		int end;	// IF: one past the last statement of the then branch
+
+		Stmt(int kind, Expr lhs, Expr rhs, int depth) {
+			this.kind = kind;
+			this.lhs = lhs;
+			this.rhs = rhs;
+			this.depth = depth;
+		}
+
+		public boolean isIf() {
+			return kind == IF;
+		}
+
+		// Array written by an assignment "name[k] = ..." with a constant k, else null
+		public String array() {
+			if(kind == ASSIGN && lhs instanceof Index && ((Index) lhs).array instanceof Name && ((Index) lhs).index instanceof Literal)
+				return ((Index) lhs).array.toString();
+			return null;
+		}
+
+		// The constant k of "name[k] = ..."
+		public String arrayIndex() {
+			return ((Index) lhs).index.toString();
+		}
+
+		// The assigned value if it is a constant, else null
+		public String constant() {
+			if(kind == ASSIGN && rhs instanceof Literal)
+				return rhs.toString();
+			return null;
+		}
+	}
+
+	private static class SyntaxError extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/*
+	 * Functions
+	 */
+
+	// Resolved form of an expression. Atomic results need no parentheses
+	// when they replace a temporary inside a larger expression.
+	private static class Resolved {
+		final String text;
+		final boolean atomic;
+		Resolved(String text, boolean atomic) { this.text = text; this.atomic = atomic; }
+	}
+
+	public class Function {
+		public final List<Stmt> stmts = new ArrayList<Stmt>();
+
+		// Variable or element ("x", "a[0]", "r.f") -> statements that assign it, in order
+		private final Map<String,List<Integer>> defs = new HashMap<String,List<Integer>>();
+
+		// "<statement> <variable>" -> resolved value assigned by the statement
+		private final Map<String,Resolved> resolved = new HashMap<String,Resolved>();
+
+		private int pos;
+		private int end;
+
+		// Definitions before this statement are resolved
+		private int warm = 0;
+
+		Function(int start, int end) {
+			this.pos = start;
+			this.end = end;
+			while(pos < end)
+				statement(0);
+
+			for(int i=0; i<stmts.size(); i++){
+				Stmt s = stmts.get(i);
+				if(s.kind == Stmt.ASSIGN || (s.kind == Stmt.DECL && s.rhs != null)){
+					define(s.lhs.toString(), i);
+				}
+				else if(s.kind == Stmt.CALL && operators.containsKey(((Call) s.rhs).name)){
+					// Library calls return their result through the arguments after the
+					// modeled ones
+					List<String> args = new ArrayList<String>();
+					for(Expr arg : ((Call) s.rhs).args)
+						args.add(arg.toString());
+					for(int k=0; k<args.size(); k++){
+						if(((Call) s.rhs).args.get(k) instanceof Name && args.indexOf(args.get(k)) >= operators.get(((Call) s.rhs).name).args.size())
+							define(args.get(k), i);
+					}
+				}
+			}
+		}
+
+		private void define(String var, int stmt) {
+			if(!defs.containsKey(var))
+				defs.put(var, new ArrayList<Integer>());
+			defs.get(var).add(stmt);
+		}
+
+		// Last statement before the given one that assigns var, -1 if none
+		private int reachingDef(String var, int stmt) {
+			List<Integer> positions = defs.get(var);
+			if(positions == null)
+				return -1;
+			int i = Collections.binarySearch(positions, stmt);
+			i = (i >= 0 ? i : -i-1) - 1;
+			return i >= 0 ? positions.get(i) : -1;
+		}
+
+		// Last assignment to the variable in the function, -1 if none
+		public int lastAssignment(String var) {
+			return reachingDef(var, stmts.size());
+		}
+
+		// Value of an assignment or declaration, or condition of an if, in terms of the
+		// original variables
+		public String resolve(int stmt) {
+			// Resolve the definitions before it in order, so that each one finds the
+			// definitions it uses already resolved and long chains do not recurse deeply
+			for(; warm < stmt; warm++){
+				Stmt s = stmts.get(warm);
+				if(s.kind == Stmt.ASSIGN || (s.kind == Stmt.DECL && s.rhs != null))
+					valueOf(s.lhs.toString(), warm);
+			}
+			return resolve(stmts.get(stmt).rhs, stmt).text;
+		}
+
+		private Resolved valueOf(String var, int stmt) {
+			String key = stmt + " " + var;
+			Resolved r = resolved.get(key);
+			if(r == null){
+				Stmt s = stmts.get(stmt);
+				if(s.kind == Stmt.CALL){
+					Call call = (Call) s.rhs;
+					List<String> args = new ArrayList<String>();
+					for(Expr arg : call.args.subList(0, call.args.size()-1))
+						args.add(arg.toString().equals(var) ? var : resolve(arg, stmt).text);
+					r = new Resolved(call.name + "(" + join(args, ",") + ")", true);
+				}
+				else{
+					r = resolve(s.rhs, stmt);
+				}
+				resolved.put(key, r);
+			}
+			return r;
+		}
+
+		private String operand(Expr e, int stmt) {
+			Resolved r = resolve(e, stmt);
+			return r.atomic ? r.text : "(" + r.text + ")";
+		}
+
+		private Resolved resolve(Expr e, int stmt) {
+			if(e instanceof Name){
+				String name = ((Name) e).name;
+				// Temporaries introduced by sketch
+				if(name.startsWith("_")){
+					int def = reachingDef(name, stmt);
+					return def == -1 ? new Resolved(name, true) : valueOf(name, def);
+				}
+				// Sketch appends this to global variables
+				if(name.contains("__ANONYMOUS"))
+					name = name.substring(0, name.indexOf("__ANONYMOUS"));
+				return new Resolved(name, true);
+			}
+			else if(e instanceof Index || e instanceof Field){
+				// An element assigned as a whole
+				Expr container = (e instanceof Index ? ((Index) e).array : ((Field) e).container);
+				int def = reachingDef(e.toString(), stmt);
+				if(def != -1 && def > reachingDef(container.toString(), stmt))
+					return valueOf(e.toString(), def);
+				if(e instanceof Index)
+					return new Resolved(operand(container, stmt) + "[" + resolve(((Index) e).index, stmt).text + "]", true);
+				return new Resolved(operand(container, stmt) + "." + ((Field) e).field, true);
+			}
+			else if(e instanceof Paren){
+				return new Resolved("(" + resolve(((Paren) e).expr, stmt).text + ")", true);
+			}
+			else if(e instanceof Unary){
+				return new Resolved(((Unary) e).op + operand(((Unary) e).operand, stmt), false);
+			}
+			else if(e instanceof Binary){
+				Binary b = (Binary) e;
+				return new Resolved(operand(b.left, stmt) + b.op + operand(b.right, stmt), false);
+			}
+			else if(e instanceof Cond){
+				Cond c = (Cond) e;
+				return new Resolved(operand(c.cond, stmt) + " ? " + operand(c.cons, stmt) + " : " + operand(c.alt, stmt), false);
+			}
+			else if(e instanceof Cast){
+				return new Resolved("(" + ((Cast) e).type + ")" + operand(((Cast) e).expr, stmt), false);
+			}
+			else if(e instanceof Call || e instanceof ArrayLit){
+				List<Expr> items = (e instanceof Call ? ((Call) e).args : ((ArrayLit) e).items);
+				List<String> args = new ArrayList<String>();
+				for(Expr item : items)
+					args.add(resolve(item, stmt).text);
+				if(e instanceof Call)
+					return new Resolved(((Call) e).name + "(" + join(args, ", ") + ")", true);
+				return new Resolved("{" + join(args, ",") + "}", true);
+			}
+			return new Resolved(e.toString(), true);
+		}
+
+		/*
+		 * Parser
+		 */
+
+		private String peek() {
+			return pos < end ? tokens.get(pos) : "";
+		}
+
+		private String next() {
+			if(pos >= end)
+				throw new SyntaxError();
+			return tokens.get(pos++);
+		}
+
+		private void expect(String token) {
+			if(!next().equals(token))
+				throw new SyntaxError();
+		}
+
+		private Stmt add(int kind, Expr lhs, Expr rhs, int depth) {
+			Stmt s = new Stmt(kind, lhs, rhs, depth);
+			stmts.add(s);
+			return s;
+		}
+
+		private void statement(int depth) {
+			int start = pos;
+			int count = stmts.size();
+			try {
+				parseStatement(depth);
+			} catch (SyntaxError e) {
+				// Keep what was parsed of compound statements, skip the rest
+				pos = start;
+				stmts.subList(count, stmts.size()).clear();
+				skipStatement();
+				add(Stmt.OTHER, null, null, depth);
+			}
+		}
+
+		private void skipStatement() {
+			while(pos < end){
+				String t = tokens.get(pos);
+				if(t.equals("(") || t.equals("[") || t.equals("{")){
+					int close = matching(pos);
+					pos = (close == -1 || close >= end ? end : close+1);
+					if(t.equals("{"))
+						return;
+				}
+				else if(t.equals(";")){
+					pos++;
+					return;
+				}
+				else{
+					pos++;
+				}
+			}
+		}
+
+		private void parseStatement(int depth) {
+			String t = peek();
+			if(t.equals("{")){
+				int close = matching(pos);
+				if(close == -1 || close >= end)
+					throw new SyntaxError();
+				pos++;
+				int blockEnd = end;
+				end = close;
+				try {
+					while(pos < end)
+						statement(depth+1);
+				} finally {
+					end = blockEnd;
+				}
+				pos = close+1;
+			}
+			else if(t.equals(";")){
+				pos++;
+			}
+			else if(t.equals("if")){
+				pos++;
+				expect("(");
+				Expr cond = expression();
+				expect(")");
+				Stmt s = add(Stmt.IF, null, cond, depth);
+				statement(depth+1);
+				s.end = stmts.size();
+				if(peek().equals("else")){
+					pos++;
+					statement(depth+1);
+				}
+			}
+			else if(t.equals("for") || t.equals("while")){
+				pos++;
+				if(!peek().equals("("))
+					throw new SyntaxError();
+				int close = matching(pos);
+				if(close == -1 || close >= end)
+					throw new SyntaxError();
+				pos = close+1;
+				add(Stmt.OTHER, null, null, depth);
+				statement(depth+1);
+			}
+			else if(t.equals("return") || t.equals("assert") || t.equals("assume")){
+				skipStatement();
+				add(Stmt.OTHER, null, null, depth);
+			}
+			else if(isDeclaration()){
+				while(true){
+					Name name = new Name(next());
+					Expr value = null;
+					if(peek().equals("=")){
+						pos++;
+						value = expression();
+					}
+					add(Stmt.DECL, name, value, depth);
+					if(!peek().equals(","))
+						break;
+					pos++;
+				}
+				expect(";");
+			}
+			else{
+				Expr e = expression();
+				String op = peek();
+				if(op.equals("=")){
+					pos++;
+					add(Stmt.ASSIGN, e, expression(), depth);
+				}
+				else if(COMPOUND.contains(op)){
+					pos++;
+					add(Stmt.ASSIGN, e, new Binary(op.substring(0, op.length()-1), e, expression()), depth);
+				}
+				else if(e instanceof Call){
+					add(Stmt.CALL, null, e, depth);
+				}
+				else{
+					add(Stmt.OTHER, null, null, depth);
+				}
+				expect(";");
+			}
+		}
+
+		// Whether a declaration starts here: [global|ref] type[...] name (=|;|,).
+		// Moves past the type if so.
+		private boolean isDeclaration() {
+			int p = pos;
+			while(tokens.get(p).equals("global") || tokens.get(p).equals("ref"))
+				p++;
+			if(p >= end || !isIdentifier(tokens.get(p)))
+				return false;
+			p++;
+			while(p < end && tokens.get(p).equals("[")){
+				int close = matching(p);
+				if(close == -1 || close >= end)
+					return false;
+				p = close+1;
+			}
+			if(p+1 >= end || !isIdentifier(tokens.get(p)))
+				return false;
+			String after = tokens.get(p+1);
+			if(after.equals("=") || after.equals(";") || after.equals(",")){
+				pos = p;
+				return true;
+			}
+			return false;
+		}
+
+		private Expr expression() {
+			Expr cond = binary(0);
+			if(peek().equals("?")){
+				pos++;
+				Expr cons = expression();
+				expect(":");
+				return new Cond(cond, cons, expression());
+			}
+			return cond;
+		}
+
+		private Expr binary(int level) {
+			if(level == BINARY.size())
+				return unary();
+			Expr left = binary(level+1);
+			while(BINARY.get(level).contains(peek())){
+				String op = next();
+				left = new Binary(op, left, binary(level+1));
+			}
+			return left;
+		}
+
+		private Expr unary() {
+			String t = peek();
+			if(t.equals("!") || t.equals("-") || t.equals("~") || t.equals("+")){
+				pos++;
+				return new Unary(t, unary());
+			}
+			if(t.equals("(") && pos+1 < end && TYPES.contains(tokens.get(pos+1))){
+				int close = matching(pos);
+				if(close == -1 || close >= end)
+					throw new SyntaxError();
+				String type = join(tokens.subList(pos+1, close), "");
+				pos = close+1;
+				return new Cast(type, unary());
+			}
+			return postfix();
+		}
+
+		private Expr postfix() {
+			Expr e = primary();
+			while(true){
+				if(peek().equals("[")){
+					pos++;
+					Expr index = expression();
+					expect("]");
+					e = new Index(e, index);
+				}
+				else if(peek().equals(".") && pos+1 < end && isIdentifier(tokens.get(pos+1))){
+					pos++;
+					e = new Field(e, next());
+				}
+				else{
+					return e;
+				}
+			}
+		}
+
+		private Expr primary() {
+			String t = next();
+			if(t.equals("(")){
+				Expr e = expression();
+				expect(")");
+				return new Paren(e);
+			}
+			if(t.equals("{")){
+				List<Expr> items = new ArrayList<Expr>();
+				while(!peek().equals("}")){
+					items.add(expression());
+					if(!peek().equals(","))
+						break;
+					pos++;
+				}
+				expect("}");
+				return new ArrayLit(items);
+			}
+			if(isIdentifier(t)){
+				if(peek().equals("(")){
+					pos++;
+					List<Expr> args = new ArrayList<Expr>();
+					while(!peek().equals(")")){
+						args.add(expression());
+						if(!peek().equals(","))
+							break;
+						pos++;
+					}
+					expect(")");
+					return new Call(t, args);
+				}
+				return new Name(t);
+			}
+			if(Character.isDigit(t.charAt(0)) || t.startsWith("\""))
+				return new Literal(t);
+			throw new SyntaxError();
+		}
+	}
+}
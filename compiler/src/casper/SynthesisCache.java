@@ -0,0 +1,249 @@
+/*
+ * Persistent cache of synthesizer and verifier results. Entries are keyed
+ * by a hash of the generated sketch / dafny files (plus every file they
+ * include) and the bounds they are run with. Since those files capture the
+ * code fragment, the grammar configuration and the solutions blocked so far,
+ * re-running Casper on an unchanged loop replays the same results without
+ * invoking sketch or dafny.
+ *
+ * Solutions are cached as raw sketch output and parsed again by SketchParser
+ * on a hit, so the loop extension ends up in the same state as after a real
+ * sketch run.
+ *
+ * Only definitive verdicts are cached: sketch finding a solution or proving
+ * there is none, and dafny verifying a summary or rejecting it. Crashes,
+ * killed runs and missing tools depend on the machine and are run again.
+ * Entries not used for CacheMaxAgeDays are dropped, and the least recently
+ * used entries are evicted once there are more than CacheMaxEntries.
+ */
+
+package casper;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.DirectoryStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import casper.visit.GenerateScaffold.SearchConfiguration;
+
+public class SynthesisCache {
+
+	static boolean debug = false;
+
+	// Dafny exit codes of a verified and of a rejected summary
+	static final int DAFNY_VERIFIED = 0;
+	static final int DAFNY_VERIFICATION_ERROR = 4;
+
+	// Printed by sketch when it proves the scaffold has no solution
+	static final String SKETCH_UNSATISFIABLE = "could not be resolved";
+
+	// The cache directory is pruned before the first entry a process stores, and then
+	// every PRUNE_INTERVAL entries, so a long running daemon stays within the limits
+	static final int PRUNE_INTERVAL = 100;
+	private static int storesSincePrune = 0;
+
+	// Key for a sketch run on the given scaffold
+	public static String sketchKey(String scaffoldFile, SearchConfiguration conf, Bounds bounds) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		appendWithIncludes(sb, Paths.get(scaffoldFile));
+		sb.append("bounds:" + bounds.intRange + "," + bounds.inbits + "," + bounds.loopUnrollBound + "," + Configuration.arraySizeBound + "\n");
+		sb.append("conf:" + conf.stageCount + "," + conf.emitCount + "," + conf.keyTupleSize + "," + conf.valuesTupleSize + "," + conf.recursionDepth + ","
+					+ conf.keyType + "," + conf.tuplesAdded + "," + conf.simpleEmits + "," + conf.opsAdded + "\n");
+		return "sketch_" + hash(sb.toString());
+	}
+
+	// Key for a dafny run on the given summary
+	public static String dafnyKey(String summaryFile) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		appendWithIncludes(sb, Paths.get(summaryFile));
+		return "dafny_" + hash(sb.toString());
+	}
+
+	// Look up a cached result. Returns the cached exit code, or null on a miss. If
+	// outputFile is not null, the cached tool output is written to it.
+	public static Integer lookup(String key, String outputFile) {
+		if(!Configuration.synthesisCache)
+			return null;
+
+		Path entry = Paths.get(Configuration.cacheDir, key);
+		if(!Files.exists(entry))
+			return null;
+
+		try {
+			if(expired(entry)){
+				Files.deleteIfExists(entry);
+				return null;
+			}
+
+			String text = new String(Files.readAllBytes(entry), StandardCharsets.UTF_8);
+			int split = text.indexOf('\n');
+			int exitCode = Integer.parseInt(text.substring(0, split));
+
+			if(outputFile != null){
+				PrintWriter writer = new PrintWriter(outputFile, "UTF-8");
+				writer.print(text.substring(split+1));
+				writer.close();
+			}
+
+			// The modification time records the last use
+			Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+
+			if(debug)
+				System.err.println("Cache hit: " + key);
+
+			return exitCode;
+		} catch (IOException | RuntimeException e) {
+			// Treat unreadable entries as a miss, they are overwritten on store
+			return null;
+		}
+	}
+
+	// Save the result of a sketch run if sketch found a solution or proved there is none
+	public static void storeSketch(String key, int exitCode, String outputFile) {
+		if(!Configuration.synthesisCache)
+			return;
+
+		if(exitCode != 0){
+			try {
+				String output = Files.exists(Paths.get(outputFile)) ? new String(Files.readAllBytes(Paths.get(outputFile)), StandardCharsets.UTF_8) : "";
+				if(!output.contains(SKETCH_UNSATISFIABLE))
+					return;
+			} catch (IOException e) {
+				return;
+			}
+		}
+		store(key, exitCode, outputFile);
+	}
+
+	// Save the verdict of a dafny run if it verified or rejected the summary
+	public static void storeDafny(String key, int exitCode) {
+		if(exitCode == DAFNY_VERIFIED || exitCode == DAFNY_VERIFICATION_ERROR)
+			store(key, exitCode, null);
+	}
+
+	// Save a result. The entry is written to a temp file first and moved into place
+	// so that concurrent casperc processes never observe a partial entry.
+	private static void store(String key, int exitCode, String outputFile) {
+		if(!Configuration.synthesisCache)
+			return;
+
+		try {
+			Files.createDirectories(Paths.get(Configuration.cacheDir));
+			prune();
+
+			String output = "";
+			if(outputFile != null)
+				output = new String(Files.readAllBytes(Paths.get(outputFile)), StandardCharsets.UTF_8);
+
+			Path temp = Files.createTempFile(Paths.get(Configuration.cacheDir), key, ".tmp");
+			Files.write(temp, (exitCode + "\n" + output).getBytes(StandardCharsets.UTF_8));
+			Files.move(temp, Paths.get(Configuration.cacheDir, key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("Failed to update synthesis cache: " + e.getMessage());
+		}
+	}
+
+	private static boolean expired(Path entry) throws IOException {
+		if(Configuration.cacheMaxAgeDays <= 0)
+			return false;
+		long age = System.currentTimeMillis() - Files.getLastModifiedTime(entry).toMillis();
+		return age > TimeUnit.DAYS.toMillis(Configuration.cacheMaxAgeDays);
+	}
+
+	// Drop expired entries, then the least recently used entries beyond the size limit
+	static synchronized void prune() {
+		if(storesSincePrune++ % PRUNE_INTERVAL != 0)
+			return;
+
+		final List<Path> entries = new ArrayList<Path>();
+		final List<FileTime> times = new ArrayList<FileTime>();
+		try {
+			try(DirectoryStream<Path> dir = Files.newDirectoryStream(Paths.get(Configuration.cacheDir))){
+				for(Path entry : dir){
+					if(entry.getFileName().toString().endsWith(".tmp"))
+						continue;
+					if(expired(entry)){
+						Files.deleteIfExists(entry);
+						continue;
+					}
+					entries.add(entry);
+				}
+			}
+
+			if(Configuration.cacheMaxEntries <= 0 || entries.size() <= Configuration.cacheMaxEntries)
+				return;
+
+			for(Path entry : entries)
+				times.add(Files.getLastModifiedTime(entry));
+			List<Integer> order = new ArrayList<Integer>();
+			for(int i=0; i<entries.size(); i++)
+				order.add(i);
+			Collections.sort(order, new Comparator<Integer>(){
+				public int compare(Integer a, Integer b) {
+					return times.get(a).compareTo(times.get(b));
+				}
+			});
+			// Evict a tenth more than needed so the next prunes have little to do
+			int evict = entries.size() - (Configuration.cacheMaxEntries - Configuration.cacheMaxEntries/10);
+			for(int i=0; i<evict && i<order.size(); i++)
+				Files.deleteIfExists(entries.get(order.get(i)));
+		} catch (IOException e) {
+			System.err.println("Failed to prune synthesis cache: " + e.getMessage());
+		}
+	}
+
+	// Prune again on the next store, for a cache directory that changed
+	static synchronized void reset() {
+		storesSincePrune = 0;
+	}
+
+	// Append the file text, followed by the text of every file it includes. Sketch resolves
+	// includes from the working directory, dafny from the directory of the including file.
+	private static void appendWithIncludes(StringBuilder sb, Path file) throws IOException {
+		String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+		sb.append(text);
+		sb.append("\n");
+
+		Pattern r = Pattern.compile("^include \"(.*?)\";?\\s*$", Pattern.MULTILINE);
+		Matcher m = r.matcher(text);
+		while(m.find()){
+			Path included = Paths.get(m.group(1));
+			if(file.getParent() != null && Files.exists(file.getParent().resolve(m.group(1))))
+				included = file.getParent().resolve(m.group(1));
+
+			if(Files.exists(included)){
+				sb.append("include:" + m.group(1) + "\n");
+				sb.append(new String(Files.readAllBytes(included), StandardCharsets.UTF_8));
+				sb.append("\n");
+			}
+		}
+	}
+
+	static String hash(String text) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] bytes = digest.digest(text.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder();
+			for(byte b : bytes){
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,286 @@
+/*
+ * Structured record of where the time of a run goes. Every compiler pass,
+ * scaffold generation, sketch and dafny invocation, cache hit and blocked
+ * candidate is appended as one JSON object per line to events.jsonl in the
+ * telemetry directory. Every event names its source file, and fragment
+ * events also name the fragment id, so the events of many runs can share
+ * the file. Events go through one buffered writer per run, which is
+ * flushed at the end of every compiler pass.
+ *
+ * Each fragment also keeps running totals. After the search of a source
+ * file ends they are printed as a table, one row per fragment, and saved
+ * next to the events.
+ *
+ * Off by default (Telemetry in Config.txt).
+ */
+
+package casper;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import casper.visit.GenerateScaffold.SearchConfiguration;
+
+public class Telemetry {
+
+	// Fragments of each source file, in the order they were searched
+	private static final Map<String,List<Trace>> traces = new LinkedHashMap<String,List<Trace>>();
+
+	// Open events file, and its path
+	private static Writer writer;
+	private static Path writerFile;
+	private static boolean closedOnExit = false;
+
+	// Events and totals of one code fragment
+	public static class Trace {
+		final String source;
+		final int fragment;
+		final long start = System.currentTimeMillis();
+
+		int scaffolds;
+		long scaffoldMillis;
+		int sketchRuns;
+		long sketchWallMillis;
+		long sketchCpuMillis;
+		int dafnyRuns;
+		long dafnyWallMillis;
+		long dafnyCpuMillis;
+		int cacheHits;
+		int candidates;
+		int blocked;
+		String outcome = "";
+
+		Trace(String source, int fragment) {
+			this.source = source;
+			this.fragment = fragment;
+		}
+
+		public synchronized void scaffold(SearchConfiguration conf, int grammars, long millis) {
+			scaffolds++;
+			scaffoldMillis += millis;
+			event("scaffold", conf(conf), "grammars", grammars, "wallMillis", millis);
+		}
+
+		public synchronized void sketch(String file, SearchConfiguration conf, Bounds bounds, ProcessSupervisor.Result result, long outputBytes) {
+			sketchRuns++;
+			sketchWallMillis += result.wallTimeMillis;
+			sketchCpuMillis += result.cpuTimeMillis;
+			event("sketch", "file", file, conf(conf), "bounds", bounds.toString(), "exitCode", result.exitCode, "timedOut", result.timedOut,
+					"wallMillis", result.wallTimeMillis, "cpuMillis", result.cpuTimeMillis, "outputBytes", outputBytes);
+		}
+
+		public synchronized void dafny(String file, ProcessSupervisor.Result result) {
+			dafnyRuns++;
+			dafnyWallMillis += result.wallTimeMillis;
+			dafnyCpuMillis += result.cpuTimeMillis;
+			event("dafny", "file", file, "exitCode", result.exitCode, "timedOut", result.timedOut, "wallMillis", result.wallTimeMillis, "cpuMillis", result.cpuTimeMillis);
+		}
+
+		public synchronized void cacheHit(String tool, String file, int exitCode) {
+			cacheHits++;
+			event("cache-hit", "tool", tool, "file", file, "exitCode", exitCode);
+		}
+
+		// A candidate found by sketch, and whether the falsifier rejected it
+		public synchronized void candidate(SearchConfiguration conf, boolean falsified) {
+			candidates++;
+			event("candidate", conf(conf), "falsified", falsified);
+		}
+
+		public synchronized void blocked(int expressions, int total) {
+			blocked++;
+			event("blocked", "expressions", expressions, "totalBlocked", total);
+		}
+
+		public synchronized void bounds(Bounds bounds) {
+			event("bounds", "bounds", bounds.toString());
+		}
+
+		// How the search of an output type ended
+		public synchronized void outcome(String reduceType, String outcome) {
+			this.outcome += (this.outcome.isEmpty() ? "" : ", ") + reduceType + ": " + outcome;
+			event("outcome", "outputType", reduceType, "outcome", outcome, "wallMillis", System.currentTimeMillis()-start);
+		}
+
+		private void event(String type, Object... fields) {
+			Object[] all = new Object[fields.length+2];
+			all[0] = "fragment";
+			all[1] = fragment;
+			System.arraycopy(fields, 0, all, 2, fields.length);
+			write(type, source, all);
+		}
+
+		// Grammar configuration as a nested object
+		private static Object[] conf(SearchConfiguration conf) {
+			return new Object[]{ "conf", new Json("{\"stages\":" + conf.stageCount + ",\"emits\":" + conf.emitCount + ",\"keys\":" + conf.keyTupleSize
+					+ ",\"values\":" + conf.valuesTupleSize + ",\"depth\":" + conf.recursionDepth + ",\"tuples\":" + conf.tuplesAdded
+					+ ",\"simpleEmits\":" + conf.simpleEmits + ",\"keyType\":" + quote(conf.keyType) + "}") };
+		}
+	}
+
+	// Text written into the JSON as it is
+	private static class Json {
+		final String text;
+		Json(String text) {
+			this.text = text;
+		}
+	}
+
+	public static Trace trace(String source, int fragment) {
+		Trace trace = new Trace(source, fragment);
+		synchronized(traces){
+			if(!traces.containsKey(source))
+				traces.put(source, new ArrayList<Trace>());
+			traces.get(source).add(trace);
+		}
+		return trace;
+	}
+
+	// A compiler pass run by the scheduler. Ends a batch of events.
+	public static void pass(String name, String source, long millis, boolean success) {
+		write("pass", source, "pass", name, "wallMillis", millis, "success", success);
+		flush();
+	}
+
+	// Write the buffered events to the events file
+	public static synchronized void flush() {
+		if(writer == null)
+			return;
+		try {
+			writer.flush();
+		} catch (IOException e) {
+			System.err.println("Failed to write telemetry events: " + e.getMessage());
+		}
+	}
+
+	// Print and save the totals of every fragment of the source file
+	public static void summary(String source) {
+		List<Trace> fragments;
+		synchronized(traces){
+			fragments = traces.remove(source);
+		}
+		if(!Configuration.telemetry || fragments == null || fragments.isEmpty())
+			return;
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-8s %10s %9s %12s %12s %9s %12s %7s %10s %8s  %s%n", "Fragment", "Wall(s)", "Scaffolds", "Scaffold(s)",
+				"Sketch runs", "Sketch(s)", "Dafny runs", "Dafny(s)", "Cache hits", "Blocked", "Outcome"));
+		for(Trace t : fragments){
+			synchronized(t){
+				sb.append(String.format("%-8d %10.1f %9d %12.1f %12d %9.1f %12d %7.1f %10d %8d  %s%n", t.fragment, (System.currentTimeMillis()-t.start)/1000.0,
+						t.scaffolds, t.scaffoldMillis/1000.0, t.sketchRuns, t.sketchWallMillis/1000.0, t.dafnyRuns, t.dafnyWallMillis/1000.0, t.cacheHits,
+						t.blocked, t.outcome));
+			}
+		}
+
+		flush();
+		System.err.println("\nSynthesis summary for " + source + ":\n" + sb);
+		try {
+			Path file = Paths.get(Configuration.telemetryDir, WorkDirectory.sourceKey(source) + "_summary.txt");
+			Files.createDirectories(file.getParent());
+			Files.write(file, sb.toString().getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			System.err.println("Failed to write telemetry summary: " + e.getMessage());
+		}
+	}
+
+	// Append an event. Fields are name, value pairs; a nested Object[] adds its pairs in place.
+	private static synchronized void write(String type, String source, Object... fields) {
+		if(!Configuration.telemetry)
+			return;
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"time\":").append(System.currentTimeMillis());
+		sb.append(",\"event\":").append(quote(type));
+		sb.append(",\"source\":").append(quote(source));
+		appendFields(sb, fields);
+		sb.append("}\n");
+
+		try {
+			open().write(sb.toString());
+		} catch (IOException e) {
+			System.err.println("Failed to write telemetry event: " + e.getMessage());
+		}
+	}
+
+	// Writer of the events file, opened on the first event of the run. A daemon that
+	// reads a new telemetry directory from Config.txt moves to it.
+	private static Writer open() throws IOException {
+		Path file = Paths.get(Configuration.telemetryDir, "events.jsonl").toAbsolutePath();
+		if(writer != null && file.equals(writerFile))
+			return writer;
+
+		if(!closedOnExit){
+			closedOnExit = true;
+			Runtime.getRuntime().addShutdownHook(new Thread(){
+				public void run() {
+					close();
+				}
+			});
+		}
+		close();
+		Files.createDirectories(file.getParent());
+		writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		writerFile = file;
+		return writer;
+	}
+
+	private static synchronized void close() {
+		if(writer == null)
+			return;
+		try {
+			writer.close();
+		} catch (IOException e) {
+			System.err.println("Failed to write telemetry events: " + e.getMessage());
+		}
+		writer = null;
+		writerFile = null;
+	}
+
+	private static void appendFields(StringBuilder sb, Object[] fields) {
+		for(int i=0; i<fields.length; i++){
+			if(fields[i] instanceof Object[]){
+				appendFields(sb, (Object[]) fields[i]);
+				continue;
+			}
+			Object value = fields[++i];
+			sb.append(",").append(quote(fields[i-1].toString())).append(":");
+			if(value instanceof Json)
+				sb.append(((Json) value).text);
+			else if(value instanceof Number || value instanceof Boolean)
+				sb.append(value);
+			else
+				sb.append(quote(value == null ? null : value.toString()));
+		}
+	}
+
+	private static String quote(String text) {
+		if(text == null)
+			return "null";
+		StringBuilder sb = new StringBuilder("\"");
+		for(char c : text.toCharArray()){
+			switch(c){
+				case '"': sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\t': sb.append("\\t"); break;
+				case '\r': sb.append("\\r"); break;
+				default:
+					if(c < 0x20)
+						sb.append(String.format("\\u%04x", (int) c));
+					else
+						sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
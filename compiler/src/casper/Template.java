@@ -0,0 +1,131 @@
+/*
+ * Templates for the generated Sketch, Dafny and Spark code (templates/).
+ * A template is read and split into literal text and named slots (<name>)
+ * once. The compiled form is immutable, so fragments and threads share it.
+ * Rendering writes the literals and slot values straight to the output in
+ * one pass.
+ *
+ * Generated values may hold slots themselves (for instance do_map functions
+ * use <map-args-decl>). These are filled in from the same values as they
+ * are written. Slots that are not given a value are written as they are.
+ */
+
+package casper;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class Template {
+
+	// Values are not expanded deeper than this, so a value that holds its own slot terminates
+	private static final int MAX_DEPTH = 8;
+
+	private static final Map<Path,Template> cache = new ConcurrentHashMap<Path,Template>();
+
+	// Literal text around the slots. literals[i] comes before slots[i].
+	private final String[] literals;
+	private final String[] slots;
+	private final FileTime modified;
+
+	private Template(String text, FileTime modified) {
+		List<String> literals = new ArrayList<String>();
+		List<String> slots = new ArrayList<String>();
+		int start = 0;
+		int i = text.indexOf('<');
+		while(i != -1){
+			int end = slotEnd(text, i);
+			if(end != -1){
+				literals.add(text.substring(start, i));
+				slots.add(text.substring(i+1, end));
+				start = end+1;
+			}
+			i = text.indexOf('<', end == -1 ? i+1 : end+1);
+		}
+		literals.add(text.substring(start));
+		this.literals = literals.toArray(new String[literals.size()]);
+		this.slots = slots.toArray(new String[slots.size()]);
+		this.modified = modified;
+	}
+
+	// Compiled template for the given file. The file is compiled again if it changed
+	// since it was last read, so a daemon picks up edited templates.
+	public static Template get(String filename) throws IOException {
+		Path path = Paths.get(filename).toAbsolutePath();
+		FileTime modified = Files.getLastModifiedTime(path);
+		Template template = cache.get(path);
+		if(template == null || !template.modified.equals(modified)){
+			template = new Template(new String(Files.readAllBytes(path), StandardCharsets.UTF_8), modified);
+			cache.put(path, template);
+		}
+		return template;
+	}
+
+	// Index of the '>' closing a slot name that starts at the given '<', -1 if it is not a slot
+	private static int slotEnd(String text, int open) {
+		int i = open+1;
+		if(i >= text.length() || text.charAt(i) < 'a' || text.charAt(i) > 'z')
+			return -1;
+		while(i < text.length()){
+			char c = text.charAt(i);
+			if(c == '>')
+				return i;
+			if(!(c >= 'a' && c <= 'z') && !(c >= '0' && c <= '9') && c != '-')
+				return -1;
+			i++;
+		}
+		return -1;
+	}
+
+	public void render(Map<String,String> values, Appendable out) throws IOException {
+		for(int i=0; i<slots.length; i++){
+			out.append(literals[i]);
+			String value = values.get(slots[i]);
+			if(value == null)
+				out.append('<').append(slots[i]).append('>');
+			else
+				expand(value, values, out, 1);
+		}
+		out.append(literals[literals.length-1]);
+	}
+
+	public String render(Map<String,String> values) {
+		int size = 0;
+		for(String literal : literals)
+			size += literal.length();
+		for(String slot : slots)
+			size += values.containsKey(slot) ? values.get(slot).length() : slot.length()+2;
+		StringBuilder sb = new StringBuilder(size);
+		try {
+			render(values, sb);
+		} catch (IOException e) {
+			// StringBuilder does not throw
+			throw new IllegalStateException(e);
+		}
+		return sb.toString();
+	}
+
+	// Write a value, filling in the slots it holds
+	private static void expand(String text, Map<String,String> values, Appendable out, int depth) throws IOException {
+		int start = 0;
+		int i = text.indexOf('<');
+		while(i != -1 && depth < MAX_DEPTH){
+			int end = slotEnd(text, i);
+			String value = (end == -1 ? null : values.get(text.substring(i+1, end)));
+			if(value != null){
+				out.append(text, start, i);
+				expand(value, values, out, depth+1);
+				start = end+1;
+			}
+			i = text.indexOf('<', end == -1 ? i+1 : end+1);
+		}
+		out.append(text, start, text.length());
+	}
+}
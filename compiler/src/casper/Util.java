@@ -775,7 +775,8 @@ public class Util {
 						Expr rhs = ((Assign)expr).right();
 						
 						CustomASTNode rhsAST = CustomASTNode.convertToAST(rhs);
-						loopExt.constCount = rhsAST.convertConstToIDs(loopExt.constMapping,loopExt.constCount);
+						rhsAST = rhsAST.convertConstToIDs(loopExt.constMapping);
+						loopExt.constCount = loopExt.constMapping.size();
 						
 						if(lhs instanceof ArrayAccess){
 							currVerifCondition = currVerifCondition.replaceAll(((ArrayAccess) lhs).array().toString(), new ArrayUpdateNode(lhs.type().toString(),CustomASTNode.convertToAST(((ArrayAccess) lhs).array()),CustomASTNode.convertToAST(((ArrayAccess) lhs).index()),rhsAST));
@@ -810,7 +811,8 @@ public class Util {
 					
 					CustomASTNode rhsAST = CustomASTNode.convertToAST(rhs);
 
-					loopExt.constCount = rhsAST.convertConstToIDs(loopExt.constMapping,loopExt.constCount);
+					rhsAST = rhsAST.convertConstToIDs(loopExt.constMapping);
+					loopExt.constCount = loopExt.constMapping.size();
  
 					currVerifCondition = currVerifCondition.replaceAll(lhs, rhsAST);
 					
@@ -827,7 +829,8 @@ public class Util {
 					Expr cond = ((If) currStatement).cond();
 					
 					CustomASTNode loopCond = CustomASTNode.convertToAST(cond);
-					loopExt.constCount = loopCond.convertConstToIDs(loopExt.constMapping,loopExt.constCount);
+					loopCond = loopCond.convertConstToIDs(loopExt.constMapping);
+					loopExt.constCount = loopExt.constMapping.size();
 					
 					CustomASTNode verifCondCons = generatePreCondition(type,cons,currVerifCondition,loopExt,false);
 					
@@ -838,7 +841,7 @@ public class Util {
 						verifCondAlt = currVerifCondition;
 					
 					
-					if(!verifCondCons.toString().equals(verifCondAlt.toString()))
+					if(!CustomASTNode.sameText(verifCondCons,verifCondAlt))
 						currVerifCondition = new ConditionalNode(loopCond,verifCondCons,verifCondAlt);
 					
 					// Save pre-condition
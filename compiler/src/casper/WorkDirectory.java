@@ -0,0 +1,86 @@
+/*
+ * Scratch directories for the files handed to sketch and dafny. Every
+ * casperc process gets its own run directory under output/, and inside it
+ * every (source file, fragment, reduce type) gets a fragment directory.
+ * Scaffolds, summaries and the utils files they include are written there,
+ * so loops, files and casperc processes never overwrite each other's files.
+ * Source files are told apart by their full path, since files with the same
+ * name may live in different directories. The run directory is deleted when
+ * the process exits.
+ *
+ * Generated files include their dependencies by name only (for instance
+ * include "utils.sk"), so the text of a scaffold does not depend on where it
+ * was written and the synthesis cache keeps hitting across runs.
+ */
+
+package casper;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+public class WorkDirectory {
+
+	private static Path runDir = null;
+
+	// Directory shared by all fragments of this process. User defined data types
+	// are modelled here, since they are extracted before any fragment is handled.
+	public static synchronized String root() throws IOException {
+		if(runDir == null){
+			Files.createDirectories(Paths.get("output"));
+			runDir = Files.createTempDirectory(Paths.get("output"), "run_");
+
+			final Path dir = runDir;
+			Runtime.getRuntime().addShutdownHook(new Thread(){
+				public void run() {
+					delete(dir);
+				}
+			});
+		}
+		return runDir.toString();
+	}
+
+	// Directory for one fragment of a source file and one reduce type
+	public static String forFragment(String sourcePath, int id, String reduceType) throws IOException {
+		String name = sourceKey(sourcePath) + "_" + id + "_" + reduceType.replaceAll("[^A-Za-z0-9_]", "_");
+		return create(Paths.get(root(), name));
+	}
+
+	// File name safe key of a source file: its name, followed by a hash of its full
+	// path so that files with the same name in different directories do not collide
+	public static String sourceKey(String sourcePath) {
+		Path path = Paths.get(sourcePath).toAbsolutePath().normalize();
+		String name = path.getFileName().toString().replaceAll("\\.java$", "").replaceAll("[^A-Za-z0-9_]", "_");
+		return name + "_" + SynthesisCache.hash(path.toString()).substring(0, 12);
+	}
+
+	// Sub-directory of a fragment directory for one attempt (a portfolio job or a
+	// candidate under verification)
+	public static String forAttempt(String fragmentDir, String attempt) throws IOException {
+		return create(Paths.get(fragmentDir, attempt));
+	}
+
+	// Copy a file into the given directory, keeping its name
+	public static String copyInto(String file, String dir) throws IOException {
+		Path target = Paths.get(dir).resolve(Paths.get(file).getFileName());
+		Files.copy(Paths.get(file), target, StandardCopyOption.REPLACE_EXISTING);
+		return target.toString();
+	}
+
+	private static String create(Path dir) throws IOException {
+		Files.createDirectories(dir);
+		return dir.toString();
+	}
+
+	static void delete(Path dir) {
+		try(Stream<Path> files = Files.walk(dir)){
+			files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		} catch (IOException e) {
+			// Left for the next clean of output/
+		}
+	}
+}
@@ -24,6 +24,7 @@ import casper.types.CustomASTNode;
 import casper.types.Expression;
 import casper.types.MRStage;
 import casper.types.Variable;
+import casper.types.VariableSet;
 import polyglot.ast.Node;
 import polyglot.util.Pair;
 
@@ -42,29 +43,29 @@ public class MyWhileExt extends MyStmtExt {
     // All variables that are used as indexes when accessing large
 	// data structures like arrays and collections. Must change with
 	// loop iterations.
-    public Set<Variable> loopCounters = new HashSet<Variable>();
+    public Set<Variable> loopCounters = new VariableSet();
     public Variable mainLoopCounter = null;
 	
 	// Input variables are variables that were declared outside of the
 	// loop body, but were read within the loop. They are thus inputs
 	// to the loop code fragment.
-    public Set<Variable> inputVars = new HashSet<Variable>();
+    public Set<Variable> inputVars = new VariableSet();
     
     // These variables are fields of other variables and thus not added
     // immediately. We wait to see if the container variable is also
     // an input variable or not.
-    public Set<Variable> pendingInputVars = new HashSet<Variable>();
+    public Set<Variable> pendingInputVars = new VariableSet();
     
     // Output variables are variables that were declared outside of the
     // loop body, but were written/modified within the loop. They thus
     // capture the effect/output of the loop on the program.
-    public Set<Variable> outputVars = new HashSet<Variable>();
+    public Set<Variable> outputVars = new VariableSet();
  
     // All variables that are declared within the loop body. They are
     // not accessible outside the loop body and thus are not input or
     // output but used merely for internal computation. Currently, we
     // are not using these but could be useful in the future.
-    public Set<Variable> localVars = new HashSet<Variable>();
+    public Set<Variable> localVars = new VariableSet();
     
     // Expressions that occur inside the loop body. Currently these are
     // not used but they could be useful. These expressions may hint
@@ -138,6 +139,14 @@ public class MyWhileExt extends MyStmtExt {
 	public List<String> verifiedSolKeyTypes = new ArrayList<String>();
 	public List<Boolean> verifiedCSG = new ArrayList<Boolean>();
 	
+	// Sibling loops over the same data set (see FuseSiblingLoops). The loops whose outputs
+	// the aggregation of this loop also computes, whether this loop was fused into an
+	// earlier one, and the cached RDD shared with the other loops.
+	public List<MyWhileExt> fusedLoops = new ArrayList<MyWhileExt>();
+	public boolean fused = false;
+	public String sharedRDD = null;
+	public boolean createsSharedRDD = false;
+	
 	// Index of selected solution
 	public int selectedSolutionIndex = -1;
 	
@@ -146,6 +155,9 @@ public class MyWhileExt extends MyStmtExt {
 	public List<Map<String,String>> blockExprs = new ArrayList<Map<String,String>>();
 	public Map<String,String> termValuesTemp = new HashMap<String,String>();
 	public List<List<String>> blocks = new ArrayList<List<String>>();
+	
+	// Scaffold template slots that do not depend on the search configuration, by reduce type
+	public Map<String,Map<String,String>> scaffoldSlots = new HashMap<String,Map<String,String>>();
     
     // We perform an alias analysis. If two variables are aliases, then
     // modifying one should change the other too. Our generated programs
@@ -292,12 +304,20 @@ public class MyWhileExt extends MyStmtExt {
     
     // Alias analysis
     public void extractAliases(){
-    	HashSet<Variable> allVars = new HashSet<Variable>();
+    	Set<Variable> allVars = new VariableSet();
     	allVars.addAll(inputVars);
     	allVars.addAll(outputVars);
     	
+    	// Variables of the same type alias each other
+    	Map<String,Set<Variable>> varsByType = new HashMap<String,Set<Variable>>();
+    	for(Variable x : allVars){
+    		if(!varsByType.containsKey(x.varType))
+    			varsByType.put(x.varType, new VariableSet());
+    		varsByType.get(x.varType).add(x);
+    	}
+    	
     	for(Variable x : allVars){
-    		aliases.put(x, new HashSet<Variable>());
+    		aliases.put(x, new VariableSet());
     		switch(x.varType){
 				// Primitive data types are immutable
 	    		case "byte":
@@ -313,13 +333,8 @@ public class MyWhileExt extends MyStmtExt {
 	    			break;
     			// Unknown data type
 	    		default:
-	    			for(Variable y : allVars){
-	    				if(y.equals(x)) continue;
-	    				
-	    				if(y.varType.equals(x.varType)){// && y.containerType.equals(x.containerType)){
-	    					aliases.get(x).add(y);
-	    				}
-	    			}
+	    			aliases.get(x).addAll(varsByType.get(x.varType));
+	    			aliases.get(x).remove(x);
     		}
     	}
     }
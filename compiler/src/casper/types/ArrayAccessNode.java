@@ -1,5 +1,6 @@
 package casper.types;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -8,8 +9,8 @@ import casper.Util;
 
 public class ArrayAccessNode extends CustomASTNode{
 
-	public CustomASTNode array;
-	public CustomASTNode index;
+	public final CustomASTNode array;
+	public final CustomASTNode index;
 	
 	private static String fixType(String t) {
 		return (Util.getSketchTypeFromRaw(t).endsWith("["+Configuration.arraySizeBound+"]") ? 
@@ -18,28 +19,41 @@ public class ArrayAccessNode extends CustomASTNode{
 	}
 	
 	public ArrayAccessNode(String t, CustomASTNode a, CustomASTNode i) {		
-		super(fixType(t)+"_getter("+a+","+i+")");
-		type = t;
+		super(fixType(t)+"_getter("+a+","+i+")", t);
 		array = a;
 		index = i;
 	}
+	
+	private CustomASTNode with(CustomASTNode newArray, CustomASTNode newIndex){
+		if(newArray == array && newIndex == index)
+			return this;
+		return intern(new ArrayAccessNode(type,newArray,newIndex));
+	}
 
 	@Override
-	public CustomASTNode replaceAll(String lhs, CustomASTNode rhs){
+	CustomASTNode substitute(String lhs, CustomASTNode rhs, Map<CustomASTNode,CustomASTNode> done){
 		if(name.equals(lhs)){
 			return rhs;
 		}
-		CustomASTNode newIndex = index.replaceAll(lhs, rhs);
-		CustomASTNode newArray = array.replaceAll(lhs, rhs);
-		return new ArrayAccessNode(type,newArray,newIndex);
+		CustomASTNode newIndex = index.replaceAll(lhs, rhs, done);
+		CustomASTNode newArray = array.replaceAll(lhs, rhs, done);
+		return with(newArray,newIndex);
+	}
+	
+	@Override
+	void print(Printer p){
+		p.text(name);
 	}
 	
-	public String toString(){
-		return name;
+	@Override
+	List<Object> fields(){
+		return Arrays.<Object>asList(array, index);
 	}
 
 	@Override
 	public boolean contains(String exp) {
+		if(!mentions(exp))
+			return false;
 		return array.contains(exp) || index.contains(exp);
 	}
 
@@ -56,16 +70,17 @@ public class ArrayAccessNode extends CustomASTNode{
 
 	@Override
 	public CustomASTNode fixArrays() {
-		return new FieldNode("CasperDataRecord_getter(casper_data_set,"+index.name+")."+array.toString(),"CasperDataRecord",new ArrayAccessNode("CasperDataRecord",new IdentifierNode("casper_data_set","CasperDataRecord"),index));
+		return intern(new FieldNode("CasperDataRecord_getter(casper_data_set,"+index.name+")."+array.toString(),"CasperDataRecord",intern(new ArrayAccessNode("CasperDataRecord",intern(new IdentifierNode("casper_data_set","CasperDataRecord")),index))));
 	}
 	
 	@Override
-	public void replaceIndexesWith(String k) {
+	public CustomASTNode replaceIndexesWith(String k) {
+		CustomASTNode newIndex;
 		if(index instanceof IdentifierNode)
-			index = new IdentifierNode(k,index.type);
+			newIndex = intern(new IdentifierNode(k,index.type));
 		else
-			index.replaceIndexesWith(k);
-		array.replaceIndexesWith(k);
+			newIndex = index.replaceIndexesWith(k);
+		return with(array.replaceIndexesWith(k),newIndex);
 	}
 
 	@Override
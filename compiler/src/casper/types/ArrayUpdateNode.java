@@ -1,5 +1,6 @@
 package casper.types;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -7,32 +8,51 @@ import casper.Util;
 
 public class ArrayUpdateNode  extends CustomASTNode{
 
-	public CustomASTNode array;
-	public CustomASTNode index;
-	public CustomASTNode value;
+	public final CustomASTNode array;
+	public final CustomASTNode index;
+	public final CustomASTNode value;
 	
 	public ArrayUpdateNode(String t, CustomASTNode a, CustomASTNode i, CustomASTNode v) {
-		super("");
+		super("", t);
 		array = a;
 		index = i;
 		value = v;
-		type = t;
+	}
+	
+	private CustomASTNode with(CustomASTNode newArray, CustomASTNode newIndex, CustomASTNode newValue){
+		if(newArray == array && newIndex == index && newValue == value)
+			return this;
+		return intern(new ArrayUpdateNode(type,newArray,newIndex,newValue));
 	}
 
 	@Override
-	public CustomASTNode replaceAll(String lhs, CustomASTNode rhs){
-		CustomASTNode newArray = array.replaceAll(lhs, rhs);
-		CustomASTNode newIndex = index.replaceAll(lhs, rhs);
-		CustomASTNode newValue = value.replaceAll(lhs, rhs);
-		return new ArrayUpdateNode(type,newArray,newIndex,newValue);
+	CustomASTNode substitute(String lhs, CustomASTNode rhs, Map<CustomASTNode,CustomASTNode> done){
+		CustomASTNode newArray = array.replaceAll(lhs, rhs, done);
+		CustomASTNode newIndex = index.replaceAll(lhs, rhs, done);
+		CustomASTNode newValue = value.replaceAll(lhs, rhs, done);
+		return with(newArray,newIndex,newValue);
 	}
 	 
-	public String toString(){
-		return Util.getSketchTypeFromRaw(type)+"_setter(" + array + ","+ index +"," + value + ")";
+	@Override
+	void print(Printer p){
+		p.text(Util.getSketchTypeFromRaw(type)+"_setter(");
+		p.node(array);
+		p.text(",");
+		p.node(index);
+		p.text(",");
+		p.node(value);
+		p.text(")");
+	}
+	
+	@Override
+	List<Object> fields(){
+		return Arrays.<Object>asList(array, index, value);
 	}
 
 	@Override
 	public boolean contains(String exp) {
+		if(!mentions(exp))
+			return false;
 		return array.contains(exp) || index.contains(exp) || value.contains(exp);
 	}
 
@@ -54,19 +74,17 @@ public class ArrayUpdateNode  extends CustomASTNode{
 
 	@Override
 	public CustomASTNode fixArrays() {
-		index = index.fixArrays();
-		value = value.fixArrays();
-		return this;
+		return with(array,index.fixArrays(),value.fixArrays());
 	}
 	
 	@Override
-	public void replaceIndexesWith(String k) {
+	public CustomASTNode replaceIndexesWith(String k) {
+		CustomASTNode newIndex;
 		if(index instanceof IdentifierNode)
-			index = new IdentifierNode(k,index.type);
+			newIndex = intern(new IdentifierNode(k,index.type));
 		else
-			index.replaceIndexesWith(k);
-		array.replaceIndexesWith(k);
-		value.replaceIndexesWith(k);
+			newIndex = index.replaceIndexesWith(k);
+		return with(array.replaceIndexesWith(k),newIndex,value.replaceIndexesWith(k));
 	}
 
 	@Override
@@ -1,33 +1,52 @@
 package casper.types;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
 public class BinaryOperatorNode extends CustomASTNode{
 	
-	public CustomASTNode operandLeft;
-	public CustomASTNode operandRight;
+	public final CustomASTNode operandLeft;
+	public final CustomASTNode operandRight;
 	
 	public BinaryOperatorNode(String n, String t, CustomASTNode oleft, CustomASTNode oright) {
-		super(n);
+		super(n, t);
 		operandLeft = oleft;
 		operandRight = oright;
-		type = t;
+	}
+	
+	// Same operator over new operands, or this node if the operands did not change
+	private CustomASTNode with(CustomASTNode newOperandLeft, CustomASTNode newOperandRight){
+		if(newOperandLeft == operandLeft && newOperandRight == operandRight)
+			return this;
+		return intern(new BinaryOperatorNode(name,type,newOperandLeft,newOperandRight));
 	}
 
 	@Override
-	public CustomASTNode replaceAll(String lhs, CustomASTNode rhs){
-		CustomASTNode newOperandLeft = operandLeft.replaceAll(lhs, rhs);
-		CustomASTNode newOperandRight = operandRight.replaceAll(lhs, rhs);
-		return new BinaryOperatorNode(name,type,newOperandLeft,newOperandRight);
+	CustomASTNode substitute(String lhs, CustomASTNode rhs, Map<CustomASTNode,CustomASTNode> done){
+		CustomASTNode newOperandLeft = operandLeft.replaceAll(lhs, rhs, done);
+		CustomASTNode newOperandRight = operandRight.replaceAll(lhs, rhs, done);
+		return with(newOperandLeft,newOperandRight);
 	}
 	
-	public String toString(){
-		return "(" + operandLeft.toString() + name + operandRight.toString() + ")";
+	@Override
+	void print(Printer p){
+		p.text("(");
+		p.node(operandLeft);
+		p.text(name);
+		p.node(operandRight);
+		p.text(")");
+	}
+	
+	@Override
+	List<Object> fields(){
+		return Arrays.<Object>asList(operandLeft, operandRight);
 	}
 
 	@Override
 	public boolean contains(String exp) {
+		if(!mentions(exp))
+			return false;
 		return name.equals(exp) || operandLeft.contains(exp) || operandRight.contains(exp);
 	}
 
@@ -38,41 +57,35 @@ public class BinaryOperatorNode extends CustomASTNode{
 	}
 
 	@Override
-	public int convertConstToIDs(Map<String,String> constMapping, int constID){
+	public CustomASTNode convertConstToIDs(Map<String,String> constMapping){
 		if(casper.Util.operatorType(name) == casper.Util.RELATIONAL_OP){
-			if(operandLeft instanceof ConstantNode){
-				if(((ConstantNode) operandLeft).type_code == ConstantNode.INTLIT){
-					if(!constMapping.containsKey(operandLeft.toString())){
-						constMapping.put(operandLeft.toString(), "casperConst"+constID);
-						constID++;
-					}
-					operandLeft = new IdentifierNode(constMapping.get(operandLeft.toString()),operandLeft.type);
-				}
-			}
-			if(operandRight instanceof ConstantNode){
-				if(((ConstantNode) operandRight).type_code == ConstantNode.INTLIT){
-					if(!constMapping.containsKey(operandRight.toString())){
-						constMapping.put(operandRight.toString(), "casperConst"+constID);
-						constID++;
-					}
-					operandRight = new IdentifierNode(constMapping.get(operandRight.toString()),operandRight.type);
+			CustomASTNode newOperandLeft = convertConstToID(operandLeft, constMapping);
+			CustomASTNode newOperandRight = convertConstToID(operandRight, constMapping);
+			return with(newOperandLeft,newOperandRight);
+		}
+		return this;
+	}
+	
+	private static CustomASTNode convertConstToID(CustomASTNode operand, Map<String,String> constMapping){
+		if(operand instanceof ConstantNode){
+			if(((ConstantNode) operand).type_code == ConstantNode.INTLIT){
+				if(!constMapping.containsKey(operand.toString())){
+					constMapping.put(operand.toString(), "casperConst"+constMapping.size());
 				}
+				return intern(new IdentifierNode(constMapping.get(operand.toString()),operand.type));
 			}
 		}
-		return constID;
+		return operand;
 	}
 
 	@Override
 	public CustomASTNode fixArrays() {
-		operandLeft = operandLeft.fixArrays();
-		operandRight = operandRight.fixArrays();
-		return this;
+		return with(operandLeft.fixArrays(),operandRight.fixArrays());
 	}
 	
 	@Override
-	public void replaceIndexesWith(String k) {
-		operandLeft.replaceIndexesWith(k);
-		operandRight.replaceIndexesWith(k);
+	public CustomASTNode replaceIndexesWith(String k) {
+		return with(operandLeft.replaceIndexesWith(k),operandRight.replaceIndexesWith(k));
 	}
 
 	@Override
@@ -1,41 +1,58 @@
 package casper.types;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 public class CallNode extends CustomASTNode {
 	
-	public ArrayList<CustomASTNode> arguments;
+	public final ArrayList<CustomASTNode> arguments;
 	
 	public CallNode(String n, String t, ArrayList<CustomASTNode> args) {
-		super(n);
+		super(n, t);
 		arguments = args;
-		type = t;
+	}
+	
+	// Same call over new arguments, or this node if no argument changed
+	private CustomASTNode with(ArrayList<CustomASTNode> newArgs){
+		for(int i=0; i<arguments.size(); i++){
+			if(newArgs.get(i) != arguments.get(i))
+				return intern(new CallNode(name,type,newArgs));
+		}
+		return this;
 	}
 
 	@Override
-	public CustomASTNode replaceAll(String lhs, CustomASTNode rhs){
+	CustomASTNode substitute(String lhs, CustomASTNode rhs, Map<CustomASTNode,CustomASTNode> done){
 		ArrayList<CustomASTNode> newArgs = new ArrayList<CustomASTNode>();
 		for(CustomASTNode arg : arguments){
-			newArgs.add(arg.replaceAll(lhs, rhs));
+			newArgs.add(arg.replaceAll(lhs, rhs, done));
 		}
-		return new CallNode(name,type,newArgs);
+		return with(newArgs);
 	}
 	
-	public String toString(){
-		String args = "";
+	@Override
+	void print(Printer p){
+		p.text(name + "(");
 		for(int i=0; i<arguments.size(); i++){
-			CustomASTNode arg = arguments.get(i);
-			args +=  arg.toString();
+			p.node(arguments.get(i));
 			if(i<arguments.size()-1)
-				args += ",";
+				p.text(",");
 		}
-		return name + "(" + args + ")";
+		p.text(")");
+	}
+	
+	@Override
+	List<Object> fields(){
+		return Collections.<Object>unmodifiableList(arguments);
 	}
 
 	@Override
 	public boolean contains(String exp) {
+		if(!mentions(exp))
+			return false;
+		
 		if(name.equals(exp))
 			return true;
 		
@@ -60,13 +77,16 @@ public class CallNode extends CustomASTNode {
 		for(CustomASTNode arg : arguments){
 			args.add(arg.fixArrays());
 		}
-		return new CallNode(name,type,args);
+		return with(args);
 	}
 	
 	@Override
-	public void replaceIndexesWith(String k) {
-		for(CustomASTNode arg : arguments)
-			arg.replaceIndexesWith(k);
+	public CustomASTNode replaceIndexesWith(String k) {
+		ArrayList<CustomASTNode> args = new ArrayList<CustomASTNode>();
+		for(CustomASTNode arg : arguments){
+			args.add(arg.replaceIndexesWith(k));
+		}
+		return with(args);
 	}
 
 	@Override
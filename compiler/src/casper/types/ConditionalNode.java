@@ -1,34 +1,42 @@
 package casper.types;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
 public class ConditionalNode extends CustomASTNode{
 
-	CustomASTNode cond;
-	CustomASTNode cons;
-	CustomASTNode alt;
+	final CustomASTNode cond;
+	final CustomASTNode cons;
+	final CustomASTNode alt;
 	
 	public ConditionalNode(CustomASTNode co, CustomASTNode c, CustomASTNode a) {
-		super("");
+		super("", c.type);
 		cond = co;
 		cons = c;
 		alt = a;
-		type = c.type;
 		
 		assert c.type.equals(a.type);
 	}
+	
+	private CustomASTNode with(CustomASTNode newCond, CustomASTNode newCons, CustomASTNode newAlt){
+		if(newCond == cond && newCons == cons && newAlt == alt)
+			return this;
+		return intern(new ConditionalNode(newCond,newCons,newAlt));
+	}
 
 	@Override
-	public CustomASTNode replaceAll(String lhs, CustomASTNode rhs){
-		CustomASTNode newCond = cond.replaceAll(lhs, rhs);
-		CustomASTNode newCons = cons.replaceAll(lhs, rhs);
-		CustomASTNode newAlt = alt.replaceAll(lhs, rhs);
-		return new ConditionalNode(newCond,newCons,newAlt);
+	CustomASTNode substitute(String lhs, CustomASTNode rhs, Map<CustomASTNode,CustomASTNode> done){
+		CustomASTNode newCond = cond.replaceAll(lhs, rhs, done);
+		CustomASTNode newCons = cons.replaceAll(lhs, rhs, done);
+		CustomASTNode newAlt = alt.replaceAll(lhs, rhs, done);
+		return with(newCond,newCons,newAlt);
 	}
 	
 	@Override
 	public boolean contains(String exp) {
+		if(!mentions(exp))
+			return false;
 		return cond.contains(exp) || cons.contains(exp) || alt.contains(exp);
 	}
 
@@ -88,8 +96,20 @@ public class ConditionalNode extends CustomASTNode{
 		return output;*/
 	}
 	
-	public String toString(){
-		return type+"_ite(" + cond + "," + cons + "," + alt +")";
+	@Override
+	void print(Printer p){
+		p.text(type+"_ite(");
+		p.node(cond);
+		p.text(",");
+		p.node(cons);
+		p.text(",");
+		p.node(alt);
+		p.text(")");
+	}
+	
+	@Override
+	List<Object> fields(){
+		return Arrays.<Object>asList(cond, cons, alt);
 	}
 
 	@Override
@@ -101,17 +121,12 @@ public class ConditionalNode extends CustomASTNode{
 
 	@Override
 	public CustomASTNode fixArrays() {
-		cond = cond.fixArrays();
-		cons = cons.fixArrays();
-		alt = alt.fixArrays();
-		return this;
+		return with(cond.fixArrays(),cons.fixArrays(),alt.fixArrays());
 	}
 	
 	@Override
-	public void replaceIndexesWith(String k) {
-		cond.replaceIndexesWith(k);
-		cons.replaceIndexesWith(k);
-		alt.replaceIndexesWith(k);
+	public CustomASTNode replaceIndexesWith(String k) {
+		return with(cond.replaceIndexesWith(k),cons.replaceIndexesWith(k),alt.replaceIndexesWith(k));
 	}
 
 	@Override
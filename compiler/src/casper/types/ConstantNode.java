@@ -1,5 +1,6 @@
 package casper.types;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -12,22 +13,26 @@ public class ConstantNode extends CustomASTNode {
 	public static final int ARRAYLIT = 4;
 	public static final int UNKNOWNLIT = 5;
 
-	public int type_code;
+	public final int type_code;
 	
 	public ConstantNode(String n, String t, int tc) {
-		super(n);
-		type = t;
+		super(n, t);
 		type_code = tc;
 	}
 
 	@Override
-	public CustomASTNode replaceAll(String lhs, CustomASTNode rhs){
-		// Return clone of self
-		return new ConstantNode(name,type,type_code);
+	CustomASTNode substitute(String lhs, CustomASTNode rhs, Map<CustomASTNode,CustomASTNode> done){
+		return this;
+	}
+	
+	@Override
+	void print(Printer p){
+		p.text(name);
 	}
 	
-	public String toString(){
-		return name;
+	@Override
+	List<Object> fields(){
+		return Collections.<Object>singletonList(type_code);
 	}
 
 	@Override
@@ -45,8 +50,8 @@ public class ConstantNode extends CustomASTNode {
 	}
 	
 	@Override
-	public void replaceIndexesWith(String k) {
-		return;
+	public CustomASTNode replaceIndexesWith(String k) {
+		return this;
 	}
 
 	@Override
@@ -1,7 +1,28 @@
+/*
+ * Expressions are immutable: every transformation returns a new node, and
+ * returns the node itself if nothing changed. Sub-terms are therefore shared
+ * freely, and a verification condition is a DAG rather than a tree. Repeated
+ * substitution over a long loop body no longer copies the whole condition at
+ * every statement, it only rebuilds the path to the substituted identifiers.
+ *
+ * Every node caches the hash of its printed form and the names it mentions,
+ * so equality checks and substitutions skip whole sub-terms without printing
+ * or visiting them. Nodes built through intern() are hash-consed: a node with
+ * the same fields and the same sub-term instances as a live node is replaced
+ * by that node.
+ */
+
 package casper.types;
 
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 import casper.JavaLibModel;
 import polyglot.ast.ArrayAccess;
@@ -36,26 +57,252 @@ abstract public class CustomASTNode {
 	    NotEqual
 	}
 	
-	String name;
-	String type;
+	final String name;
+	final String type;
+	
+	// Caches, filled on first use
+	private String text = null;
+	private Summary summary = null;
+	
+	// Key of the node in the intern table (null if not interned)
+	private Shape shape = null;
+	
+	private static final Map<Shape,WeakReference<CustomASTNode>> interned = new WeakHashMap<Shape,WeakReference<CustomASTNode>>();
 	
-	public CustomASTNode(String n){
+	public CustomASTNode(String n, String t){
 		name = n;
+		type = t;
+	}
+	
+	// Receives the printed form of a node, piece by piece
+	interface Printer {
+		void text(String s);
+		void node(CustomASTNode n);
+	}
+	
+	// Printed form of the node, with its sub-terms in place
+	abstract void print(Printer p);
+	
+	// Sub-terms and other fields of the node besides its name and type
+	abstract List<Object> fields();
+	
+	// Hash and length of the printed form, and names of all nodes in the term
+	private static class Summary {
+		final int hash;
+		final long length;
+		final Set<String> names;
+		
+		Summary(int hash, long length, Set<String> names){
+			this.hash = hash;
+			this.length = length;
+			this.names = names;
+		}
+	}
+	
+	// Folds the printed form into String.hashCode() without building the string
+	private static class HashPrinter implements Printer {
+		int hash = 0;
+		long length = 0;
+		
+		public void text(String s){
+			hash = hash * pow31(s.length()) + s.hashCode();
+			length += s.length();
+		}
+		
+		public void node(CustomASTNode n){
+			Summary summary = n.summary();
+			hash = hash * pow31(summary.length) + summary.hash;
+			length += summary.length;
+		}
+	}
+	
+	private static int pow31(long n){
+		int result = 1;
+		int base = 31;
+		while(n > 0){
+			if((n & 1) == 1)
+				result *= base;
+			base *= base;
+			n >>= 1;
+		}
+		return result;
+	}
+	
+	private Summary summary(){
+		Summary s = summary;
+		if(s == null){
+			HashPrinter printer = new HashPrinter();
+			print(printer);
+			
+			Set<String> names = null;
+			for(Object field : fields())
+				if(field instanceof CustomASTNode)
+					names = union(names, ((CustomASTNode) field).summary().names);
+			names = union(names, Collections.singleton(name));
+			
+			s = new Summary(printer.hash, printer.length, names);
+			summary = s;
+		}
+		return s;
+	}
+	
+	// Sets are shared between nodes where possible
+	private static Set<String> union(Set<String> a, Set<String> b){
+		if(a == null || b.containsAll(a))
+			return b;
+		if(a.containsAll(b))
+			return a;
+		Set<String> res = new HashSet<String>(a);
+		res.addAll(b);
+		return Collections.unmodifiableSet(res);
+	}
+	
+	// Whether any node of the term has the given name. Cheap check before
+	// searching or rewriting a sub-term.
+	boolean mentions(String exp){
+		return summary().names.contains(exp);
+	}
+	
+	@Override
+	public final String toString(){
+		String s = text;
+		if(s == null){
+			final StringBuilder out = new StringBuilder();
+			print(new Printer(){
+				public void text(String str){
+					out.append(str);
+				}
+				
+				public void node(CustomASTNode n){
+					if(n.text != null)
+						out.append(n.text);
+					else
+						n.print(this);
+				}
+			});
+			s = out.toString();
+			text = s;
+		}
+		return s;
+	}
+	
+	@Override
+	public int hashCode(){
+		return summary().hash;
 	}
 	
 	@Override
 	public boolean equals(Object o){
+		if(o instanceof CustomASTNode)
+			return sameText(this, (CustomASTNode) o);
 		return this.toString().equals(o.toString());
 	}
 	
+	// Whether two nodes print the same. Only prints them if their hashes match.
+	public static boolean sameText(CustomASTNode a, CustomASTNode b){
+		if(a == b)
+			return true;
+		if(a.summary().hash != b.summary().hash || a.summary().length != b.summary().length)
+			return false;
+		return a.toString().equals(b.toString());
+	}
+	
+	// Return the interned node with the same fields as the given one, interning
+	// the given node if there is none
+	@SuppressWarnings("unchecked")
+	public static <T extends CustomASTNode> T intern(T node){
+		if(node == null)
+			return null;
+		
+		synchronized(interned){
+			// Private fields are not accessible through T
+			CustomASTNode n = node;
+			if(n.shape != null)
+				return node;
+			
+			Shape shape = new Shape(node);
+			WeakReference<CustomASTNode> ref = interned.get(shape);
+			CustomASTNode existing = (ref == null ? null : ref.get());
+			if(existing != null)
+				return (T) existing;
+			
+			n.shape = shape;
+			interned.put(shape, new WeakReference<CustomASTNode>(node));
+			return node;
+		}
+	}
+	
+	// Identity of a node for interning: its class, name, type and fields, with
+	// sub-terms compared by reference. The node keeps its shape alive, so the
+	// table entry goes away with the node.
+	private static class Shape {
+		final CustomASTNode node;
+		final int hash;
+		
+		Shape(CustomASTNode node){
+			this.node = node;
+			int h = node.getClass().hashCode();
+			h = 31 * h + Objects.hashCode(node.name);
+			h = 31 * h + Objects.hashCode(node.type);
+			for(Object field : node.fields())
+				h = 31 * h + (field instanceof CustomASTNode ? System.identityHashCode(field) : Objects.hashCode(field));
+			hash = h;
+		}
+		
+		@Override
+		public int hashCode(){
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object o){
+			if(!(o instanceof Shape))
+				return false;
+			CustomASTNode other = ((Shape) o).node;
+			if(other.getClass() != node.getClass() || !Objects.equals(other.name, node.name) || !Objects.equals(other.type, node.type))
+				return false;
+			
+			List<Object> fields = node.fields();
+			List<Object> otherFields = other.fields();
+			if(fields.size() != otherFields.size())
+				return false;
+			for(int i=0; i<fields.size(); i++){
+				Object field = fields.get(i);
+				Object otherField = otherFields.get(i);
+				if(field instanceof CustomASTNode ? field != otherField : !Objects.equals(field, otherField))
+					return false;
+			}
+			return true;
+		}
+	}
+	
 	abstract public boolean contains(String exp);
 	
-	abstract public CustomASTNode replaceAll(String lhs, CustomASTNode rhs);
+	// Substitute rhs for every node named lhs
+	public final CustomASTNode replaceAll(String lhs, CustomASTNode rhs){
+		return replaceAll(lhs, rhs, new IdentityHashMap<CustomASTNode,CustomASTNode>());
+	}
+	
+	// Sub-terms shared in the DAG are rewritten once per substitution
+	final CustomASTNode replaceAll(String lhs, CustomASTNode rhs, Map<CustomASTNode,CustomASTNode> done){
+		if(!mentions(lhs))
+			return this;
+		CustomASTNode res = done.get(this);
+		if(res == null){
+			res = substitute(lhs, rhs, done);
+			done.put(this, res);
+		}
+		return res;
+	}
+	
+	abstract CustomASTNode substitute(String lhs, CustomASTNode rhs, Map<CustomASTNode,CustomASTNode> done);
 	
 	abstract public void getIndexes(String arrname, Map<String, List<CustomASTNode>> indexes);
 	
-	public int convertConstToIDs(Map<String,String> constMapping, int constID){
-		return constID;
+	// Replace integer constants compared in relational operators with broadcast
+	// variables, adding new constants to the mapping
+	public CustomASTNode convertConstToIDs(Map<String,String> constMapping){
+		return this;
 	}
 	
 	public static CustomASTNode convertToAST(Expr exp){
@@ -105,7 +352,7 @@ abstract public class CustomASTNode {
 			}
 		}
 		else if(exp instanceof Field){
-			CustomASTNode container = new IdentifierNode(((Field) exp).target().toString(),casper.Util.getSketchTypeFromRaw(((Field) exp).target().type().toString()));
+			CustomASTNode container = intern(new IdentifierNode(((Field) exp).target().toString(),casper.Util.getSketchTypeFromRaw(((Field) exp).target().type().toString())));
 			node = new FieldNode(exp.toString(), casper.Util.getSketchTypeFromRaw(exp.type().toString()), container);
 		}
 		else if(exp instanceof ArrayAccess){
@@ -172,12 +419,12 @@ abstract public class CustomASTNode {
 			System.out.println("Unrecognized AST Node: " + exp.toString());
 		}
 		
-		return node;
+		return intern(node);
 	}
 	
 	abstract public boolean containsArrayAccess();
 	
-	abstract public void replaceIndexesWith(String k);
+	abstract public CustomASTNode replaceIndexesWith(String k);
 	
 	abstract public CustomASTNode fixArrays();
 	
@@ -27,6 +27,6 @@ public class Expression{
 	
 	@Override
 	public int hashCode(){
-		return 0;
+		return 31 * exp.hashCode() + expType.hashCode();
 	}
 }
\ No newline at end of file
@@ -1,35 +1,45 @@
 package casper.types;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 public class FieldNode extends CustomASTNode{
 
-	public CustomASTNode container;
+	public final CustomASTNode container;
 	
 	public FieldNode(String n, String t, CustomASTNode c) {
-		super(n);
+		super(n, t);
 		container = c;
-		type = t;
 	}
 
 	@Override
-	public CustomASTNode replaceAll(String lhs, CustomASTNode rhs){
+	CustomASTNode substitute(String lhs, CustomASTNode rhs, Map<CustomASTNode,CustomASTNode> done){
 		if(name.equals(lhs)){
 			return rhs;
 		}
-		CustomASTNode newContainer = container.replaceAll(lhs,rhs);
+		CustomASTNode newContainer = container.replaceAll(lhs, rhs, done);
+		if(newContainer == container)
+			return this;
 		String[] components = name.split("\\.");
 		String newName = newContainer.toString() + "." + components[components.length-1];
-		return new FieldNode(newName,type,newContainer);
+		return intern(new FieldNode(newName,type,newContainer));
 	}
 	
-	public String toString(){
-		return name;
+	@Override
+	void print(Printer p){
+		p.text(name);
+	}
+	
+	@Override
+	List<Object> fields(){
+		return Collections.<Object>singletonList(container);
 	}
 
 	@Override
 	public boolean contains(String exp) {
+		if(!mentions(exp))
+			return false;
 		return name.equals(exp) || container.contains(exp);
 	}
 
@@ -40,13 +50,18 @@ public class FieldNode extends CustomASTNode{
 
 	@Override
 	public CustomASTNode fixArrays() {
-		container = container.fixArrays();
-		return this;
+		CustomASTNode newContainer = container.fixArrays();
+		if(newContainer == container)
+			return this;
+		return intern(new FieldNode(name,type,newContainer));
 	}
 
 	@Override
-	public void replaceIndexesWith(String k) {
-		container.replaceIndexesWith(k);
+	public CustomASTNode replaceIndexesWith(String k) {
+		CustomASTNode newContainer = container.replaceIndexesWith(k);
+		if(newContainer == container)
+			return this;
+		return intern(new FieldNode(name,type,newContainer));
 	}
 
 	@Override
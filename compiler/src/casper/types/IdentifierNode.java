@@ -1,22 +1,21 @@
 package casper.types;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 public class IdentifierNode extends CustomASTNode {
 
 	public IdentifierNode(String n, String t) {
-		super(n);
-		type = t;
+		super(n, t);
 	}
 
 	@Override
-	public CustomASTNode replaceAll(String lhs, CustomASTNode rhs){
+	CustomASTNode substitute(String lhs, CustomASTNode rhs, Map<CustomASTNode,CustomASTNode> done){
 		if(name.equals(lhs)){
 			return rhs;
 		}
-		// Return clone of self
-		return new IdentifierNode(name, type);
+		return this;
 	}
 	
 	public boolean equals(Object o){
@@ -26,8 +25,19 @@ public class IdentifierNode extends CustomASTNode {
 		return false;
 	}
 	
-	public String toString(){
-		return name;
+	@Override
+	public int hashCode(){
+		return name.hashCode();
+	}
+	
+	@Override
+	void print(Printer p){
+		p.text(name);
+	}
+	
+	@Override
+	List<Object> fields(){
+		return Collections.emptyList();
 	}
 
 	@Override
@@ -45,8 +55,8 @@ public class IdentifierNode extends CustomASTNode {
 	}
 	
 	@Override
-	public void replaceIndexesWith(String k) {
-		return;
+	public CustomASTNode replaceIndexesWith(String k) {
+		return this;
 	}
 
 	@Override
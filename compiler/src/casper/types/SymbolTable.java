@@ -0,0 +1,43 @@
+/*
+ * Symbol table shared by the analysis passes. Every variable name and field
+ * path is interned to a small integer id, handed out densely in the order the
+ * names are first seen. Variables are hashed and compared by id, and sets of
+ * variables are keyed on the ids (see VariableSet).
+ *
+ * Ids are never reset or reused, so a Variable stays valid for the whole
+ * process, including across compiles in daemon mode. The table grows with the
+ * distinct names seen, and sets do not grow with it.
+ */
+
+package casper.types;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class SymbolTable {
+	
+	private static final Map<String,Integer> ids = new HashMap<String,Integer>();
+	private static final List<String> names = new ArrayList<String>();
+	
+	// Id of a name, interning it if it is new
+	public static synchronized int id(String name){
+		Integer id = ids.get(name);
+		if(id == null){
+			id = names.size();
+			ids.put(name, id);
+			names.add(name);
+		}
+		return id;
+	}
+	
+	public static synchronized String name(int id){
+		return names.get(id);
+	}
+	
+	// Number of ids handed out so far
+	public static synchronized int size(){
+		return names.size();
+	}
+}
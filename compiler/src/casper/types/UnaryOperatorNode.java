@@ -1,31 +1,45 @@
 package casper.types;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
-import polyglot.ast.Expr;
-
 public class UnaryOperatorNode extends CustomASTNode{
 
-	CustomASTNode operand;
+	final CustomASTNode operand;
 	
 	public UnaryOperatorNode(String n, CustomASTNode o) {
-		super(n);
+		super(n, null);
 		operand = o;
 	}
+	
+	private CustomASTNode with(CustomASTNode newOperand){
+		if(newOperand == operand)
+			return this;
+		return intern(new UnaryOperatorNode(name,newOperand));
+	}
 
 	@Override
-	public CustomASTNode replaceAll(String lhs, CustomASTNode rhs){
-		CustomASTNode newOperand = operand.replaceAll(lhs, rhs);
-		return new UnaryOperatorNode(name,newOperand);
+	CustomASTNode substitute(String lhs, CustomASTNode rhs, Map<CustomASTNode,CustomASTNode> done){
+		return with(operand.replaceAll(lhs, rhs, done));
 	}
 	
-	public String toString(){
-		return "(" + name + operand.toString() + ")";
+	@Override
+	void print(Printer p){
+		p.text("(" + name);
+		p.node(operand);
+		p.text(")");
+	}
+	
+	@Override
+	List<Object> fields(){
+		return Collections.<Object>singletonList(operand);
 	}
 
 	@Override
 	public boolean contains(String exp) {
+		if(!mentions(exp))
+			return false;
 		return name.equals(exp) || operand.contains(exp);
 	}
 
@@ -36,13 +50,12 @@ public class UnaryOperatorNode extends CustomASTNode{
 
 	@Override
 	public CustomASTNode fixArrays() {
-		operand = operand.fixArrays();
-		return this;
+		return with(operand.fixArrays());
 	}
 
 	@Override
-	public void replaceIndexesWith(String k) {
-		operand.replaceIndexesWith(k);
+	public CustomASTNode replaceIndexesWith(String k) {
+		return with(operand.replaceIndexesWith(k));
 	}
 
 	@Override
@@ -5,12 +5,15 @@ import casper.Configuration;
 //Custom class to represent a variable
 public class Variable{
 	public String varNameOrig;
-	public String varName;
+	public final String varName;
 	public String varType;
 	public String containerType;
 	public int category;
 	public boolean bitVec = false;
 	
+	// Symbol table id of the name. Variables with the same name have the same id.
+	public final int id;
+	
 	public static final int VAR = 0;
 	public static final int FIELD_ACCESS = 1;
 	public static final int ARRAY_ACCESS = 2;
@@ -22,6 +25,7 @@ public class Variable{
 		varType = t;
 		containerType = c;
 		category = cat;
+		id = SymbolTable.id(varName);
 	}
 	
 	public String translateToSketchType(String templateType) {
@@ -257,7 +261,7 @@ public class Variable{
 	public boolean equals(Object obj){
 		if(obj != null && obj instanceof Variable){
 			Variable inp = (Variable)obj;
-			return this.varName.equals(inp.varName);
+			return this.id == inp.id;
 		}
 		
 		return false;
@@ -265,7 +269,7 @@ public class Variable{
 	
 	@Override
 	public int hashCode(){
-		return 0;
+		return id;
 	}
 	
 }
\ No newline at end of file
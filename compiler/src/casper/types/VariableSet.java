@@ -0,0 +1,132 @@
+/*
+ * A set of variables keyed on their symbol table ids. The elements are kept
+ * in an array sorted by id and found by binary search, so a set takes space
+ * in its own size rather than in the number of names seen, and is iterated
+ * in id order, i.e. in the order the names were first seen.
+ *
+ * Like a HashSet, the set keeps the first instance added for a name; adding
+ * an equal variable again leaves the set unchanged.
+ */
+
+package casper.types;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+public class VariableSet extends AbstractSet<Variable> {
+	
+	private int[] ids = new int[0];
+	private Variable[] elements = new Variable[0];
+	private int size = 0;
+	
+	public VariableSet(){
+	}
+	
+	public VariableSet(Collection<? extends Variable> vars){
+		addAll(vars);
+	}
+	
+	@Override
+	public boolean add(Variable var){
+		int index = Arrays.binarySearch(ids, 0, size, var.id);
+		if(index >= 0)
+			return false;
+		index = -index - 1;
+		if(size == elements.length){
+			int capacity = Math.max(4, 2 * size);
+			ids = Arrays.copyOf(ids, capacity);
+			elements = Arrays.copyOf(elements, capacity);
+		}
+		System.arraycopy(ids, index, ids, index + 1, size - index);
+		System.arraycopy(elements, index, elements, index + 1, size - index);
+		ids[index] = var.id;
+		elements[index] = var;
+		size++;
+		return true;
+	}
+	
+	@Override
+	public boolean contains(Object o){
+		return o instanceof Variable && Arrays.binarySearch(ids, 0, size, ((Variable) o).id) >= 0;
+	}
+	
+	@Override
+	public boolean remove(Object o){
+		if(!(o instanceof Variable))
+			return false;
+		int index = Arrays.binarySearch(ids, 0, size, ((Variable) o).id);
+		if(index < 0)
+			return false;
+		removeAt(index);
+		return true;
+	}
+	
+	private void removeAt(int index){
+		System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+		System.arraycopy(elements, index + 1, elements, index, size - index - 1);
+		size--;
+		elements[size] = null;
+	}
+	
+	@Override
+	public boolean containsAll(Collection<?> c){
+		if(c instanceof VariableSet){
+			// Both sorted by id: one walk over the two
+			VariableSet other = (VariableSet) c;
+			int i = 0;
+			for(int j=0; j<other.size; j++){
+				while(i < size && ids[i] < other.ids[j])
+					i++;
+				if(i == size || ids[i] != other.ids[j])
+					return false;
+			}
+			return true;
+		}
+		return super.containsAll(c);
+	}
+	
+	@Override
+	public void clear(){
+		Arrays.fill(elements, 0, size, null);
+		size = 0;
+	}
+	
+	@Override
+	public int size(){
+		return size;
+	}
+	
+	// Number of elements the set has room for without growing
+	int capacity(){
+		return elements.length;
+	}
+	
+	@Override
+	public Iterator<Variable> iterator(){
+		return new Iterator<Variable>(){
+			int next = 0;
+			boolean removable = false;
+			
+			public boolean hasNext(){
+				return next < size;
+			}
+			
+			public Variable next(){
+				if(next >= size)
+					throw new NoSuchElementException();
+				removable = true;
+				return elements[next++];
+			}
+			
+			public void remove(){
+				if(!removable)
+					throw new IllegalStateException();
+				removeAt(--next);
+				removable = false;
+			}
+		};
+	}
+}
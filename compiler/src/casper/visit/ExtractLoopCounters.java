@@ -5,7 +5,6 @@
 package casper.visit;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -16,6 +15,7 @@ import casper.extension.MyWhileExt;
 import casper.types.CustomASTNode;
 import casper.types.IdentifierNode;
 import casper.types.Variable;
+import casper.types.VariableSet;
 import polyglot.ast.ArrayAccess;
 import polyglot.ast.Block;
 import polyglot.ast.Call;
@@ -119,7 +119,7 @@ public class ExtractLoopCounters extends NodeVisitor {
 				Stmt body = ((While) n).body();
 				
 				// Filter out loop counters
-				Set<Variable> lcCopy = new HashSet<Variable>();
+				Set<Variable> lcCopy = new VariableSet();
 				lcCopy.addAll(ext.loopCounters);
 				for(Variable var : lcCopy){
 					CustomASTNode lcExp = new IdentifierNode(var.varNameOrig,var.getSketchType());
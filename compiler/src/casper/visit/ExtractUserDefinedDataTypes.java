@@ -8,19 +8,19 @@
 
 package casper.visit;
 
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
 
+import casper.WorkDirectory;
 import casper.ast.JavaExt;
 import casper.extension.MyWhileExt;
 import casper.types.Variable;
+import casper.types.VariableSet;
 import polyglot.ast.ClassDecl;
 import polyglot.ast.FieldDecl;
 import polyglot.ast.Node;
@@ -65,7 +65,7 @@ public class ExtractUserDefinedDataTypes extends NodeVisitor {
 			this.classes.push(((ClassDecl) n).id().toString());
 			
 			// Create empty field set
-			Set<Variable> fieldSet = new HashSet<Variable>();
+			Set<Variable> fieldSet = new VariableSet();
 			this.fields.put(this.classes.peek(), fieldSet);
 		}
 		else if(n instanceof FieldDecl){
@@ -94,7 +94,7 @@ public class ExtractUserDefinedDataTypes extends NodeVisitor {
 				}
 				
 				// Generate sketch class file
-				PrintWriter writer = new PrintWriter("output/"+name+".sk", "UTF-8");
+				PrintWriter writer = new PrintWriter(WorkDirectory.root()+"/"+name+".sk", "UTF-8");
 
 				// Generate class with field variables
 				String text = "struct " + name + "{\n\t";
@@ -106,7 +106,7 @@ public class ExtractUserDefinedDataTypes extends NodeVisitor {
 				// Write to file
 				writer.print(text);
 				writer.close();
-			} catch (FileNotFoundException | UnsupportedEncodingException e) {
+			} catch (IOException e) {
 				e.printStackTrace();
 			}
 		}
@@ -116,10 +116,15 @@ public class ExtractUserDefinedDataTypes extends NodeVisitor {
 	
 	@Override
 	public void finish(){
-		// Save data-types in all interesting loop's extensions
+		// Save data-types in all interesting loop's extensions. Every loop gets its own
+		// copy, since code generation adds the loop's CasperDataRecord type to them and
+		// loops may be synthesized concurrently.
 		for(MyWhileExt ext : extensions){
-			ext.globalDataTypes = this.dataTypes;
-			ext.globalDataTypesFields = this.fields;
+			ext.globalDataTypes = new ArrayList<String>(this.dataTypes);
+			ext.globalDataTypesFields = new HashMap<String,Set<Variable>>();
+			for(Map.Entry<String,Set<Variable>> entry : this.fields.entrySet()){
+				ext.globalDataTypesFields.put(entry.getKey(), new VariableSet(entry.getValue()));
+			}
 		}
 		
 		if(debug){
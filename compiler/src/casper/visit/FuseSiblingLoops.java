@@ -0,0 +1,179 @@
+/*
+ * This class implements a single compiler pass. The pass is executed
+ * after the solutions to generate code from have been selected. It looks
+ * for retargeted loops in the same block that read the same data set,
+ * with no statement writing the data set in between, so that the data
+ * is not scanned and shipped once per loop.
+ *
+ * A loop that does not depend on the loops before it is fused into the
+ * earliest of them it can join: one aggregation computes the outputs of
+ * all of them. This is done for loops that reduce into scalars under
+ * constant keys. Loops of the group that keep their own Spark job share
+ * one cached RDD of the data set.
+ */
+
+package casper.visit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import casper.Configuration;
+import casper.ast.JavaExt;
+import casper.extension.MyWhileExt;
+import casper.types.Variable;
+import polyglot.ast.Block;
+import polyglot.ast.Field;
+import polyglot.ast.Local;
+import polyglot.ast.LocalDecl;
+import polyglot.ast.Node;
+import polyglot.ast.Stmt;
+import polyglot.ast.While;
+import polyglot.ext.jl5.ast.ExtendedFor;
+import polyglot.visit.NodeVisitor;
+
+public class FuseSiblingLoops extends NodeVisitor{
+	boolean debug;
+	int groups;
+
+	public FuseSiblingLoops(){
+		this.debug = false;
+		this.groups = 0;
+	}
+
+	@Override
+	public Node leave(Node old, Node n, NodeVisitor v){
+		if(Configuration.fuseLoops && n instanceof Block){
+			fuse(((Block) n).statements());
+		}
+
+		return n;
+	}
+
+	private void fuse(List<Stmt> stmts) {
+		// Loops over the current data set
+		List<MyWhileExt> group = new ArrayList<MyWhileExt>();
+		String dataSet = null;
+
+		// Loop later loops are fused into, the outputs its aggregation computes, and the
+		// variables used by the statements that follow it
+		MyWhileExt leader = null;
+		Set<String> computed = new HashSet<String>();
+		Set<String> between = new HashSet<String>();
+
+		for(Stmt stmt : stmts){
+			MyWhileExt ext = retargetedLoop(stmt);
+			if(ext == null){
+				Set<String> used = mentions(stmt);
+				if(dataSet != null && used.contains(dataSet)){
+					share(group);
+					group = new ArrayList<MyWhileExt>();
+					dataSet = null;
+					leader = null;
+				}
+				between.addAll(used);
+				continue;
+			}
+
+			if(!ext.inputDataSet.varName.equals(dataSet)){
+				share(group);
+				group = new ArrayList<MyWhileExt>();
+				dataSet = ext.inputDataSet.varName;
+				leader = null;
+			}
+			group.add(ext);
+
+			// The counters of the loop are initialized just before it, but the aggregation
+			// reads the elements instead
+			Set<String> reads = names(ext.inputVars);
+			reads.removeAll(names(ext.loopCounters));
+			Set<String> writes = names(ext.outputVars);
+			if(leader != null && GenerateSparkCode.constantKeyType(ext) != null
+					&& ext.inputDataSet.getRDDType().equals(leader.inputDataSet.getRDDType())
+					&& Collections.disjoint(reads, computed) && Collections.disjoint(writes, computed)
+					&& Collections.disjoint(reads, between) && Collections.disjoint(writes, between)){
+				leader.fusedLoops.add(ext);
+				ext.fused = true;
+				computed.addAll(writes);
+
+				if(debug)
+					System.err.println("Fused loop over " + dataSet + " computing " + writes + " into the loop computing " + names(leader.outputVars));
+			}
+			else{
+				leader = (GenerateSparkCode.constantKeyType(ext) != null ? ext : null);
+				computed = new HashSet<String>(writes);
+				between = new HashSet<String>();
+			}
+		}
+		share(group);
+	}
+
+	// Loops of a group that still run as separate jobs share one cached RDD
+	private void share(List<MyWhileExt> group) {
+		List<MyWhileExt> jobs = new ArrayList<MyWhileExt>();
+		for(MyWhileExt ext : group){
+			if(!ext.fused)
+				jobs.add(ext);
+		}
+		if(jobs.size() < 2)
+			return;
+
+		String rddName = "rdd_shared_" + groups++;
+		for(MyWhileExt ext : jobs){
+			ext.sharedRDD = rddName;
+		}
+		jobs.get(0).createsSharedRDD = true;
+
+		if(debug)
+			System.err.println(jobs.size() + " loops over " + jobs.get(0).inputDataSet.varName + " share " + rddName);
+	}
+
+	// Extension of a loop that is translated to Spark, null if the statement is not one
+	private MyWhileExt retargetedLoop(Stmt stmt) {
+		if(!(stmt instanceof While) && !(stmt instanceof ExtendedFor))
+			return null;
+
+		MyWhileExt ext = (MyWhileExt) JavaExt.ext(stmt);
+		if(!ext.interesting || ext.inputDataSet == null || ext.mainLoopCounter == null || ext.outputVars.isEmpty())
+			return null;
+		for(Variable var : ext.outputVars){
+			if(!ext.generateCode.get(var.getReduceType()))
+				return null;
+		}
+		return ext;
+	}
+
+	private Set<String> names(Set<Variable> vars) {
+		Set<String> names = new HashSet<String>();
+		for(Variable var : vars){
+			names.add(var.varName);
+		}
+		return names;
+	}
+
+	// Names of the variables and fields a statement reads or writes
+	private Set<String> mentions(Stmt stmt) {
+		final Set<String> names = new HashSet<String>();
+		stmt.visit(new NodeVisitor(){
+			@Override
+			public Node leave(Node old, Node n, NodeVisitor v){
+				if(n instanceof Local)
+					names.add(((Local) n).name());
+				else if(n instanceof Field)
+					names.add(((Field) n).name());
+				else if(n instanceof LocalDecl)
+					names.add(((LocalDecl) n).name());
+				return n;
+			}
+		});
+		return names;
+	}
+
+	@Override
+	public void finish(){
+		if(debug)
+			System.err.println("\n************* Finished loop fusion complier pass *************");
+	}
+}
@@ -7,77 +7,99 @@
 
 package casper.visit;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import casper.Bounds;
+import casper.Budget;
+import casper.Checkpoint;
 import casper.Configuration;
 import casper.DafnyCodeGenerator;
+import casper.Falsifier;
+import casper.GrammarKnowledge;
+import casper.ProcessSupervisor;
 import casper.SketchCodeGenerator;
 import casper.SketchParser;
+import casper.SketchParser.KvPair;
+import casper.SynthesisCache;
+import casper.Telemetry;
+import casper.WorkDirectory;
 import casper.ast.JavaExt;
 import casper.extension.MyWhileExt;
+import casper.types.CustomASTNode;
+import casper.types.MRStage;
 import casper.types.Variable;
+import casper.types.VariableSet;
 import polyglot.ast.Node;
 import polyglot.ast.NodeFactory;
 import polyglot.ast.While;
+import polyglot.frontend.Job;
 import polyglot.ext.jl5.ast.ExtendedFor;
 import polyglot.visit.NodeVisitor;
 
 public class GenerateScaffold extends NodeVisitor{
+	// Exit code of dafny when a proof obligation fails
+	static final int DAFNY_VERIFICATION_ERROR = 4;
+	
 	boolean debug;
 	boolean log;
 	
 	int id;
-	boolean arrayOutputs;
 	
-	PrintWriter debugLog;
+	// Path of the source file. It keys the work directories, checkpoints and telemetry of its fragments.
+	String sourcePath;
+	
 	NodeFactory nf;
 	
-	List<String> candidateKeyTypes;
-	int keyIndex;
+	Map<String,Boolean> solFound;
+	
+	// Interesting loops found during the traversal. They are searched in finish().
+	List<FragmentSearch> fragments;
 	
-	SearchConfiguration conf;
+	// Cores each sketch run asks for. Fragments searched concurrently share the cores.
+	int solverCores;
 	
-	Map<String,Boolean> solFound;
+	// Worker pool used to run sketch jobs in portfolio mode
+	ExecutorService portfolioPool;
+	
+	// Runs dafny while sketch searches for the next candidate
+	ExecutorService verifierPool;
 	
 	@SuppressWarnings("deprecation")
-	public GenerateScaffold(NodeFactory nf) throws IOException{
+	public GenerateScaffold(Job job, NodeFactory nf) throws IOException{
 		this.debug = false;
 		this.log = false;
 		
 		this.nf = nf;
+		this.sourcePath = job.source().path();
 		
 		this.id = 0;
-		this.arrayOutputs = false;
 		
-		this.candidateKeyTypes = new ArrayList<String>();
-		this.keyIndex = 0;
-		
-		this.conf = new SearchConfiguration();
-		
-		this.conf.tuplesAdded = false;
-		this.conf.simpleEmits = false;
-		this.conf.opsAdded = false;
-		
-		this.conf.stageCount = 1;
-		this.conf.emitCount = 1;
-		this.conf.keyTupleSize = 1;
-		this.conf.valuesTupleSize = 2;
-		this.conf.recursionDepth = 2;
+		this.fragments = new ArrayList<FragmentSearch>();
+		this.solverCores = 1;
 	}
 	
-	public class SearchConfiguration{
+	public static class SearchConfiguration implements Serializable {
+		private static final long serialVersionUID = 1L;
+		
 		public boolean tuplesAdded;
 		public boolean simpleEmits;
 		public boolean opsAdded;
@@ -89,6 +111,20 @@ public class GenerateScaffold extends NodeVisitor{
 		public int recursionDepth;
 		
 		public String keyType;
+		
+		public SearchConfiguration(){}
+		
+		public SearchConfiguration(SearchConfiguration other){
+			this.tuplesAdded = other.tuplesAdded;
+			this.simpleEmits = other.simpleEmits;
+			this.opsAdded = other.opsAdded;
+			this.stageCount = other.stageCount;
+			this.keyTupleSize = other.keyTupleSize;
+			this.valuesTupleSize = other.valuesTupleSize;
+			this.emitCount = other.emitCount;
+			this.recursionDepth = other.recursionDepth;
+			this.keyType = other.keyType;
+		}
 	}
 	
 	public NodeVisitor enter(Node parent, Node n){
@@ -98,90 +134,226 @@ public class GenerateScaffold extends NodeVisitor{
 			MyWhileExt ext = (MyWhileExt) JavaExt.ext(n);
 			
 			if(ext.interesting){
-				try {
-					if(debug){
-						System.err.println("Attempting to translate code fragment:-");
-						System.err.println("");
-						
-						this.debugLog = new PrintWriter("debug.txt", "UTF-8");
-						this.debugLog.print("Attempting to translate code fragment (Fragment ID: " + id + ")\n");
+				this.fragments.add(new FragmentSearch(n, ext, id));
+				
+				// Increment id counter
+				this.id++;
+			}
+		}		
+		
+		return this;
+	}
+	
+	// The synthesis search for one code fragment. Every fragment keeps its own grammar
+	// configuration and key types, so fragments can be searched concurrently.
+	public class FragmentSearch implements Callable<Void> {
+		Node n;
+		MyWhileExt ext;
+		int id;
+		boolean arrayOutputs;
+		
+		PrintWriter debugLog;
+		
+		List<String> candidateKeyTypes;
+		int keyIndex;
+		
+		// Grammars that solved similar fragments, searched before the grammar ladder.
+		// predictionIndex is the one being searched, predictions.size() once on the ladder.
+		Map<String,String> features;
+		List<SearchConfiguration> predictions;
+		int predictionIndex;
+		SearchConfiguration ladderStart;
+		
+		SearchConfiguration conf;
+		
+		// Sketch bounds of this fragment, raised when its candidates fail on larger inputs
+		Bounds bounds;
+		
+		Telemetry.Trace trace;
+		
+		int candidateCount;
+		
+		// Number of candidates sketch has found. Fragments that found more candidates
+		// are considered closer to a solution and get cores first.
+		int candidatesFound;
+		
+		// Time by which the search of this fragment has to stop
+		long deadline;
+		
+		// Search state journaled after every round
+		Checkpoint checkpoint;
+		String checkpointFile;
+		
+		public FragmentSearch(Node n, MyWhileExt ext, int id) {
+			this.n = n;
+			this.ext = ext;
+			this.id = id;
+			this.arrayOutputs = false;
+			
+			this.candidateKeyTypes = new ArrayList<String>();
+			this.keyIndex = 0;
+			
+			this.conf = new SearchConfiguration();
+			
+			this.conf.tuplesAdded = false;
+			this.conf.simpleEmits = false;
+			this.conf.opsAdded = false;
+			
+			this.conf.stageCount = 1;
+			this.conf.emitCount = 1;
+			this.conf.keyTupleSize = 1;
+			this.conf.valuesTupleSize = 2;
+			this.conf.recursionDepth = 2;
+		}
+		
+		public Void call() {
+			try {
+				if(debug){
+					System.err.println("Attempting to translate code fragment:-");
+					System.err.println("");
+					
+					this.debugLog = new PrintWriter("debug.txt", "UTF-8");
+					this.debugLog.print("Attempting to translate code fragment (Fragment ID: " + id + ")\n");
+				}
+				else{
+					System.err.println("==================================================================");
+					System.err.println("Attempting to translate code fragment (Fragment ID: " + id + ")\n");
+				}
+				
+				this.deadline = Budget.deadline(System.currentTimeMillis());
+				this.bounds = Bounds.initial();
+				this.trace = Telemetry.trace(sourcePath, id);
+				this.checkpointFile = Checkpoint.file(sourcePath, id);
+				this.checkpoint = Checkpoint.load(checkpointFile, Checkpoint.fingerprint(sourcePath, id));
+				
+				Set<String> handledTypes = new HashSet<String>();
+				
+				for(Variable var : ext.outputVars){
+					String sketchReduceType = casper.Util.reducerType(var.getSketchType());
+					String reduceType = var.getReduceType();
+					
+					// Have we already handled this case?
+					if(handledTypes.contains(reduceType)){
+						continue;
 					}
-					else{
-						System.err.println("==================================================================");
-						System.err.println("Attempting to translate code fragment (Fragment ID: " + id + ")\n");
+					handledTypes.add(reduceType);
+					
+					System.err.println("Output type: " + var.varType + "\n");
+					
+					// Get output variables handled under this type
+					Set<Variable> sketchFilteredOutputVars = new VariableSet();
+					for(Variable v : ext.outputVars){
+						if(v.getReduceType().equals(reduceType)){
+							sketchFilteredOutputVars.add(v);
+						}
+					}
+					
+					// Number of keys to be used
+					for(Variable v : sketchFilteredOutputVars){
+						String type = v.getSketchType();
+						if(type.endsWith("["+Configuration.arraySizeBound+"]")){
+							this.conf.keyTupleSize = 2;
+							this.arrayOutputs = true;
+						}
 					}
 					
-					Set<String> handledTypes = new HashSet<String>();
+					// Key Type options, most plausible first
+					this.candidateKeyTypes = keyTypeOptions(ext, sketchFilteredOutputVars, reduceType);
+					this.keyIndex = 0;
 					
-					for(Variable var : ext.outputVars){
-						String sketchReduceType = casper.Util.reducerType(var.getSketchType());
-						String reduceType = var.getReduceType();
-						
-						// Have we already handled this case?
-						if(handledTypes.contains(reduceType)){
-							continue;
+					// Key Type
+					this.conf.keyType = this.candidateKeyTypes.get(this.keyIndex);
+					
+					// Emit Count
+					this.conf.emitCount = 1;
+					
+					// Search the grammars that solved similar fragments first
+					this.features = GrammarKnowledge.features(ext, sketchFilteredOutputVars, reduceType);
+					this.predictions = GrammarKnowledge.predict(this.features, this.arrayOutputs ? 2 : 1);
+					this.predictionIndex = 0;
+					this.ladderStart = new SearchConfiguration(this.conf);
+					if(!this.predictions.isEmpty()){
+						this.conf = new SearchConfiguration(this.predictions.get(0));
+						this.conf.keyType = this.candidateKeyTypes.get(this.keyIndex);
+						System.err.println("Trying grammars of similar fragments first (" + this.predictions.size() + " found).\n");
+					}
+					
+					if(log){
+						debugLog.print("Output type: " + var.varType + "\n\n");
+						debugLog.print("Simple Emits: "+ this.conf.simpleEmits + "\n");
+						debugLog.print("Tuples: "+ this.conf.tuplesAdded + "\n");
+						debugLog.print("Ops Added: "+ this.conf.opsAdded + "\n");
+						debugLog.print("Emit Count: "+ this.conf.emitCount + "\n");
+						debugLog.print("Key Tuple Size: "+ this.conf.keyTupleSize + "\n");
+						debugLog.print("Val Tuple Size: "+ this.conf.valuesTupleSize + "\n");
+						debugLog.print("Recursion Depth: "+ this.conf.recursionDepth + "\n");
+						debugLog.print("Key type: "+ this.candidateKeyTypes.get(this.keyIndex) + "\n");
+						debugLog.print("Number of solutions so far: "+ext.verifiedMapEmits.size() + "\n");
+						debugLog.print("Time stamp: "+System.currentTimeMillis() + "\n\n\n");
+						debugLog.flush();
+					}
+					
+					// Scratch directory for all files of this fragment and output type
+					String workDir = WorkDirectory.forFragment(sourcePath, id, reduceType);
+					String mainFile = workDir+"/main_"+reduceType+"_"+id;
+					
+					// Continue from where an earlier run stopped
+					Checkpoint.TypeState saved = this.checkpoint.types.get(reduceType);
+					if(saved != null && resume(saved, workDir, mainFile, sketchFilteredOutputVars, sketchReduceType, reduceType)){
+						continue;
+					}
+					
+					// Candidate whose verification is still running
+					Candidate pending = null;
+					
+					while(true){
+						if(debug){
+							System.err.println(ext.blockExprs);
 						}
-						handledTypes.add(reduceType);
 						
-						System.err.println("Output type: " + var.varType + "\n");
+						// Journal the outcome of the previous round
+						saveCheckpoint(reduceType, false, pending);
+						
+						if(Configuration.slow)
+							System.in.read();
 						
-						// Get output variables handled under this type
-						Set<Variable> sketchFilteredOutputVars = new HashSet<Variable>();
-						for(Variable v : ext.outputVars){
-							if(v.getReduceType().equals(reduceType)){
-								sketchFilteredOutputVars.add(v);
+						// Stop as soon as an earlier candidate has been verified
+						if(pending != null && pending.verdict.isDone()){
+							if(verdict(pending) == 0){
+								commitSolution(ext, pending, sketchFilteredOutputVars, reduceType);
+								break;
 							}
+							pending = null;
 						}
 						
-						// Number of keys to be used
-						for(Variable v : sketchFilteredOutputVars){
-							String type = v.getSketchType();
-							if(type.endsWith("["+Configuration.arraySizeBound+"]")){
-								this.conf.keyTupleSize = 2;
-								this.arrayOutputs = true;
+						// Out of time: keep the best solution verified so far. The search is left
+						// unfinished in the checkpoint, so a later run picks it up from here.
+						if(Budget.expired(this.deadline)){
+							System.err.println("Time budget exhausted, stopping the search for this fragment.");
+							if(pending != null && verdict(pending) == 0){
+								commitSolution(ext, pending, sketchFilteredOutputVars, reduceType);
+								break;
+							}
+							saveCheckpoint(reduceType, false, null);
+							reportExhausted(reduceType);
+							if(log){
+								debugLog.close();
 							}
+							break;
 						}
 						
-						// Key Type options
-						this.candidateKeyTypes.add("int");
-						for(Variable v : ext.inputDataCollections){
-							addKeyOptions(ext, v);
+						int synthesizerExitCode;
+						if(Configuration.portfolioSize > 1){
+							/* Search several grammars concurrently */
+							synthesizerExitCode = runPortfolio(workDir, n, sketchFilteredOutputVars, sketchReduceType, reduceType);
 						}
-						for(Variable v : ext.inputVars){
-							addKeyOptions(ext, v);
+						else if(Configuration.grammarBatchSize > 1){
+							/* Search several grammars with one sketch run */
+							synthesizerExitCode = runBatch(workDir, mainFile, n, sketchFilteredOutputVars, sketchReduceType, reduceType);
 						}
-						
-						// Key Type
-						this.conf.keyType = this.candidateKeyTypes.get(this.keyIndex);
-						
-						// Emit Count
-						this.conf.emitCount = 1;
-						
-						if(log){
-							debugLog.print("Output type: " + var.varType + "\n\n");
-							debugLog.print("Simple Emits: "+ this.conf.simpleEmits + "\n");
-							debugLog.print("Tuples: "+ this.conf.tuplesAdded + "\n");
-							debugLog.print("Ops Added: "+ this.conf.opsAdded + "\n");
-							debugLog.print("Emit Count: "+ this.conf.emitCount + "\n");
-							debugLog.print("Key Tuple Size: "+ this.conf.keyTupleSize + "\n");
-							debugLog.print("Val Tuple Size: "+ this.conf.valuesTupleSize + "\n");
-							debugLog.print("Recursion Depth: "+ this.conf.recursionDepth + "\n");
-							debugLog.print("Key type: "+ this.candidateKeyTypes.get(this.keyIndex) + "\n");
-							debugLog.print("Number of solutions so far: "+ext.verifiedMapEmits.size() + "\n");
-							debugLog.print("Time stamp: "+System.currentTimeMillis() + "\n\n\n");
-							debugLog.flush();
-						}
-						
-						while(true){
-							if(debug){
-								System.err.println(ext.blockExprs);
-							}
-							
-							if(Configuration.slow)
-								System.in.read();
-							
+						else{
 							/* Generate main scaffold */
-							SketchCodeGenerator.generateScaffold(id, n, sketchFilteredOutputVars, sketchReduceType, reduceType, this.conf);
+							generateScaffold(workDir, this.conf, sketchFilteredOutputVars, sketchReduceType, reduceType);
 							
 							if(debug){
 								System.err.println(ext.blocks);
@@ -189,522 +361,1058 @@ public class GenerateScaffold extends NodeVisitor{
 							
 							/* Run synthesizer to generate summary */
 							System.err.println("Attempting to synthesize solution...");
-							int synthesizerExitCode = runSynthesizer("output/main_"+reduceType+"_"+id+".sk", ext, sketchReduceType);
+							synthesizerExitCode = runSynthesizer(mainFile+".sk", ext, sketchReduceType);
+						}
+						
+						if(synthesizerExitCode == 0){
+							this.candidatesFound++;
 							
-							if(synthesizerExitCode == 0){
-								/* Run theorem prover to verify summary */
-								SketchParser.parseSolution("output/main_"+reduceType+"_"+id+".txt", sketchFilteredOutputVars, ext, this.conf);
-								
-								DafnyCodeGenerator.generateSummary(id, n, sketchFilteredOutputVars, reduceType, sketchReduceType, this.conf);
+							/* Run theorem prover to verify summary */
+							SketchParser.parseSolution(mainFile+".txt", sketchFilteredOutputVars, ext, this.conf);
+							
+							DafnyCodeGenerator.generateSummary(workDir, id, n, sketchFilteredOutputVars, reduceType, sketchReduceType, this.conf);
+							
+							int CSGverifierExitCode = 0;
+							if(conf.valuesTupleSize == 1 && false)
+								CSGverifierExitCode = verifySummaryCSG(mainFile+"_CSG.dfy", sketchReduceType);
+							
+							if(debug){
+								System.err.println(ext.mapEmits);
+								System.err.println(ext.reduceExps);
+							}
 								
-								int CSGverifierExitCode = 0;
-								if(conf.valuesTupleSize == 1 && false)
-									CSGverifierExitCode = verifySummaryCSG("output/main_"+reduceType+"_"+id+"_CSG.dfy", sketchReduceType);
+							// Try to break the summary on random inputs before spending a dafny run on it
+							Falsifier.Counterexample counterexample = null;
+							if(CSGverifierExitCode == 0)
+								counterexample = Falsifier.findCounterexample(ext, sketchFilteredOutputVars, reduceType, this.conf);
+							this.trace.candidate(this.conf, counterexample != null);
+							
+							if(counterexample != null){
+								System.err.println("Summary failed on random input " + counterexample);
+								raiseBounds(counterexample, sketchFilteredOutputVars, reduceType);
+								blockCandidate(ext, this.trace);
+							}
+							else if(CSGverifierExitCode == 0){
+								// Candidates are verified in the order they were found
+								if(pending != null){
+									if(verdict(pending) == 0){
+										commitSolution(ext, pending, sketchFilteredOutputVars, reduceType);
+										break;
+									}
+									pending = null;
+								}
 								
-								if(debug){
-									System.err.println(ext.mapEmits);
-									System.err.println(ext.reduceExps);
+								if(Configuration.pipelineVerification){
+									// Verify on the verifier thread, and meanwhile block this candidate
+									// so that sketch can already look for the next one. The summary gets a
+									// directory of its own since the next candidate is written to workDir.
+									String candidateDir = WorkDirectory.forAttempt(workDir, "c"+(candidateCount++));
+									WorkDirectory.copyInto(workDir+"/utils.dfy", candidateDir);
+									final Candidate candidate = new Candidate(ext, this.conf, WorkDirectory.copyInto(mainFile+".dfy", candidateDir), WorkDirectory.copyInto(mainFile+".txt", candidateDir));
+									candidate.verdict = getVerifierPool().submit(new Callable<Integer>(){
+										public Integer call() throws Exception {
+											return verifySummary(candidate.summaryFile, sketchReduceType, deadline, trace);
+										}
+									});
+									blockCandidate(ext, this.trace);
+									pending = candidate;
 								}
-									
-								if(CSGverifierExitCode == 0){
-									int VerifierExitCode = verifySummary("output/main_"+reduceType+"_"+id+".dfy", sketchReduceType);
+								else{
+									Candidate candidate = new Candidate(ext, this.conf, mainFile+".dfy", mainFile+".txt");
+									int VerifierExitCode = verifySummary(candidate.summaryFile, sketchReduceType, this.deadline, this.trace);
 									if(VerifierExitCode == 0){
-										ext.verifiedMapEmits.add(ext.mapEmits);
-										ext.verifiedInitExps.add(ext.initExps);
-										ext.verifiedReduceExps.add(ext.reduceExps);
-										ext.verifiedMergeExps.add(ext.mergeExps);
-										ext.verifiedSolKeyTypes.add(this.conf.keyType);
-										ext.verifiedCSG.add(true);
 										ext.blocks.add(new ArrayList<String>());
 										ext.termValuesTemp.clear();
-										ext.outVarCount = sketchFilteredOutputVars.size();
-										
-										if(log){
-											debugLog.print("Solution Mappers: "+ext.mapEmits + "\n");
-											debugLog.print("Solution Reducers: "+ext.reduceExps + "\n");
-											debugLog.print("Time stamp: "+System.currentTimeMillis() + "\n\n");
-											debugLog.flush();
-										}
-										
-										//ext.generateCode.put(reduceType, true);
-										ext.generateCode.put(reduceType, false);
-										System.err.println("\nSearch Complete. Generating Spark Code.");
-										
-										if(this.log) this.debugLog.close();
-										
+										commitSolution(ext, candidate, sketchFilteredOutputVars, reduceType);
 										break;
 									}
 									else{
-										Map<String,String> blockExprsNew = new HashMap<String,String>();
-										for(String key : ext.blockExprs.get(ext.blockExprs.size()-1).keySet()){
-											String prefix = "_term_flag";;
-											String postfix = "";
-											if(key.startsWith("mapExp")){
-												postfix = "_map"+key.substring(6);
-											}
-											else if(key.startsWith("reduceExp")){
-												postfix = "_reduce"+key.substring(9);
-											}
-											for(String s : ext.termValuesTemp.keySet()){
-												Pattern r = Pattern.compile(Pattern.quote(prefix)+"(.*?)"+Pattern.quote(postfix));
-												Matcher m = r.matcher(s);
-												if(m.matches()){
-													if(ext.blockExprs.get(ext.blockExprs.size()-1).get(key).contains(m.group(1))){
-														blockExprsNew.put(s, ext.termValuesTemp.get(s));
-													}
-												}
-											}
-										}
-										ext.blockExprs.get(ext.blockExprs.size()-1).putAll(blockExprsNew);
-										ext.blocks.add(new ArrayList<String>());
-										ext.termValuesTemp.clear();
+										rejected(VerifierExitCode);
+										blockCandidate(ext, this.trace);
 									}
 								}
-								else{
-									// Solution failed. Register terminal values in blockedExprs.
-									Map<String,String> blockExprsNew = new HashMap<String,String>();
-									for(String key : ext.blockExprs.get(ext.blockExprs.size()-1).keySet()){
-										String prefix = "_term_flag";;
-										String postfix = "";
-										if(key.startsWith("mapExp")){
-											postfix = "_map"+key.substring(6);
-										}
-										else if(key.startsWith("reduceExp")){
-											postfix = "_reduce"+key.substring(9);
-										}
-										for(String s : ext.termValuesTemp.keySet()){
-											Pattern r = Pattern.compile(Pattern.quote(prefix)+"(.*?)"+Pattern.quote(postfix));
-											Matcher m = r.matcher(s);
-											if(m.matches()){
-												if(ext.blockExprs.get(ext.blockExprs.size()-1).get(key).contains(m.group(1))){
-													blockExprsNew.put(s, ext.termValuesTemp.get(s));
-												}
-											}
-										}
-									}
-									ext.blockExprs.get(ext.blockExprs.size()-1).putAll(blockExprsNew);
-									ext.blocks.add(new ArrayList<String>());
-									ext.termValuesTemp.clear();
-								}
 							}
-							else if(synthesizerExitCode == 1){
-								if(log){
-									debugLog.print("Output type: " + var.varType + "\n\n");
-									debugLog.print("Simple Emits: "+ this.conf.simpleEmits + "\n");
-									debugLog.print("Tuples: "+ this.conf.tuplesAdded + "\n");
-									debugLog.print("Ops Added: "+ this.conf.opsAdded + "\n");
-									debugLog.print("Emit Count: "+ this.conf.emitCount + "\n");
-									debugLog.print("Key Tuple Size: "+ this.conf.keyTupleSize + "\n");
-									debugLog.print("Val Tuple Size: "+ this.conf.valuesTupleSize + "\n");
-									debugLog.print("Recursion Depth: "+ this.conf.recursionDepth + "\n");
-									debugLog.print("Key type: "+ this.candidateKeyTypes.get(this.keyIndex) + "\n");
-									debugLog.print("Number of solutions so far: "+ext.verifiedMapEmits.size() + "\n");
-									debugLog.print("Time stamp: "+System.currentTimeMillis() + "\n\n\n");
-									debugLog.flush();
-								}
+							else{
+								// Solution failed. Register terminal values in blockedExprs.
+								blockCandidate(ext, this.trace);
 							}
-							else if(synthesizerExitCode == 2){
-								if(ext.verifiedMapEmits.size()==0){
-									System.err.println("Casper failed to synthesize a summary for this code fragment.\nPlease submit your code example at our"
-														+ " GitHub Issues tracker (https://github.com/uwplse/Casper/issues)");
-									ext.generateCode.put(reduceType, false);
-									
-								}
-								else{
-									System.err.println("\nSearch Complete. Generating Spark Code.");
-									ext.generateCode.put(reduceType, true);
-								}
-								if(log){
-									debugLog.close();
-								}
+						}
+						else if(synthesizerExitCode == 1){
+							if(log){
+								debugLog.print("Output type: " + var.varType + "\n\n");
+								debugLog.print("Simple Emits: "+ this.conf.simpleEmits + "\n");
+								debugLog.print("Tuples: "+ this.conf.tuplesAdded + "\n");
+								debugLog.print("Ops Added: "+ this.conf.opsAdded + "\n");
+								debugLog.print("Emit Count: "+ this.conf.emitCount + "\n");
+								debugLog.print("Key Tuple Size: "+ this.conf.keyTupleSize + "\n");
+								debugLog.print("Val Tuple Size: "+ this.conf.valuesTupleSize + "\n");
+								debugLog.print("Recursion Depth: "+ this.conf.recursionDepth + "\n");
+								debugLog.print("Key type: "+ this.candidateKeyTypes.get(this.keyIndex) + "\n");
+								debugLog.print("Number of solutions so far: "+ext.verifiedMapEmits.size() + "\n");
+								debugLog.print("Time stamp: "+System.currentTimeMillis() + "\n\n\n");
+								debugLog.flush();
+							}
+						}
+						else if(synthesizerExitCode == 2){
+							// The last candidate may still be under verification
+							if(pending != null && verdict(pending) == 0){
+								commitSolution(ext, pending, sketchFilteredOutputVars, reduceType);
 								break;
 							}
+							
+							saveCheckpoint(reduceType, true, null);
+							reportExhausted(reduceType);
+							if(log){
+								debugLog.close();
+							}
+							break;
 						}
 					}
-					
-					// Increment id counter
-					this.id++;
-				} catch (Exception e) {
-					e.printStackTrace();
 				}
+			} catch (Exception e) {
+				e.printStackTrace();
 			}
-		}		
+			
+			return null;
+		}
 		
-		return this;
-	}
-
-	private void addKeyOptions(MyWhileExt ext, Variable v) {
-		String vtype = v.getReduceType();
-		if(casper.Util.getTypeClass(vtype) == casper.Util.PRIMITIVE){
-			if(!this.candidateKeyTypes.contains(vtype))
-				this.candidateKeyTypes.add(vtype);
-		}
-		else if(casper.Util.getTypeClass(vtype) == casper.Util.ARRAY){
-			vtype = vtype.replace("[]","");
-			if(!this.candidateKeyTypes.contains(vtype))
-				this.candidateKeyTypes.add(vtype);
-		}
-		else if(casper.Util.getTypeClass(vtype) == casper.Util.OBJECT){
-			if(ext.globalDataTypesFields.containsKey(vtype)){
-				for(Variable fdecl : ext.globalDataTypesFields.get(vtype)){
-					addKeyOptions(ext, fdecl);
+		// Generate the scaffold of one grammar
+		private void generateScaffold(String dir, SearchConfiguration conf, Set<Variable> sketchFilteredOutputVars, String sketchReduceType, String reduceType) throws Exception {
+			long start = System.currentTimeMillis();
+			SketchCodeGenerator.generateScaffold(dir, id, n, sketchFilteredOutputVars, sketchReduceType, reduceType, conf);
+			this.trace.scaffold(conf, 1, System.currentTimeMillis()-start);
+		}
+		
+		// Wait for the verdict of a candidate verified on the verifier thread
+		private int verdict(Candidate candidate) throws InterruptedException {
+			int verdict = awaitVerdict(candidate);
+			rejected(verdict);
+			return verdict;
+		}
+		
+		// Dafny found the candidate wrong although it held on every input sketch tried. Dafny
+		// gives no counterexample, so the input value bound is raised, which is the bound
+		// that most often hides such summaries. Timeouts and errors say nothing about the
+		// bounds.
+		private void rejected(int verdict) {
+			if(verdict == DAFNY_VERIFICATION_ERROR && this.bounds.raiseInbits())
+				reportBounds();
+		}
+		
+		private void reportBounds() {
+			System.err.println("Sketch bounds raised for this fragment (" + this.bounds + ").\n");
+			this.trace.bounds(this.bounds);
+		}
+		
+		// Raise the bound that let a summary through sketch which fails on the counterexample
+		private void raiseBounds(Falsifier.Counterexample counterexample, Set<Variable> outputVars, String reduceType) {
+			if(this.bounds.raiseFor(counterexample, ext, outputVars, reduceType, this.conf))
+				reportBounds();
+		}
+		
+		// Report the end of a search that found no (further) solution
+		private void reportExhausted(String reduceType) {
+			this.trace.outcome(reduceType, Budget.expired(this.deadline) ? "out of time" : "exhausted");
+			if(ext.verifiedMapEmits.size()==0){
+				System.err.println("Casper failed to synthesize a summary for this code fragment.\nPlease submit your code example at our"
+									+ " GitHub Issues tracker (https://github.com/uwplse/Casper/issues)");
+				ext.generateCode.put(reduceType, false);
+				
+			}
+			else{
+				System.err.println("\nSearch Complete. Generating Spark Code.");
+				ext.generateCode.put(reduceType, true);
+			}
+		}
+		
+		// Save the search state of this output type. If finished, candidate is the verified
+		// solution; otherwise it is the candidate still under verification.
+		private void saveCheckpoint(String reduceType, boolean finished, Candidate candidate) throws IOException {
+			if(!Configuration.checkpoints)
+				return;
+			
+			Checkpoint.TypeState state = new Checkpoint.TypeState();
+			state.finished = finished;
+			state.conf = new SearchConfiguration(this.conf);
+			state.keyIndex = this.keyIndex;
+			state.bounds = new Bounds(this.bounds);
+			state.predictions = this.predictions;
+			state.predictionIndex = this.predictionIndex;
+			state.ladderStart = this.ladderStart;
+			state.blockExprs = Checkpoint.copyBlockExprs(ext.blockExprs);
+			state.blocks = Checkpoint.copyBlocks(ext.blocks);
+			if(candidate != null){
+				state.solution = new String(Files.readAllBytes(Paths.get(candidate.sketchOutput)), StandardCharsets.UTF_8);
+				state.solutionConf = candidate.conf;
+			}
+			this.checkpoint.save(this.checkpointFile, reduceType, state);
+		}
+		
+		// Restore the search state of this output type from a checkpoint. Returns true if
+		// nothing is left to search for this type.
+		private boolean resume(Checkpoint.TypeState saved, String workDir, String mainFile, Set<Variable> sketchFilteredOutputVars, String sketchReduceType, String reduceType) throws Exception {
+			System.err.println("Resuming search from checkpoint " + this.checkpointFile);
+			
+			this.conf = new SearchConfiguration(saved.conf);
+			this.keyIndex = saved.keyIndex;
+			if(saved.bounds != null)
+				this.bounds = new Bounds(saved.bounds);
+			if(saved.predictions != null){
+				this.predictions = saved.predictions;
+				this.predictionIndex = saved.predictionIndex;
+				this.ladderStart = saved.ladderStart;
+			}
+			else{
+				// Saved before grammars were predicted: the search was on the ladder
+				this.predictionIndex = this.predictions.size();
+			}
+			ext.blockExprs = Checkpoint.copyBlockExprs(saved.blockExprs);
+			ext.blocks = Checkpoint.copyBlocks(saved.blocks);
+			
+			if(saved.finished && saved.solution == null){
+				reportExhausted(reduceType);
+				return true;
+			}
+			if(saved.solution == null)
+				return false;
+			
+			// Parse the saved solution back into ext. It is already blocked in the saved
+			// state, so the block entry added by the parser is dropped again.
+			PrintWriter writer = new PrintWriter(mainFile+".txt", "UTF-8");
+			writer.print(saved.solution);
+			writer.close();
+			SketchParser.parseSolution(mainFile+".txt", sketchFilteredOutputVars, ext, saved.solutionConf);
+			ext.blockExprs.remove(ext.blockExprs.size()-1);
+			ext.termValuesTemp.clear();
+			
+			Candidate candidate = new Candidate(ext, saved.solutionConf, mainFile+".dfy", mainFile+".txt");
+			if(saved.finished){
+				commitSolution(ext, candidate, sketchFilteredOutputVars, reduceType);
+				return true;
+			}
+			
+			// The run stopped while this candidate was being verified
+			DafnyCodeGenerator.generateSummary(workDir, id, n, sketchFilteredOutputVars, reduceType, sketchReduceType, saved.solutionConf);
+			if(verifySummary(candidate.summaryFile, sketchReduceType, this.deadline, this.trace) == 0){
+				commitSolution(ext, candidate, sketchFilteredOutputVars, reduceType);
+				return true;
+			}
+			return false;
+		}
+		
+		// Record a verified solution and end the search for this output type
+		private void commitSolution(MyWhileExt ext, Candidate candidate, Set<Variable> sketchFilteredOutputVars, String reduceType) throws IOException {
+			saveCheckpoint(reduceType, true, candidate);
+			this.trace.outcome(reduceType, "solved");
+			GrammarKnowledge.record(WorkDirectory.sourceKey(sourcePath) + ":" + id + ":" + reduceType, this.features, candidate.conf);
+			
+			ext.verifiedSolutions.add(candidate.solution);
+			ext.verifiedMapEmits.add(candidate.mapEmits);
+			ext.verifiedInitExps.add(candidate.initExps);
+			ext.verifiedReduceExps.add(candidate.reduceExps);
+			ext.verifiedMergeExps.add(candidate.mergeExps);
+			ext.verifiedSolKeyTypes.add(candidate.keyType);
+			ext.verifiedCSG.add(true);
+			ext.outVarCount = sketchFilteredOutputVars.size();
+			
+			if(log){
+				debugLog.print("Solution Mappers: "+candidate.mapEmits + "\n");
+				debugLog.print("Solution Reducers: "+candidate.reduceExps + "\n");
+				debugLog.print("Time stamp: "+System.currentTimeMillis() + "\n\n");
+				debugLog.flush();
+			}
+			
+			ext.generateCode.put(reduceType, true);
+			System.err.println("\nSearch Complete. Generating Spark Code.");
+			
+			if(log) this.debugLog.close();
+		}
+		
+		// Types the keys of the output arrays and maps can take, most plausible first.
+		// A key indexes the outputs, so only types compatible with the index type of the
+		// outputs are kept. Types of the variables and fields the loop body indexes the
+		// outputs with (in the weakest precondition) are tried first.
+		List<String> keyTypeOptions(MyWhileExt ext, Set<Variable> outputVars, String reduceType) {
+			List<String> options = new ArrayList<String>();
+			options.add("int");
+			for(Variable v : ext.inputDataCollections){
+				addKeyOptions(ext, v, options, null);
+			}
+			for(Variable v : ext.inputVars){
+				addKeyOptions(ext, v, options, null);
+			}
+			
+			// How the outputs are indexed
+			Set<String> indexTypes = new HashSet<String>();
+			List<String> indexes = new ArrayList<String>();
+			CustomASTNode wpc = ext.wpcs.get(reduceType);
+			for(Variable var : outputVars){
+				if(!var.getSketchType().endsWith("["+Configuration.arraySizeBound+"]"))
+					continue;
+				indexTypes.add(indexType(var));
+				if(wpc != null){
+					Map<String,List<CustomASTNode>> found = new HashMap<String,List<CustomASTNode>>();
+					found.put(var.varName, new ArrayList<CustomASTNode>());
+					wpc.getIndexes(var.varName, found);
+					for(CustomASTNode index : found.get(var.varName)){
+						indexes.add(index.toString());
+					}
 				}
 			}
+			
+			// Types of the variables and fields the indexes are computed from
+			List<String> used = new ArrayList<String>();
+			for(Variable v : ext.inputDataCollections){
+				addKeyOptions(ext, v, used, indexes);
+			}
+			for(Variable v : ext.inputVars){
+				addKeyOptions(ext, v, used, indexes);
+			}
+			
+			List<String> ranked = new ArrayList<String>();
+			for(String type : used){
+				if(options.contains(type) && compatibleKey(indexTypes, type) && !ranked.contains(type))
+					ranked.add(type);
+			}
+			for(String type : options){
+				if(compatibleKey(indexTypes, type) && !ranked.contains(type))
+					ranked.add(type);
+			}
+			
+			// Nothing is known to fit: try everything as before
+			if(ranked.isEmpty())
+				return options;
+			
+			// Key types with the same sketch type give the same scaffold, so one of each is
+			// searched. The type the outputs are indexed with is the one the generated code
+			// needs, so it represents its class.
+			if(!indexTypes.isEmpty()){
+				List<String> distinct = new ArrayList<String>();
+				for(String type : ranked){
+					String representative = type;
+					for(String other : ranked){
+						if(indexTypes.contains(other) && casper.Util.getSketchTypeFromRaw(other).equals(casper.Util.getSketchTypeFromRaw(type))){
+							representative = other;
+							break;
+						}
+					}
+					if(!distinct.contains(representative))
+						distinct.add(representative);
+				}
+				ranked = distinct;
+			}
+			
+			if(debug && ranked.size() < options.size())
+				System.err.println("Key types: " + ranked + " (" + (options.size()-ranked.size()) + " of " + options.size() + " pruned)\n");
+			return ranked;
+		}
+		
+		// Type of the index of an output array or the key of an output map
+		private String indexType(Variable var) {
+			if(var.varType.startsWith("java.util.Map<")){
+				String keyType = var.varType.substring(var.varType.indexOf('<')+1).split(",")[0];
+				return casper.Util.getPrimitiveTypeFromRaw(keyType.substring(keyType.lastIndexOf('.')+1));
+			}
+			return "int";
 		}
-		else if(casper.Util.getTypeClass(vtype) == casper.Util.OBJECT_ARRAY){
-			vtype = vtype.replace("[]","");
-			if(ext.globalDataTypesFields.containsKey(vtype)){
-				for(Variable fdecl : ext.globalDataTypesFields.get(vtype)){
-					addKeyOptions(ext, fdecl);
+		
+		private boolean compatibleKey(Set<String> indexTypes, String type) {
+			if(indexTypes.isEmpty())
+				return true;
+			for(String indexType : indexTypes){
+				if(casper.Util.compatibleTypes(indexType, type) == 1)
+					return true;
+			}
+			return false;
+		}
+		
+		// Add the types of v, or of its fields, to options. If indexes is not null only
+		// the types of variables and fields that one of the indexes mentions are added.
+		private void addKeyOptions(MyWhileExt ext, Variable v, List<String> options, List<String> indexes) {
+			String vtype = v.getReduceType();
+			if(casper.Util.getTypeClass(vtype) == casper.Util.PRIMITIVE){
+				if(!options.contains(vtype) && mentioned(v, indexes))
+					options.add(vtype);
+			}
+			else if(casper.Util.getTypeClass(vtype) == casper.Util.ARRAY){
+				vtype = vtype.replace("[]","");
+				if(!options.contains(vtype) && mentioned(v, indexes))
+					options.add(vtype);
+			}
+			else if(casper.Util.getTypeClass(vtype) == casper.Util.OBJECT){
+				if(ext.globalDataTypesFields.containsKey(vtype)){
+					for(Variable fdecl : ext.globalDataTypesFields.get(vtype)){
+						addKeyOptions(ext, fdecl, options, indexes);
+					}
+				}
+			}
+			else if(casper.Util.getTypeClass(vtype) == casper.Util.OBJECT_ARRAY){
+				vtype = vtype.replace("[]","");
+				if(ext.globalDataTypesFields.containsKey(vtype)){
+					for(Variable fdecl : ext.globalDataTypesFields.get(vtype)){
+						addKeyOptions(ext, fdecl, options, indexes);
+					}
 				}
 			}
 		}
-	}
-
-	@Override
-	public Node leave(Node old, Node n, NodeVisitor v){
-		return n;
-	}
-	
-	public class ReadStream implements Runnable {
-	    String name;
-	    InputStream is;
-	    Thread thread;      
-	    PrintWriter writer;
-	    
-	    public ReadStream(String name, InputStream is, PrintWriter writer) {
-	        this.name = name;
-	        this.is = is;
-	        this.writer = writer;
-	    }       
-	    public void start () {
-	        thread = new Thread (this);
-	        thread.start ();
-	    }       
-	    public void run () {
-	        try {
-	            InputStreamReader isr = new InputStreamReader (is);
-	            BufferedReader br = new BufferedReader (isr);   
-	            while (true) {
-	                String s = br.readLine ();
-	                if (s == null) break;
-	                if (name.equals("stdin"))
-	                	writer.print(s+"\n");
-	            }
-	            is.close ();    
-	        } catch (Exception ex) {
-	            System.out.println ("Problem reading stream " + name + "... :" + ex);
-	            ex.printStackTrace ();
+		
+		private boolean mentioned(Variable v, List<String> indexes) {
+			if(indexes == null)
+				return true;
+			Pattern name = Pattern.compile("(?<![A-Za-z0-9_])" + Pattern.quote(v.varName) + "(?![A-Za-z0-9_])");
+			for(String index : indexes){
+				if(name.matcher(index).find())
+					return true;
+			}
+			return false;
+		}
+		
+		private int runSynthesizer(String filename, MyWhileExt ext, String type) throws IOException, InterruptedException {		
+			int exitVal = runSketch(filename, this.conf, this.bounds, solverCores, this.candidatesFound, this.deadline, this.trace);
+	        
+	        if(exitVal == 0){
+	        	System.err.println("Summary successfully synthesized");
+	        	return 0;
 	        }
-	    }
-	}
-
-	private int runSynthesizer(String filename, MyWhileExt ext, String type) throws IOException, InterruptedException {		
-		Runtime rt = Runtime.getRuntime();
+	        else if(Budget.expired(this.deadline)){
+	        	// Sketch was stopped by the deadline: this grammar has not been searched
+	        	return 3;
+	        }
+	        else{
+	        	System.err.println("Synthesizer exited with error code: "+exitVal);
+	        	
+	        	/* Increment grammar */
+	        	return incrementGrammar(true);
+	        }
+		}
 		
-		if(debug || Configuration.slow)
-			System.err.println("sketch --slv-parallel --bnd-int-range "+Configuration.intRange+" --bnd-inbits "+Configuration.inbits+" --bnd-unroll-amnt "+Configuration.loopUnrollBound+" --bnd-arr-size "+Configuration.arraySizeBound+" "+ filename);
+		// Search the next Configuration.portfolioSize grammars on the ladder at once. Each grammar
+		// gets its own scaffold and sketch job. The cheapest grammar that succeeds is kept and
+		// all jobs for more expensive grammars are cancelled. Return codes match runSynthesizer.
+		private int runPortfolio(String workDir, Node n, Set<Variable> sketchFilteredOutputVars, String sketchReduceType, String reduceType) throws Exception {
+			// Enumerate the grammars to try, starting from the current one
+			GrammarBatch grammars = nextGrammars(Configuration.portfolioSize);
+			List<SearchConfiguration> batch = grammars.confs;
+			boolean exhausted = grammars.exhausted;
+			
+			// Each grammar gets its own directory within the fragment directory
+			List<String> batchDirs = new ArrayList<String>();
+			for(int i=0; i<batch.size(); i++){
+				batchDirs.add(WorkDirectory.forAttempt(workDir, "p"+i));
+				generateScaffold(batchDirs.get(i), batch.get(i), sketchFilteredOutputVars, sketchReduceType, reduceType);
+			}
+			
+			System.err.println("Attempting to synthesize solution ("+batch.size()+" grammars in parallel)...");
+			
+			List<Future<Integer>> jobs = new ArrayList<Future<Integer>>();
+			for(int i=0; i<batch.size(); i++){
+				jobs.add(getPortfolioPool().submit(new SketchJob(batchDirs.get(i)+"/main_"+reduceType+"_"+id+".sk", batch.get(i), this.bounds, this.candidatesFound, this.deadline, this.trace)));
+			}
+			
+			// Wait in ladder order so that a cheaper grammar always wins
+			int winner = -1;
+			for(int i=0; i<jobs.size(); i++){
+				int exitVal;
+				try {
+					exitVal = jobs.get(i).get();
+				} catch (ExecutionException e) {
+					e.printStackTrace();
+					exitVal = -1;
+				}
+				if(exitVal == 0){
+					winner = i;
+					break;
+				}
+			}
+			for(int i=winner+1; winner != -1 && i<jobs.size(); i++){
+				jobs.get(i).cancel(true);
+			}
+			
+			if(winner == -1){
+				System.err.println("Synthesizer failed for all grammars in batch");
+				if(Budget.expired(this.deadline)){
+					// Stopped by the deadline: search the batch again next time
+					moveTo(grammars, 0);
+					return 3;
+				}
+				if(exhausted)
+					return 2;
+				return incrementGrammar(true);
+			}
+			
+			// Continue the search from the winning grammar. Its scaffold is regenerated so that
+			// the grammar expressions recorded in the loop extension match the solution.
+			moveTo(grammars, winner);
+			generateScaffold(workDir, this.conf, sketchFilteredOutputVars, sketchReduceType, reduceType);
+			WorkDirectory.copyInto(batchDirs.get(winner)+"/main_"+reduceType+"_"+id+".txt", workDir);
+			
+			System.err.println("Summary successfully synthesized");
+			return 0;
+		}
 		
-		Process pr = rt.exec("sketch --slv-parallel --bnd-int-range "+Configuration.intRange+" --bnd-inbits "+Configuration.inbits+" --bnd-unroll-amnt "+Configuration.loopUnrollBound+" --bnd-arr-size "+Configuration.arraySizeBound+" "+ filename);
-
-		PrintWriter writer = new PrintWriter(filename.replace(".sk", ".txt"), "UTF-8");
+		// Search the next Configuration.grammarBatchSize grammars on the ladder with a single
+		// sketch run. The scaffold holds all of them and sketch chooses the first one that
+		// has a solution, so parsing the includes and starting the solver is paid once per
+		// batch. Return codes match runSynthesizer.
+		private int runBatch(String workDir, String mainFile, Node n, Set<Variable> sketchFilteredOutputVars, String sketchReduceType, String reduceType) throws Exception {
+			GrammarBatch grammars = nextGrammars(Configuration.grammarBatchSize);
+			long start = System.currentTimeMillis();
+			SketchCodeGenerator.generateBatchedScaffold(workDir, id, n, sketchFilteredOutputVars, sketchReduceType, reduceType, grammars.confs);
+			this.trace.scaffold(grammars.confs.get(0), grammars.confs.size(), System.currentTimeMillis()-start);
+			
+			System.err.println("Attempting to synthesize solution ("+grammars.confs.size()+" grammars in one scaffold)...");
+			int exitVal = runSketch(mainFile+".sk", grammars.confs.get(0), this.bounds, solverCores, this.candidatesFound, this.deadline, this.trace);
+			
+			if(exitVal != 0){
+				if(Budget.expired(this.deadline)){
+					// Stopped by the deadline: search the batch again next time
+					moveTo(grammars, 0);
+					return 3;
+				}
+				System.err.println("Synthesizer exited with error code: "+exitVal);
+				if(grammars.exhausted)
+					return 2;
+				return incrementGrammar(true);
+			}
+			
+			// Continue the search from the grammar sketch chose. Its scaffold is regenerated on
+			// its own so that the grammar expressions recorded in the loop extension match the
+			// solution.
+			int winner = SketchParser.selectGrammar(mainFile+".txt");
+			moveTo(grammars, winner);
+			generateScaffold(workDir, this.conf, sketchFilteredOutputVars, sketchReduceType, reduceType);
+			
+			System.err.println("Summary successfully synthesized");
+			return 0;
+		}
 		
-		ReadStream instream = new ReadStream("stdin", pr.getInputStream(),writer);
-		ReadStream errstream = new ReadStream("stderr", pr.getErrorStream(),null);
-		instream.start();
-		errstream.start();
-
-        int exitVal = pr.waitFor();
-        
-        if(exitVal == 0){
-        	System.err.println("Summary successfully synthesized");
-        	writer.close();
-        	return 0;
-        }
-        else{
-        	System.err.println("Synthesizer exited with error code: "+exitVal);
-        	writer.close();
-        	
-        	/* Increment grammar */
-        	
-        	// Has current grammar been checked for all types?
-        	if(this.conf.keyTupleSize > 1){
-        		if(this.keyIndex < this.candidateKeyTypes.size()-1){
-        			this.keyIndex++;
-        			this.conf.keyType = this.candidateKeyTypes.get(this.keyIndex);
-        			
-        			System.err.println("\nBuilding new grammar...");
-        			System.err.println("Keytype changed ("+this.candidateKeyTypes.get(this.keyIndex-1)+" -> "+this.conf.keyType +").\n");
-        			
-        			return 1;
-        		}
-        		else {
-        			this.keyIndex = 0;
-        			this.conf.keyType = this.candidateKeyTypes.get(this.keyIndex);
-        		}
-        	}
-        	
-        	// G1 -> G2
-        	if(!this.conf.opsAdded && !this.conf.simpleEmits && !this.conf.tuplesAdded){
-        		this.conf.tuplesAdded = true;
-        		
-    			System.err.println("\nBuilding new grammar...");
-        		System.err.println("Tuples enabled (G1 -> G2).\n");
-        		
-        		return 1;
-        	}
-        	// G2 -> G3
-        	if(!this.conf.opsAdded && !this.conf.simpleEmits && this.conf.tuplesAdded){
-        		this.conf.simpleEmits = true;
-        		
-    			System.err.println("\nBuilding new grammar...");
-        		System.err.println("Simple emits enabled (G2 -> G3).\n");
-        		
-        		return 1;
-        	}
-        	// G3 -> G4
-        	/*if(!this.conf.opsAdded && this.conf.simpleEmits && this.conf.tuplesAdded){
-        		this.conf.opsAdded = true;
-        		
-    			System.err.println("\nBuilding new grammar...");
-        		System.err.println("New operators enabled (G3 -> G4).\n");
-        		
-        		return 1;
-        	}*/
-        	
-        	// Can recursive bounds be increased?
-    		if(this.conf.recursionDepth < Configuration.maxRecursionDepth){
-    			this.conf.recursionDepth++;
-    			
-    			this.conf.tuplesAdded = this.conf.simpleEmits = this.conf.opsAdded = true;
-    			
-    			System.err.println("\nBuilding new grammar...");
-    			System.err.println("Max expression depth increased ("+(this.conf.recursionDepth-1)+" -> "+this.conf.recursionDepth+").\n");
-    			
-    			return 1;
-    		}
-    		else if(this.conf.valuesTupleSize < Configuration.maxTupleSize){
-    			this.conf.valuesTupleSize++;
-    			
-    			this.conf.recursionDepth = 2;
-    			this.conf.tuplesAdded = this.conf.simpleEmits = this.conf.opsAdded = true;
-    			
-    			System.err.println("\nBuilding new grammar...");
-    			System.err.println("Max value tuple size increased ("+(this.conf.valuesTupleSize-1)+" -> "+this.conf.valuesTupleSize+").\n");
-    			
-    			return 1;
-    		}
-    		else if(this.conf.keyTupleSize < Configuration.maxTupleSize){
-    			this.conf.keyTupleSize++;
-    			
-    			this.conf.valuesTupleSize = 1;
-    			this.conf.recursionDepth = 2;
-    			this.conf.tuplesAdded = this.conf.simpleEmits = this.conf.opsAdded = true;
-    			
-    			System.err.println("\nBuilding new grammar...");
-    			System.err.println("Max key tuple size increased ("+(this.conf.keyTupleSize-1)+" -> "+this.conf.keyTupleSize+").\n");
-    			
-    			return 1;
-    		}
-    		else if(this.conf.emitCount < Configuration.maxNumEmits){
-    			this.conf.emitCount++;
-    			
-    			this.conf.keyTupleSize = (this.arrayOutputs?2:1);
-    			this.conf.valuesTupleSize = 1;
-    			this.conf.recursionDepth = 2;
-    			this.conf.tuplesAdded = this.conf.simpleEmits = this.conf.opsAdded = true;
-    			
-    			System.err.println("\nBuilding new grammar...");
-    			System.err.println("Max emit count increased ("+(this.conf.emitCount-1)+" -> "+this.conf.emitCount+").\n");
-    			
-    			return 1;
-    		}
-    		else if(this.conf.stageCount < Configuration.maxNumMROps){
-    			this.conf.stageCount++;
-    			
-    			this.conf.emitCount = 1;
-    			this.conf.keyTupleSize = (this.arrayOutputs?2:1);
-    			this.conf.valuesTupleSize = 1;
-    			this.conf.recursionDepth = 2;
-    			this.conf.tuplesAdded = this.conf.simpleEmits = this.conf.opsAdded = true;
-    			
-    			System.err.println("\nBuilding new grammar...");
-    			System.err.println("Max MR operations count increased ("+(this.conf.stageCount-1)+" -> "+this.conf.stageCount+").\n");
-    			
-    			return 1;
-    		}
-    		
-    		// The entire search space has been exhausted :(
-    		return 2;
-        	/*
-        	// 1. If we have multiple keys, try other key2 types
-        	if(keyCount > 1){
-        		if(ext.keyIndex < ext.candidateKeyTypes.size()-1){
-        			System.err.println("\nBuilding new grammar...");
-        			System.err.println("Keytype changed from " + ext.candidateKeyTypes.get(ext.keyIndex) + " to " + ext.candidateKeyTypes.get(ext.keyIndex+1) + "\n");
-        			ext.keyIndex++;
-        			return 1;
-        		}
-        	}
-        	// 2. Increase recursive bound until we are at 3.
-        	if(ext.recursionDepth < Configuration.maxRecursionDepth){
-        		if(!this.solFound.containsKey(ext.keyIndex+","+ext.useConditionals+","+ext.valCount+","+opsAdded) || true){
-	        		ext.recursionDepth++;
+		// The next size grammars on the ladder, starting from the current one. this.conf is
+		// left at the last of them.
+		GrammarBatch nextGrammars(int size) {
+			GrammarBatch batch = new GrammarBatch();
+			batch.confs.add(new SearchConfiguration(this.conf));
+			batch.keyIndexes.add(this.keyIndex);
+			batch.predictionIndexes.add(this.predictionIndex);
+			
+			while(batch.confs.size() < size){
+				if(incrementGrammar(false) == 2){
+					batch.exhausted = true;
+					break;
+				}
+				batch.confs.add(new SearchConfiguration(this.conf));
+				batch.keyIndexes.add(this.keyIndex);
+				batch.predictionIndexes.add(this.predictionIndex);
+			}
+			return batch;
+		}
+		
+		// Continue the search from the i-th grammar of the batch
+		void moveTo(GrammarBatch batch, int i) {
+			this.conf = batch.confs.get(i);
+			this.keyIndex = batch.keyIndexes.get(i);
+			this.predictionIndex = batch.predictionIndexes.get(i);
+		}
+		
+		// Move this.conf to the next grammar to search. The grammars that solved similar
+		// fragments come first, then the grammar ladder without them. Returns 1 if a new
+		// grammar was selected and 2 if the search space has been exhausted.
+		int incrementGrammar(boolean report) {
+			if(this.predictionIndex < this.predictions.size()){
+				// Other key types of the predicted grammar
+				if(this.conf.keyTupleSize > 1 && this.keyIndex < this.candidateKeyTypes.size()-1)
+					return nextOnLadder(report);
+				
+				this.predictionIndex++;
+				this.keyIndex = 0;
+				if(this.predictionIndex < this.predictions.size()){
+					this.conf = new SearchConfiguration(this.predictions.get(this.predictionIndex));
+					this.conf.keyType = this.candidateKeyTypes.get(this.keyIndex);
+					if(report) System.err.println("\nBuilding new grammar...");
+					if(report) System.err.println("Grammar of a similar fragment (" + GrammarKnowledge.describe(this.conf) + ").\n");
+					return 1;
+				}
+				
+				this.conf = new SearchConfiguration(this.ladderStart);
+				this.conf.keyType = this.candidateKeyTypes.get(this.keyIndex);
+				if(!predicted(this.conf)){
+					if(report) System.err.println("\nBuilding new grammar...");
+					if(report) System.err.println("Grammars of similar fragments exhausted, back to the first grammar.\n");
+					return 1;
+				}
+			}
+			
+			// Predicted grammars have been searched for all key types already
+			int result = nextOnLadder(report);
+			while(result == 1 && predicted(this.conf)){
+				this.keyIndex = this.candidateKeyTypes.size()-1;
+				result = nextOnLadder(false);
+			}
+			return result;
+		}
+		
+		private boolean predicted(SearchConfiguration conf) {
+			for(SearchConfiguration p : this.predictions){
+				if(GrammarKnowledge.sameGrammar(p, conf))
+					return true;
+			}
+			return false;
+		}
+		
+		// Move this.conf to the next grammar on the search ladder. Returns 1 if a new
+		// grammar was selected and 2 if the search space has been exhausted.
+		private int nextOnLadder(boolean report) {
+	        	// Has current grammar been checked for all types?
+	        	if(this.conf.keyTupleSize > 1){
+	        		if(this.keyIndex < this.candidateKeyTypes.size()-1){
+	        			this.keyIndex++;
+	        			this.conf.keyType = this.candidateKeyTypes.get(this.keyIndex);
+	        			
+	        			if(report) System.err.println("\nBuilding new grammar...");
+	        			if(report) System.err.println("Keytype changed ("+this.candidateKeyTypes.get(this.keyIndex-1)+" -> "+this.conf.keyType +").\n");
+	        			
+	        			return 1;
+	        		}
+	        		else {
+	        			this.keyIndex = 0;
+	        			this.conf.keyType = this.candidateKeyTypes.get(this.keyIndex);
+	        		}
+	        	}
+	        	
+	        	// G1 -> G2
+	        	if(!this.conf.opsAdded && !this.conf.simpleEmits && !this.conf.tuplesAdded){
+	        		this.conf.tuplesAdded = true;
+	        		
+	    			if(report) System.err.println("\nBuilding new grammar...");
+	        		if(report) System.err.println("Tuples enabled (G1 -> G2).\n");
+	        		
+	        		return 1;
+	        	}
+	        	// G2 -> G3
+	        	if(!this.conf.opsAdded && !this.conf.simpleEmits && this.conf.tuplesAdded){
+	        		this.conf.simpleEmits = true;
+	        		
+	    			if(report) System.err.println("\nBuilding new grammar...");
+	        		if(report) System.err.println("Simple emits enabled (G2 -> G3).\n");
+	        		
+	        		return 1;
+	        	}
+	        	// G3 -> G4
+	        	/*if(!this.conf.opsAdded && this.conf.simpleEmits && this.conf.tuplesAdded){
+	        		this.conf.opsAdded = true;
+	        		
+	    			System.err.println("\nBuilding new grammar...");
+	        		System.err.println("New operators enabled (G3 -> G4).\n");
+	        		
+	        		return 1;
+	        	}*/
+	        	
+	        	// Can recursive bounds be increased?
+	    		if(this.conf.recursionDepth < Configuration.maxRecursionDepth){
+	    			this.conf.recursionDepth++;
+	    			
+	    			this.conf.tuplesAdded = this.conf.simpleEmits = this.conf.opsAdded = true;
+	    			
+	    			if(report) System.err.println("\nBuilding new grammar...");
+	    			if(report) System.err.println("Max expression depth increased ("+(this.conf.recursionDepth-1)+" -> "+this.conf.recursionDepth+").\n");
+	    			
+	    			return 1;
+	    		}
+	    		else if(this.conf.valuesTupleSize < Configuration.maxTupleSize){
+	    			this.conf.valuesTupleSize++;
+	    			
+	    			this.conf.recursionDepth = 2;
+	    			this.conf.tuplesAdded = this.conf.simpleEmits = this.conf.opsAdded = true;
+	    			
+	    			if(report) System.err.println("\nBuilding new grammar...");
+	    			if(report) System.err.println("Max value tuple size increased ("+(this.conf.valuesTupleSize-1)+" -> "+this.conf.valuesTupleSize+").\n");
+	    			
+	    			return 1;
+	    		}
+	    		else if(this.conf.keyTupleSize < Configuration.maxTupleSize){
+	    			this.conf.keyTupleSize++;
+	    			
+	    			this.conf.valuesTupleSize = 1;
+	    			this.conf.recursionDepth = 2;
+	    			this.conf.tuplesAdded = this.conf.simpleEmits = this.conf.opsAdded = true;
+	    			
+	    			if(report) System.err.println("\nBuilding new grammar...");
+	    			if(report) System.err.println("Max key tuple size increased ("+(this.conf.keyTupleSize-1)+" -> "+this.conf.keyTupleSize+").\n");
+	    			
+	    			return 1;
+	    		}
+	    		else if(this.conf.emitCount < Configuration.maxNumEmits){
+	    			this.conf.emitCount++;
+	    			
+	    			this.conf.keyTupleSize = (this.arrayOutputs?2:1);
+	    			this.conf.valuesTupleSize = 1;
+	    			this.conf.recursionDepth = 2;
+	    			this.conf.tuplesAdded = this.conf.simpleEmits = this.conf.opsAdded = true;
+	    			
+	    			if(report) System.err.println("\nBuilding new grammar...");
+	    			if(report) System.err.println("Max emit count increased ("+(this.conf.emitCount-1)+" -> "+this.conf.emitCount+").\n");
+	    			
+	    			return 1;
+	    		}
+	    		else if(this.conf.stageCount < Configuration.maxNumMROps){
+	    			this.conf.stageCount++;
+	    			
+	    			this.conf.emitCount = 1;
+	    			this.conf.keyTupleSize = (this.arrayOutputs?2:1);
+	    			this.conf.valuesTupleSize = 1;
+	    			this.conf.recursionDepth = 2;
+	    			this.conf.tuplesAdded = this.conf.simpleEmits = this.conf.opsAdded = true;
+	    			
+	    			if(report) System.err.println("\nBuilding new grammar...");
+	    			if(report) System.err.println("Max MR operations count increased ("+(this.conf.stageCount-1)+" -> "+this.conf.stageCount+").\n");
+	    			
+	    			return 1;
+	    		}
+	    		
+	    		// The entire search space has been exhausted :(
+	    		return 2;
+	        	/*
+	        	// 1. If we have multiple keys, try other key2 types
+	        	if(keyCount > 1){
+	        		if(ext.keyIndex < ext.candidateKeyTypes.size()-1){
+	        			System.err.println("\nBuilding new grammar...");
+	        			System.err.println("Keytype changed from " + ext.candidateKeyTypes.get(ext.keyIndex) + " to " + ext.candidateKeyTypes.get(ext.keyIndex+1) + "\n");
+	        			ext.keyIndex++;
+	        			return 1;
+	        		}
+	        	}
+	        	// 2. Increase recursive bound until we are at 3.
+	        	if(ext.recursionDepth < Configuration.maxRecursionDepth){
+	        		if(!this.solFound.containsKey(ext.keyIndex+","+ext.useConditionals+","+ext.valCount+","+opsAdded) || true){
+		        		ext.recursionDepth++;
+		        		ext.keyIndex = 0;
+		        		System.err.println("\nBuilding new grammar...");
+		        		System.err.println("Recursion depth changed from " + (ext.recursionDepth-1) + " to " + ext.recursionDepth + "\n");
+		        		return 1;
+	        		}
+	        	}
+	        	// 3. Turn conditionals on if they were seen in code
+	        	if(ext.foundConditionals && !ext.useConditionals){
+	        		ext.useConditionals = true;
+	        		ext.recursionDepth = 2;
 	        		ext.keyIndex = 0;
 	        		System.err.println("\nBuilding new grammar...");
-	        		System.err.println("Recursion depth changed from " + (ext.recursionDepth-1) + " to " + ext.recursionDepth + "\n");
+	        		System.err.println("Conditionals turned on\n");
 	        		return 1;
-        		}
-        	}
-        	// 3. Turn conditionals on if they were seen in code
-        	if(ext.foundConditionals && !ext.useConditionals){
-        		ext.useConditionals = true;
-        		ext.recursionDepth = 2;
-        		ext.keyIndex = 0;
-        		System.err.println("\nBuilding new grammar...");
-        		System.err.println("Conditionals turned on\n");
-        		return 1;
-        	}
-        	// 4. Increase number of values until 2.
-        	if(ext.valCount < Configuration.maxValuesTupleSize){
-        		if(!this.solFound.containsKey(ext.keyIndex+","+ext.useConditionals+","+opsAdded) || true){
-	        		ext.valCount++;
+	        	}
+	        	// 4. Increase number of values until 2.
+	        	if(ext.valCount < Configuration.maxValuesTupleSize){
+	        		if(!this.solFound.containsKey(ext.keyIndex+","+ext.useConditionals+","+opsAdded) || true){
+		        		ext.valCount++;
+		        		ext.recursionDepth = 2;
+		        		if(ext.foundConditionals) ext.useConditionals = false;
+		        		ext.keyIndex = 0;
+		        		System.err.println("\nBuilding new grammar...");
+		        		System.err.println("Val count changed from " + (ext.valCount-1) + " to " + ext.valCount + "\n");
+		        		return 1;
+	        		}
+	        	}
+	        	// 5. Turn on conditionals even if they were not found in code. 
+	        	if(!ext.foundConditionals && !ext.useConditionals){
+	        		ext.useConditionals = true;
 	        		ext.recursionDepth = 2;
-	        		if(ext.foundConditionals) ext.useConditionals = false;
+	        		ext.valCount = 1;
 	        		ext.keyIndex = 0;
 	        		System.err.println("\nBuilding new grammar...");
-	        		System.err.println("Val count changed from " + (ext.valCount-1) + " to " + ext.valCount + "\n");
+	        		System.err.println("Conditionals turned on second phase\n");
 	        		return 1;
-        		}
-        	}
-        	// 5. Turn on conditionals even if they were not found in code. 
-        	if(!ext.foundConditionals && !ext.useConditionals){
-        		ext.useConditionals = true;
-        		ext.recursionDepth = 2;
-        		ext.valCount = 1;
-        		ext.keyIndex = 0;
-        		System.err.println("\nBuilding new grammar...");
-        		System.err.println("Conditionals turned on second phase\n");
-        		return 1;
-        	}
-        	// 6. Increase emit count 
-        	if(this.emitCount < Configuration.maxEmits && (ext.mapEmits == null || ext.mapEmits.size() == 0)){
-        		this.emitCount++;
-        		ext.useConditionals = false;
-        		ext.recursionDepth = 2;
-        		ext.valCount = 1;
-        		ext.keyIndex = 0;
-        		System.err.println("\nBuilding new grammar...");
-				System.err.println("Emit count increased from "+(this.emitCount-1)+" to "+this.emitCount + "\n");
-        		return 1;
-        	}
-        	// 7. Add new operators
-        	if(opsAdded) return 2;
-        	this.opsAdded = true;
-        	switch(type){
-            	case "bit":
-            		ext.binaryOperators.add("&&");
-            		ext.binaryOperators.add("||");
-            		ext.useConditionals = false;
-            		ext.recursionDepth = 2;
-            		ext.valCount = 1;
-            		ext.keyIndex = 0;
-            		this.emitCount = emitCountInit;
-            		System.err.println("\nBuilding new grammar...");
-            		System.err.println("New operators added...\n");
-            		return 1;
-        		default:
-        			// We're done.
-        			return 2;
-            }*/
-        }
+	        	}
+	        	// 6. Increase emit count 
+	        	if(this.emitCount < Configuration.maxEmits && (ext.mapEmits == null || ext.mapEmits.size() == 0)){
+	        		this.emitCount++;
+	        		ext.useConditionals = false;
+	        		ext.recursionDepth = 2;
+	        		ext.valCount = 1;
+	        		ext.keyIndex = 0;
+	        		System.err.println("\nBuilding new grammar...");
+					System.err.println("Emit count increased from "+(this.emitCount-1)+" to "+this.emitCount + "\n");
+	        		return 1;
+	        	}
+	        	// 7. Add new operators
+	        	if(opsAdded) return 2;
+	        	this.opsAdded = true;
+	        	switch(type){
+	            	case "bit":
+	            		ext.binaryOperators.add("&&");
+	            		ext.binaryOperators.add("||");
+	            		ext.useConditionals = false;
+	            		ext.recursionDepth = 2;
+	            		ext.valCount = 1;
+	            		ext.keyIndex = 0;
+	            		this.emitCount = emitCountInit;
+	            		System.err.println("\nBuilding new grammar...");
+	            		System.err.println("New operators added...\n");
+	            		return 1;
+	        		default:
+	        			// We're done.
+	        			return 2;
+	            }*/
+		}
+	}
+
+	// Consecutive grammars of the search ladder, searched together
+	class GrammarBatch {
+		List<SearchConfiguration> confs = new ArrayList<SearchConfiguration>();
+		List<Integer> keyIndexes = new ArrayList<Integer>();
+		List<Integer> predictionIndexes = new ArrayList<Integer>();
+		// The ladder ended before the batch was full
+		boolean exhausted = false;
+	}
+
+	// A synthesized solution together with the summary used to verify it
+	class Candidate {
+		List<MRStage> solution;
+		Map<String,List<KvPair>> mapEmits;
+		Map<String,String> initExps;
+		Map<String,String> reduceExps;
+		Map<String,String> mergeExps;
+		String keyType;
+		SearchConfiguration conf;
+		String summaryFile;
+		String sketchOutput;
+		Future<Integer> verdict;
+		
+		Candidate(MyWhileExt ext, SearchConfiguration conf, String summaryFile, String sketchOutput) {
+			this.solution = ext.solution;
+			this.mapEmits = ext.mapEmits;
+			this.initExps = ext.initExps;
+			this.reduceExps = ext.reduceExps;
+			this.mergeExps = ext.mergeExps;
+			this.keyType = conf.keyType;
+			this.conf = new SearchConfiguration(conf);
+			this.summaryFile = summaryFile;
+			this.sketchOutput = sketchOutput;
+		}
 	}
 	
-	private boolean isAlive( Process p ) {
-	    try
-	    {
-	        p.exitValue();
-	        return false;
-	    } catch (IllegalThreadStateException e) {
-	        return true;
-	    }
+	private int awaitVerdict(Candidate candidate) throws InterruptedException {
+		try {
+			return candidate.verdict.get();
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+			return -1;
+		}
 	}
 	
-	private int verifySummary(String filename, String outputType) throws IOException, InterruptedException {
-		/****** Run dafny ******/
-		Runtime rt = Runtime.getRuntime();
-		Process pr = rt.exec("dafny " + filename);
+	// Block the solution last parsed into ext, including the terminal values it used,
+	// so that the next sketch run has to find a different one.
+	private void blockCandidate(MyWhileExt ext, Telemetry.Trace trace) {
+		Map<String,String> blockExprsNew = new HashMap<String,String>();
+		for(String key : ext.blockExprs.get(ext.blockExprs.size()-1).keySet()){
+			String prefix = "_term_flag";;
+			String postfix = "";
+			if(key.startsWith("mapExp")){
+				postfix = "_map"+key.substring(6);
+			}
+			else if(key.startsWith("reduceExp")){
+				postfix = "_reduce"+key.substring(9);
+			}
+			for(String s : ext.termValuesTemp.keySet()){
+				Pattern r = Pattern.compile(Pattern.quote(prefix)+"(.*?)"+Pattern.quote(postfix));
+				Matcher m = r.matcher(s);
+				if(m.matches()){
+					if(ext.blockExprs.get(ext.blockExprs.size()-1).get(key).contains(m.group(1))){
+						blockExprsNew.put(s, ext.termValuesTemp.get(s));
+					}
+				}
+			}
+		}
+		ext.blockExprs.get(ext.blockExprs.size()-1).putAll(blockExprsNew);
+		ext.blocks.add(new ArrayList<String>());
+		ext.termValuesTemp.clear();
+		trace.blocked(ext.blockExprs.get(ext.blockExprs.size()-1).size(), ext.blockExprs.size());
+	}
+	
+	private synchronized ExecutorService getVerifierPool() {
+		// A fragment has at most one candidate under verification
+		if(this.verifierPool == null)
+			this.verifierPool = Executors.newFixedThreadPool(Math.max(Math.min(Configuration.fragmentThreads, this.fragments.size()), 1));
+		return this.verifierPool;
+	}
+	
+	private synchronized ExecutorService getPortfolioPool() {
+		if(this.portfolioPool == null){
+			int workers = Math.min(Configuration.portfolioSize, Runtime.getRuntime().availableProcessors());
+			this.portfolioPool = Executors.newFixedThreadPool(Math.max(workers, 1));
+		}
+		return this.portfolioPool;
+	}
 
-		PrintWriter writer = new PrintWriter("output/outputTempDafny.txt", "UTF-8");
+	@Override
+	public Node leave(Node old, Node n, NodeVisitor v){
+		return n;
+	}
+	
+	public class SketchJob implements Callable<Integer> {
+		String filename;
+		SearchConfiguration conf;
+		Bounds bounds;
+		int priority;
+		long deadline;
+		Telemetry.Trace trace;
+		
+		public SketchJob(String filename, SearchConfiguration conf, Bounds bounds, int priority, long deadline, Telemetry.Trace trace) {
+			this.filename = filename;
+			this.conf = conf;
+			this.bounds = new Bounds(bounds);
+			this.priority = priority;
+			this.deadline = deadline;
+			this.trace = trace;
+		}
+		
+		public Integer call() throws Exception {
+			// The jobs of a portfolio run side by side, one core each
+			return runSketch(filename, conf, bounds, 1, priority, deadline, trace);
+		}
+	}
+	
+	// Run sketch on the given scaffold and save its output next to it. If the calling
+	// thread is interrupted (a cancelled portfolio job), or the deadline passes, the
+	// sketch process is killed.
+	private int runSketch(String filename, SearchConfiguration conf, Bounds bounds, int cores, int priority, long deadline, Telemetry.Trace trace) throws IOException, InterruptedException {
+		// Replay the result of an earlier run on the same scaffold
+		String cacheKey = SynthesisCache.sketchKey(filename, conf, bounds);
+		Integer cachedExitVal = SynthesisCache.lookup(cacheKey, filename.replace(".sk", ".txt"));
+		if(cachedExitVal != null){
+			trace.cacheHit("sketch", filename, cachedExitVal);
+			return cachedExitVal;
+		}
+		
+		// Includes and sketch's temporary files are resolved in the scaffold's own directory
+		String dir = Paths.get(filename).getParent().toString();
+		String cmd = "sketch "+(cores > 1 ? "--slv-parallel --slv-p-cpus "+cores+" " : "")+"--fe-inc "+dir+" --fe-tempdir "+dir+" "+bounds.sketchOptions()+" "+ filename;
+		
+		if(debug || Configuration.slow)
+			System.err.println(cmd);
+		
+		if(Budget.expired(deadline))
+			return -1;
+		
+		ProcessSupervisor.Result result;
+		int granted = Budget.acquire(cores, priority);
+		try {
+			result = ProcessSupervisor.run(cmd, filename.replace(".sk", ".txt"), Budget.timeout(deadline, 0));
+		} finally {
+			Budget.release(granted);
+		}
+		Path output = Paths.get(filename.replace(".sk", ".txt"));
+		trace.sketch(filename, conf, bounds, result, Files.exists(output) ? Files.size(output) : 0);
+		
+		// A run cut short by the deadline says nothing about the grammar
+		if(!result.timedOut)
+			SynthesisCache.storeSketch(cacheKey, result.exitCode, filename.replace(".sk", ".txt"));
+		
+		return result.exitCode;
+	}
+	
+	private int verifySummary(String filename, String outputType, long deadline, Telemetry.Trace trace) throws IOException, InterruptedException {
+		// Replay the verdict of an earlier run on the same summary
+		String cacheKey = SynthesisCache.dafnyKey(filename);
+		Integer cachedExitVal = SynthesisCache.lookup(cacheKey, null);
+		if(cachedExitVal != null){
+			trace.cacheHit("dafny", filename, cachedExitVal);
+			if(cachedExitVal == 0)
+				System.err.println("Summary successfully verified\n");
+			else
+				System.err.println("Verifier failed with error code "+cachedExitVal + " (cached)\n");
+			return cachedExitVal;
+		}
+		
+		if(Budget.expired(deadline)){
+			System.err.println("Time budget exhausted, summary not verified\n");
+			return 3;
+		}
+		
+		/****** Run dafny ******/
+		ProcessSupervisor.Result result;
+		int granted = Budget.acquire(1, Budget.VERIFIER_PRIORITY);
+		try {
+			result = ProcessSupervisor.run("dafny " + filename, Paths.get(filename).resolveSibling("outputTempDafny.txt").toString(), Budget.timeout(deadline, 1000L * 120));
+		} finally {
+			Budget.release(granted);
+		}
+		trace.dafny(filename, result);
 		
-		BufferedReader input = new BufferedReader(new InputStreamReader(pr.getInputStream()));
-
-        // Timeout wait
-        long now = System.currentTimeMillis();
-        long timeoutInMillis = 1000L * 120;
-        long finish = now + timeoutInMillis;
-        while ( isAlive( pr ) && ( System.currentTimeMillis() < finish ) )
-        {
-            Thread.sleep( 10 );
-        }
         int exitVal;
-        if ( isAlive( pr ) )
+        if ( result.timedOut )
         {
-            System.err.println("Dafny timed out out after " + 120 + " seconds\n" );
+            System.err.println("Dafny timed out out after " + result.wallTimeMillis/1000 + " seconds\n" );
             exitVal = 3;
         }
         else{
-        	exitVal = pr.exitValue();
+        	exitVal = result.exitCode;
         	if(exitVal == 0){
             	System.err.println("Summary successfully verified\n");
         	}
         	else
             	System.err.println("Verifier failed with error code "+exitVal + "\n");
+        	
+        	// Timeouts and tool failures are not cached since they depend on the machine
+        	SynthesisCache.storeDafny(cacheKey, exitVal);
         }
-        
-		writer.close();
 		
 		return exitVal;
 	}
 	
 	private int verifySummaryCSG(String filename, String outputType) throws IOException, InterruptedException {
 		/****** Run dafny ******/
-		Runtime rt = Runtime.getRuntime();
-		Process pr = rt.exec("dafny " + filename);
-
-		PrintWriter writer = new PrintWriter("output/outputTempDafny.txt", "UTF-8");
-
-        // Timeout wait
-        long now = System.currentTimeMillis();
-        long timeoutInMillis = 1000L * 30;
-        long finish = now + timeoutInMillis;
-        while ( isAlive( pr ) && ( System.currentTimeMillis() < finish ) )
-        {
-            Thread.sleep( 10 );
-        }
+		ProcessSupervisor.Result result = ProcessSupervisor.run("dafny " + filename, Paths.get(filename).resolveSibling("outputTempDafny.txt").toString(), 1000L * 30);
+		
         int exitVal;
-        if ( isAlive( pr ) )
+        if ( result.timedOut )
         {
             System.err.println("Dafny timed out out after " + 30 + " seconds" );
             exitVal = 3;
         }
         else{
-        	exitVal = pr.exitValue();
+        	exitVal = result.exitCode;
         	if(exitVal == 0){
             	System.err.println("CSG successfully verified");
         	}
         	else
             	System.err.println("CSG Verifier failed with error code "+exitVal + "\n");
         }
-        
-		writer.close();
 		
 		return exitVal;
 	}
 	
 	@Override
-	public void finish(){		
+	public void finish(){
+		// Debug output only makes sense for one fragment at a time
+		int threads = Math.min(Configuration.fragmentThreads, this.fragments.size());
+		if(debug)
+			threads = 1;
+		
+		// A single fragment may use all cores for sketch's parallel solver
+		this.solverCores = threads <= 1 ? Budget.cores() : Math.max(1, Budget.cores()/threads);
+		
+		if(threads <= 1){
+			for(FragmentSearch fragment : this.fragments){
+				fragment.call();
+			}
+		}
+		else{
+			ExecutorService fragmentPool = Executors.newFixedThreadPool(threads);
+			try {
+				fragmentPool.invokeAll(this.fragments);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			fragmentPool.shutdownNow();
+		}
+		
+		if(this.portfolioPool != null)
+			this.portfolioPool.shutdownNow();
+		if(this.verifierPool != null)
+			this.verifierPool.shutdownNow();
+		
+		Telemetry.summary(this.sourcePath);
+		
 		if(debug)
 			System.err.println("\n************* Finished generate scaffold complier pass *************");
 	}
-}
\ No newline at end of file
+}
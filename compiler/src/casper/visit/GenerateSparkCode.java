@@ -1,12 +1,11 @@
 package casper.visit;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -16,8 +15,10 @@ import java.util.regex.Pattern;
 
 import casper.JavaLibModel.SketchCall;
 import casper.SketchParser.KvPair;
+import casper.Template;
 import casper.ast.JavaExt;
 import casper.extension.MyWhileExt;
+import casper.types.MRStage;
 import casper.types.Variable;
 import polyglot.ast.Formal;
 import polyglot.ast.Import;
@@ -69,69 +70,15 @@ public class GenerateSparkCode extends NodeVisitor{
 			if(((MyWhileExt)JavaExt.ext(n)).interesting){
 				MyWhileExt ext = (MyWhileExt) JavaExt.ext(n);
 				
-				Set<String> handledTypes = new HashSet<String>();
+				if(demo) loopExt = ext;
 				
-				int typeid = 0;
-				for(Variable var : ext.outputVars){
-					if(!handledTypes.contains(var.varType)){
-						handledTypes.add(var.varType);
-						
-						if(!ext.generateCode.get(var.getReduceType())) continue;
-						
-						if(demo) loopExt = ext;
-						
-						String template = "";
-						
-						try {
-							template = new String(Files.readAllBytes(Paths.get("templates/spark_skeleton_demo.txt")), StandardCharsets.UTF_8);
-						} catch (IOException e) {
-							// TODO Auto-generated catch block
-							e.printStackTrace();
-						}
-						
-						String createRDD = generateCreateRDD(ext);
-						String rddName = "rdd_"+typeid+"_"+id;
-						if(demo) rddName = ext.inputDataSet.varName;
-						String dupInputVars = generateDuplicateVarInit(ext);
-						String mapKeyType = generateMapKeyType(ext);
-						String inputDataType = generateInputDataType(ext);
-						String outputType = generateOutputDataType(ext,var.varType);
-						String inputDataName = ext.inputDataSet.varName;
-						String lcName = ext.mainLoopCounter.varName;
-						String mapEmits = generateMapEmits(ext);
-						String reduceExps = generateReduceExps(ext);
-						String reconOutput = generateOutputReconstruction(ext,var.varType);
-					
-						template = template.replace("<create-rdd>", createRDD);
-						template = template.replace("<input-name>", inputDataName+"_"+lcName);
-						template = template.replace("<map-emits>", mapEmits);
-						template = template.replace("<reduce-exp>", reduceExps);
-						template = template.replace("<reconstruct-output>", reconOutput);
-						template = template.replace("<rdd-name>", rddName);
-						template = template.replace("<map-key-type>", mapKeyType);
-						template = template.replace("<input-type>", inputDataType);
-						template = template.replace("<output-type>", outputType);
-						template = template.replace(inputDataName+"["+lcName+"]", inputDataName+"_"+lcName);
-						
-						
-						for(String constVar : ext.constMapping.keySet()){
-							template = template.replace(ext.constMapping.get(constVar), constVar);
-						}
-						
-						for(Variable inVar : ext.inputVars){
-							if(!ext.outputVars.contains(inVar) && inVar.category != Variable.ARRAY_ACCESS)
-								template = template.replaceAll("\\b"+inVar.varName+"\\b",inVar.varName+"_final");
-						}
-						
-						template = template.replace("<duplicate-input-vars>", dupInputVars);
-						
-						n = nf.Eval(n.position(), nf.ExprFromQualifiedName(n.position(), template.substring(0,template.length())));
-						
-						typeid++;
-					}
-				}
+				String code = generateLoop(ext);
 				
-				id++;
+				// Loops fused into an earlier loop are computed by its aggregation
+				if(ext.fused)
+					n = nf.Empty(n.position());
+				else if(!code.isEmpty())
+					n = nf.Eval(n.position(), nf.ExprFromQualifiedName(n.position(), code));
 			}
 		}
 		else if(n instanceof Import){
@@ -140,8 +87,12 @@ public class GenerateSparkCode extends NodeVisitor{
 									+ "import org.apache.spark.api.java.JavaSparkContext;\n"
 									+ "import org.apache.spark.api.java.JavaPairRDD;\n"
 									+ "import org.apache.spark.api.java.JavaRDD;\n"
+									+ "import org.apache.spark.api.java.function.DoubleFunction;\n"
+									+ "import org.apache.spark.api.java.function.Function;\n"
 									+ "import org.apache.spark.api.java.function.Function2;\n"
 									+ "import org.apache.spark.api.java.function.PairFlatMapFunction;\n"
+									+ "import org.apache.spark.api.java.function.PairFunction;\n"
+									+ "import org.apache.spark.util.StatCounter;\n"
 									+ "import scala.Tuple2;\n"
 									+ "import java.util.ArrayList;\n"
 									+ "import java.util.Map;\n"
@@ -155,10 +106,194 @@ public class GenerateSparkCode extends NodeVisitor{
 		return n;
 	}
 
-	private String generateCreateRDD(MyWhileExt ext) {
+	// Spark code computing the outputs of an interesting loop, empty if there is none
+	String generateLoop(MyWhileExt ext) {
+		String code = "";
+		if(ext.fused){
+			// Computed by the aggregation of the loop it was fused into
+		}
+		else if(!ext.fusedLoops.isEmpty()){
+			// The RDD the aggregation reads is created (and cached for the sibling loops
+			// sharing it) before the aggregation
+			String rddName = rddName(ext, 0);
+			code = generateCacheRDD(ext, rddName) + generateFusedAggregation(ext, rddName);
+			if(!demo && ext.sharedRDD == null)
+				code = generateCreateRDD(ext, rddName) + code;
+		}
+		else{
+			Set<String> handledTypes = new HashSet<String>();
+			int typeid = 0;
+			for(Variable var : ext.outputVars){
+				if(!handledTypes.contains(var.varType)){
+					handledTypes.add(var.varType);
+					
+					if(!ext.generateCode.get(var.getReduceType())) continue;
+					
+					// Reductions into scalars under constant keys need no shuffle
+					boolean scalar = isConstantKeyReduction(ext, var.varType);
+					// and a double min or max of them runs over a JavaDoubleRDD
+					String doubleStat = scalar ? doubleStatistic(ext, var.varType) : null;
+					
+					Template skeleton = null;
+					
+					try {
+						if(doubleStat != null)
+							skeleton = Template.get("templates/spark_skeleton_double.txt");
+						else
+							skeleton = Template.get(scalar ? "templates/spark_skeleton_scalar.txt" : "templates/spark_skeleton_demo.txt");
+					} catch (IOException e) {
+						// TODO Auto-generated catch block
+						e.printStackTrace();
+					}
+					
+					String rddName = rddName(ext, typeid);
+					String createRDD = generateCreateRDD(ext, rddName);
+					String dupInputVars = generateDuplicateVarInit(ext);
+					String mapKeyType = generateMapKeyType(ext);
+					String inputDataType = generateInputDataType(ext);
+					String outputType = generateOutputDataType(ext,var.varType);
+					String inputDataName = ext.inputDataSet.varName;
+					String lcName = ext.mainLoopCounter.varName;
+					String mapStage = generateMapStage(ext);
+					String reduceExps = generateReduceExps(ext);
+					String reconOutput = generateOutputReconstruction(ext,var.varType);
+				
+					Map<String,String> slots = new HashMap<String,String>();
+					slots.put("create-rdd", createRDD);
+					slots.put("input-name", inputDataName+"_"+lcName);
+					slots.put("map-stage", mapStage);
+					slots.put("reduce-exp", reduceExps);
+					slots.put("reconstruct-output", reconOutput);
+					slots.put("rdd-name", rddName);
+					slots.put("map-key-type", mapKeyType);
+					slots.put("input-type", inputDataType);
+					slots.put("output-type", outputType);
+					if(doubleStat != null){
+						slots.put("double-filter", generateDoubleFilter(ext, var.varType));
+						slots.put("double-value", generateDoubleValue(ext, var.varType, doubleStat));
+						slots.put("reconstruct-output", "if(stats_<rdd-name>.count() > 0) "+var.varName+" = stats_<rdd-name>."+doubleStat+"();");
+					}
+					else if(scalar){
+						slots.put("accumulator-fields", generateAccumulatorFields(ext, var.varType, ""));
+						slots.put("fold-emits", generateFoldEmits(ext, var.varType, ""));
+						slots.put("combine-partials", generateCombinePartials(ext, var.varType, ""));
+						slots.put("reconstruct-output", generateScalarOutput(ext, var.varType, ""));
+					}
+					
+					// <duplicate-input-vars> is filled in after the input variables are renamed
+					String template = (skeleton == null ? "" : skeleton.render(slots));
+					template = localize(ext, template);
+					template = template.replace("<duplicate-input-vars>", dupInputVars);
+					
+					// The RDD shared with sibling loops is created before the first use,
+					// the RDD of this output type alone before this one
+					if(typeid == 0)
+						template = generateCacheRDD(ext, rddName) + template;
+					if(!demo && ext.sharedRDD == null)
+						template = createRDD + template;
+					
+					code += template;
+					
+					typeid++;
+				}
+			}
+		}
+		
+		id++;
+		return code;
+	}
+	
+	private String rddName(MyWhileExt ext, int typeid) {
+		if(demo)
+			return ext.inputDataSet.varName;
+		if(ext.sharedRDD != null)
+			return ext.sharedRDD;
+		return "rdd_"+typeid+"_"+id;
+	}
+	
+	// Rename the loop's variables in generated code: the current element of the data set,
+	// constants, and the input variables copied into finals for the closures
+	private String localize(MyWhileExt ext, String code) {
+		String inputDataName = ext.inputDataSet.varName;
+		String lcName = ext.mainLoopCounter.varName;
+		code = code.replace(inputDataName+"["+lcName+"]", inputDataName+"_"+lcName);
+		
+		for(String constVar : ext.constMapping.keySet()){
+			code = code.replace(ext.constMapping.get(constVar), constVar);
+		}
+		
+		for(Variable inVar : ext.inputVars){
+			if(!ext.outputVars.contains(inVar) && inVar.category != Variable.ARRAY_ACCESS)
+				code = code.replaceAll("\\b"+inVar.varName+"\\b",inVar.varName+"_final");
+		}
+		return code;
+	}
+	
+	// Sibling loops that are not fused all read the data set, so the first of them
+	// caches it for the others
+	private String generateCacheRDD(MyWhileExt ext, String rddName) {
+		if(!ext.createsSharedRDD)
+			return "";
+		if(demo)
+			return ext.inputDataSet.varName+".cache();\n";
+		return "JavaRDD<"+ext.inputDataSet.getRDDType()+"> "+rddName+" = sc.parallelize("+ext.inputDataSet.varName+").cache();\n";
+	}
+	
+	// One aggregation computing the outputs of this loop and of the loops fused into it.
+	// The loops fold into their own fields of the accumulator.
+	private String generateFusedAggregation(MyWhileExt leader, String rddName) {
+		List<MyWhileExt> loops = new ArrayList<MyWhileExt>();
+		loops.add(leader);
+		loops.addAll(leader.fusedLoops);
+		
+		String inputName = leader.inputDataSet.varName+"_"+leader.mainLoopCounter.varName;
+		List<String> fields = new ArrayList<String>();
+		List<String> folds = new ArrayList<String>();
+		List<String> combines = new ArrayList<String>();
+		List<String> outputs = new ArrayList<String>();
+		Set<String> dupInputVars = new LinkedHashSet<String>();
+		for(int k=0; k<loops.size(); k++){
+			MyWhileExt ext = loops.get(k);
+			String type = constantKeyType(ext);
+			String prefix = "l"+k+"_";
+			String name = ext.inputDataSet.varName+"_"+ext.mainLoopCounter.varName;
+			
+			fields.add(generateAccumulatorFields(ext, type, prefix));
+			if(!name.equals(inputName))
+				folds.add("<input-type> "+name+" = "+inputName+";");
+			folds.add(localize(ext, generateFoldEmits(ext, type, prefix)));
+			combines.add(localize(ext, generateCombinePartials(ext, type, prefix)));
+			outputs.add(localize(ext, generateScalarOutput(ext, type, prefix).replace("<rdd-name>", rddName)));
+			for(String line : generateDuplicateVarInit(ext).split("\n")){
+				if(!line.isEmpty())
+					dupInputVars.add(line);
+			}
+		}
+		
+		Template skeleton = null;
+		try {
+			skeleton = Template.get("templates/spark_skeleton_scalar.txt");
+		} catch (IOException e) {
+			e.printStackTrace();
+			return "";
+		}
+		
+		Map<String,String> slots = new HashMap<String,String>();
+		slots.put("duplicate-input-vars", String.join("\n", dupInputVars));
+		slots.put("rdd-name", rddName);
+		slots.put("input-type", generateInputDataType(leader));
+		slots.put("input-name", inputName);
+		slots.put("accumulator-fields", String.join("\n\t", fields));
+		slots.put("fold-emits", String.join("\n\t\t", folds));
+		slots.put("combine-partials", String.join("\n\t\t", combines));
+		slots.put("reconstruct-output", String.join("\n", outputs));
+		return skeleton.render(slots);
+	}
+	
+	private String generateCreateRDD(MyWhileExt ext, String rddName) {
 		String code = "";
 		
-		code += "JavaRDD<<input-type>> <rdd-name> = sc.parallelize("+ext.inputDataSet.varName+");";
+		code += "JavaRDD<"+ext.inputDataSet.getRDDType()+"> "+rddName+" = sc.parallelize("+ext.inputDataSet.varName+");\n";
 		
 		return code;
 	}
@@ -186,7 +321,7 @@ public class GenerateSparkCode extends NodeVisitor{
 	private String generateMapKeyType(MyWhileExt ext) {
 		String keyType = "";
 		
-		Map<String, List<KvPair>> mapEmits = ext.verifiedMapEmits.get(ext.selectedSolutionIndex);
+		Map<String, List<KvPair>> mapEmits = selectedMapEmits(ext);
 		for(String conditional : mapEmits.keySet()){
 			if(mapEmits.get(conditional).size() > 0){
 				KvPair kvp = mapEmits.get(conditional).get(0);
@@ -207,100 +342,360 @@ public class GenerateSparkCode extends NodeVisitor{
 		return keyType;
 	}
 	
-	private String generateMapEmits(MyWhileExt ext) {
-		String emits = "";
-		
-		Map<String, List<KvPair>> mapEmits = ext.verifiedMapEmits.get(ext.selectedSolutionIndex);
+	// Map stage of the pair path. Emits are not collected into a list per record: a single
+	// emit is a mapToPair (behind a filter if it is conditional), several emits are handed
+	// out one at a time by an iterator that skips those whose condition does not hold.
+	private String generateMapStage(MyWhileExt ext) {
+		List<String> conds = new ArrayList<String>();
+		List<String> tuples = new ArrayList<String>();
 		
+		Map<String, List<KvPair>> mapEmits = selectedMapEmits(ext);
 		for(String cond : mapEmits.keySet()){
-			String fixedCond = cond;
-			
 			for(KvPair kvp : mapEmits.get(cond)){
-				// Fix function calls
-				for(SketchCall call : ext.methodOperators){
-					Pattern r = Pattern.compile("^("+call.name+")\\((..*)\\)$");
-					Matcher m;
-					
-					// Fix condition
-					m = r.matcher(fixedCond);
-					if(m.find()){
-						if(call.target.equals("first-arg")){
-							String target = m.group(2).substring(0, m.group(2).indexOf(","));
-							String args = m.group(2).substring(m.group(2).indexOf(",")+1, m.group(2).length());
-							fixedCond = fixedCond.replace(m.group(0), target+"."+call.nameOrig+"("+args+")");
-							
-						}
-						else{
-							String args = m.group(2);
-							fixedCond = fixedCond.replace(m.group(0), call.nameOrig+"("+args+")");
-						}
-					}
-					
-					// Fix keys
-					/*m = r.matcher(kvp.key);
-					if(m.find()){
-					}
-					
-					m = r.matcher(kvp.key2);
-					if(m.find()){
-					}*/
-					
-					// Fix Values
-					Map<Integer, String> valuesFixed = new HashMap<Integer, String>();
-					for(Integer key : kvp.values.keySet()){
-						String kvpValue = kvp.values.get(key);
-						m = r.matcher(kvpValue);
-						if(m.find()){
-							if(call.target.equals("first-arg")){
-								String target = m.group(2).substring(0, m.group(2).indexOf(","));
-								String args = m.group(2).substring(m.group(2).indexOf(",")+1, m.group(2).length());
-								kvpValue = kvpValue.replace(m.group(0), target+"."+call.nameOrig+"("+args+")");
-								
-							}
-							else{
-								String args = m.group(2);
-								kvpValue = kvpValue.replace(m.group(0), call.nameOrig+"("+args+")");
-							}
-						}
-						valuesFixed.put(key, kvpValue);
-					}
-					
-					kvp.values = valuesFixed;
-				}
-				
-				if(kvp.keys.size() < 2){
-					if(cond.equals("noCondition")){
-						if(ext.outVarCount > 1)
-							emits += "emits.add(new Tuple2("+kvp.keys.get(0)+",new Tuple2("+kvp.keys.get(0)+","+kvp.values.get(0)+")));\n";
-						else
-							emits += "emits.add(new Tuple2("+kvp.keys.get(0)+","+kvp.values.get(0)+"));\n";
-					}
-					else{
-						if(ext.outVarCount > 1)
-							emits += "if("+fixedCond+") emits.add(new Tuple2("+kvp.keys.get(0)+",new Tuple2("+kvp.keys.get(0)+","+kvp.values.get(0)+")));\n";
-						else
-							emits += "if("+fixedCond+") emits.add(new Tuple2("+kvp.keys.get(0)+","+kvp.values.get(0)+"));\n";
-					}
+				conds.add(cond.equals("noCondition") ? null : fixCalls(ext, cond));
+				tuples.add(generateEmitTuple(ext, kvp));
+			}
+		}
+		
+		String pairFunction = "new PairFunction<<input-type>, <map-key-type>, <output-type>>() {\n\t"
+								+ "public Tuple2<<map-key-type>, <output-type>> call(<input-type> <input-name>) throws Exception {\n\t\t"
+								+ "return " + (tuples.isEmpty() ? "" : tuples.get(0)) + ";\n\t"
+								+ "}\n"
+								+ "}";
+		
+		String code = "JavaPairRDD<<map-key-type>, <output-type>> mapEmits = <rdd-name>";
+		if(tuples.size() == 1 && conds.get(0) == null){
+			code += ".mapToPair(" + pairFunction + ");";
+		}
+		else if(tuples.size() == 1){
+			code += ".filter(new Function<<input-type>, Boolean>() {\n\t"
+					+ "public Boolean call(<input-type> <input-name>) throws Exception {\n\t\t"
+					+ "return " + conds.get(0) + ";\n\t"
+					+ "}\n"
+					+ "}).mapToPair(" + pairFunction + ");";
+		}
+		else{
+			String skip = "";
+			String cases = "";
+			for(int i=0; i<tuples.size(); i++){
+				if(conds.get(i) != null)
+					skip += (skip.isEmpty() ? "" : " || ") + "(emit == " + i + " && !(" + conds.get(i) + "))";
+				cases += "case " + i + ": return " + tuples.get(i) + ";\n\t\t\t\t\t";
+			}
+			code += ".flatMapToPair(new PairFlatMapFunction<<input-type>, <map-key-type>, <output-type>>() {\n\t"
+					+ "public Iterator<Tuple2<<map-key-type>, <output-type>>> call(final <input-type> <input-name>) throws Exception {\n\t\t"
+					+ "return new Iterator<Tuple2<<map-key-type>, <output-type>>>() {\n\t\t\t"
+					+ "int emit = 0;\n\t\t\t"
+					+ "public boolean hasNext() {\n\t\t\t\t"
+					+ (skip.isEmpty() ? "" : "while(" + skip + ") emit++;\n\t\t\t\t")
+					+ "return emit < " + tuples.size() + ";\n\t\t\t"
+					+ "}\n\t\t\t"
+					+ "public Tuple2<<map-key-type>, <output-type>> next() {\n\t\t\t\t"
+					+ "if(!hasNext()) throw new java.util.NoSuchElementException();\n\t\t\t\t"
+					+ "switch(emit++){\n\t\t\t\t\t"
+					+ cases
+					+ "default: throw new java.util.NoSuchElementException();\n\t\t\t\t"
+					+ "}\n\t\t\t"
+					+ "}\n\t\t\t"
+					+ "public void remove() {\n\t\t\t\t"
+					+ "throw new UnsupportedOperationException();\n\t\t\t"
+					+ "}\n\t\t"
+					+ "};\n\t"
+					+ "}\n"
+					+ "});";
+		}
+		return code;
+	}
+	
+	// Key-value pair of one emit. With several outputs the value carries the output id.
+	private String generateEmitTuple(MyWhileExt ext, KvPair kvp) {
+		String value = fixCalls(ext, kvp.values.get(0));
+		if(kvp.keys.size() < 2){
+			if(ext.outVarCount > 1)
+				return "new Tuple2("+kvp.keys.get(0)+",new Tuple2("+kvp.keys.get(0)+","+value+"))";
+			else
+				return "new Tuple2("+kvp.keys.get(0)+","+value+")";
+		}
+		else{
+			if(ext.outVarCount > 1)
+				return "new Tuple2(new Tuple2("+kvp.keys.get(0)+","+kvp.keys.get(1)+"), new Tuple2("+kvp.keys.get(0)+","+value+"))";
+			else
+				return "new Tuple2("+kvp.keys.get(1)+", "+value+")";
+		}
+	}
+
+	// Rewrite calls to modeled library methods (see JavaLibModel) back into java calls
+	private String fixCalls(MyWhileExt ext, String exp) {
+		for(SketchCall call : ext.methodOperators){
+			Pattern r = Pattern.compile("^("+call.name+")\\((..*)\\)$");
+			Matcher m = r.matcher(exp);
+			if(m.find()){
+				if(call.target.equals("first-arg")){
+					String target = m.group(2).substring(0, m.group(2).indexOf(","));
+					String args = m.group(2).substring(m.group(2).indexOf(",")+1, m.group(2).length());
+					exp = exp.replace(m.group(0), target+"."+call.nameOrig+"("+args+")");
 				}
 				else{
-					if(cond.equals("noCondition")){
-						if(ext.outVarCount > 1)
-							emits += "emits.add(new Tuple2(new Tuple2("+kvp.keys.get(0)+","+kvp.keys.get(1)+"), new Tuple2("+kvp.keys.get(0)+","+kvp.values.get(0)+")));\n";
-						else
-							emits += "emits.add(new Tuple2("+kvp.keys.get(1)+", "+kvp.values.get(0)+"));\n";
-					}
-					else{
-						if(ext.outVarCount > 1)
-							emits += "if("+fixedCond+") emits.add(new Tuple2(new Tuple2("+kvp.keys.get(0)+","+kvp.keys.get(1)+"), new Tuple2("+kvp.keys.get(0)+","+kvp.values.get(0)+")));\n";
-						else
-							emits += "if("+fixedCond+") emits.add(new Tuple2("+kvp.keys.get(1)+", "+kvp.values.get(0)+"));\n";
-					}
+					String args = m.group(2);
+					exp = exp.replace(m.group(0), call.nameOrig+"("+args+")");
 				}
 			}
 		}
-		return emits;
+		return exp;
 	}
-
+	
+	// Map emits of the selected solution. Solutions only carry them in their map stage
+	// when they were not recorded separately.
+	static Map<String, List<KvPair>> selectedMapEmits(MyWhileExt ext) {
+		Map<String, List<KvPair>> mapEmits = ext.verifiedMapEmits.get(ext.selectedSolutionIndex);
+		if(mapEmits == null){
+			for(MRStage stage : ext.verifiedSolutions.get(ext.selectedSolutionIndex)){
+				if(stage.stageType == 0 && stage.mapEmits != null)
+					return stage.mapEmits;
+			}
+			return new HashMap<String, List<KvPair>>();
+		}
+		return mapEmits;
+	}
+	
+	static Map<String, String> selectedReduceExps(MyWhileExt ext) {
+		Map<String, String> reduceExps = ext.verifiedReduceExps.get(ext.selectedSolutionIndex);
+		if(reduceExps == null){
+			for(MRStage stage : ext.verifiedSolutions.get(ext.selectedSolutionIndex)){
+				if(stage.stageType == 1 && stage.reduceExps != null)
+					return stage.reduceExps;
+			}
+			return new HashMap<String, String>();
+		}
+		return reduceExps;
+	}
+	
+	// Output variables of the given type, in the order of their keys
+	static List<Variable> scalarOutputs(MyWhileExt ext, String type) {
+		List<Variable> vars = new ArrayList<Variable>();
+		for(Variable var : ext.outputVars){
+			if(var.varType.equals(type))
+				vars.add(var);
+		}
+		return vars;
+	}
+	
+	static boolean isConstantKey(KvPair kvp) {
+		return kvp.keys.size() == 1 && kvp.keys.get(0).matches("-?[0-9]+");
+	}
+	
+	// Index of the output an emit goes to, -1 if its key is not a constant naming one.
+	// As in the reduce of the sketch, output i (from 1) takes the emits keyed on i, also
+	// when it is the only output; emits under other constants are dead.
+	static int outputIndex(KvPair kvp, int outputCount) {
+		if(!isConstantKey(kvp))
+			return -1;
+		int key = Integer.parseInt(kvp.keys.get(0));
+		return (key >= 1 && key <= outputCount) ? key-1 : -1;
+	}
+	
+	// Type of the only output type a loop generates code for, if the loop reduces into
+	// scalars under constant keys. Null if it does not.
+	static String constantKeyType(MyWhileExt ext) {
+		String type = null;
+		for(Variable var : ext.outputVars){
+			if(!ext.generateCode.get(var.getReduceType()) || (type != null && !type.equals(var.varType)))
+				return null;
+			type = var.varType;
+		}
+		return (type != null && isConstantKeyReduction(ext, type)) ? type : null;
+	}
+	
+	// Whether every output of this type is a scalar that all its emits reach under
+	// the same constant key. Such a solution is a plain aggregation over the data.
+	// Dead emits are left out of it.
+	static boolean isConstantKeyReduction(MyWhileExt ext, String type) {
+		if(type.startsWith("java.util.") || type.endsWith("[]"))
+			return false;
+		
+		List<Variable> outputs = scalarOutputs(ext, type);
+		Map<String, String> reduceExps = selectedReduceExps(ext);
+		for(Variable var : outputs){
+			if(var.category == Variable.ARRAY_ACCESS || !reduceExps.containsKey(var.varName))
+				return false;
+		}
+		
+		Map<String, List<KvPair>> mapEmits = selectedMapEmits(ext);
+		int emits = 0;
+		for(String cond : mapEmits.keySet()){
+			for(KvPair kvp : mapEmits.get(cond)){
+				if(!isConstantKey(kvp) || !kvp.values.containsKey(0))
+					return false;
+				if(outputIndex(kvp, outputs.size()) != -1)
+					emits++;
+			}
+		}
+		return emits > 0;
+	}
+	
+	// Emits of the selected solution that reach an output of this type, by condition
+	static Map<String, List<KvPair>> liveEmits(MyWhileExt ext, String type) {
+		int outputCount = scalarOutputs(ext, type).size();
+		Map<String, List<KvPair>> mapEmits = selectedMapEmits(ext);
+		Map<String, List<KvPair>> live = new LinkedHashMap<String, List<KvPair>>();
+		for(String cond : mapEmits.keySet()){
+			List<KvPair> emits = new ArrayList<KvPair>();
+			for(KvPair kvp : mapEmits.get(cond)){
+				if(outputIndex(kvp, outputCount) != -1)
+					emits.add(kvp);
+			}
+			if(!emits.isEmpty())
+				live.put(cond, emits);
+		}
+		return live;
+	}
+	
+	// Statistic of a StatCounter (min or max) a reduce expression computes, null if none.
+	// Sums are not taken from a StatCounter: it keeps a running mean and returns count * mean,
+	// which rounds differently from the loop and is NaN once two inputs are infinite. They
+	// are folded into the accumulator of the scalar path instead.
+	private String reduceStatistic(String exp) {
+		String e = exp.replaceAll("\\s", "");
+		while(e.startsWith("(") && e.endsWith(")") && balanced(e.substring(1, e.length()-1)))
+			e = e.substring(1, e.length()-1);
+		
+		if(e.equals("Math.max(val1,val2)") || e.equals("Math.max(val2,val1)") || e.matches("\\(?val1>=?val2\\)?\\?val1:val2") || e.matches("\\(?val1<=?val2\\)?\\?val2:val1"))
+			return "max";
+		if(e.equals("Math.min(val1,val2)") || e.equals("Math.min(val2,val1)") || e.matches("\\(?val1<=?val2\\)?\\?val1:val2") || e.matches("\\(?val1>=?val2\\)?\\?val2:val1"))
+			return "min";
+		return null;
+	}
+	
+	private boolean balanced(String exp) {
+		int depth = 0;
+		for(char c : exp.toCharArray()){
+			if(c == '(') depth++;
+			else if(c == ')' && --depth < 0) return false;
+		}
+		return depth == 0;
+	}
+	
+	// Statistic of a constant-key reduction into a single double, computed without boxing
+	// by a StatCounter. Every live emit must be unconditional, or there must be just one
+	// which is then a filter, so that a non-empty data set means the output was reduced.
+	private String doubleStatistic(MyWhileExt ext, String type) {
+		List<Variable> outputs = scalarOutputs(ext, type);
+		if(!type.equals("double") || outputs.size() != 1)
+			return null;
+		
+		Map<String, List<KvPair>> mapEmits = liveEmits(ext, type);
+		int emits = 0;
+		boolean conditional = false;
+		for(String cond : mapEmits.keySet()){
+			emits += mapEmits.get(cond).size();
+			if(!cond.equals("noCondition"))
+				conditional = true;
+		}
+		if(conditional && emits > 1)
+			return null;
+		
+		return reduceStatistic(selectedReduceExps(ext).get(outputs.get(0).varName));
+	}
+	
+	private String generateDoubleFilter(MyWhileExt ext, String type) {
+		Map<String, List<KvPair>> mapEmits = liveEmits(ext, type);
+		for(String cond : mapEmits.keySet()){
+			if(!cond.equals("noCondition")){
+				return ".filter(new Function<<input-type>, Boolean>() {\n\t"
+						+ "public Boolean call(<input-type> <input-name>) throws Exception {\n\t\t"
+						+ "return "+fixCalls(ext, cond)+";\n\t"
+						+ "}\n"
+						+ "})";
+			}
+		}
+		return "";
+	}
+	
+	// Live emits of one element combined into the single value the statistic is taken over
+	private String generateDoubleValue(MyWhileExt ext, String type, String statistic) {
+		String value = null;
+		Map<String, List<KvPair>> mapEmits = liveEmits(ext, type);
+		for(String cond : mapEmits.keySet()){
+			for(KvPair kvp : mapEmits.get(cond)){
+				String emit = fixCalls(ext, kvp.values.get(0));
+				if(value == null)
+					value = emit;
+				else
+					value = "Math."+statistic+"("+value+", "+emit+")";
+			}
+		}
+		return value;
+	}
+	
+	// One field per output, in the type of the output so primitives stay unboxed, and
+	// whether anything was reduced into it yet
+	private String generateAccumulatorFields(MyWhileExt ext, String type, String prefix) {
+		String code = "";
+		List<Variable> outputs = scalarOutputs(ext, type);
+		for(int i=0; i<outputs.size(); i++){
+			code += type+" "+prefix+"out"+i+";\n\tboolean "+prefix+"set"+i+";\n\t";
+		}
+		return code.substring(0, code.length()-2);
+	}
+	
+	// Reduce expression of an output applied to two values
+	private String applyReduce(Map<String, String> reduceExps, Variable var, String val1, String val2) {
+		return reduceExps.get(var.varName).replaceAll("\\bval1\\b", val1).replaceAll("\\bval2\\b", val2);
+	}
+	
+	// Fold the emits of one input element into the partial results of its partition
+	private String generateFoldEmits(MyWhileExt ext, String type, String prefix) {
+		String code = "";
+		List<Variable> outputs = scalarOutputs(ext, type);
+		Map<String, String> reduceExps = selectedReduceExps(ext);
+		Map<String, List<KvPair>> mapEmits = selectedMapEmits(ext);
+		int emit = 0;
+		for(String cond : mapEmits.keySet()){
+			for(KvPair kvp : mapEmits.get(cond)){
+				int index = outputIndex(kvp, outputs.size());
+				if(index == -1)
+					continue;
+				String out = "acc."+prefix+"out"+index;
+				String set = "acc."+prefix+"set"+index;
+				String value = prefix+"emit"+emit;
+				String fold = type+" "+value+" = "+fixCalls(ext, kvp.values.get(0))+";\n\t\t"
+							+ out+" = "+set+" ? "+applyReduce(reduceExps, outputs.get(index), out, value)+" : "+value+";\n\t\t"
+							+ set+" = true;\n\t\t";
+				if(cond.equals("noCondition"))
+					code += fold;
+				else
+					code += "if("+fixCalls(ext, cond)+"){\n\t\t\t"+fold.substring(0, fold.length()-3).replace("\n\t\t", "\n\t\t\t")+"\n\t\t}\n\t\t";
+				emit++;
+			}
+		}
+		return code.substring(0, code.length()-3);
+	}
+	
+	private String generateCombinePartials(MyWhileExt ext, String type, String prefix) {
+		String code = "";
+		List<Variable> outputs = scalarOutputs(ext, type);
+		Map<String, String> reduceExps = selectedReduceExps(ext);
+		for(int i=0; i<outputs.size(); i++){
+			String out = prefix+"out"+i;
+			String set = prefix+"set"+i;
+			code += "if(acc2."+set+"){\n\t\t\t"
+					+ "acc1."+out+" = acc1."+set+" ? "+applyReduce(reduceExps, outputs.get(i), "acc1."+out, "acc2."+out)+" : acc2."+out+";\n\t\t\t"
+					+ "acc1."+set+" = true;\n\t\t"
+					+ "}\n\t\t";
+		}
+		return code.substring(0, code.length()-3);
+	}
+	
+	// Outputs no element was emitted for keep their value
+	private String generateScalarOutput(MyWhileExt ext, String type, String prefix) {
+		String code = "";
+		List<Variable> outputs = scalarOutputs(ext, type);
+		for(int i=0; i<outputs.size(); i++){
+			code += "if(reduced_<rdd-name>."+prefix+"set"+i+") "+outputs.get(i).varName+" = reduced_<rdd-name>."+prefix+"out"+i+";\n";
+		}
+		return code.substring(0, code.length()-1);
+	}
+	
 	private String generateOutputReconstruction(MyWhileExt ext, String type) {
 		String code = "Map<<map-key-type>, <output-type>> output_<rdd-name> = reduceEmits.collectAsMap();\n";
 		
@@ -335,7 +730,7 @@ public class GenerateSparkCode extends NodeVisitor{
 	private String generateReduceExps(MyWhileExt ext) {
 		int id = 1;
 		String code = "";
-		Map<String, String> reduceExps = ext.verifiedReduceExps.get(ext.selectedSolutionIndex);
+		Map<String, String> reduceExps = selectedReduceExps(ext);
 		for(Variable var : ext.outputVars){
 			if(ext.outVarCount > 1)
 				code += "if(val1._1 == "+id+"){\n\t\treturn new Tuple2(val1._1,"+ reduceExps.get(var.varName).replaceAll("val1", "val1._2").replaceAll("val2", "val2._2") + ");\n\t}\n\t";
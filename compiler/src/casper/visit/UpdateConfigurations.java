@@ -45,6 +45,15 @@ public class UpdateConfigurations extends NodeVisitor {
 				case "LoopUnrollBound":
 					Configuration.loopUnrollBound = Integer.parseInt(keyVal[1]);
 					break;
+				case "MaxInbits":
+					Configuration.maxInbits = Integer.parseInt(keyVal[1]);
+					break;
+				case "MaxIntRange":
+					Configuration.maxIntRange = Integer.parseInt(keyVal[1]);
+					break;
+				case "MaxLoopUnrollBound":
+					Configuration.maxLoopUnrollBound = Integer.parseInt(keyVal[1]);
+					break;
 				case "MaxNumMROps":
 					Configuration.maxNumMROps = Integer.parseInt(keyVal[1]);
 					break;
@@ -57,6 +66,66 @@ public class UpdateConfigurations extends NodeVisitor {
 				case "MaxRecursionDepth":
 					Configuration.maxRecursionDepth = Integer.parseInt(keyVal[1]);
 					break;
+				case "PortfolioSize":
+					Configuration.portfolioSize = Integer.parseInt(keyVal[1]);
+					break;
+				case "GrammarBatchSize":
+					Configuration.grammarBatchSize = Integer.parseInt(keyVal[1]);
+					break;
+				case "FragmentThreads":
+					Configuration.fragmentThreads = Integer.parseInt(keyVal[1]);
+					break;
+				case "Cores":
+					Configuration.cores = Integer.parseInt(keyVal[1]);
+					break;
+				case "TimeBudget":
+					Configuration.timeBudget = Integer.parseInt(keyVal[1]);
+					break;
+				case "CPUBudget":
+					Configuration.cpuBudget = Integer.parseInt(keyVal[1]);
+					break;
+				case "FragmentTimeBudget":
+					Configuration.fragmentTimeBudget = Integer.parseInt(keyVal[1]);
+					break;
+				case "PipelineVerification":
+					Configuration.pipelineVerification = Boolean.parseBoolean(keyVal[1]);
+					break;
+				case "FalsifierTrials":
+					Configuration.falsifierTrials = Integer.parseInt(keyVal[1]);
+					break;
+				case "SynthesisCache":
+					Configuration.synthesisCache = Boolean.parseBoolean(keyVal[1]);
+					break;
+				case "CacheDir":
+					Configuration.cacheDir = keyVal[1];
+					break;
+				case "CacheMaxAgeDays":
+					Configuration.cacheMaxAgeDays = Integer.parseInt(keyVal[1]);
+					break;
+				case "CacheMaxEntries":
+					Configuration.cacheMaxEntries = Integer.parseInt(keyVal[1]);
+					break;
+				case "Checkpoints":
+					Configuration.checkpoints = Boolean.parseBoolean(keyVal[1]);
+					break;
+				case "CheckpointDir":
+					Configuration.checkpointDir = keyVal[1];
+					break;
+				case "GrammarPredictions":
+					Configuration.grammarPredictions = Integer.parseInt(keyVal[1]);
+					break;
+				case "KnowledgeBase":
+					Configuration.knowledgeBase = keyVal[1];
+					break;
+				case "FuseLoops":
+					Configuration.fuseLoops = Boolean.parseBoolean(keyVal[1]);
+					break;
+				case "Telemetry":
+					Configuration.telemetry = Boolean.parseBoolean(keyVal[1]);
+					break;
+				case "TelemetryDir":
+					Configuration.telemetryDir = keyVal[1];
+					break;
 			}
 		}
    	}
@@ -0,0 +1,69 @@
+/*
+ * Tests of Bounds on the sum loop of FalsifierTest: bounds go up one step
+ * at a time within their limits, and a counterexample raises the bound
+ * that hid it from sketch.
+ */
+
+package casper;
+
+import java.util.Set;
+
+import casper.extension.MyWhileExt;
+import casper.types.Variable;
+import casper.types.VariableSet;
+import casper.visit.GenerateScaffold.SearchConfiguration;
+
+public class BoundsTest extends Check {
+
+	public static void main(String[] args) {
+		int trials = Configuration.falsifierTrials;
+		Configuration.falsifierTrials = 200;
+
+		// Steps and limits
+		Bounds bounds = new Bounds(4, 2, 2);
+		check(bounds.raiseIntRange() && bounds.intRange == 8, "int range doubled");
+		check(bounds.raiseInbits() && bounds.inbits == 3, "inbits raised by one");
+		check(bounds.raiseLoopUnrollBound() && bounds.loopUnrollBound == 3, "unroll raised by one");
+		bounds = new Bounds(Configuration.maxIntRange, Configuration.maxInbits, Configuration.arraySizeBound);
+		check(!bounds.raiseIntRange() && !bounds.raiseInbits() && !bounds.raiseLoopUnrollBound(), "bounds at their limits");
+		equal(Configuration.arraySizeBound, bounds.maxLength(), "unrolling within the array size bound");
+		Bounds initial = Bounds.initial();
+		initial.raiseInbits();
+		equal(Configuration.inbits, Bounds.initial().inbits, "raising a fragment's bounds leaves Config.txt's");
+
+		SearchConfiguration conf = new SearchConfiguration();
+		conf.valuesTupleSize = 1;
+		conf.keyTupleSize = 1;
+		conf.stageCount = 1;
+		Set<Variable> outputVars = new VariableSet();
+		outputVars.add(new Variable("sum", "int", "", Variable.VAR));
+
+		// Wrong within the bounds: the int range
+		bounds = new Bounds(4, 2, 2);
+		MyWhileExt ext = FalsifierTest.sumLoop("val1*val2", "0", "val1+val2");
+		check(bounds.raiseFor(counterexample(3, 2), ext, outputVars, "int", conf), "bound raised");
+		equal("int range 8, inbits 2, unroll 2", bounds.toString(), "int range raised");
+
+		// Sums above 6 need more than two values of at most 3: the unroll bound
+		bounds = new Bounds(4, 2, 2);
+		ext = FalsifierTest.sumLoop("casper_math_min(val1+val2,6)", "0", "val1+val2");
+		bounds.raiseFor(counterexample(3, 4), ext, outputVars, "int", conf);
+		equal("int range 4, inbits 2, unroll 3", bounds.toString(), "unroll bound raised");
+
+		// A short input with a large value: inbits
+		bounds = new Bounds(4, 2, 2);
+		bounds.raiseFor(counterexample(500, 1), ext, outputVars, "int", conf);
+		equal("int range 4, inbits 3, unroll 2", bounds.toString(), "inbits raised");
+
+		Configuration.falsifierTrials = trials;
+
+		done("BoundsTest");
+	}
+
+	static Falsifier.Counterexample counterexample(long maxValue, int length) {
+		Falsifier.Counterexample counterexample = new Falsifier.Counterexample();
+		counterexample.maxValue = maxValue;
+		counterexample.length = length;
+		return counterexample;
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Tests of Budget: deadlines, the CPU budget, tool timeouts and the order in
+ * which waiting tool runs get cores.
+ */
+
+package casper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class BudgetTest extends Check {
+
+	public static void main(String[] args) throws Exception {
+		// No budget: no deadline, no timeout
+		Budget.start();
+		equal(Long.MAX_VALUE, Budget.deadline(System.currentTimeMillis()), "deadline without a budget");
+		equal(0L, Budget.timeout(Long.MAX_VALUE, 0), "timeout without a budget");
+		equal(5000L, Budget.timeout(Long.MAX_VALUE, 5000), "timeout of the tool only");
+		check(!Budget.expired(Long.MAX_VALUE), "no budget never expires");
+
+		// The earlier of the run and fragment deadlines
+		Configuration.timeBudget = 100;
+		Configuration.fragmentTimeBudget = 10;
+		Budget.start();
+		long now = System.currentTimeMillis();
+		long deadline = Budget.deadline(now);
+		equal(now + 10000, deadline, "fragment deadline");
+		check(Budget.deadline(now - 1000000) < now, "run deadline");
+		check(Budget.timeout(deadline, 60000) <= 10000, "tool timeout ends at the deadline");
+		check(Budget.expired(now - 1), "deadline passed");
+		Configuration.timeBudget = 0;
+		Configuration.fragmentTimeBudget = 0;
+
+		// CPU budget
+		Configuration.cpuBudget = 2;
+		Budget.start();
+		Budget.chargeCpu(1500);
+		check(!Budget.expired(Long.MAX_VALUE), "cpu budget not spent");
+		Budget.chargeCpu(500);
+		check(Budget.expired(Long.MAX_VALUE), "cpu budget spent");
+		Configuration.cpuBudget = 0;
+
+		// Scarce cores go to the highest priority waiting first
+		Configuration.cores = 1;
+		Budget.start();
+		equal(1, Budget.acquire(4, 0), "grant capped at the pool size");
+		final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for(final int priority : new int[]{ 1, Budget.VERIFIER_PRIORITY, 5 }){
+			Thread thread = new Thread(){
+				public void run() {
+					try {
+						int cores = Budget.acquire(1, priority);
+						order.add(priority);
+						Budget.release(cores);
+					} catch (InterruptedException e) {
+						// Test failure shows in the order
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+			Thread.sleep(100);
+		}
+		Budget.release(1);
+		for(Thread thread : threads)
+			thread.join(5000);
+		equal(Arrays.asList(Budget.VERIFIER_PRIORITY, 5, 1), order, "order cores are granted in");
+		Configuration.cores = 0;
+
+		done("BudgetTest");
+	}
+}
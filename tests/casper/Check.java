@@ -0,0 +1,54 @@
+/*
+ * Checks shared by the unit tests in this directory. A test counts its
+ * failed checks and exits with that number, like ProjectTester.
+ */
+
+package casper;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+public class Check {
+	protected static int checks = 0;
+	protected static int failures = 0;
+
+	protected static void check(boolean ok, String what) {
+		checks++;
+		if(!ok){
+			failures++;
+			System.out.println("  FAILED: " + what);
+		}
+	}
+
+	protected static void equal(Object expected, Object actual, String what) {
+		boolean ok = (expected == null ? actual == null : expected.equals(actual));
+		check(ok, what + " (expected " + expected + ", got " + actual + ")");
+	}
+
+	// Fresh directory, removed when the test exits
+	protected static Path tempDir(String prefix) throws IOException {
+		final Path dir = Files.createTempDirectory(prefix);
+		Runtime.getRuntime().addShutdownHook(new Thread(){
+			public void run() {
+				delete(dir);
+			}
+		});
+		return dir;
+	}
+
+	protected static void delete(Path dir) {
+		try(Stream<Path> files = Files.walk(dir)){
+			files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		} catch (IOException e) {
+			// Left for the system to clean up
+		}
+	}
+
+	protected static void done(String test) {
+		System.out.println(test + ": " + (checks-failures) + " of " + checks + " checks passed");
+		System.exit(failures);
+	}
+}
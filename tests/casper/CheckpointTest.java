@@ -0,0 +1,67 @@
+/*
+ * Tests of Checkpoint: checkpoint files of sources with the same name do not
+ * collide, and a checkpoint is only resumed under the same source, bounds,
+ * grammar limits and compiler.
+ */
+
+package casper;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class CheckpointTest extends Check {
+
+	public static void main(String[] args) throws Exception {
+		Path dir = tempDir("checkpoint");
+		Configuration.checkpointDir = dir.resolve("checkpoints").toString();
+		Path a = Files.createDirectories(dir.resolve("a")).resolve("Sum.java");
+		Path b = Files.createDirectories(dir.resolve("b")).resolve("Sum.java");
+		Files.write(a, "class Sum {}".getBytes(StandardCharsets.UTF_8));
+		Files.write(b, "class Sum {}".getBytes(StandardCharsets.UTF_8));
+
+		check(!Checkpoint.file(a.toString(), 0).equals(Checkpoint.file(b.toString(), 0)), "same name in different directories");
+		check(!Checkpoint.fingerprint(a.toString(), 0).equals(Checkpoint.fingerprint(b.toString(), 0)), "fingerprints of different files");
+		check(!Checkpoint.fingerprint(a.toString(), 0).equals(Checkpoint.fingerprint(a.toString(), 1)), "fingerprints of different fragments");
+
+		// Everything that shapes the search space is part of the fingerprint
+		String fingerprint = Checkpoint.fingerprint(a.toString(), 0);
+		Configuration.maxNumEmits++;
+		check(!fingerprint.equals(Checkpoint.fingerprint(a.toString(), 0)), "grammar limits in the fingerprint");
+		Configuration.maxNumEmits--;
+		Configuration.maxInbits++;
+		check(!fingerprint.equals(Checkpoint.fingerprint(a.toString(), 0)), "bound limits in the fingerprint");
+		Configuration.maxInbits--;
+		Configuration.inbits++;
+		check(!fingerprint.equals(Checkpoint.fingerprint(a.toString(), 0)), "bounds in the fingerprint");
+		Configuration.inbits--;
+		equal(fingerprint, Checkpoint.fingerprint(a.toString(), 0), "fingerprint of the same fragment");
+
+		// Off by default: nothing is written or read
+		check(!Configuration.checkpoints, "checkpoints off by default");
+		String file = Checkpoint.file(a.toString(), 0);
+		Checkpoint checkpoint = Checkpoint.load(file, fingerprint);
+		checkpoint.save(file, "int", finished());
+		check(!Files.exists(dir.resolve("checkpoints")), "no checkpoint written when off");
+
+		// Round trip
+		Configuration.checkpoints = true;
+		checkpoint = Checkpoint.load(file, fingerprint);
+		equal(0, checkpoint.types.size(), "no checkpoint yet");
+		checkpoint.save(file, "int", finished());
+		check(Checkpoint.load(file, fingerprint).types.get("int").finished, "checkpoint resumed");
+		equal(0, Checkpoint.load(file, Checkpoint.fingerprint(b.toString(), 0)).types.size(), "checkpoint of another fragment ignored");
+
+		Files.write(a, "class Sum { int x; }".getBytes(StandardCharsets.UTF_8));
+		equal(0, Checkpoint.load(file, Checkpoint.fingerprint(a.toString(), 0)).types.size(), "checkpoint of an edited file ignored");
+		Configuration.checkpoints = false;
+
+		done("CheckpointTest");
+	}
+
+	static Checkpoint.TypeState finished() {
+		Checkpoint.TypeState state = new Checkpoint.TypeState();
+		state.finished = true;
+		return state;
+	}
+}
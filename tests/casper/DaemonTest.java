@@ -0,0 +1,75 @@
+/*
+ * Tests of the reuse decisions of Daemon: a file is compiled again when it,
+ * a file it was compiled with, the flags, Config.txt or a template changes.
+ */
+
+package casper;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DaemonTest extends Check {
+
+	public static void main(String[] args) throws Exception {
+		Path dir = tempDir("daemon");
+		Path config = write(dir.resolve("Config.txt"), "Inbits=2,");
+		Path templates = Files.createDirectories(dir.resolve("templates"));
+		write(templates.resolve("main_skeleton.sk"), "harness void main(){}");
+		String a = write(dir.resolve("A.java"), "class A {}").toString();
+		String b = write(dir.resolve("B.java"), "class B {}").toString();
+		String c = write(dir.resolve("C.java"), "class C {}").toString();
+		List<String> flags = Arrays.asList("-nooutput");
+
+		String environment = Daemon.environment(flags, config, templates);
+		equal(environment, Daemon.environment(flags, config, templates), "environment of the same inputs");
+		check(!environment.equals(Daemon.environment(Arrays.asList("-stdout"), config, templates)), "flags are part of the environment");
+
+		// A and B compiled together, C on its own
+		equal(Arrays.asList(a, b, c), Daemon.stale(Arrays.asList(a, b, c), environment), "nothing compiled yet");
+		compiled(Arrays.asList(a, b), environment, 0);
+		compiled(Arrays.asList(c), environment, 0);
+		equal(Collections.emptyList(), Daemon.stale(Arrays.asList(a, b, c), environment), "unchanged files reused");
+
+		// Changing A also recompiles B, whose output came from the same run
+		write(Paths.get(a), "class A { int x; }");
+		equal(Arrays.asList(a, b), Daemon.stale(Arrays.asList(a, b, c), environment), "files compiled with a changed file");
+		compiled(Arrays.asList(a, b), environment, 0);
+		equal(Collections.emptyList(), Daemon.stale(Arrays.asList(a, b, c), environment), "recompiled files reused");
+
+		// Configuration and templates
+		write(config, "Inbits=3,");
+		String changed = Daemon.environment(flags, config, templates);
+		check(!environment.equals(changed), "Config.txt is part of the environment");
+		equal(Arrays.asList(a, b, c), Daemon.stale(Arrays.asList(a, b, c), changed), "all files after a configuration change");
+		write(config, "Inbits=2,");
+		write(templates.resolve("main_skeleton.sk"), "harness void main(int x){}");
+		check(!environment.equals(Daemon.environment(flags, config, templates)), "templates are part of the environment");
+
+		// Failed compiles are not remembered
+		compiled(Arrays.asList(c), environment, 1);
+		equal(Arrays.asList(c), Daemon.stale(Arrays.asList(c), environment), "failed file compiled again");
+
+		done("DaemonTest");
+	}
+
+	static void compiled(List<String> sources, String environment, int exitCode) throws Exception {
+		Map<String,String> hashes = new HashMap<String,String>();
+		for(String source : sources){
+			hashes.put(source, SynthesisCache.hash(new String(Files.readAllBytes(Paths.get(source)), StandardCharsets.UTF_8)));
+		}
+		Daemon.Result result = new Daemon.Result();
+		result.exitCode = exitCode;
+		Daemon.remember(sources, hashes, environment, result);
+	}
+
+	static Path write(Path file, String text) throws Exception {
+		return Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Tests of Falsifier on the summary of a sum loop,
+ *
+ *   for(int i=0; i<a.length; i++) sum += a[i];
+ *
+ * built by hand the way GenerateVerification and SketchParser fill in the
+ * loop extension. The conditions tested are the ones DafnyCodeGenerator
+ * emits for it.
+ */
+
+package casper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+
+import casper.extension.MyWhileExt;
+import casper.types.ArrayAccessNode;
+import casper.types.BinaryOperatorNode;
+import casper.types.CallNode;
+import casper.types.ConstantNode;
+import casper.types.CustomASTNode;
+import casper.types.IdentifierNode;
+import casper.types.MRStage;
+import casper.types.Variable;
+import casper.types.VariableSet;
+import casper.visit.GenerateScaffold.SearchConfiguration;
+
+public class FalsifierTest extends Check {
+
+	public static void main(String[] args) {
+		int trials = Configuration.falsifierTrials;
+		Configuration.falsifierTrials = 200;
+
+		SearchConfiguration conf = new SearchConfiguration();
+		conf.valuesTupleSize = 1;
+		conf.keyTupleSize = 1;
+		conf.stageCount = 1;
+
+		Set<Variable> outputVars = new VariableSet();
+		outputVars.add(new Variable("sum", "int", "", Variable.VAR));
+
+		// The correct summary is never rejected
+		MyWhileExt ext = sumLoop("val1+val2", "0", "val1+val2");
+		equal(null, Falsifier.findCounterexample(ext, outputVars, "int", conf), "counterexample for a correct summary");
+
+		// Wrong reducer
+		ext = sumLoop("val1*val2", "0", "val1+val2");
+		Falsifier.Counterexample counterexample = Falsifier.findCounterexample(ext, outputVars, "int", conf);
+		check(counterexample != null, "product rejected");
+		check(counterexample != null && counterexample.toString().contains("loop invariant does not hold"), "failure described: " + counterexample);
+
+		// Wrong initial value: wrong before the loop already
+		ext = sumLoop("val1+val2", "1", "val1+val2");
+		counterexample = Falsifier.findCounterexample(ext, outputVars, "int", conf);
+		check(counterexample != null && counterexample.toString().contains("before the loop"), "initial value rejected: " + counterexample);
+
+		// Only wrong on values above 3: passes within sketch's bounds, fails outside them
+		ext = sumLoop("val1+(val2 % 4)", "0", "val1+val2");
+		check(Falsifier.findCounterexample(ext, outputVars, "int", conf, 3, 4) == null, "no counterexample within the bounds");
+		counterexample = Falsifier.findCounterexample(ext, outputVars, "int", conf);
+		check(counterexample != null && counterexample.maxValue > 3, "counterexample outside the bounds: " + counterexample);
+
+		// Summaries the falsifier does not handle are left to dafny
+		ext = sumLoop("val1*val2", "0", "val1+val2");
+		ext.solution.add(ext.solution.get(0));
+		equal(null, Falsifier.findCounterexample(ext, outputVars, "int", conf), "two stage summary inconclusive");
+
+		// Disabled
+		Configuration.falsifierTrials = 0;
+		ext = sumLoop("val1*val2", "0", "val1+val2");
+		equal(null, Falsifier.findCounterexample(ext, outputVars, "int", conf), "counterexample when disabled");
+		Configuration.falsifierTrials = trials;
+
+		done("FalsifierTest");
+	}
+
+	// Extension of the sum loop with the given summary: sum = merge(reduce(init, a[0..i]), sum0)
+	static MyWhileExt sumLoop(String reduce, String init, String merge) {
+		MyWhileExt ext = new MyWhileExt();
+		Variable a = new Variable("a", "int[]", "", Variable.VAR);
+		Variable i = new Variable("i", "int", "", Variable.VAR);
+		Variable sum = new Variable("sum", "int", "", Variable.VAR);
+
+		ext.inputVars.add(a);
+		ext.outputVars.add(sum);
+		ext.loopCounters.add(i);
+		ext.mainLoopCounter = i;
+		ext.inputDataSet = a;
+		ext.initVals.put("sum", new ConstantNode("0", "int", ConstantNode.INTLIT));
+		ext.initVals.put("i", new ConstantNode("0", "int", ConstantNode.INTLIT));
+		ext.postConditionArgsOrder.put("int", Arrays.asList("sum", "i"));
+
+		// loopInvariant(a, sum, sum0, i, i0) before the loop, and after the body
+		// sum = sum + a[i]; i = i + 1
+		CustomASTNode data = new IdentifierNode("casper_data_set", "int[]");
+		ext.preConditions.put("int", call(data, id("sum0"), id("sum0"), id("i0"), id("i0")));
+		ext.invariants.put("int", call(data, id("sum"), id("sum0"), id("i"), id("i0")));
+		ext.wpcs.put("int", call(data, new BinaryOperatorNode("+", "int", id("sum"), new ArrayAccessNode("int", data, id("i"))),
+				id("sum0"), new BinaryOperatorNode("+", "int", id("i"), new ConstantNode("1", "int", ConstantNode.INTLIT)), id("i0")));
+
+		MRStage stage = new MRStage();
+		stage.stageType = 1;
+		stage.reduceExps = new HashMap<String,String>();
+		stage.reduceExps.put("sum", reduce);
+		stage.initExps = new HashMap<String,String>();
+		stage.initExps.put("sum", init);
+		stage.mergeExps = new HashMap<String,String>();
+		stage.mergeExps.put("sum", merge);
+		ext.solution = new ArrayList<MRStage>();
+		ext.solution.add(stage);
+
+		return ext;
+	}
+
+	static CustomASTNode id(String name) {
+		return new IdentifierNode(name, "int");
+	}
+
+	static CustomASTNode call(CustomASTNode... args) {
+		return new CallNode("loopInvariant", "bit", new ArrayList<CustomASTNode>(Arrays.asList(args)));
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Tests of GrammarKnowledge: solving a fragment again replaces its entry,
+ * similar fragments predict the grammar that solved them, and casperc
+ * processes recording at the same time do not lose each other's entries.
+ */
+
+package casper;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import casper.visit.GenerateScaffold.SearchConfiguration;
+
+public class GrammarKnowledgeTest extends Check {
+
+	public static void main(String[] args) throws Exception {
+		// Child process: record the given number of fragments
+		if(args.length > 0){
+			Configuration.knowledgeBase = args[0];
+			for(int i=0; i<Integer.parseInt(args[2]); i++)
+				GrammarKnowledge.record(args[1] + i + ":int", features("+"), conf(1, 1));
+			return;
+		}
+
+		Path dir = tempDir("knowledge");
+		Configuration.knowledgeBase = dir.resolve("knowledge.txt").toString();
+
+		// Off by default
+		check(Configuration.grammarPredictions == 0, "predictions off by default");
+		GrammarKnowledge.record("Sum_1:0:int", features("+"), conf(1, 1));
+		equal(0, GrammarKnowledge.predict(features("+"), 1).size(), "no predictions when off");
+
+		// Solving a fragment again replaces its entry
+		Configuration.grammarPredictions = 3;
+		GrammarKnowledge.record("Sum_1:0:int", features("+"), conf(1, 2));
+		equal(1, GrammarKnowledge.load().size(), "one entry per fragment");
+		List<SearchConfiguration> predicted = GrammarKnowledge.predict(features("+"), 1);
+		check(predicted.size() == 1 && predicted.get(0).emitCount == 2, "prediction from the last entry");
+		GrammarKnowledge.record("Max_2:0:int", features("+ <"), conf(2, 1));
+		predicted = GrammarKnowledge.predict(features("<"), 1);
+		check(predicted.size() == 2 && predicted.get(0).stageCount == 2, "most similar fragment first");
+		equal(0, GrammarKnowledge.predict(features("+"), 3).size(), "grammars with too few keys left out");
+
+		// Replaced entries are compacted away
+		for(int i=0; i<20; i++)
+			GrammarKnowledge.record("Sum_1:0:int", features("+"), conf(1, 1 + i % 2));
+		check(Files.readAllLines(dir.resolve("knowledge.txt")).size() <= 4, "replaced entries compacted");
+		equal(2, GrammarKnowledge.load().size(), "entries after compaction");
+
+		// A line still being written is skipped
+		Files.write(dir.resolve("knowledge.txt"), "Avg_3:0:int\t1,".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+		equal(2, GrammarKnowledge.load().size(), "partial line skipped");
+		Files.write(dir.resolve("knowledge.txt"), "\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+		// Processes recording at the same time
+		List<Process> children = new ArrayList<Process>();
+		for(int p=0; p<4; p++){
+			children.add(new ProcessBuilder(System.getProperty("java.home") + "/bin/java", "-cp", System.getProperty("java.class.path"),
+					"casper.GrammarKnowledgeTest", Configuration.knowledgeBase, "P" + p + "_", "25").inheritIO().start());
+		}
+		for(Process child : children)
+			equal(0, child.waitFor(), "child exit code");
+		equal(102, GrammarKnowledge.load().size(), "entries of all processes kept");
+		Configuration.grammarPredictions = 0;
+
+		done("GrammarKnowledgeTest");
+	}
+
+	static Map<String,String> features(String binary) {
+		Map<String,String> features = new LinkedHashMap<String,String>();
+		features.put("output", "int");
+		features.put("conditionals", "false");
+		features.put("binary", binary);
+		return features;
+	}
+
+	static SearchConfiguration conf(int stageCount, int emitCount) {
+		SearchConfiguration conf = new SearchConfiguration();
+		conf.stageCount = stageCount;
+		conf.emitCount = emitCount;
+		conf.keyTupleSize = 1;
+		conf.valuesTupleSize = 1;
+		conf.recursionDepth = 1;
+		return conf;
+	}
+}
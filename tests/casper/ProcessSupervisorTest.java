@@ -0,0 +1,70 @@
+/*
+ * Tests of ProcessSupervisor: output redirection, exit codes, CPU time and
+ * killing the whole process tree on timeout.
+ */
+
+package casper;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class ProcessSupervisorTest extends Check {
+
+	public static void main(String[] args) throws Exception {
+		Path dir = tempDir("supervisor");
+
+		// Output goes to the file, the exit code is passed on
+		Path script = write(dir, "echo.sh", "echo hello\necho noise 1>&2\nexit 3\n");
+		Path output = dir.resolve("out.txt");
+		ProcessSupervisor.Result result = ProcessSupervisor.run("sh " + script, output.toString(), 10000);
+		equal(3, result.exitCode, "exit code");
+		check(!result.timedOut, "finished in time");
+		equal("hello", new String(Files.readAllBytes(output), StandardCharsets.UTF_8).trim(), "stdout in the output file");
+
+		// Output without a file is discarded
+		result = ProcessSupervisor.run("sh " + script, null, 10000);
+		equal(3, result.exitCode, "exit code with discarded output");
+
+		// CPU time of the child processes is counted (sampled once a second, so the
+		// child runs for a few seconds)
+		script = write(dir, "busy.sh", "sh -c 'i=0; while [ $i -lt 1500000 ]; do i=$((i+1)); done'\n");
+		result = ProcessSupervisor.run("sh " + script, null, 60000);
+		equal(0, result.exitCode, "busy exit code");
+		check(result.cpuTimeMillis > 0, "cpu time of a busy child (" + result + ")");
+
+		// A timeout kills the tool and the processes it started
+		Path pidFile = dir.resolve("child.pid");
+		script = write(dir, "sleep.sh", "sleep 30 &\necho $! > " + pidFile + "\nsleep 30\n");
+		long start = System.currentTimeMillis();
+		result = ProcessSupervisor.run("sh " + script, null, 1500);
+		check(result.timedOut, "timed out");
+		check(System.currentTimeMillis() - start < 10000, "killed at the timeout");
+		String child = new String(Files.readAllBytes(pidFile), StandardCharsets.UTF_8).trim();
+		Thread.sleep(200);
+		check(!alive(child), "background child " + child + " killed");
+
+		// ps times
+		equal(61500L, ProcessSupervisor.cpuTime("01:01.5"), "ps time m:s.cc");
+		equal(3723000L, ProcessSupervisor.cpuTime("01:02:03"), "ps time h:m:s");
+		equal(86400000L + 3723000L, ProcessSupervisor.cpuTime("1-01:02:03"), "ps time with days");
+
+		done("ProcessSupervisorTest");
+	}
+
+	static Path write(Path dir, String name, String text) throws Exception {
+		Path file = dir.resolve(name);
+		Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	static boolean alive(String pid) throws Exception {
+		if(new File("/proc/self/stat").exists()){
+			File stat = new File("/proc/" + pid + "/stat");
+			// Zombies are dead but not yet reaped
+			return stat.exists() && !new String(Files.readAllBytes(stat.toPath()), StandardCharsets.US_ASCII).contains(") Z ");
+		}
+		return new ProcessBuilder("kill", "-0", pid).start().waitFor() == 0;
+	}
+}
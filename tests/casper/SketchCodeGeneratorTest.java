@@ -0,0 +1,77 @@
+/*
+ * Tests of SketchCodeGenerator on the sum loop of FalsifierTest: the parts
+ * of the scaffold that do not depend on the search configuration are
+ * generated once per reduce type, and reusing them gives the scaffold a
+ * fresh generation gives. A batched scaffold prefers its first grammar.
+ */
+
+package casper;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+
+import casper.extension.MyWhileExt;
+import casper.types.Variable;
+import casper.types.VariableSet;
+import casper.visit.GenerateScaffold.SearchConfiguration;
+
+public class SketchCodeGeneratorTest extends Check {
+
+	public static void main(String[] args) throws Exception {
+		Path dir = tempDir("sketch-generator");
+		Set<Variable> outputVars = new VariableSet();
+		outputVars.add(new Variable("sum", "int", "", Variable.VAR));
+		SearchConfiguration first = conf(1, 1);
+		SearchConfiguration second = conf(2, 2);
+
+		// Fixed slots generated for the first grammar and reused for the next
+		MyWhileExt ext = sumLoop();
+		String scaffold = scaffold(dir, ext, outputVars, first);
+		equal(1, ext.scaffoldSlots.size(), "fixed slots of one reduce type");
+		Object slots = ext.scaffoldSlots.values().iterator().next();
+		String next = scaffold(dir, ext, outputVars, second);
+		check(ext.scaffoldSlots.values().iterator().next() == slots, "fixed slots reused");
+		check(!scaffold.equals(next), "grammar follows the configuration");
+		equal(scaffold(dir, sumLoop(), outputVars, second), next, "scaffold with reused slots");
+		equal(scaffold(dir, sumLoop(), outputVars, first), scaffold(dir, ext, outputVars, first), "first scaffold again");
+		check(!next.contains("<post-cond-body>") && !next.contains("<map-args-decl>"), "all slots filled");
+
+		// A batch: the selector hole is minimized, so the first grammar with a solution wins
+		SketchCodeGenerator.generateBatchedScaffold(dir.toString(), 0, sumLoop(), outputVars, "int", "int", Arrays.asList(first, second, conf(3, 1)));
+		String batch = new String(Files.readAllBytes(dir.resolve("main_int_0.sk")), StandardCharsets.UTF_8);
+		check(batch.contains("assert g < 3;") && batch.contains("minimize(g);"), "selector bounded and minimized");
+		for(int k=0; k<3; k++)
+			check(batch.contains("postCondition" + SketchCodeGenerator.grammarSuffix(k) + "("), "grammar " + k + " in the batch");
+
+		done("SketchCodeGeneratorTest");
+	}
+
+	static SearchConfiguration conf(int emitCount, int recursionDepth) {
+		SearchConfiguration conf = new SearchConfiguration();
+		conf.stageCount = 1;
+		conf.emitCount = emitCount;
+		conf.keyTupleSize = 1;
+		conf.valuesTupleSize = 1;
+		conf.recursionDepth = recursionDepth;
+		conf.keyType = "int";
+		return conf;
+	}
+
+	static MyWhileExt sumLoop() {
+		MyWhileExt ext = FalsifierTest.sumLoop("val1+val2", "0", "val1+val2");
+		ext.postConditions.put("int", FalsifierTest.call(FalsifierTest.id("sum")));
+		ext.globalDataTypes = new ArrayList<String>();
+		ext.globalDataTypesFields = new HashMap<String,Set<Variable>>();
+		return ext;
+	}
+
+	static String scaffold(Path dir, MyWhileExt ext, Set<Variable> outputVars, SearchConfiguration conf) throws Exception {
+		SketchCodeGenerator.generateScaffold(dir.toString(), 0, ext, outputVars, "int", "int", conf);
+		return new String(Files.readAllBytes(dir.resolve("main_int_0.sk")), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Tests of SketchOutput and SketchParser: temporaries are resolved to the
+ * definition that reaches them, compound values keep their precedence, and
+ * a two stage solution is parsed from the output Sketch prints.
+ */
+
+package casper;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import casper.JavaLibModel.SketchCall;
+import casper.SketchParser.KvPair;
+import casper.extension.MyWhileExt;
+import casper.types.MRStage;
+import casper.types.Variable;
+import casper.visit.GenerateScaffold.SearchConfiguration;
+
+public class SketchOutputTest extends Check {
+
+	static final String SOLUTION =
+		"SKETCH version 1.7.5\n" +
+		"Benchmark = main.sk (log line with an unbalanced ( paren\n" +
+		"/* main.sk:1 */\n" +
+		"void mapreduce_0 (int[10] casper_data_set, ref int sum)/*main.sk:40*/\n" +
+		"{\n" +
+		"  stageTypes__ANONYMOUSs12[0] = 0;\n" +
+		"}\n" +
+		"void mapreduce_1 (int[10] casper_data_set, ref int sum)\n" +
+		"{\n" +
+		"  stageTypes__ANONYMOUSs12[1] = 1;\n" +
+		"}\n" +
+		"void do_map_0 (int i, int[10] casper_data_set, ref int[2] keys0, ref int[2] values0)\n" +
+		"{\n" +
+		"  int _out_s1 = casper_data_set[i];\n" +
+		"  int _pac_s2 = _out_s1 + 1;\n" +
+		"  keys0[0] = 1;\n" +
+		"  values0[0] = _pac_s2 * 2;\n" +
+		"  _out_s1 = 7;\n" +
+		"  if(casper_data_set[i] > _out_s1)\n" +
+		"  {\n" +
+		"    keys0[1] = 1;\n" +
+		"    values0[1] = ((casper_data_set[i] - 1) * (3 + i));\n" +
+		"  }\n" +
+		"}\n" +
+		"void reduce_1_sum (int val1, int val2, ref int _out)\n" +
+		"{\n" +
+		"  int _s3 = val2 - val1;\n" +
+		"  _out = 0 - _s3;\n" +
+		"}\n" +
+		"void init_sum (ref int _out)\n" +
+		"{\n" +
+		"  _out = 0;\n" +
+		"}\n" +
+		"void merge_sum (int val1, int val2, ref int _out)\n" +
+		"{\n" +
+		"  _out = val1 + val2;\n" +
+		"}\n";
+
+	public static void main(String[] args) throws Exception {
+		SketchOutput output = new SketchOutput(SOLUTION, new HashSet<SketchCall>());
+		equal(new HashSet<String>(Arrays.asList("mapreduce_0", "mapreduce_1", "do_map_0", "reduce_1_sum", "init_sum", "merge_sum")), output.functionNames(), "functions found past the log lines");
+		check(output.function("missing") == null, "missing function");
+
+		// Each use resolves to the definition that reaches it
+		SketchOutput.Function map = output.function("do_map_0");
+		equal("(casper_data_set[i]+1)*2", map.resolve(3), "compound temporary parenthesized");
+		equal("casper_data_set[i]>7", map.resolve(5), "later definition of a temporary");
+		equal("((casper_data_set[i]-1)*(3+i))", map.resolve(7), "nested parentheses");
+
+		// Long chains of temporaries are resolved once each
+		StringBuilder chain = new StringBuilder("void f (int x, ref int _out)\n{\n  int _t0 = x;\n");
+		for(int i=1; i<2000; i++)
+			chain.append("  int _t" + i + " = _t" + (i-1) + " + 1;\n");
+		chain.append("  _out = _t1999;\n}\n");
+		long start = System.currentTimeMillis();
+		SketchOutput.Function f = new SketchOutput(chain.toString(), new HashSet<SketchCall>()).function("f");
+		String value = f.resolve(f.lastAssignment("_out"));
+		equal(1999, value.split("\\+1", -1).length - 1, "chain of 2000 temporaries");
+		check(System.currentTimeMillis() - start < 5000, "chain resolved in " + (System.currentTimeMillis() - start) + "ms");
+
+		// A whole solution
+		Path dir = tempDir("sketch-output");
+		Path file = dir.resolve("main.txt");
+		Files.write(file, SOLUTION.getBytes(StandardCharsets.UTF_8));
+		Set<Variable> outputVars = new LinkedHashSet<Variable>();
+		outputVars.add(new Variable("sum", "int", "", Variable.VAR));
+		SearchConfiguration conf = new SearchConfiguration();
+		conf.stageCount = 2;
+		conf.emitCount = 2;
+		conf.valuesTupleSize = 1;
+		MyWhileExt ext = new MyWhileExt();
+		SketchParser.parseSolution(file.toString(), outputVars, ext, conf);
+
+		equal(2, ext.solution.size(), "stages");
+		MRStage mapStage = ext.solution.get(0);
+		equal(0, mapStage.stageType, "map stage");
+		List<KvPair> unconditional = mapStage.mapEmits.get("noCondition");
+		equal(1, unconditional.size(), "unconditional emits");
+		equal("1", unconditional.get(0).keys.get(0), "key of the unconditional emit");
+		equal("(casper_data_set[i]+1)*2", unconditional.get(0).values.get(0), "value of the unconditional emit");
+		List<KvPair> conditional = mapStage.mapEmits.get("casper_data_set[i]>7");
+		check(conditional != null && conditional.size() == 1 && conditional.get(0).index == 1, "emit under its condition");
+
+		MRStage reduceStage = ext.solution.get(1);
+		equal(1, reduceStage.stageType, "reduce stage");
+		equal("(0-(val2-val1))", reduceStage.reduceExps.get("sum"), "reduce expression");
+		equal("0", reduceStage.initExps.get("sum"), "init expression");
+		equal("val1+val2", reduceStage.mergeExps.get("sum"), "merge expression");
+
+		done("SketchOutputTest");
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * SynthesisCache: keys follow the scaffold and its includes, only definitive
+ * verdicts are stored, and entries are dropped by age and by count.
+ */
+
+package casper;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+
+import casper.visit.GenerateScaffold.SearchConfiguration;
+
+public class SynthesisCacheTest extends Check {
+
+	public static void main(String[] args) throws Exception {
+		Path dir = tempDir("cache_test");
+		Configuration.cacheDir = dir.resolve("cache").toString();
+		Path output = dir.resolve("out.txt");
+
+		// Off by default: nothing is stored or replayed
+		Configuration.synthesisCache = false;
+		SynthesisCache.storeDafny("dafny_off", 0);
+		equal(null, SynthesisCache.lookup("dafny_off", null), "lookup with the cache off");
+
+		Configuration.synthesisCache = true;
+
+		// Keys follow the scaffold, the files it includes and the bounds
+		Path utils = dir.resolve("utils.sk");
+		Path scaffold = dir.resolve("main.sk");
+		Files.write(utils, "int f() { return 1; }".getBytes(StandardCharsets.UTF_8));
+		Files.write(scaffold, ("include \"" + utils + "\";\nharness void main() {}").getBytes(StandardCharsets.UTF_8));
+		SearchConfiguration conf = new SearchConfiguration();
+		Bounds bounds = new Bounds(4, 2, 4);
+		String key = SynthesisCache.sketchKey(scaffold.toString(), conf, bounds);
+		equal(key, SynthesisCache.sketchKey(scaffold.toString(), conf, new Bounds(bounds)), "key of the same scaffold");
+		check(!key.equals(SynthesisCache.sketchKey(scaffold.toString(), conf, new Bounds(8, 2, 4))), "key changes with the bounds");
+		Files.write(utils, "int f() { return 2; }".getBytes(StandardCharsets.UTF_8));
+		check(!key.equals(SynthesisCache.sketchKey(scaffold.toString(), conf, bounds)), "key changes with an included file");
+
+		// A solution is replayed with its output
+		Files.write(output, "solution\n[SKETCH] DONE".getBytes(StandardCharsets.UTF_8));
+		SynthesisCache.storeSketch("sketch_sat", 0, output.toString());
+		Files.delete(output);
+		equal(0, SynthesisCache.lookup("sketch_sat", output.toString()), "cached solution");
+		equal("solution\n[SKETCH] DONE", new String(Files.readAllBytes(output), StandardCharsets.UTF_8), "replayed sketch output");
+
+		// Sketch proving there is no solution is cached, a crash is not
+		Files.write(output, "[SKETCH] The sketch could not be resolved.".getBytes(StandardCharsets.UTF_8));
+		SynthesisCache.storeSketch("sketch_unsat", 1, output.toString());
+		equal(1, SynthesisCache.lookup("sketch_unsat", null), "cached unsatisfiable scaffold");
+		Files.write(output, "java.lang.OutOfMemoryError".getBytes(StandardCharsets.UTF_8));
+		SynthesisCache.storeSketch("sketch_crash", 1, output.toString());
+		equal(null, SynthesisCache.lookup("sketch_crash", null), "sketch crash");
+		SynthesisCache.storeSketch("sketch_killed", 137, dir.resolve("missing.txt").toString());
+		equal(null, SynthesisCache.lookup("sketch_killed", null), "killed sketch without output");
+
+		// Dafny verdicts are cached, timeouts and a missing binary are not
+		SynthesisCache.storeDafny("dafny_verified", 0);
+		SynthesisCache.storeDafny("dafny_rejected", 4);
+		SynthesisCache.storeDafny("dafny_timeout", 3);
+		SynthesisCache.storeDafny("dafny_missing", 127);
+		equal(0, SynthesisCache.lookup("dafny_verified", null), "verified summary");
+		equal(4, SynthesisCache.lookup("dafny_rejected", null), "rejected summary");
+		equal(null, SynthesisCache.lookup("dafny_timeout", null), "dafny timeout");
+		equal(null, SynthesisCache.lookup("dafny_missing", null), "missing dafny");
+
+		// Entries unused for longer than the age limit are dropped
+		Configuration.cacheMaxAgeDays = 30;
+		Path old = dir.resolve("cache").resolve("dafny_rejected");
+		Files.setLastModifiedTime(old, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(31)));
+		equal(null, SynthesisCache.lookup("dafny_rejected", null), "expired entry");
+		check(!Files.exists(old), "expired entry deleted");
+
+		// Beyond the size limit the least recently used entries go first
+		Configuration.cacheMaxEntries = 10;
+		for(int i=0; i<20; i++){
+			SynthesisCache.storeDafny("dafny_" + i, 0);
+			Files.setLastModifiedTime(dir.resolve("cache").resolve("dafny_" + i), FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(40-i)));
+		}
+		SynthesisCache.reset();
+		SynthesisCache.storeDafny("dafny_new", 0);
+		long entries = Files.list(dir.resolve("cache")).count();
+		check(entries <= Configuration.cacheMaxEntries, "cache pruned to the size limit (" + entries + " entries)");
+		equal(0, SynthesisCache.lookup("dafny_new", null), "newest entry kept");
+		equal(0, SynthesisCache.lookup("dafny_19", null), "recently used entry kept");
+		equal(null, SynthesisCache.lookup("dafny_0", null), "least recently used entry evicted");
+
+		done("SynthesisCacheTest");
+	}
+}
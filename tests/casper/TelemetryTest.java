@@ -0,0 +1,68 @@
+/*
+ * Tests of Telemetry: events are buffered and written at the end of a
+ * pass, summaries of sources with the same name do not collide, and
+ * nothing is written by default.
+ */
+
+package casper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class TelemetryTest extends Check {
+
+	public static void main(String[] args) throws Exception {
+		Path dir = tempDir("telemetry");
+		Configuration.telemetryDir = dir.toString();
+		Path events = dir.resolve("events.jsonl");
+
+		// Off by default
+		check(!Configuration.telemetry, "telemetry off by default");
+		Telemetry.pass("ParserPass", "a/Sum.java", 1, true);
+		Telemetry.trace("a/Sum.java", 0).outcome("int", "solved");
+		Telemetry.summary("a/Sum.java");
+		check(!Files.exists(dir.resolve("events.jsonl")), "no events written when off");
+		equal(0, dir.toFile().list().length, "no summary written when off");
+
+		// Events are buffered until the end of the pass
+		Configuration.telemetry = true;
+		Telemetry.Trace a = Telemetry.trace("a/Sum.java", 0);
+		a.blocked(2, 2);
+		a.outcome("int", "solved");
+		check(!Files.exists(events) || Files.size(events) == 0, "fragment events buffered");
+		Telemetry.pass("GenerateScaffold", "a/Sum.java", 10, true);
+		List<String> lines = Files.readAllLines(events, StandardCharsets.UTF_8);
+		equal(3, lines.size(), "events written at the end of the pass");
+		check(lines.get(0).contains("\"event\":\"blocked\"") && lines.get(0).contains("\"fragment\":0"), "fragment event: " + lines.get(0));
+		check(lines.get(2).contains("\"event\":\"pass\"") && lines.get(2).contains("\"source\":\"a/Sum.java\""), "pass event: " + lines.get(2));
+
+		// Summaries of sources with the same name
+		// (the summaries printed are captured rather than cluttering the test output)
+		Telemetry.trace("b/Sum.java", 0).outcome("int", "exhausted");
+		PrintStream err = System.err;
+		ByteArrayOutputStream printed = new ByteArrayOutputStream();
+		System.setErr(new PrintStream(printed, true, "UTF-8"));
+		try {
+			Telemetry.summary("a/Sum.java");
+			Telemetry.summary("b/Sum.java");
+		} finally {
+			System.setErr(err);
+		}
+		Path summaryA = dir.resolve(WorkDirectory.sourceKey("a/Sum.java") + "_summary.txt");
+		Path summaryB = dir.resolve(WorkDirectory.sourceKey("b/Sum.java") + "_summary.txt");
+		check(!summaryA.equals(summaryB), "summary files differ");
+		String savedA = new String(Files.readAllBytes(summaryA), StandardCharsets.UTF_8);
+		String savedB = new String(Files.readAllBytes(summaryB), StandardCharsets.UTF_8);
+		check(savedA.contains("int: solved") && !savedA.contains("exhausted"), "summary of a/Sum.java");
+		check(savedB.contains("int: exhausted") && !savedB.contains("solved"), "summary of b/Sum.java");
+		check(printed.toString("UTF-8").contains(savedA) && printed.toString("UTF-8").contains(savedB), "saved summaries are the ones printed");
+		equal(4, Files.readAllLines(events, StandardCharsets.UTF_8).size(), "events written with the summary");
+		Configuration.telemetry = false;
+
+		done("TelemetryTest");
+	}
+}
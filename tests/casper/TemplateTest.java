@@ -0,0 +1,62 @@
+/*
+ * Tests of Template: rendering a compiled template gives what the chain of
+ * String.replace calls it replaced gave, the compiled form is shared and
+ * only recompiled when the file changes, and slots inside values are filled.
+ */
+
+package casper;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class TemplateTest extends Check {
+
+	public static void main(String[] args) throws Exception {
+		// Every shipped template, every slot filled
+		Pattern slot = Pattern.compile("<([a-z][a-z0-9-]*)>");
+		for(File file : new File("templates").listFiles()){
+			String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+			Map<String,String> values = new HashMap<String,String>();
+			String replaced = text;
+			Matcher m = slot.matcher(text);
+			while(m.find()){
+				if(!values.containsKey(m.group(1))){
+					String value = "/*" + m.group(1).toUpperCase() + " i<n; a[i]>0*/";
+					values.put(m.group(1), value);
+					replaced = replaced.replace(m.group(), value);
+				}
+			}
+			Template template = Template.get("templates/" + file.getName());
+			equal(replaced, template.render(values), "render of " + file.getName());
+			check(template == Template.get("templates/" + file.getName()), "compiled once: " + file.getName());
+		}
+
+		// Slots without values, comparisons and slots inside values
+		Path dir = tempDir("template");
+		Path file = dir.resolve("t.sk");
+		Files.write(file, "if(i<n && a[i]>0) <body> <missing> x<<2 <Upper>".getBytes(StandardCharsets.UTF_8));
+		Map<String,String> values = new HashMap<String,String>();
+		values.put("body", "do_map(<args>);");
+		values.put("args", "i, a");
+		Template template = Template.get(file.toString());
+		equal("if(i<n && a[i]>0) do_map(i, a); <missing> x<<2 <Upper>", template.render(values), "literals, missing slots and nested slots");
+		values.put("args", "<args>");
+		equal("if(i<n && a[i]>0) do_map(<args>); <missing> x<<2 <Upper>", template.render(values), "value holding its own slot");
+
+		// An edited file is compiled again
+		Files.write(file, "<body>!".getBytes(StandardCharsets.UTF_8));
+		Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 2000));
+		check(Template.get(file.toString()) != template, "recompiled after an edit");
+		values.put("args", "i");
+		equal("do_map(i);!", Template.get(file.toString()).render(values), "render of the edited file");
+
+		done("TemplateTest");
+	}
+}
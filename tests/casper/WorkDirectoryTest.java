@@ -0,0 +1,46 @@
+/*
+ * Tests of WorkDirectory: fragment directories of sources with the same
+ * name do not collide, and the run directory is removed on exit.
+ */
+
+package casper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+public class WorkDirectoryTest extends Check {
+
+	public static void main(String[] args) throws Exception {
+		// Child process: create a fragment directory and print the run directory
+		if(args.length > 0){
+			WorkDirectory.forFragment(args[0], 0, "int");
+			System.out.println(WorkDirectory.root());
+			return;
+		}
+
+		String a = WorkDirectory.sourceKey("a/Sum.java");
+		String b = WorkDirectory.sourceKey("b/Sum.java");
+		check(a.startsWith("Sum_"), "key starts with the file name: " + a);
+		check(!a.equals(b), "same name in different directories: " + a + " " + b);
+		equal(a, WorkDirectory.sourceKey("./a/../a/Sum.java"), "key of the same file");
+		equal(a, WorkDirectory.sourceKey(new File("a/Sum.java").getAbsolutePath()), "key of the absolute path");
+
+		String dirA = WorkDirectory.forFragment("a/Sum.java", 1, "int");
+		String dirB = WorkDirectory.forFragment("b/Sum.java", 1, "int");
+		check(!dirA.equals(dirB), "fragment directories differ");
+		check(Files.isDirectory(Paths.get(dirA)) && Files.isDirectory(Paths.get(dirB)), "fragment directories created");
+		check(Paths.get(dirA).startsWith(Paths.get(WorkDirectory.root())), "fragment directory inside the run directory");
+
+		Process child = new ProcessBuilder(System.getProperty("java.home") + "/bin/java", "-cp", System.getProperty("java.class.path"), "casper.WorkDirectoryTest", "c/Sum.java").start();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(child.getInputStream()));
+		String childRoot = reader.readLine();
+		equal(0, child.waitFor(), "child exit code");
+		check(childRoot != null && !childRoot.equals(WorkDirectory.root()), "every process has its own run directory");
+		check(childRoot != null && !Files.exists(Paths.get(childRoot)), "run directory deleted on exit: " + childRoot);
+
+		done("WorkDirectoryTest");
+	}
+}
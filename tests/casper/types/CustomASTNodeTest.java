@@ -0,0 +1,45 @@
+/*
+ * Tests of CustomASTNode: nodes are immutable and hash-consed, substitution
+ * shares the sub-terms it does not change, and the cached hash agrees with
+ * the printed form.
+ */
+
+package casper.types;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import casper.Check;
+
+public class CustomASTNodeTest extends Check {
+
+	public static void main(String[] args) {
+		CustomASTNode i = CustomASTNode.intern(new IdentifierNode("i", "int"));
+		CustomASTNode sum = CustomASTNode.intern(new IdentifierNode("sum", "int"));
+		CustomASTNode one = CustomASTNode.intern(new ConstantNode("1", "int", ConstantNode.INTLIT));
+
+		// Hash-consing
+		check(i == CustomASTNode.intern(new IdentifierNode("i", "int")), "equal identifiers interned to one node");
+		CustomASTNode next = CustomASTNode.intern(new BinaryOperatorNode("+", "int", i, one));
+		check(next == CustomASTNode.intern(new BinaryOperatorNode("+", "int", i, one)), "equal terms interned to one node");
+
+		// Equality and hashing follow the printed form
+		CustomASTNode copy = new BinaryOperatorNode("+", "int", new IdentifierNode("i", "int"), new ConstantNode("1", "int", ConstantNode.INTLIT));
+		check(copy != next && copy.equals(next), "structurally equal nodes are equal");
+		equal(next.toString().hashCode(), next.hashCode(), "hash of the printed form");
+
+		// Substitution
+		CustomASTNode body = new CallNode("loopInvariant", "bit", new ArrayList<CustomASTNode>(Arrays.asList(
+				new BinaryOperatorNode("+", "int", sum, i), next)));
+		CustomASTNode unchanged = body.replaceAll("x", one);
+		check(unchanged == body, "substituting an absent name returns the node itself");
+
+		CustomASTNode replaced = body.replaceAll("sum", one);
+		equal("loopInvariant(" + new BinaryOperatorNode("+", "int", one, i) + "," + next + ")", replaced.toString(), "substituted term");
+		check(((CallNode) replaced).arguments.get(1) == next, "untouched sub-term shared");
+		equal("loopInvariant(" + new BinaryOperatorNode("+", "int", sum, i) + "," + next + ")", body.toString(), "original term unchanged");
+		check(replaced.contains("i") && !replaced.contains("sum"), "names of the substituted term");
+
+		done("CustomASTNodeTest");
+	}
+}
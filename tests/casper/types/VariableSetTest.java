@@ -0,0 +1,59 @@
+/*
+ * Tests of VariableSet and SymbolTable: sets behave like a HashSet keyed on
+ * the name, iterate in the order names were first seen, take space in their
+ * own size, and ids stay the same across compiles.
+ */
+
+package casper.types;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import casper.Check;
+
+public class VariableSetTest extends Check {
+
+	public static void main(String[] args) {
+		Variable a = new Variable("a", "int", "", Variable.VAR);
+		Variable b = new Variable("b", "int", "", Variable.VAR);
+		Variable c = new Variable("c", "int", "", Variable.VAR);
+		check(a.id < b.id && b.id < c.id, "ids in the order names are first seen");
+
+		// Set semantics, in id order
+		VariableSet set = new VariableSet(Arrays.asList(c, a, b));
+		equal(Arrays.asList(a, b, c), new ArrayList<Variable>(set), "iterated in id order");
+		Variable other = new Variable("a", "", "", Variable.VAR);
+		check(!set.add(other), "equal variable not added again");
+		check(set.contains(other), "equal variable contained");
+		check(new ArrayList<Variable>(set).get(0) == a, "first instance kept");
+		check(set.remove(b) && !set.contains(b) && set.size() == 2, "remove");
+		check(set.containsAll(new VariableSet(Arrays.asList(a, c))), "containsAll");
+		check(!set.containsAll(new VariableSet(Arrays.asList(a, b))), "containsAll of a missing variable");
+
+		Iterator<Variable> iterator = set.iterator();
+		iterator.next();
+		iterator.remove();
+		equal(Arrays.asList(c), new ArrayList<Variable>(set), "iterator remove");
+		set.clear();
+		check(set.isEmpty() && !set.contains(c), "clear");
+
+		// Space follows the set, not the number of names seen
+		for(int i=0; i<10000; i++)
+			SymbolTable.id("x" + i);
+		Variable last = new Variable("x9999", "int", "", Variable.VAR);
+		set = new VariableSet(Arrays.asList(last, a));
+		check(set.capacity() < 10, "capacity " + set.capacity() + " of a set of 2");
+		equal(Arrays.asList(a, last), new ArrayList<Variable>(set), "ids far apart");
+
+		// Ids outlive a compile: variables of an earlier compile still compare by name
+		int names = SymbolTable.size();
+		new casper.ExtensionInfo();
+		Variable b2 = new Variable("b", "int", "", Variable.VAR);
+		check(b2.equals(b) && b2.id == b.id, "same name, same id in a later compile");
+		check(!new Variable("y", "int", "", Variable.VAR).equals(a), "new name, new id");
+		equal(names + 1, SymbolTable.size(), "table grows by the new name only");
+
+		done("VariableSetTest");
+	}
+}
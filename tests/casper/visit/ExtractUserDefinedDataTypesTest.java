@@ -0,0 +1,46 @@
+/*
+ * Tests of ExtractUserDefinedDataTypes: every loop gets its own copy of the
+ * user defined data types, so loops synthesized concurrently can add their
+ * CasperDataRecord type without seeing each other's.
+ */
+
+package casper.visit;
+
+import java.util.Set;
+
+import casper.Check;
+import casper.extension.MyWhileExt;
+import casper.types.Variable;
+import casper.types.VariableSet;
+
+public class ExtractUserDefinedDataTypesTest extends Check {
+
+	public static void main(String[] args) {
+		ExtractUserDefinedDataTypes extractor = new ExtractUserDefinedDataTypes();
+		extractor.dataTypes.add("Point");
+		Set<Variable> fields = new VariableSet();
+		fields.add(new Variable("x", "int", "", Variable.VAR));
+		extractor.fields.put("Point", fields);
+
+		MyWhileExt first = new MyWhileExt();
+		MyWhileExt second = new MyWhileExt();
+		extractor.extensions.add(first);
+		extractor.extensions.add(second);
+		extractor.finish();
+
+		equal(1, first.globalDataTypes.size(), "data types of the first loop");
+		equal(1, first.globalDataTypesFields.get("Point").size(), "fields of Point in the first loop");
+
+		// What code generation does for the first loop
+		first.globalDataTypes.add("CasperDataRecord");
+		first.globalDataTypesFields.put("CasperDataRecord", new VariableSet());
+		first.globalDataTypesFields.get("Point").add(new Variable("y", "int", "", Variable.VAR));
+
+		check(!second.globalDataTypes.contains("CasperDataRecord"), "data types not shared between loops");
+		check(!second.globalDataTypesFields.containsKey("CasperDataRecord"), "data type fields not shared between loops");
+		equal(1, second.globalDataTypesFields.get("Point").size(), "fields of Point not shared between loops");
+		equal(1, extractor.fields.get("Point").size(), "extracted fields unchanged");
+
+		done("ExtractUserDefinedDataTypesTest");
+	}
+}
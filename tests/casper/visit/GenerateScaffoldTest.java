@@ -0,0 +1,152 @@
+/*
+ * Tests of the grammar search of GenerateScaffold that do not need sketch or
+ * dafny: the grammars a portfolio (or a batch) searches together are the
+ * ones the one-at-a-time search would step through, in the same order, and
+ * a candidate under verification is not changed by the search moving on.
+ * Key types are pruned to those the outputs can be indexed with.
+ */
+
+package casper.visit;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+import casper.Check;
+import casper.Configuration;
+import casper.extension.MyWhileExt;
+import casper.types.ArrayUpdateNode;
+import casper.types.CustomASTNode;
+import casper.types.FieldNode;
+import casper.types.IdentifierNode;
+import casper.types.MRStage;
+import casper.types.Variable;
+import casper.types.VariableSet;
+import casper.visit.GenerateScaffold.SearchConfiguration;
+import polyglot.frontend.Job;
+import polyglot.frontend.Source;
+
+public class GenerateScaffoldTest extends Check {
+
+	public static void main(String[] args) throws Exception {
+		GenerateScaffold generator = new GenerateScaffold(new Job(null, null, source("a/Sum.java"), null), null);
+
+		// The ladder stepped one grammar at a time
+		List<String> ladder = new ArrayList<String>();
+		GenerateScaffold.FragmentSearch search = fragment(generator, Arrays.asList("int", "String"));
+		ladder.add(describe(search));
+		while(search.incrementGrammar(false) == 1)
+			ladder.add(describe(search));
+		check(ladder.size() > 10, "ladder has " + ladder.size() + " grammars");
+
+		// The same ladder in portfolios of 4
+		List<String> portfolios = new ArrayList<String>();
+		boolean full = true;
+		search = fragment(generator, Arrays.asList("int", "String"));
+		while(true){
+			GenerateScaffold.GrammarBatch batch = search.nextGrammars(4);
+			full &= (batch.confs.size() == 4 || batch.exhausted);
+			for(int i=0; i<batch.confs.size(); i++)
+				portfolios.add(describe(batch.confs.get(i)) + " #" + batch.keyIndexes.get(i));
+			if(batch.exhausted || search.incrementGrammar(false) == 2)
+				break;
+		}
+		check(full, "only the last portfolio is short");
+		equal(ladder.size(), portfolios.size(), "number of grammars in the portfolios");
+		check(ladder.equals(portfolios), "portfolios search the ladder in order");
+
+		// A winner in the middle of a portfolio: the search goes on after it, not after the portfolio
+		search = fragment(generator, Arrays.asList("int", "String"));
+		GenerateScaffold.GrammarBatch batch = search.nextGrammars(4);
+		search.moveTo(batch, 1);
+		equal(ladder.get(1), describe(search), "search moved to the winner");
+		search.incrementGrammar(false);
+		equal(ladder.get(2), describe(search), "grammar after the winner");
+
+		// Pipelined verification: the search goes on while a candidate is verified
+		check(!Configuration.pipelineVerification, "pipelined verification off by default");
+		search = fragment(generator, Arrays.asList("int", "String"));
+		MyWhileExt ext = search.ext;
+		ext.solution = new ArrayList<MRStage>();
+		ext.solution.add(new MRStage());
+		List<MRStage> solution = ext.solution;
+		String grammar = describe(search.conf);
+		GenerateScaffold.Candidate candidate = generator.new Candidate(ext, search.conf, "main.dfy", "main.txt");
+		ext.solution = new ArrayList<MRStage>();
+		search.incrementGrammar(false);
+		check(candidate.solution == solution, "candidate keeps its solution");
+		equal(grammar, describe(candidate.conf), "candidate keeps its grammar");
+		check(!grammar.equals(describe(search.conf)), "search moved to the next grammar");
+
+		// Key types of a loop over records: only types the outputs can be indexed with,
+		// those the loop indexes them with first, one per sketch type
+		ext = new MyWhileExt();
+		ext.globalDataTypesFields = new HashMap<String,Set<Variable>>();
+		Set<Variable> fields = new VariableSet();
+		fields.add(new Variable("word", "String", "Doc", Variable.FIELD_ACCESS));
+		fields.add(new Variable("id", "int", "Doc", Variable.FIELD_ACCESS));
+		fields.add(new Variable("score", "double", "Doc", Variable.FIELD_ACCESS));
+		ext.globalDataTypesFields.put("Doc", fields);
+		ext.inputDataCollections.add(new Variable("docs", "Doc[]", "", Variable.VAR));
+		Variable counts = new Variable("counts", "int[]", "", Variable.VAR);
+		Variable byWord = new Variable("byWord", "java.util.Map<java.lang.String,java.lang.Integer>", "", Variable.VAR);
+		search = fragment(generator, Arrays.asList("int"));
+
+		equal(Arrays.asList("int", "String", "double"), search.keyTypeOptions(ext, new VariableSet(Arrays.asList(new Variable("sum", "int", "", Variable.VAR))), "int"), "no array outputs: every type");
+		ext.wpcs.put("int", update("counts", new FieldNode("d.id", "int", new IdentifierNode("d", "Doc"))));
+		equal(Arrays.asList("int"), search.keyTypeOptions(ext, new VariableSet(Arrays.asList(counts)), "int"), "array indexed by an int");
+		ext.wpcs.put("int", update("byWord", new FieldNode("d.word", "String", new IdentifierNode("d", "Doc"))));
+		equal(Arrays.asList("String"), search.keyTypeOptions(ext, new VariableSet(Arrays.asList(byWord)), "int"), "map keyed on strings");
+		equal(Arrays.asList("String"), search.keyTypeOptions(ext, new VariableSet(Arrays.asList(counts, byWord)), "int"), "type the loop indexes with represents its sketch type");
+		ext.wpcs.put("int", update("byWord", new IdentifierNode("k", "int")));
+		equal(Arrays.asList("int"), search.keyTypeOptions(ext, new VariableSet(Arrays.asList(counts, byWord)), "int"), "no field indexed with: first index type");
+
+		done("GenerateScaffoldTest");
+	}
+
+	static CustomASTNode update(String array, CustomASTNode index) {
+		return new ArrayUpdateNode("int", new IdentifierNode(array, "int[]"), index, new IdentifierNode("v", "int"));
+	}
+
+	// Search of a fragment with an array output (so key types are cycled through),
+	// starting at the first grammar
+	static GenerateScaffold.FragmentSearch fragment(GenerateScaffold generator, List<String> keyTypes) {
+		GenerateScaffold.FragmentSearch search = generator.new FragmentSearch(null, new MyWhileExt(), 0);
+		search.arrayOutputs = true;
+		search.conf.keyTupleSize = 2;
+		search.candidateKeyTypes = keyTypes;
+		search.keyIndex = 0;
+		search.conf.keyType = keyTypes.get(0);
+		search.predictions = new ArrayList<SearchConfiguration>();
+		search.predictionIndex = 0;
+		search.ladderStart = new SearchConfiguration(search.conf);
+		return search;
+	}
+
+	static String describe(GenerateScaffold.FragmentSearch search) {
+		return describe(search.conf) + " #" + search.keyIndex;
+	}
+
+	static String describe(SearchConfiguration conf) {
+		return conf.tuplesAdded + "," + conf.simpleEmits + "," + conf.opsAdded + "," + conf.stageCount + "," + conf.emitCount + ","
+				+ conf.keyTupleSize + "," + conf.valuesTupleSize + "," + conf.recursionDepth + "," + conf.keyType;
+	}
+
+	// Source file with the given path; only its name and path are used
+	static Source source(final String path) {
+		return (Source) Proxy.newProxyInstance(Source.class.getClassLoader(), new Class<?>[]{ Source.class }, new InvocationHandler(){
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if(method.getName().equals("path"))
+					return path;
+				if(method.getName().equals("name"))
+					return path.substring(path.lastIndexOf('/')+1);
+				return null;
+			}
+		});
+	}
+}
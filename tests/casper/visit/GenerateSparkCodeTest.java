@@ -0,0 +1,267 @@
+/*
+ * Tests of GenerateSparkCode on verified summaries of loops over a list,
+ *
+ *   for(Integer i : data) ...
+ *
+ * built by hand the way SketchParser and GenerateScaffold fill in the loop
+ * extension. The generated code is compiled against the stubs of the Spark
+ * API in tests/stubs and run, and its outputs are compared with those of the
+ * loop.
+ */
+
+package casper.visit;
+
+import java.io.StringWriter;
+import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.util.StatCounter;
+
+import casper.Check;
+import casper.Configuration;
+import casper.SketchParser.KvPair;
+import casper.extension.MyWhileExt;
+import casper.types.Variable;
+
+public class GenerateSparkCodeTest extends Check {
+
+	static final List<Integer> DATA = Arrays.asList(3, 1, 4, 1, 5, 9, 2, 6);
+
+	public static void main(String[] args) throws Exception {
+		Path dir = tempDir("spark");
+
+		// Outputs of constant-key emits: output i (from 1) takes the emits keyed on i
+		equal(0, GenerateSparkCode.outputIndex(emit("v", "1"), 1), "only output");
+		equal(-1, GenerateSparkCode.outputIndex(emit("v", "2"), 1), "key of no output");
+		equal(1, GenerateSparkCode.outputIndex(emit("v", "2"), 2), "second output");
+		equal(-1, GenerateSparkCode.outputIndex(emit("v", "i"), 1), "key that is not a constant");
+
+		// A sum with an emit under a key no output has: the emit is dead
+		Variable sum = new Variable("sum", "int", "", Variable.VAR);
+		Map<String,List<KvPair>> emits = new LinkedHashMap<String,List<KvPair>>();
+		emits.put("noCondition", Arrays.asList(emit("data[i]", "1"), emit("100", "2")));
+		MyWhileExt ext = loop(emits, reduce("sum", "val1+val2"), sum);
+		check(GenerateSparkCode.isConstantKeyReduction(ext, "int"), "constant-key reduction");
+		String code = new GenerateSparkCode(null).generateLoop(ext);
+		check(code.contains("treeAggregate") && !code.contains("100"), "aggregation without the dead emit:\n" + code);
+		equal(Arrays.asList(31), run(dir, code, "int sum = 0;", "sum"), "sum");
+
+		// Only dead emits: not an aggregation into the output
+		emits = new LinkedHashMap<String,List<KvPair>>();
+		emits.put("noCondition", Arrays.asList(emit("data[i]", "2")));
+		check(!GenerateSparkCode.isConstantKeyReduction(loop(emits, reduce("sum", "val1+val2"), sum), "int"), "no emit reaches the output");
+
+		// Map stages of a histogram: no list of emits per record
+		Variable counts = new Variable("counts", "java.util.Map<java.lang.Integer,java.lang.Integer>", "", Variable.VAR);
+		Map<Integer,Integer> expected = new HashMap<Integer,Integer>();
+		for(int x : DATA)
+			count(expected, x);
+		emits = new LinkedHashMap<String,List<KvPair>>();
+		emits.put("noCondition", Arrays.asList(emit("1", "1", "data[i]")));
+		code = new GenerateSparkCode(null).generateLoop(loop(emits, reduce("counts", "val1+val2"), counts));
+		check(code.contains(".mapToPair(") && !code.contains(".filter(") && !code.contains("ArrayList"), "single emit mapped to a pair:\n" + code);
+		equal(Arrays.asList(expected), run(dir, code, "Map<Integer,Integer> counts = new HashMap<Integer,Integer>();", "counts"), "histogram");
+
+		expected = new HashMap<Integer,Integer>();
+		for(int x : DATA)
+			if(x > 2) count(expected, x);
+		emits = new LinkedHashMap<String,List<KvPair>>();
+		emits.put("data[i] > 2", Arrays.asList(emit("1", "1", "data[i]")));
+		code = new GenerateSparkCode(null).generateLoop(loop(emits, reduce("counts", "val1+val2"), counts));
+		check(code.contains(".filter(") && code.contains(".mapToPair(") && !code.contains("ArrayList"), "conditional emit filtered:\n" + code);
+		equal(Arrays.asList(expected), run(dir, code, "Map<Integer,Integer> counts = new HashMap<Integer,Integer>();", "counts"), "histogram of a filter");
+
+		expected = new HashMap<Integer,Integer>();
+		for(int x : DATA){
+			if(x > 4) count(expected, x+10);
+			count(expected, x);
+			count(expected, x*100);
+		}
+		emits = new LinkedHashMap<String,List<KvPair>>();
+		emits.put("data[i] > 4", Arrays.asList(emit("1", "1", "data[i]+10")));
+		emits.put("noCondition", Arrays.asList(emit("1", "1", "data[i]"), emit("1", "1", "data[i]*100")));
+		code = new GenerateSparkCode(null).generateLoop(loop(emits, reduce("counts", "val1+val2"), counts));
+		check(code.contains(".flatMapToPair(") && code.contains("Iterator") && !code.contains("ArrayList"), "emits handed out by an iterator:\n" + code);
+		equal(Arrays.asList(expected), run(dir, code, "Map<Integer,Integer> counts = new HashMap<Integer,Integer>();", "counts"), "histogram of several emits");
+
+		// Several scalar outputs (keys 1 to 4) aggregated together into one accumulator
+		Variable sq = new Variable("sq", "int", "", Variable.VAR);
+		Variable n = new Variable("n", "int", "", Variable.VAR);
+		Variable big = new Variable("big", "int", "", Variable.VAR);
+		emits = new LinkedHashMap<String,List<KvPair>>();
+		emits.put("noCondition", Arrays.asList(emit("data[i]", "1"), emit("data[i]*data[i]", "2"), emit("1", "3"), emit("7", "5")));
+		emits.put("data[i] > 4", Arrays.asList(emit("1", "4")));
+		ext = loop(emits, reduce("sum", "val1+val2", "sq", "val1+val2", "n", "val1+val2", "big", "val1+val2"), sum, sq, n, big);
+		code = new GenerateSparkCode(null).generateLoop(ext);
+		check(code.split("treeAggregate", -1).length == 2 && !code.contains("Tuple2") && !code.contains("reduceByKey"), "one aggregation without tagged values:\n" + code);
+		check(code.contains("int out3;") && !code.contains("out4"), "one primitive field per output");
+		equal(Arrays.asList(31, 173, 8, 3), run(dir, code, "int sum = 0; int sq = 0; int n = 0; int big = 0;", "sum, sq, n, big"), "outputs of one pass");
+
+		// A double sum is folded into the accumulator: only the emits keyed on the output
+		// are summed, and the sum is the loop's, not the count * mean of a StatCounter
+		Variable total = new Variable("total", "double", "", Variable.VAR);
+		emits = new LinkedHashMap<String,List<KvPair>>();
+		emits.put("noCondition", Arrays.asList(emit("data[i]*0.5", "1"), emit("1000.0", "2")));
+		code = new GenerateSparkCode(null).generateLoop(loop(emits, reduce("total", "val1+val2"), total));
+		check(code.contains("treeAggregate") && code.contains("double out0;") && !code.contains("mapToDouble") && !code.contains("1000"), "double sum of the live emit:\n" + code);
+		equal(Arrays.asList(15.5), run(dir, code, "double total = 0;", "total"), "double sum");
+
+		double loopSum = 0;
+		StatCounter stats = new StatCounter();
+		for(int x : DATA){
+			loopSum += x*0.13;
+			stats.merge(x*0.13);
+		}
+		check(stats.sum() != loopSum, "rounding of a StatCounter sum differs: " + stats.sum() + " " + loopSum);
+		emits = new LinkedHashMap<String,List<KvPair>>();
+		emits.put("noCondition", Arrays.asList(emit("data[i]*0.13", "1")));
+		code = new GenerateSparkCode(null).generateLoop(loop(emits, reduce("total", "val1+val2"), total));
+		equal(Arrays.asList(loopSum), run(dir, code, "double total = 0;", "total"), "double sum rounded as in the loop");
+
+		stats = new StatCounter();
+		stats.merge(Double.POSITIVE_INFINITY);
+		stats.merge(Double.POSITIVE_INFINITY);
+		check(Double.isNaN(stats.sum()), "StatCounter sum of two infinities");
+		emits = new LinkedHashMap<String,List<KvPair>>();
+		emits.put("noCondition", Arrays.asList(emit("1.0/(data[i]-1)", "1")));
+		code = new GenerateSparkCode(null).generateLoop(loop(emits, reduce("total", "val1+val2"), total));
+		equal(Arrays.asList(Double.POSITIVE_INFINITY), run(dir, code, "double total = 0;", "total"), "double sum of two infinities");
+
+		// A single live emit under a condition is a filter, whatever the dead emits are
+		emits = new LinkedHashMap<String,List<KvPair>>();
+		emits.put("data[i] > 4", Arrays.asList(emit("data[i]*1.0", "1")));
+		emits.put("noCondition", Arrays.asList(emit("1000.0", "2")));
+		code = new GenerateSparkCode(null).generateLoop(loop(emits, reduce("total", "Math.max(val1,val2)"), total));
+		check(code.contains(".filter(") && code.contains(".mapToDouble(") && !code.contains("1000"), "double maximum of a filter:\n" + code);
+		equal(Arrays.asList(9.0), run(dir, code, "double total = 0;", "total"), "double maximum");
+
+		// Loops fused into an earlier loop over the same data: off by default
+		check(!Configuration.fuseLoops, "fusion off by default");
+		emits = new LinkedHashMap<String,List<KvPair>>();
+		emits.put("noCondition", Arrays.asList(emit("data[i]", "1")));
+		MyWhileExt leader = loop(emits, reduce("sum", "val1+val2"), sum);
+		emits = new LinkedHashMap<String,List<KvPair>>();
+		emits.put("noCondition", Arrays.asList(emit("data[j]*data[j]", "1")));
+		MyWhileExt fused = loop(emits, reduce("sq", "val1+val2"), sq);
+		fused.mainLoopCounter = new Variable("j", "int", "", Variable.VAR);
+		fused.fused = true;
+		leader.fusedLoops.add(fused);
+		GenerateSparkCode generator = new GenerateSparkCode(null);
+		code = generator.generateLoop(leader);
+		equal("", generator.generateLoop(fused), "code of the fused loop");
+		check(code.indexOf("sc.parallelize") != -1 && code.indexOf("sc.parallelize") < code.indexOf("treeAggregate"), "RDD created before the aggregation:\n" + code);
+		equal(Arrays.asList(31, 173), run(dir, code, "int sum = 0; int sq = 0;", "sum, sq"), "outputs of the fused loops");
+
+		// The leader also caches the data set for a later loop that depends on it
+		leader.sharedRDD = "rdd_shared_0";
+		leader.createsSharedRDD = true;
+		code = new GenerateSparkCode(null).generateLoop(leader);
+		List<Object> contexts = new ArrayList<Object>();
+		equal(Arrays.asList(31, 173), run(dir, code, "int sum = 0; int sq = 0;", "sum, sq", contexts), "outputs of the fused loops over a shared RDD");
+		JavaSparkContext sc = (JavaSparkContext) contexts.get(0);
+		equal(1, sc.created.size(), "RDDs created");
+		check(sc.created.get(0).cached && sc.created.get(0).usesBeforeCache == 0, "shared RDD cached before its first use:\n" + code);
+
+		delete(dir);
+		done("GenerateSparkCodeTest");
+	}
+
+	// Extension of a loop over data with the given verified summary, translated to Spark
+	static MyWhileExt loop(Map<String,List<KvPair>> emits, Map<String,String> reduceExps, Variable... outputs) {
+		MyWhileExt ext = new MyWhileExt();
+		ext.interesting = true;
+		ext.inputDataSet = new Variable("data", "java.util.List<java.lang.Integer>", "", Variable.VAR);
+		ext.mainLoopCounter = new Variable("i", "int", "", Variable.VAR);
+		for(Variable var : outputs){
+			ext.outputVars.add(var);
+			ext.generateCode.put(var.getReduceType(), true);
+		}
+		ext.outVarCount = outputs.length;
+		ext.verifiedMapEmits.add(emits);
+		ext.verifiedReduceExps.add(reduceExps);
+		ext.verifiedSolKeyTypes.add("int");
+		ext.selectedSolutionIndex = 0;
+		return ext;
+	}
+
+	static void count(Map<Integer,Integer> counts, int key) {
+		counts.put(key, counts.containsKey(key) ? counts.get(key)+1 : 1);
+	}
+
+	static Map<String,String> reduce(String... outputsAndExps) {
+		Map<String,String> reduceExps = new HashMap<String,String>();
+		for(int i=0; i<outputsAndExps.length; i+=2){
+			reduceExps.put(outputsAndExps[i], outputsAndExps[i+1]);
+		}
+		return reduceExps;
+	}
+
+	// Emit of the value under the keys, as SketchParser extracts it
+	static KvPair emit(String value, String... keys) throws Exception {
+		Constructor<KvPair> constructor = KvPair.class.getDeclaredConstructor(Map.class, Map.class, int.class);
+		constructor.setAccessible(true);
+		Map<Integer,String> keyMap = new HashMap<Integer,String>();
+		for(int i=0; i<keys.length; i++){
+			keyMap.put(i, keys[i]);
+		}
+		Map<Integer,String> valueMap = new HashMap<Integer,String>();
+		valueMap.put(0, value);
+		return constructor.newInstance(keyMap, valueMap, 0);
+	}
+
+	// Values of the outputs after the generated code ran on DATA, null if it does not compile
+	static List<Object> run(Path dir, String code, String declarations, String outputs) throws Exception {
+		return run(dir, code, declarations, outputs, null);
+	}
+
+	// As above; the Spark context the code ran with is added to contexts
+	static List<Object> run(Path dir, String code, String declarations, String outputs, List<Object> contexts) throws Exception {
+		Path classes = Files.createTempDirectory(dir, "job");
+		Path source = classes.resolve("Job.java");
+		String text = "import java.util.*;\n"
+					+ "import org.apache.spark.api.java.*;\n"
+					+ "import org.apache.spark.api.java.function.*;\n"
+					+ "import org.apache.spark.util.StatCounter;\n"
+					+ "import scala.Tuple2;\n"
+					+ "public class Job {\n"
+					+ "public static Object[] run(JavaSparkContext sc, List<Integer> data) throws Exception {\n"
+					+ declarations + "\n"
+					+ code + "\n"
+					+ "return new Object[]{ " + outputs + " };\n"
+					+ "}\n"
+					+ "}\n";
+		Files.write(source, text.getBytes(StandardCharsets.UTF_8));
+
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		StringWriter errors = new StringWriter();
+		boolean compiled = compiler.getTask(errors, null, null, Arrays.asList("-nowarn", "-cp", System.getProperty("java.class.path"), "-d", classes.toString()),
+				null, compiler.getStandardFileManager(null, null, StandardCharsets.UTF_8).getJavaFileObjects(source.toFile())).call();
+		if(!compiled){
+			System.err.println("Generated code does not compile:\n" + text + "\n" + errors);
+			return null;
+		}
+
+		try(URLClassLoader loader = new URLClassLoader(new URL[]{ classes.toUri().toURL() }, GenerateSparkCodeTest.class.getClassLoader())){
+			Class<?> sparkContext = loader.loadClass("org.apache.spark.api.java.JavaSparkContext");
+			Object sc = sparkContext.newInstance();
+			if(contexts != null)
+				contexts.add(sc);
+			Object[] values = (Object[]) loader.loadClass("Job").getMethod("run", sparkContext, List.class).invoke(null, sc, new ArrayList<Integer>(DATA));
+			return Arrays.asList(values);
+		}
+	}
+}
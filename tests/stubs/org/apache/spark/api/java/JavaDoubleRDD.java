@@ -0,0 +1,26 @@
+/*
+ * Stub of Spark's JavaDoubleRDD, for running generated code in tests.
+ */
+
+package org.apache.spark.api.java;
+
+import java.io.Serializable;
+import java.util.List;
+
+import org.apache.spark.util.StatCounter;
+
+public class JavaDoubleRDD implements Serializable {
+	final List<Double> values;
+
+	JavaDoubleRDD(List<Double> values) {
+		this.values = values;
+	}
+
+	public StatCounter stats() {
+		StatCounter stats = new StatCounter();
+		for(double value : values){
+			stats.merge(value);
+		}
+		return stats;
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Stub of Spark's JavaPairRDD, for running generated code in tests.
+ */
+
+package org.apache.spark.api.java;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.spark.api.java.function.Function2;
+
+import scala.Tuple2;
+
+public class JavaPairRDD<K, V> implements Serializable {
+	final List<Tuple2<K, V>> pairs;
+
+	JavaPairRDD(List<Tuple2<K, V>> pairs) {
+		this.pairs = pairs;
+	}
+
+	public JavaPairRDD<K, V> reduceByKey(Function2<V, V, V> f) {
+		Map<K, V> reduced = new LinkedHashMap<K, V>();
+		try {
+			for(Tuple2<K, V> pair : pairs){
+				V value = reduced.get(pair._1());
+				reduced.put(pair._1(), reduced.containsKey(pair._1()) ? f.call(value, pair._2()) : pair._2());
+			}
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		List<Tuple2<K, V>> result = new ArrayList<Tuple2<K, V>>();
+		for(Map.Entry<K, V> entry : reduced.entrySet()){
+			result.add(new Tuple2<K, V>(entry.getKey(), entry.getValue()));
+		}
+		return new JavaPairRDD<K, V>(result);
+	}
+
+	public Map<K, V> collectAsMap() {
+		Map<K, V> map = new LinkedHashMap<K, V>();
+		for(Tuple2<K, V> pair : pairs){
+			map.put(pair._1(), pair._2());
+		}
+		return map;
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Stub of Spark's JavaRDD, for running generated code in tests. Aggregations
+ * fold two partitions, each from its own copy of the zero value, and combine
+ * them, so that the combiner of generated code runs as it does on a cluster.
+ */
+
+package org.apache.spark.api.java;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.spark.api.java.function.DoubleFunction;
+import org.apache.spark.api.java.function.Function;
+import org.apache.spark.api.java.function.Function2;
+import org.apache.spark.api.java.function.PairFlatMapFunction;
+import org.apache.spark.api.java.function.PairFunction;
+
+import scala.Tuple2;
+
+public class JavaRDD<T> implements Serializable {
+	final List<T> data;
+	// Whether cache() was called, and how often the RDD was read before it was
+	public boolean cached = false;
+	public int usesBeforeCache = 0;
+	public int uses = 0;
+
+	JavaRDD(List<T> data) {
+		this.data = data;
+	}
+
+	public JavaRDD<T> cache() {
+		if(!cached)
+			usesBeforeCache = uses;
+		cached = true;
+		return this;
+	}
+
+	public JavaRDD<T> filter(Function<T, Boolean> f) {
+		uses++;
+		List<T> kept = new ArrayList<T>();
+		try {
+			for(T t : data){
+				if(f.call(t))
+					kept.add(t);
+			}
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		return new JavaRDD<T>(kept);
+	}
+
+	public <K, V> JavaPairRDD<K, V> mapToPair(PairFunction<T, K, V> f) {
+		uses++;
+		List<Tuple2<K, V>> pairs = new ArrayList<Tuple2<K, V>>();
+		try {
+			for(T t : data){
+				pairs.add(f.call(t));
+			}
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		return new JavaPairRDD<K, V>(pairs);
+	}
+
+	public <K, V> JavaPairRDD<K, V> flatMapToPair(PairFlatMapFunction<T, K, V> f) {
+		uses++;
+		List<Tuple2<K, V>> pairs = new ArrayList<Tuple2<K, V>>();
+		try {
+			for(T t : data){
+				Iterator<Tuple2<K, V>> it = f.call(t);
+				while(it.hasNext())
+					pairs.add(it.next());
+			}
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		return new JavaPairRDD<K, V>(pairs);
+	}
+
+	public JavaDoubleRDD mapToDouble(DoubleFunction<T> f) {
+		uses++;
+		List<Double> values = new ArrayList<Double>();
+		try {
+			for(T t : data){
+				values.add(f.call(t));
+			}
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		return new JavaDoubleRDD(values);
+	}
+
+	public <U> U treeAggregate(U zeroValue, Function2<U, T, U> seqOp, Function2<U, U, U> combOp) {
+		uses++;
+		try {
+			int half = data.size() / 2;
+			U first = copy(zeroValue);
+			for(T t : data.subList(0, half)){
+				first = seqOp.call(first, t);
+			}
+			U second = copy(zeroValue);
+			for(T t : data.subList(half, data.size())){
+				second = seqOp.call(second, t);
+			}
+			return combOp.call(first, second);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// The zero value as a task receives it
+	@SuppressWarnings("unchecked")
+	private static <U> U copy(final U value) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(value);
+		out.close();
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())){
+			protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+				return Class.forName(desc.getName(), false, value.getClass().getClassLoader());
+			}
+		};
+		return (U) in.readObject();
+	}
+}
@@ -0,0 +1,20 @@
+/*
+ * Stub of Spark's JavaSparkContext, for running generated code in tests. RDDs
+ * are lists in memory.
+ */
+
+package org.apache.spark.api.java;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class JavaSparkContext {
+	// RDDs created so far, in order
+	public final List<JavaRDD<?>> created = new ArrayList<JavaRDD<?>>();
+
+	public <T> JavaRDD<T> parallelize(List<T> list) {
+		JavaRDD<T> rdd = new JavaRDD<T>(new ArrayList<T>(list));
+		created.add(rdd);
+		return rdd;
+	}
+}
@@ -0,0 +1,12 @@
+/*
+ * Stub of the Spark interface of the same name, for compiling generated code
+ * in tests.
+ */
+
+package org.apache.spark.api.java.function;
+
+import java.io.Serializable;
+
+public interface DoubleFunction<T> extends Serializable {
+	double call(T t) throws Exception;
+}
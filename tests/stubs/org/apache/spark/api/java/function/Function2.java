@@ -0,0 +1,12 @@
+/*
+ * Stub of the Spark interface of the same name, for compiling generated code
+ * in tests.
+ */
+
+package org.apache.spark.api.java.function;
+
+import java.io.Serializable;
+
+public interface Function2<T1, T2, R> extends Serializable {
+	R call(T1 v1, T2 v2) throws Exception;
+}
@@ -0,0 +1,15 @@
+/*
+ * Stub of the Spark interface of the same name, for compiling generated code
+ * in tests.
+ */
+
+package org.apache.spark.api.java.function;
+
+import java.io.Serializable;
+import java.util.Iterator;
+
+import scala.Tuple2;
+
+public interface PairFlatMapFunction<T, K, V> extends Serializable {
+	Iterator<Tuple2<K, V>> call(T t) throws Exception;
+}
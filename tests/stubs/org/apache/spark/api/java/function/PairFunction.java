@@ -0,0 +1,14 @@
+/*
+ * Stub of the Spark interface of the same name, for compiling generated code
+ * in tests.
+ */
+
+package org.apache.spark.api.java.function;
+
+import java.io.Serializable;
+
+import scala.Tuple2;
+
+public interface PairFunction<T, K, V> extends Serializable {
+	Tuple2<K, V> call(T t) throws Exception;
+}
@@ -0,0 +1,50 @@
+/*
+ * Stub of Spark's StatCounter, for running generated code in tests. Values are
+ * merged into a running mean as Spark does, and the sum is count * mean.
+ */
+
+package org.apache.spark.util;
+
+import java.io.Serializable;
+
+public class StatCounter implements Serializable {
+	private long n = 0;
+	private double mu = 0;
+	private double m2 = 0;
+	private double maxValue = Double.NEGATIVE_INFINITY;
+	private double minValue = Double.POSITIVE_INFINITY;
+
+	public StatCounter merge(double value) {
+		double delta = value - mu;
+		n++;
+		mu += delta / n;
+		m2 += delta * (value - mu);
+		maxValue = Math.max(maxValue, value);
+		minValue = Math.min(minValue, value);
+		return this;
+	}
+
+	public long count() {
+		return n;
+	}
+
+	public double mean() {
+		return mu;
+	}
+
+	public double sum() {
+		return n * mu;
+	}
+
+	public double min() {
+		return minValue;
+	}
+
+	public double max() {
+		return maxValue;
+	}
+
+	public double variance() {
+		return n == 0 ? Double.NaN : m2 / n;
+	}
+}
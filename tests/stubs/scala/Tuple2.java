@@ -0,0 +1,44 @@
+/*
+ * Stub of scala.Tuple2 as Java code sees it, for compiling generated code in
+ * tests.
+ */
+
+package scala;
+
+import java.io.Serializable;
+
+public class Tuple2<T1, T2> implements Serializable {
+	private final T1 first;
+	private final T2 second;
+
+	public Tuple2(T1 first, T2 second) {
+		this.first = first;
+		this.second = second;
+	}
+
+	public T1 _1() {
+		return first;
+	}
+
+	public T2 _2() {
+		return second;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof Tuple2))
+			return false;
+		Tuple2<?,?> t = (Tuple2<?,?>) o;
+		return (first == null ? t.first == null : first.equals(t.first)) && (second == null ? t.second == null : second.equals(t.second));
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (first == null ? 0 : first.hashCode()) + (second == null ? 0 : second.hashCode());
+	}
+
+	@Override
+	public String toString() {
+		return "(" + first + "," + second + ")";
+	}
+}
@@ -0,0 +1,28 @@
+#!/bin/sh
+#
+# Unit tests of the compiler (tests/casper/**/*Test.java). Every test is a main
+# program that exits with the number of failed checks. The tests run from bin/
+# so that templates are found as they are by casperc. Generated Spark code is
+# compiled against the stubs of the Spark API in tests/stubs.
+#
+# Usage: tests/unit.sh [TestName]
+
+BASEDIR=$(cd "$(dirname "$0")/.." && pwd)
+CLASSES=$(mktemp -d)
+trap 'rm -rf "$CLASSES"' EXIT
+
+javac -nowarn --release 8 -cp "$BASEDIR/lib/*" -d "$CLASSES" $(find "$BASEDIR/compiler/src" "$BASEDIR/tests/casper" "$BASEDIR/tests/stubs" -name "*.java") || exit 1
+
+cd "$BASEDIR/bin"
+failed=0
+for test in $(find "$BASEDIR/tests/casper" -name "*Test.java" | sort); do
+	name=$(basename "$test" .java)
+	if [ -n "$1" ] && [ "$1" != "$name" ]; then
+		continue
+	fi
+	class=$(echo "${test#$BASEDIR/tests/}" | sed 's/\.java$//; s|/|.|g')
+	java -cp "$CLASSES:$BASEDIR/lib/*" $class || failed=$((failed+1))
+done
+
+echo "$failed test(s) failed."
+exit $failed